@@ -0,0 +1,61 @@
+package com.seekfirst.toprgb;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Counts the top colors of a decoded image, on one thread, across image sizes and numbers of distinct colors. Decoding
+ * is left out so only the histogram and the selection are timed.
+ *
+ * @author David Botterill
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FindTopRgbBenchmark {
+
+  /**
+   * Width x height.
+   */
+  @Param({"640x480", "1920x1080", "4000x3000"})
+  public String size;
+
+  @Param({"16", "4096", "262144", "16777216"})
+  public int colors;
+
+  @Param({"3"})
+  public int topCount;
+
+  private BufferedImage image;
+
+  @Setup
+  public void setUp() {
+    String[] dimensions = size.split("x");
+    image = SyntheticImages.create(Integer.parseInt(dimensions[0]), Integer.parseInt(dimensions[1]), colors, 42L);
+  }
+
+  @Benchmark
+  public List<CountPair> findTopRgb() {
+    TopRgbTask task = new TopRgbTask(null, null, topCount);
+    List<CountPair> topCounts = new ArrayList<>(topCount);
+    task.findTopRgb(topCounts, image);
+    return topCounts;
+  }
+
+}
@@ -0,0 +1,52 @@
+package com.seekfirst.toprgb;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.SplittableRandom;
+
+/**
+ * This class generates images for the benchmarks. The same arguments always give the same pixels, so timings are
+ * comparable across commits.
+ * <p>
+ * The palette holds exactly the requested number of distinct colors. Pixels draw from it with a skew towards the start
+ * of the palette, as in photos where a few colors cover most of the image and the rest form a long tail.
+ *
+ * @author David Botterill
+ */
+public final class SyntheticImages {
+
+  /**
+   * An odd multiplier is a permutation of the 24 bit color space, so palette entries never collide.
+   */
+  private static final int PALETTE_MULTIPLIER = 0x9e3779;
+  private static final int RGB_MASK = 0xffffff;
+
+  private SyntheticImages() {
+  }
+
+  /**
+   * @param width the image width in pixels.
+   * @param height the image height in pixels.
+   * @param colors the number of distinct colors in the palette, from 1 to 2^24.
+   * @param seed the seed of the pixel sequence.
+   * @return an RGB image whose pixels are drawn from the palette.
+   */
+  public static BufferedImage create(int width, int height, int colors, long seed) {
+    if (colors < 1 || colors > RGB_MASK + 1) {
+      throw new IllegalArgumentException("Colors must be from 1 to 2^24!");
+    }
+    BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+    int[] pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+    SplittableRandom random = new SplittableRandom(seed);
+    for (int ii = 0; ii < pixels.length; ii++) {
+      /**
+       * Cubing a uniform value piles the draws onto the first palette entries.
+       */
+      double uniform = random.nextDouble();
+      int entry = (int) (colors * uniform * uniform * uniform);
+      pixels[ii] = (entry * PALETTE_MULTIPLIER) & RGB_MASK;
+    }
+    return image;
+  }
+
+}
@@ -0,0 +1,103 @@
+package com.seekfirst.toprgb.sorter;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Merges a fixed number of sorted chunk files into the sorted output file at several fan-ins. A fan-in below the
+ * number of chunks adds intermediate merge passes. The input is broken down into fresh chunk files before every call,
+ * outside the timing, since the merge deletes them.
+ *
+ * @author David Botterill
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx1g")
+public class ExternalSortBenchmark {
+
+  @Param({"1000000"})
+  public int lines;
+
+  /**
+   * Distinct URLs as a percentage of the lines.
+   */
+  @Param({"50"})
+  public int distinctPercent;
+
+  @Param({"64"})
+  public int chunks;
+
+  @Param({"2", "8", "64"})
+  public int fanIn;
+
+  @Param({"1", "4"})
+  public int sortThreads;
+
+  @Param({"false"})
+  public boolean compress;
+
+  private File inputFile;
+  private File sortedFile;
+  private long chunkSize;
+  private ExternalSorter sorter;
+  private List<File> chunkFiles;
+
+  @Setup(Level.Trial)
+  public void createInput() throws IOException {
+    inputFile = File.createTempFile("toprgb_", "_benchinput");
+    sortedFile = File.createTempFile("toprgb_", "_benchsorted");
+    SyntheticUrls.write(inputFile, lines, Math.max(1, (int) ((long) lines * distinctPercent / 100)), 42L);
+    /**
+     * Chunk size counts the index bytes of every line as well as the line bytes.
+     */
+    chunkSize = (inputFile.length() + (long) lines * LineArena.INDEX_BYTES_PER_LINE) / chunks + 1;
+  }
+
+  @Setup(Level.Invocation)
+  public void breakDownInput() throws IOException {
+    sorter = new ExternalSorter(chunkSize);
+    sorter.setMaxFanIn(fanIn);
+    sorter.setSortThreads(sortThreads);
+    sorter.setCompressSpills(compress);
+    chunkFiles = sorter.breakDownFile(inputFile.getAbsolutePath(), chunkSize);
+  }
+
+  @Benchmark
+  public long externalSort() {
+    sorter.externalSort(chunkFiles, sortedFile.getAbsolutePath());
+    return sortedFile.length();
+  }
+
+  @TearDown(Level.Invocation)
+  public void deleteChunkFiles() throws IOException {
+    for (File chunkFile : chunkFiles) {
+      Files.deleteIfExists(chunkFile.toPath());
+    }
+  }
+
+  @TearDown(Level.Trial)
+  public void deleteFiles() throws IOException {
+    Files.deleteIfExists(inputFile.toPath());
+    Files.deleteIfExists(sortedFile.toPath());
+  }
+
+}
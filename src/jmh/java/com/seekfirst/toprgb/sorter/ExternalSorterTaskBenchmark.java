@@ -0,0 +1,81 @@
+package com.seekfirst.toprgb.sorter;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Sorts one chunk of URLs and writes its spill file, as each sort thread does while the input is broken down. The chunk
+ * is refilled before every call, outside the timing, since sorting it in place leaves it sorted.
+ *
+ * @author David Botterill
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class ExternalSorterTaskBenchmark {
+
+  @Param({"100000", "1000000"})
+  public int lines;
+
+  /**
+   * Distinct URLs as a percentage of the lines.
+   */
+  @Param({"10", "100"})
+  public int distinctPercent;
+
+  @Param({"false", "true"})
+  public boolean compress;
+
+  private byte[][] urls;
+  private long chunkBytes;
+  private File spillFile;
+  private LineArena chunk;
+
+  @Setup(Level.Trial)
+  public void createUrls() throws IOException {
+    urls = SyntheticUrls.create(lines, Math.max(1, (int) ((long) lines * distinctPercent / 100)), 42L);
+    for (byte[] url : urls) {
+      chunkBytes += url.length + LineArena.INDEX_BYTES_PER_LINE;
+    }
+    spillFile = File.createTempFile("toprgb_", "_benchchunk");
+  }
+
+  @Setup(Level.Invocation)
+  public void fillChunk() {
+    chunk = new LineArena(chunkBytes);
+    for (byte[] url : urls) {
+      chunk.add(url, 0, url.length);
+    }
+  }
+
+  @Benchmark
+  public boolean sortChunk() {
+    ExternalSorterTask sorterTask = new ExternalSorterTask(chunk, spillFile, compress);
+    sorterTask.run();
+    return sorterTask.isWritten();
+  }
+
+  @TearDown(Level.Trial)
+  public void deleteSpillFile() throws IOException {
+    Files.deleteIfExists(spillFile.toPath());
+  }
+
+}
@@ -0,0 +1,77 @@
+package com.seekfirst.toprgb.sorter;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.SplittableRandom;
+
+/**
+ * This class generates URL lists for the sort benchmarks. The same arguments always give the same lines in the same
+ * order, so timings are comparable across commits.
+ * <p>
+ * Each line is one of a fixed number of distinct image URLs, picked at random so repeats are spread through the list.
+ * The URLs share a few host prefixes and vary in length, like a real crawl.
+ *
+ * @author David Botterill
+ */
+public final class SyntheticUrls {
+
+  private static final String[] HOSTS = {"https://i.example.com/", "https://cdn1.example.net/images/",
+    "https://media.example.org/uploads/2021/04/", "http://img.example.com/p/"};
+
+  private SyntheticUrls() {
+  }
+
+  /**
+   * @param lines the number of lines.
+   * @param distinct the number of distinct URLs among them.
+   * @param seed the seed of the line sequence.
+   * @return the lines as UTF-8 bytes, without line ends.
+   */
+  public static byte[][] create(int lines, int distinct, long seed) {
+    SplittableRandom random = new SplittableRandom(seed);
+    byte[][] urls = new byte[lines][];
+    for (int ii = 0; ii < lines; ii++) {
+      urls[ii] = url(random.nextInt(distinct)).getBytes(StandardCharsets.UTF_8);
+    }
+    return urls;
+  }
+
+  /**
+   * Writes the lines of {@link #create(int, int, long)} to a file, one per line.
+   *
+   * @param file the file to write.
+   * @param lines the number of lines.
+   * @param distinct the number of distinct URLs among them.
+   * @param seed the seed of the line sequence.
+   * @throws IOException if the file can not be written.
+   */
+  public static void write(File file, int lines, int distinct, long seed) throws IOException {
+    SplittableRandom random = new SplittableRandom(seed);
+    try (OutputStream output = new BufferedOutputStream(Files.newOutputStream(file.toPath()), 1 << 16)) {
+      for (int ii = 0; ii < lines; ii++) {
+        output.write(url(random.nextInt(distinct)).getBytes(StandardCharsets.UTF_8));
+        output.write('\n');
+      }
+    }
+  }
+
+  /**
+   * The URL of an id is always the same. Mixing the id keeps the sorted order unrelated to the order of the ids.
+   */
+  static String url(int id) {
+    long mixed = id * 0x9e3779b97f4a7c15L;
+    mixed ^= mixed >>> 29;
+    StringBuilder url = new StringBuilder(96);
+    url.append(HOSTS[id % HOSTS.length]);
+    for (int depth = id % 3; depth > 0; depth--) {
+      url.append(Long.toString((mixed >>> (depth * 8)) & 0xff, 36)).append('/');
+    }
+    url.append(Long.toHexString(mixed)).append(".jpg");
+    return url.toString();
+  }
+
+}
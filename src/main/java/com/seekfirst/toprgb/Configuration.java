@@ -1,15 +1,62 @@
 
 package com.seekfirst.toprgb;
 
+import com.seekfirst.toprgb.cache.UrlResultCache;
+import com.seekfirst.toprgb.output.ResultWriter;
+
 /**
  * This POJO encapsulates the TopRgb configuration.
  * @author David Botterill
  */
 public class Configuration {
+
+  /**
+   * How repeat URLs in the input are found.
+   */
+  public enum DedupMode {
+    /**
+     * External sort the input so repeats are adjacent.
+     */
+    SORT,
+    /**
+     * Read the input as is and remember a 64 bit fingerprint of every URL seen.
+     */
+    HASH
+  }
+
   private int threads;
   private String inputFilename;
   private String outputFilename;
   private long chunkSize;
+  private int topCount;
+  private long parallelPixelThreshold;
+  private long stripPixels;
+  private int approximateCounters;
+  private long spillBytes;
+  private int fetchThreads;
+  private int queueCapacity;
+  private long connectTimeoutMillis;
+  private long readTimeoutMillis;
+  private int maxRedirects;
+  private long flushIntervalMillis;
+  private ResultWriter.FsyncPolicy fsyncPolicy;
+  private DedupMode dedupMode;
+  private int mergeFanIn;
+  private boolean repeatCounts;
+  private boolean spillCompression;
+  private long memoryBudget;
+  private String sortedOutputFilename;
+  private int targetCacheSize;
+  private String targetCacheFilename;
+  private long contentCacheBytes;
+  private boolean resume;
+  private boolean journal;
+  private String urlCacheFilename;
+  private long urlCacheBytes;
+  private UrlResultCache.Eviction urlCacheEviction;
+  private long urlCacheTtlHours;
+  private long metricsIntervalSeconds;
+  private String prometheusFilename;
 
   public Configuration() {
   }
@@ -45,5 +92,237 @@ public class Configuration {
   public void setChunkSize(long chunkSize) {
     this.chunkSize = chunkSize;
   }
-  
+
+  public int getTopCount() {
+    return topCount;
+  }
+
+  public void setTopCount(int topCount) {
+    this.topCount = topCount;
+  }
+
+  public long getParallelPixelThreshold() {
+    return parallelPixelThreshold;
+  }
+
+  public void setParallelPixelThreshold(long parallelPixelThreshold) {
+    this.parallelPixelThreshold = parallelPixelThreshold;
+  }
+
+  public long getStripPixels() {
+    return stripPixels;
+  }
+
+  public void setStripPixels(long stripPixels) {
+    this.stripPixels = stripPixels;
+  }
+
+  public int getApproximateCounters() {
+    return approximateCounters;
+  }
+
+  public void setApproximateCounters(int approximateCounters) {
+    this.approximateCounters = approximateCounters;
+  }
+
+  public long getSpillBytes() {
+    return spillBytes;
+  }
+
+  public void setSpillBytes(long spillBytes) {
+    this.spillBytes = spillBytes;
+  }
+
+  public int getFetchThreads() {
+    return fetchThreads;
+  }
+
+  public void setFetchThreads(int fetchThreads) {
+    this.fetchThreads = fetchThreads;
+  }
+
+  public int getQueueCapacity() {
+    return queueCapacity;
+  }
+
+  public void setQueueCapacity(int queueCapacity) {
+    this.queueCapacity = queueCapacity;
+  }
+
+  public long getConnectTimeoutMillis() {
+    return connectTimeoutMillis;
+  }
+
+  public void setConnectTimeoutMillis(long connectTimeoutMillis) {
+    this.connectTimeoutMillis = connectTimeoutMillis;
+  }
+
+  public long getReadTimeoutMillis() {
+    return readTimeoutMillis;
+  }
+
+  public void setReadTimeoutMillis(long readTimeoutMillis) {
+    this.readTimeoutMillis = readTimeoutMillis;
+  }
+
+  public int getMaxRedirects() {
+    return maxRedirects;
+  }
+
+  public void setMaxRedirects(int maxRedirects) {
+    this.maxRedirects = maxRedirects;
+  }
+
+  public long getFlushIntervalMillis() {
+    return flushIntervalMillis;
+  }
+
+  public void setFlushIntervalMillis(long flushIntervalMillis) {
+    this.flushIntervalMillis = flushIntervalMillis;
+  }
+
+  public ResultWriter.FsyncPolicy getFsyncPolicy() {
+    return fsyncPolicy;
+  }
+
+  public void setFsyncPolicy(ResultWriter.FsyncPolicy fsyncPolicy) {
+    this.fsyncPolicy = fsyncPolicy;
+  }
+
+  public DedupMode getDedupMode() {
+    return dedupMode;
+  }
+
+  public void setDedupMode(DedupMode dedupMode) {
+    this.dedupMode = dedupMode;
+  }
+
+  public int getMergeFanIn() {
+    return mergeFanIn;
+  }
+
+  public void setMergeFanIn(int mergeFanIn) {
+    this.mergeFanIn = mergeFanIn;
+  }
+
+  public boolean isRepeatCounts() {
+    return repeatCounts;
+  }
+
+  public void setRepeatCounts(boolean repeatCounts) {
+    this.repeatCounts = repeatCounts;
+  }
+
+  public boolean isSpillCompression() {
+    return spillCompression;
+  }
+
+  public void setSpillCompression(boolean spillCompression) {
+    this.spillCompression = spillCompression;
+  }
+
+  public long getMemoryBudget() {
+    return memoryBudget;
+  }
+
+  public void setMemoryBudget(long memoryBudget) {
+    this.memoryBudget = memoryBudget;
+  }
+
+  public String getSortedOutputFilename() {
+    return sortedOutputFilename;
+  }
+
+  public void setSortedOutputFilename(String sortedOutputFilename) {
+    this.sortedOutputFilename = sortedOutputFilename;
+  }
+
+  public int getTargetCacheSize() {
+    return targetCacheSize;
+  }
+
+  public void setTargetCacheSize(int targetCacheSize) {
+    this.targetCacheSize = targetCacheSize;
+  }
+
+  public String getTargetCacheFilename() {
+    return targetCacheFilename;
+  }
+
+  public void setTargetCacheFilename(String targetCacheFilename) {
+    this.targetCacheFilename = targetCacheFilename;
+  }
+
+  public long getContentCacheBytes() {
+    return contentCacheBytes;
+  }
+
+  public void setContentCacheBytes(long contentCacheBytes) {
+    this.contentCacheBytes = contentCacheBytes;
+  }
+
+  public boolean isResume() {
+    return resume;
+  }
+
+  public void setResume(boolean resume) {
+    this.resume = resume;
+  }
+
+  public String getUrlCacheFilename() {
+    return urlCacheFilename;
+  }
+
+  public void setUrlCacheFilename(String urlCacheFilename) {
+    this.urlCacheFilename = urlCacheFilename;
+  }
+
+  public long getUrlCacheBytes() {
+    return urlCacheBytes;
+  }
+
+  public void setUrlCacheBytes(long urlCacheBytes) {
+    this.urlCacheBytes = urlCacheBytes;
+  }
+
+  public UrlResultCache.Eviction getUrlCacheEviction() {
+    return urlCacheEviction;
+  }
+
+  public void setUrlCacheEviction(UrlResultCache.Eviction urlCacheEviction) {
+    this.urlCacheEviction = urlCacheEviction;
+  }
+
+  public long getUrlCacheTtlHours() {
+    return urlCacheTtlHours;
+  }
+
+  public void setUrlCacheTtlHours(long urlCacheTtlHours) {
+    this.urlCacheTtlHours = urlCacheTtlHours;
+  }
+
+  public long getMetricsIntervalSeconds() {
+    return metricsIntervalSeconds;
+  }
+
+  public void setMetricsIntervalSeconds(long metricsIntervalSeconds) {
+    this.metricsIntervalSeconds = metricsIntervalSeconds;
+  }
+
+  public String getPrometheusFilename() {
+    return prometheusFilename;
+  }
+
+  public void setPrometheusFilename(String prometheusFilename) {
+    this.prometheusFilename = prometheusFilename;
+  }
+
+  public boolean isJournal() {
+    return journal;
+  }
+
+  public void setJournal(boolean journal) {
+    this.journal = journal;
+  }
+
 }
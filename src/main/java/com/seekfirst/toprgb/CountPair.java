@@ -1,44 +1,85 @@
-
 package com.seekfirst.toprgb;
 
-import java.util.Objects;
-
 /**
- * POJO for holding a hex value and it's total count.
+ * POJO for holding a packed 24 bit RGB color and it's total count. The hex value is only formatted when asked for so
+ * counting never creates strings.
  * 
  * @author David Botterill
  */
 class CountPair {
-  
-  String hexColor;
-  private Long count;
 
-  public CountPair(String hexColor, Long count) {
-    this.hexColor = hexColor;
+  private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+  private int rgb;
+  private long count;
+  private long error;
+
+  public CountPair(int rgb, long count) {
+    this(rgb, count, 0L);
+  }
+
+  public CountPair(int rgb, long count, long error) {
+    this.rgb = rgb & 0xffffff;
     this.count = count;
+    this.error = error;
   }
 
-  public String getHexColor() {
-    return hexColor;
+  public int getRgb() {
+    return rgb;
+  }
+
+  public void setRgb(int rgb) {
+    this.rgb = rgb & 0xffffff;
   }
 
-  public void setHexColor(String hexColor) {
-    this.hexColor = hexColor;
+  /**
+   * @return the color in the form #rrggbb using lower case hex digits.
+   */
+  public String getHexColor() {
+    return toHexColor(this.rgb);
   }
 
-  public Long getCount() {
+  public long getCount() {
     return count;
   }
 
-  public void setCount(Long count) {
+  public void setCount(long count) {
     this.count = count;
   }
 
+  /**
+   * @return the most the count can be over the true count, always 0 unless the count is approximate.
+   */
+  public long getError() {
+    return error;
+  }
+
+  public void setError(long error) {
+    this.error = error;
+  }
+
+  /**
+   * Formats a packed 24 bit RGB value as #rrggbb.
+   *
+   * @param rgb the color, any alpha bits are ignored.
+   * @return the hex string.
+   */
+  static String toHexColor(int rgb) {
+    char[] hex = new char[7];
+    hex[0] = '#';
+    for (int ii = 6; ii > 0; ii--) {
+      hex[ii] = HEX_DIGITS[rgb & 0xf];
+      rgb >>>= 4;
+    }
+    return new String(hex);
+  }
+
   @Override
   public int hashCode() {
     int hash = 5;
-    hash = 83 * hash + Objects.hashCode(this.hexColor);
-    hash = 83 * hash + Objects.hashCode(this.count);
+    hash = 83 * hash + this.rgb;
+    hash = 83 * hash + Long.hashCode(this.count);
+    hash = 83 * hash + Long.hashCode(this.error);
     return hash;
   }
 
@@ -54,10 +95,13 @@ class CountPair {
       return false;
     }
     final CountPair other = (CountPair) obj;
-    if (!Objects.equals(this.hexColor, other.hexColor)) {
+    if (this.rgb != other.rgb) {
+      return false;
+    }
+    if (this.count != other.count) {
       return false;
     }
-    if (!Objects.equals(this.count, other.count)) {
+    if (this.error != other.error) {
       return false;
     }
     return true;
@@ -0,0 +1,184 @@
+package com.seekfirst.toprgb;
+
+import com.seekfirst.toprgb.fetch.FetchThreads;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * This class runs TopRgbTask instances through three stages, each with its own threads:
+ * <p>
+ * fetch (network bound) -&gt; decode and count (CPU bound) -&gt; write (disk, the ResultWriter thread)
+ * <p>
+ * The stages are joined by bounded queues, the last one inside the ResultWriter. When a stage falls behind its input
+ * queue fills up and the stage in front of it blocks, all the way back to {@link #submit(TopRgbTask)}. The number of
+ * tasks and downloaded bodies alive at once is bounded by the queue capacities and thread counts, never by the size of
+ * the input file.
+ *
+ * @author David Botterill
+ */
+public class ScanPipeline {
+
+  private static Logger logger = LoggerFactory.getLogger(ScanPipeline.class);
+
+  /**
+   * Marks the end of a queue. One is queued for every thread of the stage reading it.
+   */
+  private static final TopRgbTask END = new TopRgbTask(null, null);
+
+  private final Stage fetchStage;
+  private final Stage decodeStage;
+
+  /**
+   * @param fetchThreads the number of threads downloading images.
+   * @param decodeThreads the number of threads decoding and counting images.
+   * @param queueCapacity the capacity of each queue between stages.
+   */
+  public ScanPipeline(int fetchThreads, int decodeThreads, int queueCapacity) {
+    /**
+     * Results are handed to the ResultWriter on the decode thread, blocking while its queue is full, and the writer's
+     * own thread is the write stage.
+     */
+    decodeStage = new Stage("decode", decodeThreads, queueCapacity, platformThreads("toprgb-decode-"), task -> {
+      if (task.count()) {
+        task.write();
+      }
+    }, null);
+    /**
+     * Fetch threads spend their time waiting on the network, so they are virtual threads where the runtime has them.
+     */
+    fetchStage = new Stage("fetch", fetchThreads, queueCapacity, FetchThreads.factory("toprgb-fetch-"), task -> {
+      if (task.fetch()) {
+        decodeStage.put(task);
+      }
+    }, decodeStage);
+  }
+
+  /**
+   * Queues a task, blocking while the fetch queue is full.
+   *
+   * @param task the task to run.
+   * @throws InterruptedException if interrupted while waiting for room.
+   */
+  public void submit(TopRgbTask task) throws InterruptedException {
+    fetchStage.queue.put(task);
+  }
+
+  /**
+   * Signals that no more tasks will be submitted and waits for every stage to finish.
+   *
+   * @throws InterruptedException if interrupted while waiting.
+   */
+  public void finish() throws InterruptedException {
+    fetchStage.end();
+    fetchStage.join();
+    decodeStage.join();
+  }
+
+  /**
+   * @return the number of tasks waiting to be fetched.
+   */
+  public int getFetchQueueDepth() {
+    return fetchStage.queue.size();
+  }
+
+  /**
+   * @return the number of fetched tasks waiting to be decoded.
+   */
+  public int getDecodeQueueDepth() {
+    return decodeStage.queue.size();
+  }
+
+  private static ThreadFactory platformThreads(String namePrefix) {
+    AtomicInteger sequence = new AtomicInteger();
+    return runnable -> new Thread(runnable, namePrefix + sequence.getAndIncrement());
+  }
+
+  /**
+   * A queue and the threads reading it. When the last thread of a stage finishes, the stage ends the next stage.
+   */
+  private static class Stage {
+
+    private final String name;
+    private final BlockingQueue<TopRgbTask> queue;
+    private final List<Thread> threads = new ArrayList<>();
+    private final Consumer<TopRgbTask> work;
+    private final Stage next;
+    private int running;
+
+    Stage(String name, int threadCount, int queueCapacity, ThreadFactory threadFactory, Consumer<TopRgbTask> work,
+        Stage next) {
+      this.name = name;
+      this.queue = new ArrayBlockingQueue<>(queueCapacity);
+      this.work = work;
+      this.next = next;
+      this.running = threadCount;
+      for (int ii = 0; ii < threadCount; ii++) {
+        Thread thread = threadFactory.newThread(this::process);
+        threads.add(thread);
+        thread.start();
+      }
+    }
+
+    void put(TopRgbTask task) {
+      try {
+        queue.put(task);
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+        throw new IllegalStateException("Interrupted queueing for the " + name + " stage", ex);
+      }
+    }
+
+    void end() throws InterruptedException {
+      for (int ii = 0; ii < threads.size(); ii++) {
+        queue.put(END);
+      }
+    }
+
+    void join() throws InterruptedException {
+      for (Thread thread : threads) {
+        thread.join();
+      }
+    }
+
+    private void process() {
+      try {
+        TopRgbTask task;
+        while ((task = queue.take()) != END) {
+          try {
+            work.accept(task);
+          } catch (RuntimeException ex) {
+            logger.error("Exception in " + name + " stage: " + ex.getLocalizedMessage(), ex);
+          }
+        }
+      } catch (InterruptedException ex) {
+        logger.error("InterruptedException: " + ex.getLocalizedMessage(), ex);
+        Thread.currentThread().interrupt();
+      } finally {
+        stageThreadDone();
+      }
+    }
+
+    private void stageThreadDone() {
+      boolean last;
+      synchronized (this) {
+        last = 0 == --running;
+      }
+      if (last && null != next) {
+        try {
+          next.end();
+        } catch (InterruptedException ex) {
+          logger.error("InterruptedException: " + ex.getLocalizedMessage(), ex);
+          Thread.currentThread().interrupt();
+        }
+      }
+    }
+  }
+
+}
@@ -1,19 +1,33 @@
 package com.seekfirst.toprgb;
 
+import com.seekfirst.toprgb.cache.ContentResultTable;
+import com.seekfirst.toprgb.cache.TargetCache;
+import com.seekfirst.toprgb.cache.UrlResultCache;
+import com.seekfirst.toprgb.checkpoint.ProgressJournal;
+import com.seekfirst.toprgb.checkpoint.ScanProgress;
+import com.seekfirst.toprgb.dedup.UrlFingerprintSet;
+import com.seekfirst.toprgb.fetch.BufferPool;
+import com.seekfirst.toprgb.fetch.FetchThreads;
+import com.seekfirst.toprgb.fetch.HttpFetcher;
+import com.seekfirst.toprgb.metrics.MetricsReporter;
+import com.seekfirst.toprgb.metrics.PipelineMetrics;
+import com.seekfirst.toprgb.output.ResultWriter;
 import com.seekfirst.toprgb.sorter.ExternalSorter;
+import com.seekfirst.toprgb.sorter.SortedUrls;
 import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.File;
 import java.io.IOException;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.LinkOption;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.Collections;
 import java.util.Date;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.TimeUnit;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import org.apache.commons.cli.CommandLine;
@@ -27,8 +41,8 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
- * This service finds the 3 most prevalent colors in images given a list of URLs to images and creates a CSV (Comma
- * Separated Variable) file with each row having:
+ * This service finds the K (default 3) most prevalent colors in images given a list of URLs to images and creates a CSV
+ * (Comma Separated Variable) file with each row having one color column per K:
  * <p>
  * URL,color,color,color
  * <p>
@@ -37,6 +51,7 @@ import org.slf4j.LoggerFactory;
  * Calling Syntax:
  * <p>
  * java -jar TopRgbService.jar -t number of threads -f input filename -o output filename (optional, default=toprgb.csv"
+ * -k number of colors per image (optional, default=3)
  *
  * @author David Botterill
  */
@@ -45,9 +60,24 @@ public class TopRgbService {
   private static Logger logger = LoggerFactory.getLogger(TopRgbService.class);
 
   private final static int DEFAULT_THREADS = 8;
+  /**
+   * Virtual fetch threads cost almost nothing while they wait on the network so many more can be in flight.
+   */
+  private final static int DEFAULT_FETCH_THREADS = FetchThreads.isVirtual() ? 128 : 16;
+  private final static int DEFAULT_QUEUE_CAPACITY = 64;
   private final static long DEFAULT_CHUNKSIZE = 1000000000; // 1GB
   private final static String DEFAULT_OUTPUTFILENAME = "toprgb.csv";
+  private final static long DEFAULT_PARALLEL_PIXEL_THRESHOLD = 20000000; // 20 megapixels
+  /**
+   * The part of the maximum heap all downloaded bodies held in memory may use together, whatever the fetch threads.
+   */
+  private final static double DOWNLOAD_MEMORY_FRACTION = 0.125;
+  /**
+   * Only used to size the URL fingerprint table up front, it grows if this guess is low.
+   */
+  private final static long ESTIMATED_BYTES_PER_URL = 64;
   private final Configuration config;
+  private final PipelineMetrics metrics = new PipelineMetrics();
 
   /**
    * Standard Java command line entry point.
@@ -72,94 +102,420 @@ public class TopRgbService {
   public void start() {
     long start = System.currentTimeMillis();
 
-    ExecutorService executor = Executors.newFixedThreadPool(config.getThreads());
+    ForkJoinPool countingPool = this.createCountingPool();
+    /**
+     * Downloads share one memory budget, sized from the heap rather than from the number of fetch threads. Chunks are
+     * kept for reuse up to the budget, and a body that needs more once it is used up is spilled to a temp file.
+     */
+    int downloadChunks = (int) Math.max(1L,
+        (long) (Runtime.getRuntime().maxMemory() * DOWNLOAD_MEMORY_FRACTION) / BufferPool.DEFAULT_CHUNK_SIZE);
+    BufferPool bufferPool = new BufferPool(BufferPool.DEFAULT_CHUNK_SIZE, downloadChunks, downloadChunks);
+    logger.info("Downloads held in memory may use " + (long) downloadChunks * BufferPool.DEFAULT_CHUNK_SIZE + " bytes");
     AtomicLong totalTime = new AtomicLong();
+    MetricsReporter metricsReporter = new MetricsReporter(metrics, config.getMetricsIntervalSeconds(),
+        null == config.getPrometheusFilename() ? null : new File(config.getPrometheusFilename()));
 
     /**
-     * Sort the input file.
+     * Sort the input file into distinct URLs, or with hash dedup read it as is and remember each URL seen.
      */
-    logger.debug("------------------  Starting Sort Phase -------------------");
-    File sortedFile = this.createSortedFile();
-    logger.debug("------------------  Ending Sort Phase -------------------");
+    File urlFile = new File(config.getInputFilename());
+    File outputFile = this.resolveOutputFile();
+    ProgressJournal journal = this.openJournal(urlFile, outputFile);
+    if (config.isResume() && null == journal) {
+      closeQuietly(metricsReporter);
+      return;
+    }
+    UrlFingerprintSet seenUrls = null;
+    SortedUrls sortedUrls = null;
+    if (Configuration.DedupMode.HASH == config.getDedupMode()) {
+      try {
+        seenUrls = new UrlFingerprintSet(urlFile.length() / ESTIMATED_BYTES_PER_URL);
+      } catch (IOException ex) {
+        logger.error("Error creating URL fingerprint table: " + ex.getLocalizedMessage(), ex);
+        closeQuietly(journal);
+        closeQuietly(metricsReporter);
+        return;
+      }
+    } else {
+      logger.debug("------------------  Starting Sort Phase -------------------");
+      sortedUrls = this.openSortedUrls(journal);
+      logger.debug("------------------  Ending Sort Phase -------------------");
+      if (null == sortedUrls) {
+        closeQuietly(journal);
+        closeQuietly(metricsReporter);
+        return;
+      }
+    }
     logger.debug("------------------  Starting Image Scan Phase -------------------");
-    BufferedWriter writer = this.createBufferedWriter();
+    ResultWriter writer = this.createResultWriter(outputFile, journal);
+    Set<String> resumedUrls = this.readResumedUrls(outputFile, journal);
 
-    if (null == writer) {
+    if (null == writer || null == resumedUrls) {
+      closeQuietly(seenUrls);
+      closeQuietly(sortedUrls);
+      closeQuietly(journal);
+      closeQuietly(metricsReporter);
       return;
     }
 
+    /**
+     * URLs are numbered in the order they come from the sort or the input, which is the same on every run of the same
+     * input, so the journal can say how far the scan got by number.
+     */
+    ScanProgress scanProgress = null == journal ? null : new ScanProgress(journal, journal.getScanNext());
+    writer.setWriteListener(scanProgress);
+    long scanDone = null == journal ? 0L : journal.getScanNext();
+    long sequence = 0L;
+    long urlsResumed = 0L;
+    boolean scanComplete = false;
     long urlsProcessed = 0L;
     long urlsSkipped = 0L;
+    logger.info("Scanning with " + config.getFetchThreads() + " fetch threads, " + config.getThreads()
+        + " decode threads and queues of " + config.getQueueCapacity());
+    HttpFetcher httpFetcher = new HttpFetcher(Duration.ofMillis(config.getConnectTimeoutMillis()),
+        Duration.ofMillis(config.getReadTimeoutMillis()), config.getMaxRedirects());
+    TargetCache targetCache = this.createTargetCache();
+    UrlResultCache urlCache = this.createUrlCache();
+    ContentResultTable contentTable = config.getContentCacheBytes() <= 0L ? null
+        : new ContentResultTable(config.getContentCacheBytes(), config.getTopCount(),
+            config.getApproximateCounters() > 0);
+    ScanPipeline pipeline = new ScanPipeline(config.getFetchThreads(), config.getThreads(), config.getQueueCapacity());
+    metrics.addQueue("fetch", pipeline::getFetchQueueDepth);
+    metrics.addQueue("decode", pipeline::getDecodeQueueDepth);
+    metrics.addQueue("write", writer::getQueueDepth);
+    metrics.setResultsWritten(writer::getResultsWritten);
 
-    try (BufferedReader reader = Files.newBufferedReader(Paths.get(sortedFile.getAbsolutePath()))) {
+    try (BufferedReader reader = null == sortedUrls ? Files.newBufferedReader(urlFile.toPath()) : null) {
 
       /**
-       * Now read through the sorted URL file and scan the images.
+       * Now pull URLs from the final merge pass, or read them from the input file, and scan the images.
        */
       String urlLine = null;
-      String previousLine = "";
-      while ((urlLine = reader.readLine()) != null) {
-        if (urlLine.compareTo(previousLine) == 0) {
+      while ((urlLine = null != sortedUrls ? nextUrl(sortedUrls) : reader.readLine()) != null) {
+        if (writer.isHalted()) {
+          logger.error("Result writer halted, no more URLs will be scanned.");
+          break;
+        }
+        long occurrences = 0L;
+        if (null != sortedUrls) {
+          /**
+           * The sorter has already collapsed the repeats and counted them.
+           */
+          urlsSkipped += sortedUrls.getCount() - 1;
+          metrics.skipped(PipelineMetrics.Reason.REPEAT_URL, sortedUrls.getCount() - 1);
+          if (config.isRepeatCounts()) {
+            occurrences = sortedUrls.getCount();
+          }
+        } else if (!seenUrls.add(urlLine)) {
           logger.trace("Skipping analysis - already analyzed: " + urlLine);
           urlsSkipped++;
+          metrics.skipped(PipelineMetrics.Reason.REPEAT_URL);
           continue;
-        } else {
-          previousLine = urlLine;
         }
-        TopRgbTask rgbTask = new TopRgbTask(urlLine, writer);
-        executor.submit(rgbTask);
+        if (sequence < scanDone || resumedUrls.contains(urlLine)) {
+          /**
+           * Scanned by the run being resumed, its row is already in the output file.
+           */
+          if (sequence >= scanDone) {
+            scanProgress.submitted(sequence, writer.getFileLength());
+            scanProgress.completed(sequence);
+          }
+          sequence++;
+          urlsResumed++;
+          metrics.skipped(PipelineMetrics.Reason.RESUMED);
+          continue;
+        }
+        TopRgbTask rgbTask = new TopRgbTask(urlLine, writer, config.getTopCount());
+        rgbTask.setOccurrences(occurrences);
+        rgbTask.setStripPixels(config.getStripPixels());
+        rgbTask.setApproximateCounters(config.getApproximateCounters());
+        rgbTask.setDownloadBuffers(bufferPool, config.getSpillBytes());
+        rgbTask.setHttpFetcher(httpFetcher);
+        rgbTask.setTargetCache(targetCache);
+        rgbTask.setContentTable(contentTable);
+        rgbTask.setUrlCache(urlCache);
+        rgbTask.setMetrics(metrics);
+        if (null != countingPool) {
+          rgbTask.setParallelCounting(countingPool, config.getParallelPixelThreshold());
+        }
+        if (null != scanProgress) {
+          rgbTask.setScanProgress(scanProgress, sequence);
+          scanProgress.submitted(sequence, writer.getFileLength());
+        }
+        sequence++;
+        /**
+         * Blocks while the pipeline is full so only a bounded number of tasks are ever alive.
+         */
+        pipeline.submit(rgbTask);
         urlsProcessed++;
       }
+      scanComplete = null == urlLine;
     } catch (IOException ex) {
       logger.error("IOException: " + ex.getLocalizedMessage(), ex);
+    } catch (InterruptedException ex) {
+      logger.error("InterruptedException: " + ex.getLocalizedMessage(), ex);
+    } finally {
+      closeQuietly(seenUrls);
+      closeQuietly(sortedUrls);
     }
 
     try {
       /**
-       * We'll shutdown the executor so we can go into a wait state waiting for all the worker threads to finish.
+       * Let the pipeline drain so we can go into a wait state waiting for all the stage threads to finish.
        */
-      logger.info("Shutting down executor, waiting for threads to finish...");
-      executor.shutdown();
-
-      if (executor.awaitTermination(1L, TimeUnit.DAYS)) {
-        logger.info("Executor is terminated: " + executor.isTerminated());
-        logger.info("Executor terminated gracefully.");
-        writer.flush();
-        writer.close();
+      logger.info("Shutting down pipeline, waiting for threads to finish...");
+      pipeline.finish();
+      logger.info("Pipeline terminated gracefully.");
+      writer.close();
+      logger.info("Results written: " + writer.getResultsWritten());
+      if (null != countingPool) {
+        countingPool.shutdown();
+      }
+      if (scanComplete && !writer.isHalted() && null != journal) {
+        /**
+         * Only a run that scanned every URL gives up its journal, anything less can still be resumed.
+         */
+        journal.finish();
+        journal = null;
       }
     } catch (InterruptedException ex) {
       logger.error("InterruptedException: " + ex.getLocalizedMessage(), ex);
 
-      System.err.println("Executor interupted!");
+      System.err.println("Pipeline interupted!");
     } catch (IOException ex) {
       java.util.logging.Logger.getLogger(TopRgbService.class.getName()).log(Level.SEVERE, null, ex);
     }
+    closeQuietly(journal);
+    closeQuietly(targetCache);
+    closeQuietly(urlCache);
+    closeQuietly(metricsReporter);
+    if (null != contentTable) {
+      logger.info("# of identical images not decoded again: " + contentTable.getHits());
+    }
     logger.debug("------------------  Ending Image Scan Phase -------------------");
 
     Double timeTaken = (System.currentTimeMillis() - start) / 1000.0;
     logger.info("total URLs read: " + urlsProcessed);
     logger.info("# of repeat URLs: " + urlsSkipped);
+    if (urlsResumed > 0L) {
+      logger.info("# of URLs already scanned by the resumed run: " + urlsResumed);
+    }
     logger.info("Total seconds to scan images: " + timeTaken);
 
   }
 
-  private BufferedWriter createBufferedWriter() {
-    BufferedWriter writer = null;
+  /**
+   * Creates the pool used to count very large images in parallel tiles. There is no point on a single CPU or when the
+   * threshold is turned off with 0.
+   *
+   * @return the pool or null if tiled counting is off.
+   */
+  private ForkJoinPool createCountingPool() {
+    int processors = Runtime.getRuntime().availableProcessors();
+    if (processors < 2 || config.getParallelPixelThreshold() <= 0L) {
+      logger.info("Tiled counting of large images is off.");
+      return null;
+    }
+    logger.info("Images with " + config.getParallelPixelThreshold() + " pixels or more will be counted on "
+        + processors + " threads.");
+    return new ForkJoinPool(processors);
+  }
+
+  /**
+   * Creates the cache of redirect targets, loading its backing file if there is one. If the file can not be read the
+   * run starts with an empty cache that is not saved.
+   *
+   * @return the cache or null if it is turned off.
+   */
+  private TargetCache createTargetCache() {
+    if (config.getTargetCacheSize() <= 0) {
+      return null;
+    }
+    if (null == config.getTargetCacheFilename()) {
+      return new TargetCache(config.getTargetCacheSize());
+    }
+    File cacheFile = new File(config.getTargetCacheFilename());
+    try {
+      return new TargetCache(config.getTargetCacheSize(), cacheFile, config.getTopCount(),
+          config.getApproximateCounters() > 0);
+    } catch (IOException ex) {
+      logger.error("Error reading target cache file, it will not be saved: " + ex.getLocalizedMessage(), ex);
+      return new TargetCache(config.getTargetCacheSize());
+    }
+  }
+
+  /**
+   * Opens the cache of URLs from earlier runs. If its file can not be opened the run goes ahead without it.
+   *
+   * @return the cache or null if it is turned off.
+   */
+  private UrlResultCache createUrlCache() {
+    if (null == config.getUrlCacheFilename()) {
+      return null;
+    }
+    try {
+      return new UrlResultCache(new File(config.getUrlCacheFilename()), config.getUrlCacheBytes(),
+          config.getUrlCacheEviction(), Duration.ofHours(config.getUrlCacheTtlHours()), config.getTopCount(),
+          config.getApproximateCounters() > 0);
+    } catch (IOException ex) {
+      logger.error("Error opening URL cache file, it will not be used: " + ex.getLocalizedMessage(), ex);
+      return null;
+    }
+  }
+
+  private static void closeQuietly(MetricsReporter metricsReporter) {
     try {
-      Path outputPath = Paths.get(config.getOutputFilename());
-      String outputFilename = "";
-      if (Files.exists(outputPath, LinkOption.NOFOLLOW_LINKS)) {
+      metricsReporter.close();
+    } catch (IOException ex) {
+      logger.error("Error writing metrics file: " + ex.getLocalizedMessage(), ex);
+    }
+  }
+
+  private static void closeQuietly(UrlResultCache urlCache) {
+    if (null == urlCache) {
+      return;
+    }
+    logger.info("# of images not downloaded or decoded again thanks to the URL cache: " + urlCache.getReused());
+    try {
+      urlCache.close();
+    } catch (IOException ex) {
+      logger.error("Error saving URL cache file: " + ex.getLocalizedMessage(), ex);
+    }
+  }
+
+  private static void closeQuietly(TargetCache targetCache) {
+    if (null == targetCache) {
+      return;
+    }
+    logger.info("# of cached redirect targets used: " + targetCache.getHits());
+    try {
+      targetCache.close();
+    } catch (IOException ex) {
+      logger.error("Error saving target cache file: " + ex.getLocalizedMessage(), ex);
+    }
+  }
+
+  /**
+   * Opens the journal of the run next to the output file. When resuming it is replayed, otherwise a new one is started
+   * if the run asked for one. If a new journal can not be written the run goes ahead without one.
+   *
+   * @return the journal, or null if there is none.
+   */
+  private ProgressJournal openJournal(File urlFile, File outputFile) {
+    if (!config.isJournal() && !config.isResume()) {
+      return null;
+    }
+    File journalFile = new File(outputFile.getPath() + ".journal");
+    File workDirectory = new File(outputFile.getPath() + ".work");
+    try {
+      if (config.isResume()) {
+        ProgressJournal journal = ProgressJournal.resume(journalFile, workDirectory, urlFile, outputFile.length());
+        logger.info("Resuming from journal: " + journalFile + ", " + journal.getScanNext() + " URLs already scanned");
+        return journal;
+      }
+      return ProgressJournal.create(journalFile, workDirectory, urlFile);
+    } catch (IOException ex) {
+      if (config.isResume()) {
+        logger.error("Error resuming: " + ex.getLocalizedMessage(), ex);
+      } else {
+        logger.error("Error creating journal, the run can not be resumed: " + ex.getLocalizedMessage(), ex);
+      }
+      return null;
+    }
+  }
+
+  /**
+   * Reads the URLs whose rows the resumed run wrote after the last URL it had finished in order, so they are not
+   * written again.
+   *
+   * @return the URLs, empty if not resuming, or null if the output file can not be read.
+   */
+  private Set<String> readResumedUrls(File outputFile, ProgressJournal journal) {
+    if (!config.isResume()) {
+      return Collections.emptySet();
+    }
+    int trailingColumns = config.getTopCount() * (config.getApproximateCounters() > 0 ? 2 : 1)
+        + (config.isRepeatCounts() ? 1 : 0);
+    try {
+      return ScanProgress.readUrls(outputFile, journal.getRescanFrom(), journal.getOutputLength(), trailingColumns);
+    } catch (IOException ex) {
+      logger.error("Error reading output file to resume: " + ex.getLocalizedMessage(), ex);
+      return null;
+    }
+  }
+
+  private static void closeQuietly(ProgressJournal journal) {
+    if (null == journal) {
+      return;
+    }
+    try {
+      journal.close();
+    } catch (IOException ex) {
+      logger.error("Error closing journal: " + ex.getLocalizedMessage(), ex);
+    }
+  }
+
+  private static void closeQuietly(UrlFingerprintSet seenUrls) {
+    if (null == seenUrls) {
+      return;
+    }
+    logger.debug("Distinct URLs fingerprinted: " + seenUrls.size());
+    try {
+      seenUrls.close();
+    } catch (IOException ex) {
+      logger.error("Error removing URL fingerprint table: " + ex.getLocalizedMessage(), ex);
+    }
+  }
+
+  private static void closeQuietly(SortedUrls sortedUrls) {
+    if (null == sortedUrls) {
+      return;
+    }
+    try {
+      sortedUrls.close();
+    } catch (IOException ex) {
+      logger.error("Error closing sorted URLs: " + ex.getLocalizedMessage(), ex);
+    }
+  }
+
+  private static String nextUrl(SortedUrls sortedUrls) throws IOException {
+    return sortedUrls.next() ? sortedUrls.getUrl() : null;
+  }
+
+  /**
+   * @return the file the rows are written to. A resumed run appends to its output file.
+   */
+  private File resolveOutputFile() {
+    Path outputPath = Paths.get(config.getOutputFilename());
+    if (config.isResume() || !Files.exists(outputPath, LinkOption.NOFOLLOW_LINKS)) {
+      return outputPath.toFile();
+    }
+    /**
+     * Append a timestamp to the output file name preserving any previous output file that could take a VERY long time
+     * to produce.
+     */
+    return new File(config.getOutputFilename() + "_" + new Date().getTime());
+  }
+
+  private ResultWriter createResultWriter(File outputFile, ProgressJournal journal) {
+    ResultWriter writer = null;
+    try {
+      logger.info("Writing to file: " + outputFile);
+
+      FileChannel channel;
+      if (config.isResume()) {
         /**
-         * Append a timestamp to the output file name preserving any previous output file that could take a VERY long
-         * time to produce.
+         * Rows after the last checkpoint may be cut short, they are dropped and scanned again.
          */
-        outputFilename = config.getOutputFilename() + "_" + new Date().getTime();
+        channel = FileChannel.open(outputFile.toPath(), StandardOpenOption.WRITE);
+        channel.truncate(journal.getOutputLength());
+        channel.position(journal.getOutputLength());
       } else {
-        outputFilename = config.getOutputFilename();
+        channel = FileChannel.open(outputFile.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
       }
-      logger.info("Writing to file: " + outputFilename);
-
-      writer = Files.newBufferedWriter(Paths.get(outputFilename), StandardOpenOption.CREATE_NEW);
+      writer = new ResultWriter(channel, config.getTopCount(), config.getApproximateCounters() > 0,
+          config.isRepeatCounts(), ResultWriter.DEFAULT_BUFFER_SIZE, config.getFlushIntervalMillis(),
+          config.getFsyncPolicy(), config.getQueueCapacity());
     } catch (IOException ex) {
       logger.error("Error creating writer to CSV file: " + ex.getLocalizedMessage(), ex);
       return null;
@@ -167,21 +523,56 @@ public class TopRgbService {
     return writer;
   }
 
-  private File createSortedFile() {
+  private ExternalSorter createSorter() {
+    ExternalSorter sorter = new ExternalSorter(config.getChunkSize());
+    sorter.setMaxFanIn(config.getMergeFanIn());
+    sorter.setMemoryBudget(config.getMemoryBudget());
+    /**
+     * More sorts at once than CPUs only splits the budget into smaller chunks.
+     */
+    sorter.setSortThreads(Math.max(1, Math.min(config.getThreads(), Runtime.getRuntime().availableProcessors())));
+    sorter.setCountOccurrences(config.isRepeatCounts());
+    sorter.setCompressSpills(config.isSpillCompression());
+    sorter.setMetrics(metrics);
+    return sorter;
+  }
+
+  /**
+   * Sorts the input into chunks and runs all but the last merge pass, which is pulled URL by URL while scanning.
+   *
+   * @return the sorted URLs or null if the sort failed.
+   */
+  private SortedUrls openSortedUrls(ProgressJournal journal) {
     long startSortTime = System.currentTimeMillis();
 
-    File tempSortedFile = null;
+    SortedUrls sortedUrls = null;
     try {
-      tempSortedFile = File.createTempFile("toprgb_", "_sortedinput");
+      File sortedCopyFile = null == config.getSortedOutputFilename() ? null
+          : new File(config.getSortedOutputFilename());
+      ExternalSorter sorter = this.createSorter();
+      if (null == journal) {
+        sortedUrls = sorter.open(config.getInputFilename(), sortedCopyFile);
+      } else {
+        /**
+         * Sort files are kept in the journal's work directory until the run completes, so a resumed run pulls the same
+         * URLs in the same order.
+         */
+        sorter.setWorkDirectory(journal.getWorkDirectory());
+        sorter.setCheckpoint(journal);
+        if (journal.isInputSorted()) {
+          sortedUrls = sorter.openRuns(journal.getRuns(), sortedCopyFile);
+        } else {
+          sortedUrls = sorter.open(config.getInputFilename(), sortedCopyFile, journal.getSortedChunks());
+        }
+        sortedUrls.setKeepRuns(true);
+      }
     } catch (IOException ex) {
-      logger.error("IOException: " + ex.getLocalizedMessage(), ex);
+      logger.error("Error sorting input file: " + ex.getLocalizedMessage(), ex);
     }
-    ExternalSorter sorter = new ExternalSorter(config.getChunkSize());
-    sorter.sort(config.getInputFilename(), tempSortedFile.getAbsolutePath());
     Double sortTimeTaken = (System.currentTimeMillis() - startSortTime) / 1000.0;
-    logger.debug("Total seconds to sort: " + sortTimeTaken);
+    logger.debug("Total seconds to sort chunks: " + sortTimeTaken);
 
-    return tempSortedFile;
+    return sortedUrls;
 
   }
 
@@ -204,10 +595,77 @@ public class TopRgbService {
         .numberOfArgs(1)
         .longOpt("threads")
         .type(Integer.class)
-        .desc("Number of threads to use.  Default is " + DEFAULT_THREADS)
+        .desc("Number of threads decoding and counting images.  Default is " + DEFAULT_THREADS)
         .build();
     options.addOption(threadsOption);
 
+    Option fetchThreadsOption = Option.builder("ft")
+        .hasArg()
+        .numberOfArgs(1)
+        .longOpt("fetch-threads")
+        .type(Integer.class)
+        .desc("Number of threads downloading images.  Default is " + DEFAULT_FETCH_THREADS)
+        .build();
+    options.addOption(fetchThreadsOption);
+
+    Option queueOption = Option.builder("q")
+        .hasArg()
+        .numberOfArgs(1)
+        .longOpt("queue-capacity")
+        .type(Integer.class)
+        .desc("Capacity of each queue between the fetch, decode and write stages.  Default is "
+            + DEFAULT_QUEUE_CAPACITY)
+        .build();
+    options.addOption(queueOption);
+
+    Option connectTimeoutOption = Option.builder("ct")
+        .hasArg()
+        .numberOfArgs(1)
+        .longOpt("connect-timeout")
+        .type(Long.class)
+        .desc("Milliseconds to wait for a connection.  Default is "
+            + HttpFetcher.DEFAULT_CONNECT_TIMEOUT.toMillis())
+        .build();
+    options.addOption(connectTimeoutOption);
+
+    Option readTimeoutOption = Option.builder("rt")
+        .hasArg()
+        .numberOfArgs(1)
+        .longOpt("read-timeout")
+        .type(Long.class)
+        .desc("Milliseconds to wait for a response, or for a stalled download to continue.  Default is "
+            + HttpFetcher.DEFAULT_READ_TIMEOUT.toMillis())
+        .build();
+    options.addOption(readTimeoutOption);
+
+    Option maxRedirectsOption = Option.builder("mr")
+        .hasArg()
+        .numberOfArgs(1)
+        .longOpt("max-redirects")
+        .type(Integer.class)
+        .desc("The most redirects followed for one URL.  Default is " + HttpFetcher.DEFAULT_MAX_REDIRECTS)
+        .build();
+    options.addOption(maxRedirectsOption);
+
+    Option flushIntervalOption = Option.builder("fi")
+        .hasArg()
+        .numberOfArgs(1)
+        .longOpt("flush-interval")
+        .type(Long.class)
+        .desc("The longest in milliseconds a result waits before it is written to the output file.  Default is "
+            + ResultWriter.DEFAULT_FLUSH_INTERVAL_MILLIS)
+        .build();
+    options.addOption(flushIntervalOption);
+
+    Option fsyncOption = Option.builder("fs")
+        .hasArg()
+        .numberOfArgs(1)
+        .longOpt("fsync")
+        .type(String.class)
+        .desc("When the output file is forced to disk: none, flush (after every write) or close.  Default is close")
+        .build();
+    options.addOption(fsyncOption);
+
     Option outputFileOption = Option.builder("o")
         .hasArg()
         .numberOfArgs(1)
@@ -222,10 +680,210 @@ public class TopRgbService {
         .numberOfArgs(1)
         .longOpt("chunk-size")
         .type(Long.class)
-        .desc("The size of the chunks in bytes to use for external sorting.  Default is " + DEFAULT_CHUNKSIZE)
+        .desc("The largest chunk in bytes to use for external sorting, the memory budget may make chunks smaller.  "
+            + "Default is " + DEFAULT_CHUNKSIZE)
         .build();
     options.addOption(chunkSizeOption);
 
+    Option memoryBudgetOption = Option.builder("mb")
+        .hasArg()
+        .numberOfArgs(1)
+        .longOpt("memory-budget")
+        .type(Long.class)
+        .desc("Bytes of memory all chunks being read and sorted may use together.  Default is "
+            + (int) (ExternalSorter.DEFAULT_MEMORY_FRACTION * 100) + "% of the maximum heap")
+        .build();
+    options.addOption(memoryBudgetOption);
+
+    Option mergeFanInOption = Option.builder("mf")
+        .hasArg()
+        .numberOfArgs(1)
+        .longOpt("merge-fan-in")
+        .type(Integer.class)
+        .desc("The most sorted chunk files merged at once, more chunks are merged in extra passes.  Default is "
+            + ExternalSorter.DEFAULT_MAX_FAN_IN)
+        .build();
+    options.addOption(mergeFanInOption);
+
+    Option spillCompressionOption = Option.builder("sc")
+        .longOpt("spill-compression")
+        .desc("Deflate the sorter's chunk files, trading CPU for less disk I/O.  Default is off")
+        .build();
+    options.addOption(spillCompressionOption);
+
+    Option sortedOutputOption = Option.builder("so")
+        .hasArg()
+        .numberOfArgs(1)
+        .longOpt("sorted-output")
+        .type(String.class)
+        .desc("For debugging, also write the sorted distinct URLs to this file.  Default is none")
+        .build();
+    options.addOption(sortedOutputOption);
+
+    Option targetCacheOption = Option.builder("tc")
+        .hasArg()
+        .numberOfArgs(1)
+        .longOpt("target-cache")
+        .type(Integer.class)
+        .desc("The most redirect targets whose colors are remembered, 0 to turn off.  Default is "
+            + TargetCache.DEFAULT_CAPACITY)
+        .build();
+    options.addOption(targetCacheOption);
+
+    Option targetCacheFileOption = Option.builder("tf")
+        .hasArg()
+        .numberOfArgs(1)
+        .longOpt("target-cache-file")
+        .type(String.class)
+        .desc("Load the redirect target cache from this file and save it back at the end.  Default is none")
+        .build();
+    options.addOption(targetCacheFileOption);
+
+    Option contentCacheOption = Option.builder("cc")
+        .hasArg()
+        .numberOfArgs(1)
+        .longOpt("content-cache")
+        .type(Long.class)
+        .desc("Bytes of off-heap memory remembering the colors of image bodies by their hash, 0 to turn off.  "
+            + "Default is " + ContentResultTable.DEFAULT_CAPACITY_BYTES)
+        .build();
+    options.addOption(contentCacheOption);
+
+    Option urlCacheOption = Option.builder("uc")
+        .hasArg()
+        .numberOfArgs(1)
+        .longOpt("url-cache")
+        .type(String.class)
+        .desc("File remembering the colors and cache validators of every URL across runs, so unchanged images are "
+            + "revalidated instead of downloaded.  Default is none")
+        .build();
+    options.addOption(urlCacheOption);
+
+    Option urlCacheSizeOption = Option.builder("us")
+        .hasArg()
+        .numberOfArgs(1)
+        .longOpt("url-cache-size")
+        .type(Long.class)
+        .desc("Largest size in bytes of the URL cache file.  Default is " + UrlResultCache.DEFAULT_CAPACITY_BYTES)
+        .build();
+    options.addOption(urlCacheSizeOption);
+
+    Option urlCacheEvictionOption = Option.builder("ue")
+        .hasArg()
+        .numberOfArgs(1)
+        .longOpt("url-cache-eviction")
+        .type(String.class)
+        .desc("Which URLs leave a full URL cache: lru (least recently used) or fifo (oldest).  Default is lru")
+        .build();
+    options.addOption(urlCacheEvictionOption);
+
+    Option urlCacheTtlOption = Option.builder("ut")
+        .hasArg()
+        .numberOfArgs(1)
+        .longOpt("url-cache-ttl")
+        .type(Long.class)
+        .desc("Hours the colors of a URL in the URL cache are reused before the image is counted again.  Default is "
+            + UrlResultCache.DEFAULT_TTL_HOURS)
+        .build();
+    options.addOption(urlCacheTtlOption);
+
+    Option repeatCountOption = Option.builder("rc")
+        .longOpt("repeat-count")
+        .desc("End each row with the number of times the URL occurred in the input.  Needs the sort dedup.")
+        .build();
+    options.addOption(repeatCountOption);
+
+    Option resumeOption = Option.builder("rs")
+        .longOpt("resume")
+        .desc("Resume the interrupted run that was writing to the output file, from its journal.")
+        .build();
+    options.addOption(resumeOption);
+
+    Option journalOption = Option.builder("j")
+        .longOpt("journal")
+        .desc("Keep a journal of the run next to the output file, so it can be resumed with -rs if interrupted.")
+        .build();
+    options.addOption(journalOption);
+
+    Option dedupOption = Option.builder("dd")
+        .hasArg()
+        .numberOfArgs(1)
+        .longOpt("dedup")
+        .type(String.class)
+        .desc("How repeat URLs are found: sort (external sort first) or hash (stream the input and remember a "
+            + "fingerprint of each URL).  Default is sort")
+        .build();
+    options.addOption(dedupOption);
+
+    Option topCountOption = Option.builder("k")
+        .hasArg()
+        .numberOfArgs(1)
+        .longOpt("top-count")
+        .type(Integer.class)
+        .desc("The number of most prevalent colors to write for each image.  Default is "
+            + TopRgbTask.DEFAULT_TOP_COUNT)
+        .build();
+    options.addOption(topCountOption);
+
+    Option parallelThresholdOption = Option.builder("pt")
+        .hasArg()
+        .numberOfArgs(1)
+        .longOpt("parallel-threshold")
+        .type(Long.class)
+        .desc("Images with at least this many pixels are counted in parallel tiles, 0 turns this off.  Default is "
+            + DEFAULT_PARALLEL_PIXEL_THRESHOLD)
+        .build();
+    options.addOption(parallelThresholdOption);
+
+    Option stripPixelsOption = Option.builder("sp")
+        .hasArg()
+        .numberOfArgs(1)
+        .longOpt("strip-pixels")
+        .type(Long.class)
+        .desc("Images with more pixels than this are decoded a strip of rows at a time.  Default is "
+            + TopRgbTask.DEFAULT_STRIP_PIXELS)
+        .build();
+    options.addOption(stripPixelsOption);
+
+    Option approximateOption = Option.builder("a")
+        .hasArg()
+        .numberOfArgs(1)
+        .longOpt("approximate")
+        .type(Integer.class)
+        .desc("Count colors approximately with this many counters per image and write an error bound per color.  "
+            + "Default is exact counting.")
+        .build();
+    options.addOption(approximateOption);
+
+    Option spillBytesOption = Option.builder("sb")
+        .hasArg()
+        .numberOfArgs(1)
+        .longOpt("spill-bytes")
+        .type(Long.class)
+        .desc("Downloads larger than this many bytes are buffered in a temp file instead of memory.  Default is "
+            + TopRgbTask.DEFAULT_SPILL_BYTES)
+        .build();
+    options.addOption(spillBytesOption);
+
+    Option metricsIntervalOption = Option.builder("mi")
+        .hasArg()
+        .numberOfArgs(1)
+        .longOpt("metrics-interval")
+        .type(Long.class)
+        .desc("Seconds between one line metrics summaries in the log, 0 for a summary only at the end.  Default is "
+            + MetricsReporter.DEFAULT_INTERVAL_SECONDS)
+        .build();
+    options.addOption(metricsIntervalOption);
+
+    Option prometheusFileOption = Option.builder("pm")
+        .hasArg()
+        .numberOfArgs(1)
+        .longOpt("prometheus-file")
+        .type(String.class)
+        .desc("File the metrics are written to in the Prometheus text format at every summary.  Default is none")
+        .build();
+    options.addOption(prometheusFileOption);
+
     CommandLine commandLine;
     try {
       commandLine = parser.parse(options, args);
@@ -244,6 +902,53 @@ public class TopRgbService {
       config.setThreads(DEFAULT_THREADS);
     }
 
+    config.setFetchThreads(DEFAULT_FETCH_THREADS);
+    if (commandLine.hasOption("ft")) {
+      int fetchThreads = Integer.parseInt(commandLine.getOptionValue("ft"));
+      if (0 != fetchThreads) {
+        config.setFetchThreads(fetchThreads);
+      }
+    }
+
+    config.setQueueCapacity(DEFAULT_QUEUE_CAPACITY);
+    if (commandLine.hasOption("q")) {
+      int queueCapacity = Integer.parseInt(commandLine.getOptionValue("q"));
+      if (0 != queueCapacity) {
+        config.setQueueCapacity(queueCapacity);
+      }
+    }
+
+    config.setConnectTimeoutMillis(HttpFetcher.DEFAULT_CONNECT_TIMEOUT.toMillis());
+    if (commandLine.hasOption("ct")) {
+      long connectTimeout = Long.parseLong(commandLine.getOptionValue("ct"));
+      if (0L != connectTimeout) {
+        config.setConnectTimeoutMillis(connectTimeout);
+      }
+    }
+
+    config.setReadTimeoutMillis(HttpFetcher.DEFAULT_READ_TIMEOUT.toMillis());
+    if (commandLine.hasOption("rt")) {
+      long readTimeout = Long.parseLong(commandLine.getOptionValue("rt"));
+      if (0L != readTimeout) {
+        config.setReadTimeoutMillis(readTimeout);
+      }
+    }
+
+    config.setMaxRedirects(HttpFetcher.DEFAULT_MAX_REDIRECTS);
+    if (commandLine.hasOption("mr")) {
+      config.setMaxRedirects(Integer.parseInt(commandLine.getOptionValue("mr")));
+    }
+
+    config.setFlushIntervalMillis(ResultWriter.DEFAULT_FLUSH_INTERVAL_MILLIS);
+    if (commandLine.hasOption("fi")) {
+      config.setFlushIntervalMillis(Long.parseLong(commandLine.getOptionValue("fi")));
+    }
+
+    config.setFsyncPolicy(ResultWriter.FsyncPolicy.CLOSE);
+    if (commandLine.hasOption("fs")) {
+      config.setFsyncPolicy(ResultWriter.FsyncPolicy.valueOf(commandLine.getOptionValue("fs").toUpperCase()));
+    }
+
     if (commandLine.hasOption("cs")) {
       long chunkSize = Long.parseLong(commandLine.getOptionValue("cs"));
       if (0L != chunkSize) {
@@ -253,6 +958,142 @@ public class TopRgbService {
       config.setChunkSize(DEFAULT_CHUNKSIZE);
     }
 
+    if (commandLine.hasOption("mb")) {
+      long memoryBudget = Long.parseLong(commandLine.getOptionValue("mb"));
+      if (memoryBudget < 0L) {
+        throw new IllegalArgumentException("Memory budget can not be negative!");
+      }
+      config.setMemoryBudget(memoryBudget);
+    }
+
+    config.setMergeFanIn(ExternalSorter.DEFAULT_MAX_FAN_IN);
+    if (commandLine.hasOption("mf")) {
+      int mergeFanIn = Integer.parseInt(commandLine.getOptionValue("mf"));
+      if (mergeFanIn < 2) {
+        throw new IllegalArgumentException("Merge fan-in must be at least 2!");
+      }
+      config.setMergeFanIn(mergeFanIn);
+    }
+
+    config.setDedupMode(Configuration.DedupMode.SORT);
+    if (commandLine.hasOption("dd")) {
+      config.setDedupMode(Configuration.DedupMode.valueOf(commandLine.getOptionValue("dd").toUpperCase()));
+    }
+
+    config.setSpillCompression(commandLine.hasOption("sc"));
+
+    if (commandLine.hasOption("so")) {
+      config.setSortedOutputFilename(commandLine.getOptionValue("so"));
+    }
+
+    config.setTargetCacheSize(TargetCache.DEFAULT_CAPACITY);
+    if (commandLine.hasOption("tc")) {
+      int targetCacheSize = Integer.parseInt(commandLine.getOptionValue("tc"));
+      if (targetCacheSize < 0) {
+        throw new IllegalArgumentException("Target cache size can not be negative!");
+      }
+      config.setTargetCacheSize(targetCacheSize);
+    }
+
+    if (commandLine.hasOption("tf")) {
+      config.setTargetCacheFilename(commandLine.getOptionValue("tf"));
+    }
+
+    config.setContentCacheBytes(ContentResultTable.DEFAULT_CAPACITY_BYTES);
+    if (commandLine.hasOption("cc")) {
+      long contentCacheBytes = Long.parseLong(commandLine.getOptionValue("cc"));
+      if (contentCacheBytes < 0L) {
+        throw new IllegalArgumentException("Content cache size can not be negative!");
+      }
+      config.setContentCacheBytes(contentCacheBytes);
+    }
+
+    if (commandLine.hasOption("uc")) {
+      config.setUrlCacheFilename(commandLine.getOptionValue("uc"));
+    }
+
+    config.setUrlCacheBytes(UrlResultCache.DEFAULT_CAPACITY_BYTES);
+    if (commandLine.hasOption("us")) {
+      long urlCacheBytes = Long.parseLong(commandLine.getOptionValue("us"));
+      if (urlCacheBytes < 4096L || urlCacheBytes > Integer.MAX_VALUE) {
+        throw new IllegalArgumentException("URL cache size must be between 4096 and " + Integer.MAX_VALUE + " bytes!");
+      }
+      config.setUrlCacheBytes(urlCacheBytes);
+    }
+
+    config.setUrlCacheEviction(UrlResultCache.Eviction.LRU);
+    if (commandLine.hasOption("ue")) {
+      config.setUrlCacheEviction(UrlResultCache.Eviction.valueOf(commandLine.getOptionValue("ue").toUpperCase()));
+    }
+
+    config.setUrlCacheTtlHours(UrlResultCache.DEFAULT_TTL_HOURS);
+    if (commandLine.hasOption("ut")) {
+      long urlCacheTtlHours = Long.parseLong(commandLine.getOptionValue("ut"));
+      if (urlCacheTtlHours < 0L) {
+        throw new IllegalArgumentException("URL cache time to live can not be negative!");
+      }
+      config.setUrlCacheTtlHours(urlCacheTtlHours);
+    }
+
+    if (commandLine.hasOption("rc")) {
+      if (Configuration.DedupMode.HASH == config.getDedupMode()) {
+        throw new IllegalArgumentException("Repeat counts need the sort dedup!");
+      }
+      config.setRepeatCounts(true);
+    }
+
+    config.setTopCount(TopRgbTask.DEFAULT_TOP_COUNT);
+    if (commandLine.hasOption("k")) {
+      int topCount = Integer.parseInt(commandLine.getOptionValue("k"));
+      if (topCount < 1) {
+        throw new IllegalArgumentException("Top count must be at least 1!");
+      }
+      config.setTopCount(topCount);
+    }
+
+    if (commandLine.hasOption("pt")) {
+      config.setParallelPixelThreshold(Long.parseLong(commandLine.getOptionValue("pt")));
+    } else {
+      config.setParallelPixelThreshold(DEFAULT_PARALLEL_PIXEL_THRESHOLD);
+    }
+
+    config.setStripPixels(TopRgbTask.DEFAULT_STRIP_PIXELS);
+    if (commandLine.hasOption("sp")) {
+      long stripPixels = Long.parseLong(commandLine.getOptionValue("sp"));
+      if (0L != stripPixels) {
+        config.setStripPixels(stripPixels);
+      }
+    }
+
+    if (commandLine.hasOption("a")) {
+      int approximateCounters = Integer.parseInt(commandLine.getOptionValue("a"));
+      if (approximateCounters < config.getTopCount()) {
+        throw new IllegalArgumentException("Approximate counters can not be less than the top count!");
+      }
+      config.setApproximateCounters(approximateCounters);
+    }
+
+    config.setSpillBytes(TopRgbTask.DEFAULT_SPILL_BYTES);
+    if (commandLine.hasOption("sb")) {
+      long spillBytes = Long.parseLong(commandLine.getOptionValue("sb"));
+      if (0L != spillBytes) {
+        config.setSpillBytes(spillBytes);
+      }
+    }
+
+    config.setMetricsIntervalSeconds(MetricsReporter.DEFAULT_INTERVAL_SECONDS);
+    if (commandLine.hasOption("mi")) {
+      long metricsIntervalSeconds = Long.parseLong(commandLine.getOptionValue("mi"));
+      if (metricsIntervalSeconds < 0L) {
+        throw new IllegalArgumentException("Metrics interval can not be negative!");
+      }
+      config.setMetricsIntervalSeconds(metricsIntervalSeconds);
+    }
+
+    if (commandLine.hasOption("pm")) {
+      config.setPrometheusFilename(commandLine.getOptionValue("pm"));
+    }
+
     if (commandLine.hasOption("o")) {
       String outputFilename = commandLine.getOptionValue("o");
       if (!outputFilename.isBlank()) {
@@ -262,6 +1103,14 @@ public class TopRgbService {
       config.setOutputFilename(DEFAULT_OUTPUTFILENAME);
     }
 
+    if (commandLine.hasOption("rs")) {
+      if (!new File(config.getOutputFilename()).exists()) {
+        throw new IllegalArgumentException("There is no output file to resume!");
+      }
+      config.setResume(true);
+    }
+    config.setJournal(commandLine.hasOption("j"));
+
     String inputFilename = commandLine.getOptionValue("i");
     if (null == inputFilename) {
       throw new IllegalArgumentException("Inputfile name can not be null!");
@@ -1,254 +1,617 @@
 package com.seekfirst.toprgb;
 
-import java.awt.Color;
+import com.seekfirst.toprgb.cache.ContentResultTable;
+import com.seekfirst.toprgb.cache.TargetCache;
+import com.seekfirst.toprgb.cache.UrlResultCache;
+import com.seekfirst.toprgb.checkpoint.ScanProgress;
+import com.seekfirst.toprgb.counter.ColorHistogram;
+import com.seekfirst.toprgb.counter.HashColorHistogram;
+import com.seekfirst.toprgb.counter.ImageStripReader;
+import com.seekfirst.toprgb.counter.PixelScanner;
+import com.seekfirst.toprgb.counter.SpaceSavingHistogram;
+import com.seekfirst.toprgb.counter.TiledColorCounter;
+import com.seekfirst.toprgb.counter.TopColorSelector;
+import com.seekfirst.toprgb.dedup.ContentHasher;
+import com.seekfirst.toprgb.fetch.BufferPool;
+import com.seekfirst.toprgb.fetch.DownloadBuffer;
+import com.seekfirst.toprgb.fetch.HttpFetcher;
+import com.seekfirst.toprgb.fetch.Validators;
+import com.seekfirst.toprgb.metrics.PipelineMetrics;
+import com.seekfirst.toprgb.output.ResultWriter;
+import com.seekfirst.toprgb.output.TopRgbResult;
 import java.awt.image.BufferedImage;
-import java.io.BufferedWriter;
-import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
+import java.net.URI;
+import java.net.URISyntaxException;
 import java.net.URL;
-import java.nio.channels.Channels;
-import java.nio.channels.FileChannel;
-import java.nio.channels.ReadableByteChannel;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
 import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
- * This class encapsulates all the necessary steps to calculate the top 3 RGB colors for a given image.
+ * This class encapsulates all the necessary steps to calculate the top K (default 3) RGB colors for a given image.
  *
  * @author David Botterill
  */
 public class TopRgbTask implements Runnable {
 
   private final Logger logger = LoggerFactory.getLogger(TopRgbTask.class);
-  private final int TOP_COUNT = 3;
+  public static final int DEFAULT_TOP_COUNT = 3;
+  private final int topCount;
   private final String imageFileURLString;
-  private final BufferedWriter writer;
-  private boolean halt;
-  private int writeErrors; // circuit break for write errors.
-  private final int WRITE_CIRCUIT_BREAKER = 5;
-  private final Map<String, Long> pixelColorCountMap = new HashMap();
+  private final ResultWriter resultWriter;
   private final int MAX_URLREAD_TRIES = 3;
+  private ForkJoinPool countingPool;
+  private long parallelPixelThreshold = Long.MAX_VALUE;
+  public static final long DEFAULT_STRIP_PIXELS = 8000000;
+  private long stripPixels = DEFAULT_STRIP_PIXELS;
+  private int approximateCounters;
+  public static final long DEFAULT_SPILL_BYTES = 16000000;
+  private static final BufferPool DEFAULT_BUFFER_POOL = new BufferPool(BufferPool.DEFAULT_CHUNK_SIZE, 256);
+  private BufferPool bufferPool = DEFAULT_BUFFER_POOL;
+  private long spillBytes = DEFAULT_SPILL_BYTES;
+  private HttpFetcher httpFetcher;
+  private DownloadBuffer download;
+  private List<CountPair> topCounts;
+  private long start;
+  private long occurrences;
+  private TargetCache targetCache;
+  private String targetUrl;
+  private TopRgbResult cachedResult;
+  private ContentResultTable contentTable;
+  private boolean contentHashed;
+  private long contentHashHigh;
+  private long contentHashLow;
+  private UrlResultCache urlCache;
+  private UrlResultCache.Entry cacheEntry;
+  private Validators validators;
+  private ScanProgress scanProgress;
+  private long sequence = -1L;
+  private PipelineMetrics metrics;
 
-  public TopRgbTask(String imageFileURLString, BufferedWriter writer) {
+  public TopRgbTask(String imageFileURLString, ResultWriter resultWriter) {
+    this(imageFileURLString, resultWriter, DEFAULT_TOP_COUNT);
+  }
+
+  public TopRgbTask(String imageFileURLString, ResultWriter resultWriter, int topCount) {
     this.imageFileURLString = imageFileURLString;
-    this.writer = writer;
+    this.resultWriter = resultWriter;
+    this.topCount = topCount;
   }
 
   @Override
   public void run() {
-    long start = System.currentTimeMillis();
+    if (fetch() && count()) {
+      write();
+    }
+  }
 
+  /**
+   * First stage: downloads the image body into a pooled buffer. Network bound.
+   *
+   * @return false if the image could not be read, the task is finished.
+   */
+  public boolean fetch() {
+    if (isHalted()) {
+      return false;
+    }
+    this.start = System.currentTimeMillis();
+    long fetchStart = System.nanoTime();
+    DownloadBuffer download = new DownloadBuffer(bufferPool, spillBytes);
+    boolean fetched = false;
     try {
       URL urlInput = new URL(imageFileURLString);
-      File tempImageFile = null;
-      InputStream urlInputStream = null;
       if (urlInput.getProtocol().equalsIgnoreCase("http") || urlInput.getProtocol().equalsIgnoreCase("https")) {
         /**
-         * We'll copy the image from the URL to a "local" filesystem before processing. The ImageIO.read() method
-         * silently dies when it has problems reading across the network. If we do the network reads, we can put in a
-         * retry.
+         * We'll copy the image from the URL into memory before processing. The ImageIO.read() method silently dies
+         * when it has problems reading across the network. If we do the network reads, we can put in a retry.
          */
-        HttpURLConnection urlConnection = (HttpURLConnection) urlInput.openConnection();
-        urlConnection.setInstanceFollowRedirects(false);
-        urlConnection.connect();
-        String location = urlConnection.getHeaderField("Location");
-        /**
-         * Check to see if the URL is redirected.
-         */
-        if (null != location) {
-          urlConnection = (HttpURLConnection) new URL(location).openConnection();
-          logger.debug("Followed redirected URL: " + location);
-        }
-
-        urlInputStream = urlConnection.getInputStream();
-        ReadableByteChannel readChannel = Channels.newChannel(urlInputStream);
-        tempImageFile = File.createTempFile("toprpg_", "_temp");
-        urlInput = new URL("file:///" + tempImageFile.getAbsolutePath());
-        FileOutputStream fileOS = new FileOutputStream(tempImageFile);
-        FileChannel writeChannel = fileOS.getChannel();
-        int urlTries = 1;
-        while (urlTries < MAX_URLREAD_TRIES) {
-          try {
-            long bytesTransfered = writeChannel.transferFrom(readChannel, 0, Long.MAX_VALUE);
-            urlTries = MAX_URLREAD_TRIES;
-          } catch (IOException ex) {
-            urlTries++;
-            if (urlTries < MAX_URLREAD_TRIES) {
-              logger.error("Error reading URL: " + imageFileURLString + ". Retrying...");
-            } else {
-              logger.error("Error reading URL: " + imageFileURLString + ". Aboring...");
-              return;
-            }
-          }
+        fetched = download(urlInput, download);
+      } else {
+        try (InputStream urlInputStream = urlInput.openStream()) {
+          download.readFrom(urlInputStream);
         }
+        fetched = true;
       }
+    } catch (MalformedURLException ex) {
+      logger.error("Error creating URL: " + ex.getLocalizedMessage(), ex);
+    } catch (IOException ex) {
+      logger.error("Error reading URL: " + ex.getLocalizedMessage(), ex);
+    } catch (RuntimeException ex) {
+      /**
+       * We need this to report all RunTimeExceptions in case we're running in an Executor that swallows these.
+       */
+      logger.error("Exception: " + ex.getLocalizedMessage(), ex);
+    }
 
-      BufferedImage urlImage = ImageIO.read(urlInput);
+    if (fetched && null == cachedResult && (null != contentTable || null != validators)) {
+      ContentHasher hash = download.contentHash();
+      contentHashed = true;
+      contentHashHigh = hash.getHigh();
+      contentHashLow = hash.getLow();
+    }
+    if (fetched && null != metrics) {
+      metrics.fetched(System.nanoTime() - fetchStart, download.size());
+    }
+    if (fetched && null == cachedResult) {
+      this.download = download;
+    } else {
+      closeDownload(download);
+    }
+    if (!fetched) {
+      skipped(PipelineMetrics.Reason.FETCH_FAILED);
+    }
+    return fetched;
+  }
+
+  /**
+   * Second stage: decodes the fetched body and counts the top colors. CPU bound. The download buffer is released
+   * whatever happens. Nothing is decoded when the colors of the redirect target or of identical bytes were already
+   * known.
+   *
+   * @return false if the image could not be decoded, the task is finished.
+   */
+  public boolean count() {
+    if (null != cachedResult || isCounted()) {
+      closeDownload(download);
+      this.download = null;
+      return true;
+    }
+    try (ImageInputStream imageInput = download.newImageInputStream()) {
       /**
        * Account for horrible ImageIO API that returns null without throwing an exception if an ImageReader can not be
        * found to read the image.
        */
-      if (null == urlImage) {
+      this.topCounts = new ArrayList<>(topCount);
+      long decodeStart = System.nanoTime();
+      if (!findTopRgb(topCounts, imageInput)) {
         logger.error("Error reading URL into image for: " + imageFileURLString + ". Skipping...");
-        return;
+        skipped(PipelineMetrics.Reason.NO_IMAGE_READER);
+        return false;
       }
-      List<CountPair> topCounts = new ArrayList(TOP_COUNT);
-
-      findTopRgb(topCounts, urlImage);
-      writeTopRgb(topCounts);
-      /**
-       * Clean up the temp image file if it exists.
-       */
-      if (null != tempImageFile) {
-        tempImageFile.delete();
+      if (null != metrics) {
+        metrics.decoded(System.nanoTime() - decodeStart);
       }
-    } catch (MalformedURLException ex) {
-      logger.error("Error creating URL: " + ex.getLocalizedMessage(), ex);
+      return true;
     } catch (IOException ex) {
       logger.error("Error reading URL: " + ex.getLocalizedMessage(), ex);
     } catch (RuntimeException ex) {
-      /**
-       * We need this to report all RunTimeExceptions in case we're running in an Executor that swallows these.
-       */
       logger.error("Exception: " + ex.getLocalizedMessage(), ex);
+    } finally {
+      closeDownload(download);
+      this.download = null;
+    }
+    skipped(PipelineMetrics.Reason.DECODE_FAILED);
+    return false;
+  }
+
+  /**
+   * Last stage: hands the CSV row for the image to the result writer.
+   */
+  public void write() {
+    try {
+      writeTopRgb(topCounts);
+    } catch (RuntimeException ex) {
+      logger.error("Exception: " + ex.getLocalizedMessage(), ex);
+      skipped(PipelineMetrics.Reason.WRITE_FAILED);
     }
 
     Double timeTaken = (System.currentTimeMillis() - start) / 1000.0;
     logger.trace(imageFileURLString + " - time to process image:" + timeTaken);
   }
 
-  private void halt() {
-    this.halt = true;
+  /**
+   * Tells the scan progress the URL is done without a row, so a resumed run does not try it again.
+   *
+   * @param reason why there is no row, counted in the metrics.
+   */
+  private void skipped(PipelineMetrics.Reason reason) {
+    recordSkip(reason);
+    if (null != scanProgress) {
+      scanProgress.completed(sequence);
+    }
+  }
+
+  /**
+   * @param reason why the image was not counted, or not written.
+   */
+  private void recordSkip(PipelineMetrics.Reason reason) {
+    if (null != metrics) {
+      metrics.skipped(reason);
+    }
   }
 
-  private void writeToCSVFile(String outputString) {
+  private void closeDownload(DownloadBuffer download) {
+    if (null == download) {
+      return;
+    }
     try {
-      writer.write(outputString);
+      download.close();
     } catch (IOException ex) {
-      logger.error("Error writing to file: " + ex.getLocalizedMessage(), ex);
-      this.writeErrors++;
-      if (this.writeErrors > WRITE_CIRCUIT_BREAKER) {
-        logger.error("Halting because write errors exceeded " + WRITE_CIRCUIT_BREAKER);
-        this.halt();
-      }
-
+      logger.error("Error releasing download buffer: " + ex.getLocalizedMessage(), ex);
     }
   }
 
-  protected void findTopRgb(List<CountPair> topCounts, BufferedImage urlImage) {
-    /**
-     * Go through the pixels of the image keeping count in the pixel hashmap.
-     */
-    logger.trace(this.imageFileURLString + " - width: " + urlImage.getWidth());
-    logger.trace(this.imageFileURLString + " - height: " + urlImage.getHeight());
+  /**
+   * Sets where downloaded image bodies are buffered.
+   *
+   * @param bufferPool the pool shared by all tasks.
+   * @param spillBytes bodies larger than this many bytes are written to a temp file instead.
+   */
+  public void setDownloadBuffers(BufferPool bufferPool, long spillBytes) {
+    this.bufferPool = bufferPool;
+    this.spillBytes = spillBytes;
+  }
 
-    for (int column = 0; column < urlImage.getWidth(); column++) {
-      if (halt) {
-        break;
-      }
-      for (int row = 0; row < urlImage.getHeight(); row++) {
-        if (halt) {
-          break;
-        }
+  /**
+   * @param occurrences how many times the URL occurred in the input, written as the last column. 0 leaves it out.
+   */
+  public void setOccurrences(long occurrences) {
+    this.occurrences = occurrences;
+  }
 
-        int pixel = urlImage.getRGB(column, row);
-        Color color = new Color(pixel, true);
-        /**
-         * convert to hex
-         */
-        String buf = Integer.toHexString(color.getRGB());
-        String hex = "#" + buf.substring(buf.length() - 6);
+  /**
+   * @param targetCache the colors of redirect targets, shared by all tasks. Known targets are not downloaded again.
+   */
+  public void setTargetCache(TargetCache targetCache) {
+    this.targetCache = targetCache;
+  }
 
-        Long currentCount = pixelColorCountMap.get(hex);
-        if (null != currentCount) {
-          currentCount++;
-          pixelColorCountMap.put(hex, currentCount);
-        } else {
-          currentCount = 1L;
-          pixelColorCountMap.put(hex, currentCount);
+  /**
+   * @param contentTable the colors of image bodies by the hash of their bytes, shared by all tasks. Bodies already in
+   * the table are not decoded again.
+   */
+  public void setContentTable(ContentResultTable contentTable) {
+    this.contentTable = contentTable;
+  }
+
+  /**
+   * @param urlCache the colors and validators of URLs from earlier runs, shared by all tasks. A URL in the cache is
+   * fetched with a conditional request and not decoded again if the image did not change.
+   */
+  public void setUrlCache(UrlResultCache urlCache) {
+    this.urlCache = urlCache;
+  }
+
+  /**
+   * @param scanProgress told when the URL is done without a row. Rows carry the sequence to the result writer.
+   * @param sequence the position of the URL among the URLs scanned.
+   */
+  public void setScanProgress(ScanProgress scanProgress, long sequence) {
+    this.scanProgress = scanProgress;
+    this.sequence = sequence;
+  }
+
+  /**
+   * @param metrics the metrics of the run, recorded into as the stages finish.
+   */
+  public void setMetrics(PipelineMetrics metrics) {
+    this.metrics = metrics;
+  }
+
+  /**
+   * @param httpFetcher the fetcher shared by all tasks for http and https URLs.
+   */
+  public void setHttpFetcher(HttpFetcher httpFetcher) {
+    this.httpFetcher = httpFetcher;
+  }
+
+  /**
+   * Turns on tiled counting for images with at least the given number of pixels. Smaller images are always counted on
+   * the task's own thread.
+   *
+   * @param countingPool the pool the tiles are counted on.
+   * @param parallelPixelThreshold the minimum number of pixels for an image to be split into tiles.
+   */
+  public void setParallelCounting(ForkJoinPool countingPool, long parallelPixelThreshold) {
+    this.countingPool = countingPool;
+    this.parallelPixelThreshold = parallelPixelThreshold;
+  }
 
+  /**
+   * Images with more pixels than this are decoded and counted a strip of rows at a time so the whole image is never in
+   * memory at once.
+   *
+   * @param stripPixels the maximum number of pixels to decode at once.
+   */
+  public void setStripPixels(long stripPixels) {
+    this.stripPixels = stripPixels;
+  }
+
+  /**
+   * Turns on approximate counting. Each image is counted with a fixed number of Space-Saving counters instead of an
+   * exact histogram, and the error bound of every color is written after the colors.
+   *
+   * @param approximateCounters the number of counters per image, 0 for exact counting.
+   */
+  public void setApproximateCounters(int approximateCounters) {
+    this.approximateCounters = approximateCounters;
+  }
+
+  /**
+   * Downloads the body of the URL into the buffer, following any redirects.
+   *
+   * @return false if the URL could not be read after all tries.
+   */
+  private boolean download(URL urlInput, DownloadBuffer download) throws IOException {
+    HttpFetcher fetcher = null != httpFetcher ? httpFetcher : DefaultFetcher.INSTANCE;
+    Validators validators = null;
+    if (null != urlCache) {
+      cacheEntry = urlCache.get(imageFileURLString);
+      validators = null == cacheEntry ? new Validators()
+          : new Validators(URI.create(cacheEntry.getTarget()), cacheEntry.getEtag(), cacheEntry.getLastModified());
+    }
+    int urlTries = 1;
+    while (true) {
+      try {
+        URI finalUri = fetcher.fetch(urlInput.toURI(), download, this::isKnownTarget, validators);
+        if (null != cachedResult) {
+          logger.debug("Using cached colors of redirect target: " + finalUri);
+          recordSkip(PipelineMetrics.Reason.TARGET_CACHED);
+          return true;
+        }
+        if (null != validators && validators.isNotModified() && null != cacheEntry) {
+          logger.debug("Not modified, using cached colors for: " + imageFileURLString);
+          cachedResult = cacheEntry.toResult(imageFileURLString);
+          urlCache.reused();
+          recordSkip(PipelineMetrics.Reason.URL_CACHED);
+          return true;
+        }
+        this.validators = validators;
+        if (!imageFileURLString.equals(finalUri.toString())) {
+          logger.debug("Followed redirected URL: " + finalUri);
+        }
+        this.targetUrl = finalUri.toString();
+        return true;
+      } catch (URISyntaxException ex) {
+        logger.error("Error creating URI: " + ex.getLocalizedMessage(), ex);
+        return false;
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+        logger.error("Interrupted reading URL: " + imageFileURLString);
+        return false;
+      } catch (IOException ex) {
+        urlTries++;
+        if (urlTries < MAX_URLREAD_TRIES) {
+          logger.error("Error reading URL: " + imageFileURLString + ". Retrying...");
+          /**
+           * The fetcher has stopped its body subscriber before throwing, nothing writes to the buffer any more.
+           */
+          download.reset();
+        } else {
+          logger.error("Error reading URL: " + imageFileURLString + ". Aboring...");
+          return false;
         }
+      }
+    }
+  }
 
-        /**
-         * Check the current top counts and replace one if needed.
-         */
-        checkChangeTopRgb(topCounts, 0, new CountPair(hex, currentCount));
+  /**
+   * Looks again, just before decoding, for the colors of the redirect target or of the same bytes under another URL.
+   * Fetches run ahead of decoding, so a copy fetched while the first was still queued is usually found here.
+   *
+   * @return true if the colors were found, they are kept for the write stage.
+   */
+  private boolean isCounted() {
+    if (null != targetCache && null != targetUrl) {
+      cachedResult = targetCache.get(targetUrl);
+      if (null != cachedResult) {
+        logger.debug("Using cached colors of redirect target: " + targetUrl);
+        targetUrl = null;
+        recordSkip(PipelineMetrics.Reason.TARGET_CACHED);
+        return true;
       }
     }
+    if (contentHashed && null != cacheEntry && cacheEntry.isSameContent(contentHashHigh, contentHashLow)) {
+      logger.debug("Body not changed, using cached colors for: " + imageFileURLString);
+      cachedResult = cacheEntry.toResult(imageFileURLString);
+      urlCache.reused();
+      recordSkip(PipelineMetrics.Reason.URL_CACHED);
+      return true;
+    }
+    if (contentHashed && null != contentTable) {
+      cachedResult = contentTable.get(contentHashHigh, contentHashLow);
+      if (null != cachedResult) {
+        logger.debug("Using cached colors of identical image for: " + imageFileURLString);
+        recordSkip(PipelineMetrics.Reason.CONTENT_CACHED);
+        return true;
+      }
+    }
+    return false;
+  }
 
+  /**
+   * @return true if the colors of the URI are in the target cache, they are kept for the write stage.
+   */
+  private boolean isKnownTarget(URI uri) {
+    if (null == targetCache) {
+      return false;
+    }
+    this.cachedResult = targetCache.get(uri.toString());
+    return null != cachedResult;
   }
 
-  private void checkChangeTopRgb(List<CountPair> topCounts, int currentPosition, CountPair countPair) {
+  /**
+   * @return true if the result writer has halted the run.
+   */
+  private boolean isHalted() {
+    return null != resultWriter && resultWriter.isHalted();
+  }
 
-    /**
-     * Walk through the current list of the top rgb and insert the new one if appropriate. Note - the lowest count will
-     * drop out of the top list.
-     * <p>
-     * The highest count will be maintained in position 0 and the lowest count will be in the last position.
-     */
-    if (topCounts.isEmpty() || topCounts.size() - 1 < currentPosition) {
+  /**
+   * Decodes the image from the given stream and finds its top colors. Images larger than the strip size are decoded one
+   * strip of rows at a time.
+   *
+   * @param topCounts the list the top colors are added to.
+   * @param imageInput the encoded image.
+   * @return false if there is no ImageReader for the image.
+   * @throws IOException if the image can not be decoded.
+   */
+  protected boolean findTopRgb(List<CountPair> topCounts, ImageInputStream imageInput) throws IOException {
+    Iterator<ImageReader> readers = ImageIO.getImageReaders(imageInput);
+    if (!readers.hasNext()) {
+      return false;
+    }
+    ImageReader reader = readers.next();
+    try {
       /**
-       * This position is empty so fill it in with the passed in color.
+       * Don't seek forward only, strips are read with separate calls that go back to the start of the image.
        */
-      if (currentPosition < TOP_COUNT) {
-        topCounts.add(currentPosition, countPair);
+      reader.setInput(imageInput, false, true);
+      long pixelCount = (long) reader.getWidth(0) * reader.getHeight(0);
+      if (pixelCount <= stripPixels) {
+        BufferedImage urlImage = reader.read(0);
+        if (null == urlImage) {
+          return false;
+        }
+        findTopRgb(topCounts, urlImage);
+        return true;
       }
-    } else if (topCounts.get(currentPosition).getHexColor().equals(countPair.getHexColor())) {
-      /**
-       * The passed in color is already in the at this position sup update the
-       */
-      topCounts.set(currentPosition, countPair);
-    } else if (countPair.getCount() > topCounts.get(currentPosition).getCount()) {
 
+      logger.trace(this.imageFileURLString + " - width: " + reader.getWidth(0));
+      logger.trace(this.imageFileURLString + " - height: " + reader.getHeight(0));
+      logger.trace(this.imageFileURLString + " - decoding in strips of " + stripPixels + " pixels");
+      ImageStripReader strips = new ImageStripReader(reader, stripPixels);
+      ColorHistogram histogram = null;
+      BufferedImage strip;
+      while (!isHalted() && null != (strip = strips.next())) {
+        histogram = countPixels(histogram, strip, strips.getStripHeight(), pixelCount);
+      }
+      if (null != histogram) {
+        selectTopRgb(topCounts, histogram);
+      }
+      return true;
+    } finally {
+      reader.dispose();
+    }
+  }
+
+  protected void findTopRgb(List<CountPair> topCounts, BufferedImage urlImage) {
+    /**
+     * Go through the pixels of the image, row by row, keeping count in the pixel histogram.
+     */
+    logger.trace(this.imageFileURLString + " - width: " + urlImage.getWidth());
+    logger.trace(this.imageFileURLString + " - height: " + urlImage.getHeight());
+
+    if (isHalted()) {
+      return;
+    }
+    long pixelCount = (long) urlImage.getWidth() * urlImage.getHeight();
+    ColorHistogram histogram = countPixels(null, urlImage, urlImage.getHeight(), pixelCount);
+    selectTopRgb(topCounts, histogram);
+  }
+
+  /**
+   * Counts the first rows of the image, in parallel tiles if the whole image is large enough.
+   *
+   * @param histogram the histogram to add to, or null to create one sized for the whole image.
+   * @param image the image or strip of an image.
+   * @param rows the number of rows of the image to count.
+   * @param imagePixelCount the number of pixels in the whole image.
+   * @return the histogram counted into.
+   */
+  protected ColorHistogram countPixels(ColorHistogram histogram, BufferedImage image, int rows, long imagePixelCount) {
+    PixelScanner scanner = new PixelScanner(image);
+    if (null == histogram) {
+      histogram = createHistogram(imagePixelCount);
+    }
+    if (null != countingPool && imagePixelCount >= parallelPixelThreshold) {
       /**
-       * Replace the current position with the passed in color and shift the replaced color to a lower position (farther
-       * back in the list).
+       * Each small tile histogram is merged straight into the one sized for the whole image, the dense array for a
+       * large image, so no tile histogram grows towards every color of the image.
        */
-      if (currentPosition < TOP_COUNT) {
-        CountPair tempPair = topCounts.get(currentPosition);
-        topCounts.set(currentPosition, countPair);
-        /**
-         * At this point, we could have the same hex value later in the array with a lower value, We need to remove that
-         * element.
-         */
-        int foundPosition = -1;
-        for (int ii = 0; ii < topCounts.size(); ii++) {
-          if (topCounts.get(ii).getHexColor().equals(countPair.hexColor) && topCounts.get(ii).getCount() < countPair.getCount()) {
-            foundPosition = ii;
-            break;
-          }
-        }
-        if (-1 != foundPosition) {
-          topCounts.remove(foundPosition);
-        }
-        checkChangeTopRgb(topCounts, currentPosition + 1, tempPair);
-      }
-    } else if (currentPosition + 1 < TOP_COUNT) {
-      checkChangeTopRgb(topCounts, currentPosition + 1, countPair);
+      logger.trace(this.imageFileURLString + " - counting in parallel tiles");
+      new TiledColorCounter(countingPool, TiledColorCounter.DEFAULT_TILE_PIXELS, () -> createHistogram(0L))
+          .count(scanner, rows, histogram);
+    } else {
+      scanner.count(histogram, 0, 0, scanner.getWidth(), rows);
+    }
+    if (null != metrics) {
+      metrics.counted((long) scanner.getWidth() * rows);
+    }
+    return histogram;
+  }
+
+  private ColorHistogram createHistogram(long pixelCount) {
+    if (approximateCounters > 0) {
+      return new SpaceSavingHistogram(approximateCounters);
+    }
+    return 0L == pixelCount ? new HashColorHistogram() : ColorHistogram.create(pixelCount);
+  }
+
+  private void selectTopRgb(List<CountPair> topCounts, ColorHistogram histogram) {
+    logger.trace(this.imageFileURLString + " - distinct colors: " + histogram.size());
+    if (null != metrics) {
+      metrics.histogramSize(histogram.size());
+    }
+
+    /**
+     * One selection pass over the finished histogram.
+     */
+    for (long entry : TopColorSelector.select(histogram, topCount)) {
+      int rgb = TopColorSelector.rgb(entry);
+      topCounts.add(new CountPair(rgb, TopColorSelector.count(entry), histogram.error(rgb)));
     }
   }
 
   private void writeTopRgb(List<CountPair> topCounts) {
-    StringBuffer topString = new StringBuffer();
-    topString.append(this.imageFileURLString);
-    topString.append(",");
-    for (int ii = 0; ii < topCounts.size(); ii++) {
-      topString.append((String) (null != topCounts.get(ii) ? topCounts.get(ii).getHexColor() : ""));
-      if (ii + 1 < topCounts.size()) {
-        topString.append(",");
+    /**
+     * Hex strings and the row itself are only produced by the result writer. Approximate counts also carry the error
+     * bound of each color.
+     */
+    int[] colors;
+    long[] errors;
+    if (null != cachedResult) {
+      colors = cachedResult.getColors();
+      errors = cachedResult.getErrors();
+    } else {
+      colors = new int[topCounts.size()];
+      errors = approximateCounters > 0 ? new long[topCounts.size()] : null;
+      for (int ii = 0; ii < colors.length; ii++) {
+        colors[ii] = topCounts.get(ii).getRgb();
+        if (null != errors) {
+          errors[ii] = topCounts.get(ii).getError();
+        }
       }
+      if (contentHashed && null != contentTable) {
+        contentTable.put(contentHashHigh, contentHashLow, colors, errors);
+      }
+    }
+    /**
+     * A target found through its bytes is remembered too, so the next redirect to it is not even downloaded.
+     */
+    if (null != targetCache && null != targetUrl) {
+      targetCache.put(targetUrl, colors, errors);
+    }
+    /**
+     * The validators are only kept when a body was downloaded, they belong to that response.
+     */
+    if (null != urlCache && null != validators) {
+      urlCache.put(imageFileURLString, new UrlResultCache.Entry(validators.getTarget().toString(),
+          validators.getEtag(), validators.getLastModified(), contentHashed, contentHashHigh, contentHashLow, colors,
+          errors));
     }
-    writeToCSVFile(topString.toString() + "\n");
+    if (!resultWriter.submit(new TopRgbResult(imageFileURLString, colors, errors, occurrences, sequence))) {
+      logger.error("Result writer has halted, dropping result for: " + imageFileURLString);
+      recordSkip(PipelineMetrics.Reason.WRITE_FAILED);
+    }
+
+  }
+
+  /**
+   * Holds the fetcher used when none is set, created on first use so tasks that never fetch over http don't start one.
+   */
+  private static class DefaultFetcher {
 
+    private static final HttpFetcher INSTANCE = new HttpFetcher();
   }
 
 }
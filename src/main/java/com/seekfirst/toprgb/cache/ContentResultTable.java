@@ -0,0 +1,168 @@
+package com.seekfirst.toprgb.cache;
+
+import com.seekfirst.toprgb.output.TopRgbResult;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class remembers the colors found for image bodies by a 128 bit hash of their bytes, so the same image served
+ * under another URL is not decoded again.
+ * <p>
+ * The table is a fixed block of direct (off-heap) memory, so it does not add to the heap however many images it holds.
+ * It is split into buckets of four fixed size slots: the 16 byte hash, the number of colors, then the colors and, for
+ * approximate counts, their error bounds. A hash can only live in its own bucket, and a full bucket overwrites its
+ * slots in turn, kept in a last byte of the bucket, so the oldest image of the bucket is forgotten first.
+ * <p>
+ * Shared by all threads. Each bucket is guarded by one of a fixed set of locks.
+ *
+ * @author David Botterill
+ */
+public class ContentResultTable {
+
+  public static final long DEFAULT_CAPACITY_BYTES = 16L << 20;
+  private static final int WAYS = 4;
+  private static final int SEGMENT_BYTES = 1 << 30;
+  private static final int LOCKS = 64;
+
+  private final int topCount;
+  private final boolean approximate;
+  private final int slotBytes;
+  private final int bucketBytes;
+  private final int bucketsPerSegment;
+  private final long bucketCount;
+  private final ByteBuffer[] segments;
+  private final Object[] locks = new Object[LOCKS];
+  private final AtomicLong hits = new AtomicLong();
+
+  /**
+   * @param capacityBytes the most off-heap memory the table may use.
+   * @param topCount the number of colors per image.
+   * @param approximate true if the colors carry error bounds.
+   */
+  public ContentResultTable(long capacityBytes, int topCount, boolean approximate) {
+    this.topCount = topCount;
+    this.approximate = approximate;
+    this.slotBytes = 16 + 4 + topCount * (approximate ? 12 : 4);
+    this.bucketBytes = slotBytes * WAYS + 1;
+    this.bucketsPerSegment = SEGMENT_BYTES / bucketBytes;
+    this.bucketCount = Math.max(1L, capacityBytes / bucketBytes);
+    int segmentCount = (int) ((bucketCount + bucketsPerSegment - 1) / bucketsPerSegment);
+    this.segments = new ByteBuffer[segmentCount];
+    for (int ii = 0; ii < segmentCount; ii++) {
+      long buckets = Math.min(bucketsPerSegment, bucketCount - (long) ii * bucketsPerSegment);
+      segments[ii] = ByteBuffer.allocateDirect((int) (buckets * bucketBytes));
+    }
+    for (int ii = 0; ii < LOCKS; ii++) {
+      locks[ii] = new Object();
+    }
+  }
+
+  /**
+   * @param high the high 64 bits of the body's hash.
+   * @param low the low 64 bits of the body's hash.
+   * @return the colors found for the body, or null if it is not known.
+   */
+  public TopRgbResult get(long high, long low) {
+    low = nonEmpty(high, low);
+    long bucket = bucketOf(high);
+    ByteBuffer segment = segments[(int) (bucket / bucketsPerSegment)];
+    int start = (int) (bucket % bucketsPerSegment) * bucketBytes;
+    synchronized (locks[(int) (bucket & (LOCKS - 1))]) {
+      for (int way = 0; way < WAYS; way++) {
+        int slot = start + way * slotBytes;
+        if (segment.getLong(slot) == high && segment.getLong(slot + 8) == low) {
+          hits.incrementAndGet();
+          return readSlot(segment, slot);
+        }
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Remembers the colors found for a body.
+   *
+   * @param high the high 64 bits of the body's hash.
+   * @param low the low 64 bits of the body's hash.
+   * @param colors packed 24 bit RGB colors, most prevalent first, no more than the top count.
+   * @param errors the error bound of each color, or null if the counts are exact.
+   */
+  public void put(long high, long low, int[] colors, long[] errors) {
+    low = nonEmpty(high, low);
+    long bucket = bucketOf(high);
+    ByteBuffer segment = segments[(int) (bucket / bucketsPerSegment)];
+    int start = (int) (bucket % bucketsPerSegment) * bucketBytes;
+    synchronized (locks[(int) (bucket & (LOCKS - 1))]) {
+      int target = -1;
+      for (int way = 0; way < WAYS && target < 0; way++) {
+        int slot = start + way * slotBytes;
+        long slotHigh = segment.getLong(slot);
+        long slotLow = segment.getLong(slot + 8);
+        if ((slotHigh == high && slotLow == low) || (0L == slotHigh && 0L == slotLow)) {
+          target = slot;
+        }
+      }
+      if (target < 0) {
+        int nextWay = start + WAYS * slotBytes;
+        int way = segment.get(nextWay);
+        target = start + way * slotBytes;
+        segment.put(nextWay, (byte) ((way + 1) % WAYS));
+      }
+      writeSlot(segment, target, high, low, colors, errors);
+    }
+  }
+
+  /**
+   * @return how many lookups found their body.
+   */
+  public long getHits() {
+    return hits.get();
+  }
+
+  /**
+   * @return the bytes of off-heap memory used.
+   */
+  public long getCapacityBytes() {
+    return bucketCount * bucketBytes;
+  }
+
+  private TopRgbResult readSlot(ByteBuffer segment, int slot) {
+    int count = segment.getInt(slot + 16);
+    int[] colors = new int[count];
+    long[] errors = approximate ? new long[count] : null;
+    int position = slot + 20;
+    for (int ii = 0; ii < count; ii++) {
+      colors[ii] = segment.getInt(position + ii * 4);
+      if (approximate) {
+        errors[ii] = segment.getLong(position + topCount * 4 + ii * 8);
+      }
+    }
+    return new TopRgbResult(null, colors, errors);
+  }
+
+  private void writeSlot(ByteBuffer segment, int slot, long high, long low, int[] colors, long[] errors) {
+    int count = Math.min(colors.length, topCount);
+    segment.putLong(slot, high);
+    segment.putLong(slot + 8, low);
+    segment.putInt(slot + 16, count);
+    int position = slot + 20;
+    for (int ii = 0; ii < count; ii++) {
+      segment.putInt(position + ii * 4, colors[ii]);
+      if (approximate) {
+        segment.putLong(position + topCount * 4 + ii * 8, errors[ii]);
+      }
+    }
+  }
+
+  private long bucketOf(long high) {
+    return Long.remainderUnsigned(high, bucketCount);
+  }
+
+  /**
+   * An all zero hash marks an empty slot, so that one hash is moved aside.
+   */
+  private static long nonEmpty(long high, long low) {
+    return 0L == high && 0L == low ? 1L : low;
+  }
+
+}
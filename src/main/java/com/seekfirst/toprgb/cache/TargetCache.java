@@ -0,0 +1,239 @@
+package com.seekfirst.toprgb.cache;
+
+import com.seekfirst.toprgb.output.TopRgbResult;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * This class remembers the colors found for the final URL an image was downloaded from, after any redirects. When
+ * another URL redirects to a target that is already known, its colors are written from here without downloading or
+ * decoding the image again.
+ * <p>
+ * The cache is bounded and shared by all fetch threads. It is split into segments by URL hash, each an access ordered
+ * LinkedHashMap behind its own lock, and each segment evicts its least recently used target when full.
+ * <p>
+ * With a backing file the targets are loaded when the cache is created and written back, least recently used first,
+ * when it is closed. A file written with a different top count or counting mode is ignored.
+ *
+ * @author David Botterill
+ */
+public class TargetCache implements Closeable {
+
+  private static Logger logger = LoggerFactory.getLogger(TargetCache.class);
+
+  public static final int DEFAULT_CAPACITY = 100000;
+  private static final int SEGMENTS = 16;
+  private static final int MAGIC = 0x54524743;
+  private static final int END_OF_ENTRIES = -1;
+
+  private final Segment[] segments = new Segment[SEGMENTS];
+  private final File backingFile;
+  private final int topCount;
+  private final boolean approximate;
+  private final AtomicLong hits = new AtomicLong();
+
+  /**
+   * @param capacity the most targets remembered.
+   */
+  public TargetCache(int capacity) {
+    this.backingFile = null;
+    this.topCount = 0;
+    this.approximate = false;
+    createSegments(capacity);
+  }
+
+  /**
+   * @param capacity the most targets remembered.
+   * @param backingFile the file targets are loaded from, if it exists, and saved to on close.
+   * @param topCount the number of colors per image, must match the file's.
+   * @param approximate true if the colors carry error bounds, must match the file's.
+   * @throws IOException if the backing file exists but can not be read.
+   */
+  public TargetCache(int capacity, File backingFile, int topCount, boolean approximate) throws IOException {
+    this.backingFile = backingFile;
+    this.topCount = topCount;
+    this.approximate = approximate;
+    createSegments(capacity);
+    if (backingFile.exists()) {
+      load();
+    }
+  }
+
+  private void createSegments(int capacity) {
+    if (capacity < 1) {
+      throw new IllegalArgumentException("Target cache capacity must be at least 1!");
+    }
+    for (int ii = 0; ii < SEGMENTS; ii++) {
+      segments[ii] = new Segment(Math.max(1, (capacity + SEGMENTS - 1 - ii) / SEGMENTS));
+    }
+  }
+
+  /**
+   * @param targetUrl the final URL of an image.
+   * @return the colors found for the target, or null if it is not known.
+   */
+  public TopRgbResult get(String targetUrl) {
+    Segment segment = segmentFor(targetUrl);
+    TopRgbResult result;
+    synchronized (segment) {
+      result = segment.get(targetUrl);
+    }
+    if (null != result) {
+      hits.incrementAndGet();
+    }
+    return result;
+  }
+
+  /**
+   * Remembers the colors found for a target.
+   *
+   * @param targetUrl the final URL of an image.
+   * @param colors packed 24 bit RGB colors, most prevalent first.
+   * @param errors the error bound of each color, or null if the counts are exact.
+   */
+  public void put(String targetUrl, int[] colors, long[] errors) {
+    Segment segment = segmentFor(targetUrl);
+    TopRgbResult result = new TopRgbResult(targetUrl, colors, errors);
+    synchronized (segment) {
+      segment.put(targetUrl, result);
+    }
+  }
+
+  /**
+   * @return the number of targets remembered.
+   */
+  public int size() {
+    int size = 0;
+    for (Segment segment : segments) {
+      synchronized (segment) {
+        size += segment.size();
+      }
+    }
+    return size;
+  }
+
+  /**
+   * @return how many lookups found their target.
+   */
+  public long getHits() {
+    return hits.get();
+  }
+
+  /**
+   * Saves the targets to the backing file, if there is one. The file is replaced only once it is completely written.
+   *
+   * @throws IOException if the file can not be written.
+   */
+  @Override
+  public void close() throws IOException {
+    if (null == backingFile) {
+      return;
+    }
+    File parent = backingFile.getAbsoluteFile().getParentFile();
+    File tempFile = File.createTempFile("toprgb_", "_targetcache", parent);
+    try {
+      try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(
+          Files.newOutputStream(tempFile.toPath())))) {
+        output.writeInt(MAGIC);
+        output.writeInt(topCount);
+        output.writeBoolean(approximate);
+        for (Segment segment : segments) {
+          List<TopRgbResult> results;
+          synchronized (segment) {
+            results = new ArrayList<>(segment.values());
+          }
+          for (TopRgbResult result : results) {
+            writeEntry(output, result);
+          }
+        }
+        output.writeInt(END_OF_ENTRIES);
+      }
+      Files.move(tempFile.toPath(), backingFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    } finally {
+      Files.deleteIfExists(tempFile.toPath());
+    }
+  }
+
+  private void writeEntry(DataOutputStream output, TopRgbResult result) throws IOException {
+    byte[] url = result.getUrl().getBytes(StandardCharsets.UTF_8);
+    output.writeInt(url.length);
+    output.write(url);
+    int[] colors = result.getColors();
+    output.writeInt(colors.length);
+    for (int ii = 0; ii < colors.length; ii++) {
+      output.writeInt(colors[ii]);
+      if (approximate) {
+        output.writeLong(result.getErrors()[ii]);
+      }
+    }
+  }
+
+  private void load() throws IOException {
+    try (DataInputStream input = new DataInputStream(new BufferedInputStream(
+        Files.newInputStream(backingFile.toPath())))) {
+      if (MAGIC != input.readInt() || topCount != input.readInt() || approximate != input.readBoolean()) {
+        logger.warn("Target cache file " + backingFile + " was written with other settings, ignoring it.");
+        return;
+      }
+      int urlLength;
+      while (END_OF_ENTRIES != (urlLength = input.readInt())) {
+        byte[] url = new byte[urlLength];
+        input.readFully(url);
+        int[] colors = new int[input.readInt()];
+        long[] errors = approximate ? new long[colors.length] : null;
+        for (int ii = 0; ii < colors.length; ii++) {
+          colors[ii] = input.readInt();
+          if (approximate) {
+            errors[ii] = input.readLong();
+          }
+        }
+        put(new String(url, StandardCharsets.UTF_8), colors, errors);
+      }
+    } catch (EOFException ex) {
+      logger.warn("Target cache file " + backingFile + " is truncated, keeping the targets read so far.");
+    }
+    logger.info("Loaded " + size() + " redirect targets from: " + backingFile);
+  }
+
+  private Segment segmentFor(String targetUrl) {
+    int hash = targetUrl.hashCode();
+    return segments[(hash ^ (hash >>> 16)) & (SEGMENTS - 1)];
+  }
+
+  /**
+   * One least recently used map. Callers lock the segment.
+   */
+  private static class Segment extends LinkedHashMap<String, TopRgbResult> {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int capacity;
+
+    Segment(int capacity) {
+      super(16, 0.75f, true);
+      this.capacity = capacity;
+    }
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, TopRgbResult> eldest) {
+      return size() > capacity;
+    }
+  }
+
+}
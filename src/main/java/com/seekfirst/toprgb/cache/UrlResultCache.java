@@ -0,0 +1,495 @@
+package com.seekfirst.toprgb.cache;
+
+import com.seekfirst.toprgb.output.TopRgbResult;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * This class remembers, from one run to the next, the colors found for each URL along with the validators of the
+ * response (ETag and Last-Modified) and the hash of the body, so a later run can ask the server whether the image
+ * changed instead of downloading and decoding it again.
+ * <p>
+ * The cache is a file mapped into memory. Records are only ever appended at the end of the file, a newer record of a
+ * URL hiding the older one, and an index of URL to record position is kept on the heap and rebuilt from the file when
+ * it is opened. Each record holds:
+ * <p>
+ * length, time counted, time last used, body hash, flags, URL, final URL, ETag, Last-Modified, colors and, for
+ * approximate counts, their error bounds.
+ * <p>
+ * The length is written last, so a record cut short by a crash ends the file. When the file is full it is compacted:
+ * the live records are copied to a new file that replaces it. If they do not fit, the least recently used (or the
+ * oldest, with FIFO eviction) are left out. Records older than the time to live are dropped. A file written with a
+ * different top count or counting mode is started again.
+ * <p>
+ * Shared by all threads, every method holds the cache's lock.
+ *
+ * @author David Botterill
+ */
+public class UrlResultCache implements Closeable {
+
+  private static Logger logger = LoggerFactory.getLogger(UrlResultCache.class);
+
+  /**
+   * Which records are left out when the live records do not fit.
+   */
+  public enum Eviction {
+    LRU, FIFO
+  }
+
+  public static final long DEFAULT_CAPACITY_BYTES = 256L << 20;
+  public static final long DEFAULT_TTL_HOURS = 24L * 7;
+  private static final int MAGIC = 0x54525543;
+  private static final int HEADER_BYTES = 16;
+  private static final int COUNTED = 4;
+  private static final int USED = 12;
+  private static final int HASH_HIGH = 20;
+  private static final int HASH_LOW = 28;
+  private static final int FLAGS = 36;
+  private static final int STRINGS = 37;
+  private static final byte HASHED = 1;
+
+  private final File file;
+  private final int capacity;
+  private final Eviction eviction;
+  private final long ttlMillis;
+  private final int topCount;
+  private final boolean approximate;
+  private final Map<String, Integer> index = new HashMap<>();
+  private final AtomicLong reused = new AtomicLong();
+  private FileChannel channel;
+  private MappedByteBuffer buffer;
+  private int end;
+  private long liveBytes;
+
+  /**
+   * @param file the cache file, created if it does not exist.
+   * @param capacityBytes the largest the file may grow to.
+   * @param eviction which records are left out when the file is full of live records.
+   * @param ttl how long after they were counted the colors of a URL may be reused.
+   * @param topCount the number of colors per image, must match the file's.
+   * @param approximate true if the colors carry error bounds, must match the file's.
+   * @throws IOException if the file can not be opened.
+   */
+  public UrlResultCache(File file, long capacityBytes, Eviction eviction, Duration ttl, int topCount,
+      boolean approximate) throws IOException {
+    if (capacityBytes < 4096L || capacityBytes > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("URL cache size must be between 4096 and " + Integer.MAX_VALUE + " bytes!");
+    }
+    this.file = file;
+    this.capacity = (int) capacityBytes;
+    this.eviction = eviction;
+    this.ttlMillis = ttl.toMillis();
+    this.topCount = topCount;
+    this.approximate = approximate;
+    open();
+  }
+
+  private void open() throws IOException {
+    channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE,
+        StandardOpenOption.CREATE);
+    if (channel.size() > 0L && !hasSettings(channel)) {
+      logger.warn("URL cache file " + file + " was written with other settings, starting it again.");
+      channel.truncate(0L);
+    }
+    /**
+     * A file from a run with a larger size is read whole, then compacted down to this size.
+     */
+    long mapped = Math.min(Integer.MAX_VALUE, Math.max(capacity, channel.size()));
+    buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0L, mapped);
+    buffer.putInt(0, MAGIC);
+    buffer.putInt(4, topCount);
+    buffer.put(8, (byte) (approximate ? 1 : 0));
+    load();
+    if (end > capacity) {
+      compact(0);
+    }
+  }
+
+  private boolean hasSettings(FileChannel channel) throws IOException {
+    ByteBuffer header = ByteBuffer.allocate(9);
+    channel.read(header, 0L);
+    return !header.hasRemaining() && MAGIC == header.getInt(0) && topCount == header.getInt(4)
+        && (approximate ? 1 : 0) == header.get(8);
+  }
+
+  /**
+   * Rebuilds the index from the records. Everything after the last complete record is zero, since the file is only
+   * appended to.
+   */
+  private void load() {
+    long now = System.currentTimeMillis();
+    int position = HEADER_BYTES;
+    while (position + 4 <= buffer.capacity()) {
+      int length = buffer.getInt(position);
+      if (length <= 0 || length > buffer.capacity() - position - 4) {
+        break;
+      }
+      String url = readString(position + STRINGS);
+      Integer previous = index.put(url, position);
+      if (null != previous) {
+        liveBytes -= recordBytes(previous);
+      }
+      liveBytes += 4 + length;
+      if (isExpired(position, now)) {
+        remove(url, position);
+      }
+      position += 4 + length;
+    }
+    end = position;
+    if (!index.isEmpty()) {
+      logger.info("Loaded " + index.size() + " URLs from URL cache: " + file);
+    }
+  }
+
+  /**
+   * @param url the URL of an image.
+   * @return what was cached for the URL, or null if it is not known or too old.
+   */
+  public synchronized Entry get(String url) {
+    Integer position = index.get(url);
+    if (null == position) {
+      return null;
+    }
+    long now = System.currentTimeMillis();
+    if (isExpired(position, now)) {
+      remove(url, position);
+      return null;
+    }
+    buffer.putLong(position + USED, now);
+    return readEntry(url, position);
+  }
+
+  /**
+   * Remembers what was found for a URL. Nothing is remembered for URLs too long to fit in a record.
+   *
+   * @param url the URL of an image.
+   * @param entry the colors and validators found for it.
+   */
+  public synchronized void put(String url, Entry entry) {
+    byte[] record = encode(url, entry, System.currentTimeMillis());
+    if (null == record || record.length > (capacity - HEADER_BYTES) / 4) {
+      return;
+    }
+    if (end + record.length > capacity) {
+      try {
+        compact(record.length);
+      } catch (IOException ex) {
+        logger.error("Error compacting URL cache: " + ex.getLocalizedMessage(), ex);
+        return;
+      }
+    }
+    ByteBuffer target = buffer.duplicate();
+    target.position(end + 4);
+    target.put(record, 4, record.length - 4);
+    buffer.putInt(end, record.length - 4);
+    Integer previous = index.put(url, end);
+    if (null != previous) {
+      liveBytes -= recordBytes(previous);
+    }
+    liveBytes += record.length;
+    end += record.length;
+  }
+
+  /**
+   * Counts a download or decode saved by an entry of the cache.
+   */
+  public void reused() {
+    reused.incrementAndGet();
+  }
+
+  /**
+   * @return how many downloads or decodes the cache saved.
+   */
+  public long getReused() {
+    return reused.get();
+  }
+
+  /**
+   * @return the number of URLs remembered.
+   */
+  public synchronized int size() {
+    return index.size();
+  }
+
+  /**
+   * Forces the records to the file, compacting it first if most of it is hidden records.
+   *
+   * @throws IOException if the file can not be written.
+   */
+  @Override
+  public synchronized void close() throws IOException {
+    if (liveBytes < (end - HEADER_BYTES) / 2) {
+      compact(0);
+    }
+    buffer.force();
+    channel.close();
+  }
+
+  /**
+   * Copies the live records to a new file that replaces the current one, leaving out expired records and, if there is
+   * still not room for the given bytes, evicted ones. Eviction frees a quarter of the file so it is not compacted again
+   * straight away.
+   */
+  private void compact(int needed) throws IOException {
+    long now = System.currentTimeMillis();
+    List<Map.Entry<String, Integer>> live = new ArrayList<>(index.entrySet());
+    live.removeIf(record -> isExpired(record.getValue(), now));
+    int timeOffset = Eviction.LRU == eviction ? USED : COUNTED;
+    live.sort(Comparator.comparingLong(record -> buffer.getLong(record.getValue() + timeOffset)));
+    long liveTotal = 0L;
+    for (Map.Entry<String, Integer> record : live) {
+      liveTotal += recordBytes(record.getValue());
+    }
+    int first = 0;
+    long room = capacity - HEADER_BYTES - needed;
+    if (liveTotal > room) {
+      room = Math.min(room, (capacity - HEADER_BYTES) * 3L / 4L);
+      while (first < live.size() && liveTotal > room) {
+        liveTotal -= recordBytes(live.get(first++).getValue());
+      }
+      logger.debug("Evicted " + first + " URLs from URL cache: " + file);
+    }
+
+    File parent = file.getAbsoluteFile().getParentFile();
+    File tempFile = File.createTempFile("toprgb_", "_urlcache", parent);
+    FileChannel newChannel = null;
+    try {
+      newChannel = FileChannel.open(tempFile.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+      MappedByteBuffer newBuffer = newChannel.map(FileChannel.MapMode.READ_WRITE, 0L, capacity);
+      newBuffer.putInt(0, MAGIC);
+      newBuffer.putInt(4, topCount);
+      newBuffer.put(8, (byte) (approximate ? 1 : 0));
+      Map<String, Integer> newIndex = new HashMap<>();
+      ByteBuffer target = newBuffer.duplicate();
+      target.position(HEADER_BYTES);
+      for (Map.Entry<String, Integer> record : live.subList(first, live.size())) {
+        ByteBuffer source = buffer.duplicate();
+        source.position(record.getValue()).limit(record.getValue() + recordBytes(record.getValue()));
+        newIndex.put(record.getKey(), target.position());
+        target.put(source);
+      }
+      newBuffer.force();
+      Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+      channel.close();
+      channel = newChannel;
+      newChannel = null;
+      buffer = newBuffer;
+      index.clear();
+      index.putAll(newIndex);
+      end = target.position();
+      liveBytes = end - HEADER_BYTES;
+    } finally {
+      if (null != newChannel) {
+        newChannel.close();
+      }
+      Files.deleteIfExists(tempFile.toPath());
+    }
+  }
+
+  private boolean isExpired(int position, long now) {
+    return now - buffer.getLong(position + COUNTED) >= ttlMillis;
+  }
+
+  private void remove(String url, int position) {
+    index.remove(url);
+    liveBytes -= recordBytes(position);
+  }
+
+  private int recordBytes(int position) {
+    return 4 + buffer.getInt(position);
+  }
+
+  private byte[] encode(String url, Entry entry, long now) {
+    byte[][] strings = {bytes(url), bytes(url.equals(entry.getTarget()) ? null : entry.getTarget()),
+      bytes(entry.getEtag()), bytes(entry.getLastModified())};
+    int count = Math.min(entry.getColors().length, topCount);
+    int length = STRINGS + 4 + count * (approximate ? 12 : 4);
+    for (byte[] string : strings) {
+      if (string.length > 0xffff) {
+        return null;
+      }
+      length += 2 + string.length;
+    }
+    ByteBuffer record = ByteBuffer.allocate(length);
+    record.putInt(length - 4);
+    record.putLong(now);
+    record.putLong(now);
+    record.putLong(entry.getHashHigh());
+    record.putLong(entry.getHashLow());
+    record.put(entry.isHashed() ? HASHED : 0);
+    for (byte[] string : strings) {
+      record.putChar((char) string.length);
+      record.put(string);
+    }
+    record.putInt(count);
+    for (int ii = 0; ii < count; ii++) {
+      record.putInt(entry.getColors()[ii]);
+    }
+    if (approximate) {
+      for (int ii = 0; ii < count; ii++) {
+        record.putLong(null == entry.getErrors() ? 0L : entry.getErrors()[ii]);
+      }
+    }
+    return record.array();
+  }
+
+  private Entry readEntry(String url, int position) {
+    int stringPosition = position + STRINGS;
+    stringPosition += 2 + buffer.getChar(stringPosition);
+    String target = readString(stringPosition);
+    stringPosition += 2 + buffer.getChar(stringPosition);
+    String etag = readString(stringPosition);
+    stringPosition += 2 + buffer.getChar(stringPosition);
+    String lastModified = readString(stringPosition);
+    stringPosition += 2 + buffer.getChar(stringPosition);
+    int count = buffer.getInt(stringPosition);
+    int[] colors = new int[count];
+    long[] errors = approximate ? new long[count] : null;
+    for (int ii = 0; ii < count; ii++) {
+      colors[ii] = buffer.getInt(stringPosition + 4 + ii * 4);
+      if (approximate) {
+        errors[ii] = buffer.getLong(stringPosition + 4 + count * 4 + ii * 8);
+      }
+    }
+    return new Entry(null == target ? url : target, etag, lastModified, HASHED == buffer.get(position + FLAGS),
+        buffer.getLong(position + HASH_HIGH), buffer.getLong(position + HASH_LOW), colors, errors,
+        buffer.getLong(position + COUNTED));
+  }
+
+  /**
+   * @return the string at the position, null if it is empty.
+   */
+  private String readString(int position) {
+    int length = buffer.getChar(position);
+    if (0 == length) {
+      return null;
+    }
+    byte[] bytes = new byte[length];
+    ByteBuffer source = buffer.duplicate();
+    source.position(position + 2);
+    source.get(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  private static byte[] bytes(String string) {
+    return null == string ? new byte[0] : string.getBytes(StandardCharsets.UTF_8);
+  }
+
+  /**
+   * What is cached for one URL.
+   */
+  public static class Entry {
+
+    private final String target;
+    private final String etag;
+    private final String lastModified;
+    private final boolean hashed;
+    private final long hashHigh;
+    private final long hashLow;
+    private final int[] colors;
+    private final long[] errors;
+    private final long countedMillis;
+
+    /**
+     * @param target the final URL the image was downloaded from, after any redirects.
+     * @param etag the ETag of the response, or null.
+     * @param lastModified the Last-Modified date of the response, or null.
+     * @param hashed true if the hash of the body is known.
+     * @param hashHigh the high 64 bits of the body's hash.
+     * @param hashLow the low 64 bits of the body's hash.
+     * @param colors packed 24 bit RGB colors, most prevalent first.
+     * @param errors the error bound of each color, or null if the counts are exact.
+     */
+    public Entry(String target, String etag, String lastModified, boolean hashed, long hashHigh, long hashLow,
+        int[] colors, long[] errors) {
+      this(target, etag, lastModified, hashed, hashHigh, hashLow, colors, errors, 0L);
+    }
+
+    Entry(String target, String etag, String lastModified, boolean hashed, long hashHigh, long hashLow,
+        int[] colors, long[] errors, long countedMillis) {
+      this.target = target;
+      this.etag = etag;
+      this.lastModified = lastModified;
+      this.hashed = hashed;
+      this.hashHigh = hashHigh;
+      this.hashLow = hashLow;
+      this.colors = colors;
+      this.errors = errors;
+      this.countedMillis = countedMillis;
+    }
+
+    public String getTarget() {
+      return target;
+    }
+
+    public String getEtag() {
+      return etag;
+    }
+
+    public String getLastModified() {
+      return lastModified;
+    }
+
+    public boolean isHashed() {
+      return hashed;
+    }
+
+    public long getHashHigh() {
+      return hashHigh;
+    }
+
+    public long getHashLow() {
+      return hashLow;
+    }
+
+    public int[] getColors() {
+      return colors;
+    }
+
+    public long[] getErrors() {
+      return errors;
+    }
+
+    /**
+     * @return when the colors were counted, in milliseconds since the epoch.
+     */
+    public long getCountedMillis() {
+      return countedMillis;
+    }
+
+    /**
+     * @param high the high 64 bits of a body's hash.
+     * @param low the low 64 bits of a body's hash.
+     * @return true if the colors were counted from a body with this hash.
+     */
+    public boolean isSameContent(long high, long low) {
+      return hashed && hashHigh == high && hashLow == low;
+    }
+
+    /**
+     * @param url the image URL the row is for.
+     * @return the cached colors as the result for the URL.
+     */
+    public TopRgbResult toResult(String url) {
+      return new TopRgbResult(url, colors, errors);
+    }
+  }
+
+}
@@ -0,0 +1,380 @@
+package com.seekfirst.toprgb.checkpoint;
+
+import com.seekfirst.toprgb.sorter.SortCheckpoint;
+import com.seekfirst.toprgb.sorter.SortedChunk;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * This class is the durable record of how far a run got, so a run that crashed or was stopped can be resumed instead
+ * of started again. It is an append only text file of one record per line, each forced to disk before the work it
+ * describes is relied on:
+ * <p>
+ * input &lt;length&gt; &lt;last modified&gt; - the input file the run is for.<br>
+ * chunk &lt;file&gt; &lt;start&gt; &lt;end&gt; &lt;lines&gt; - a chunk file holding the sorted lines of that part of
+ * the input is complete.<br>
+ * sorted - every line of the input is in a chunk file.<br>
+ * merge &lt;file&gt; &lt;run&gt;... - the runs were merged into the file, and are deleted.<br>
+ * scanned &lt;next&gt; &lt;length&gt; &lt;rescan from&gt; - every URL before position next of the scan has its row
+ * within the first length bytes of the output file. Rows of later URLs can only be found from byte rescan from on.
+ * <p>
+ * Sort files live in a work directory next to the journal, which is removed with the journal once the run completes.
+ * Replaying the records gives the chunk files still to merge and the last scan position. Every
+ * {@link #COMPACT_SCANNED_RECORDS} scan records the journal is rewritten as just the records that state replays from,
+ * so it stays small however long the run is.
+ *
+ * @author David Botterill
+ */
+public class ProgressJournal implements SortCheckpoint, Closeable {
+
+  private static Logger logger = LoggerFactory.getLogger(ProgressJournal.class);
+
+  /**
+   * Scan records appended before the journal is compacted.
+   */
+  public static final int COMPACT_SCANNED_RECORDS = 1024;
+
+  private final File journalFile;
+  private final File workDirectory;
+  private final String inputRecord;
+  private FileChannel channel;
+  private int scannedRecords;
+  private final Map<String, SortedChunk> chunks = new LinkedHashMap<>();
+  private final Set<String> runs = new LinkedHashSet<>();
+  private boolean inputSorted;
+  private long scanNext;
+  private long outputLength;
+  private long rescanFrom;
+
+  private ProgressJournal(File journalFile, File workDirectory, String inputRecord, boolean append)
+      throws IOException {
+    this.journalFile = journalFile;
+    this.workDirectory = workDirectory;
+    this.inputRecord = inputRecord;
+    Files.createDirectories(workDirectory.toPath());
+    this.channel = append
+        ? FileChannel.open(journalFile.toPath(), StandardOpenOption.WRITE, StandardOpenOption.APPEND)
+        : FileChannel.open(journalFile.toPath(), StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+            StandardOpenOption.TRUNCATE_EXISTING);
+  }
+
+  /**
+   * Starts the journal of a new run, replacing any journal and sort files left by an earlier one.
+   *
+   * @param journalFile the journal file.
+   * @param workDirectory the directory for sort files.
+   * @param inputFile the input file of the run.
+   * @return the journal.
+   * @throws IOException if the journal can not be written.
+   */
+  public static ProgressJournal create(File journalFile, File workDirectory, File inputFile) throws IOException {
+    deleteDirectory(workDirectory);
+    ProgressJournal journal = new ProgressJournal(journalFile, workDirectory, inputRecord(inputFile), false);
+    journal.append(journal.inputRecord);
+    return journal;
+  }
+
+  /**
+   * Opens the journal of an earlier run of the same input to carry on from where it stopped.
+   *
+   * @param journalFile the journal file.
+   * @param workDirectory the directory of the sort files.
+   * @param inputFile the input file of the run, which must not have changed.
+   * @param outputFileLength the length of the output file now. Scan records past it are not used.
+   * @return the journal, replayed and compacted.
+   * @throws IOException if there is no journal, it is for another input or it can not be read.
+   */
+  public static ProgressJournal resume(File journalFile, File workDirectory, File inputFile, long outputFileLength)
+      throws IOException {
+    if (!journalFile.exists()) {
+      throw new IOException("No journal to resume from: " + journalFile);
+    }
+    ProgressJournal journal;
+    try (InputStream input = new BufferedInputStream(Files.newInputStream(journalFile.toPath()))) {
+      String inputRecord = inputRecord(inputFile);
+      if (!inputRecord.equals(readRecord(input))) {
+        throw new IOException("Journal " + journalFile + " is for another input file");
+      }
+      journal = new ProgressJournal(journalFile, workDirectory, inputRecord, true);
+      String record;
+      while (null != (record = readRecord(input))) {
+        journal.replay(record.split(" "), outputFileLength);
+      }
+    }
+    journal.checkSortFiles();
+    /**
+     * Also drops a last record cut short by the crash, which the next append would otherwise run on from.
+     */
+    journal.compact();
+    return journal;
+  }
+
+  private static String inputRecord(File inputFile) {
+    return "input " + inputFile.length() + " " + inputFile.lastModified();
+  }
+
+  private void replay(String[] fields, long outputFileLength) {
+    switch (fields[0]) {
+      case "chunk":
+        chunks.put(fields[1], new SortedChunk(new File(workDirectory, fields[1]), Long.parseLong(fields[2]),
+            Long.parseLong(fields[3]), Long.parseLong(fields[4])));
+        runs.add(fields[1]);
+        break;
+      case "sorted":
+        inputSorted = true;
+        break;
+      case "merge":
+        for (int ii = 2; ii < fields.length; ii++) {
+          runs.remove(fields[ii]);
+        }
+        runs.add(fields[1]);
+        break;
+      case "scanned":
+        long length = Long.parseLong(fields[2]);
+        if (length <= outputFileLength) {
+          scanNext = Long.parseLong(fields[1]);
+          outputLength = length;
+          rescanFrom = Long.parseLong(fields[3]);
+        }
+        break;
+      default:
+        logger.warn("Skipping unknown journal record: " + fields[0]);
+    }
+  }
+
+  /**
+   * If a sort file the journal relies on is missing the sort is started again.
+   */
+  private void checkSortFiles() throws IOException {
+    for (String run : runs) {
+      if (!new File(workDirectory, run).exists()) {
+        logger.warn("Sort file " + run + " is missing, the input will be sorted again.");
+        chunks.clear();
+        runs.clear();
+        inputSorted = false;
+        for (File file : listFiles(workDirectory)) {
+          Files.deleteIfExists(file.toPath());
+        }
+        return;
+      }
+    }
+  }
+
+  /**
+   * @return true if every line of the input is in a sort file, see {@link #getRuns()}.
+   */
+  public boolean isInputSorted() {
+    return inputSorted;
+  }
+
+  /**
+   * @return the chunk files of a sort that stopped while reading the input.
+   */
+  public List<SortedChunk> getSortedChunks() {
+    return new ArrayList<>(chunks.values());
+  }
+
+  /**
+   * @return the sort files left to merge.
+   */
+  public List<File> getRuns() {
+    List<File> files = new ArrayList<>();
+    for (String run : runs) {
+      files.add(new File(workDirectory, run));
+    }
+    return files;
+  }
+
+  /**
+   * @return the number of URLs at the start of the scan that are done.
+   */
+  public long getScanNext() {
+    return scanNext;
+  }
+
+  /**
+   * @return the length of the output file holding the rows of the URLs that are done.
+   */
+  public long getOutputLength() {
+    return outputLength;
+  }
+
+  /**
+   * @return the output position from which rows of URLs after the done ones may already be written.
+   */
+  public long getRescanFrom() {
+    return rescanFrom;
+  }
+
+  /**
+   * @return the directory sort files are written to.
+   */
+  public File getWorkDirectory() {
+    return workDirectory;
+  }
+
+  @Override
+  public void chunkSorted(SortedChunk chunk) throws IOException {
+    append(chunkRecord(chunk.getFile().getName(), chunk));
+  }
+
+  private static String chunkRecord(String name, SortedChunk chunk) {
+    return "chunk " + name + " " + chunk.getStart() + " " + chunk.getEnd() + " " + chunk.getLines();
+  }
+
+  @Override
+  public void inputSorted() throws IOException {
+    append("sorted");
+  }
+
+  @Override
+  public void runsMerged(List<File> mergedRuns, File merged) throws IOException {
+    StringBuilder record = new StringBuilder("merge ").append(merged.getName());
+    for (File run : mergedRuns) {
+      record.append(' ').append(run.getName());
+    }
+    append(record.toString());
+  }
+
+  /**
+   * Records how far the scan is.
+   *
+   * @param next every URL before this position has its row written, or failed.
+   * @param length the length of the output file holding those rows.
+   * @param rescanFrom the output position from which rows of later URLs may be written.
+   * @throws IOException if the record can not be written.
+   */
+  public synchronized void scanned(long next, long length, long rescanFrom) throws IOException {
+    append("scanned " + next + " " + length + " " + rescanFrom);
+    if (++scannedRecords >= COMPACT_SCANNED_RECORDS) {
+      compact();
+    }
+  }
+
+  /**
+   * Writes the record and applies it to the state, so a compaction can write the state back out.
+   */
+  private synchronized void append(String record) throws IOException {
+    write(channel, record + "\n");
+    if (!record.equals(inputRecord)) {
+      replay(record.split(" "), Long.MAX_VALUE);
+    }
+  }
+
+  /**
+   * Rewrites the journal as the records the current state replays from: the input, the sort files left to merge and
+   * the last scan record. The new journal is forced to disk before it replaces the old one, so a crash at any point
+   * leaves one of them whole.
+   */
+  private synchronized void compact() throws IOException {
+    StringBuilder text = new StringBuilder(inputRecord).append('\n');
+    for (Map.Entry<String, SortedChunk> chunk : chunks.entrySet()) {
+      if (runs.contains(chunk.getKey())) {
+        text.append(chunkRecord(chunk.getKey(), chunk.getValue())).append('\n');
+      }
+    }
+    if (inputSorted) {
+      text.append("sorted\n");
+    }
+    for (String run : runs) {
+      if (!chunks.containsKey(run)) {
+        /**
+         * A merge with no runs of its own just names a sort file left to merge.
+         */
+        text.append("merge ").append(run).append('\n');
+      }
+    }
+    if (scanNext > 0L || outputLength > 0L) {
+      text.append("scanned ").append(scanNext).append(' ').append(outputLength).append(' ').append(rescanFrom)
+          .append('\n');
+    }
+    File compacted = new File(journalFile.getPath() + ".compact");
+    try (FileChannel output = FileChannel.open(compacted.toPath(), StandardOpenOption.WRITE,
+        StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+      write(output, text.toString());
+    }
+    Files.move(compacted.toPath(), journalFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+        StandardCopyOption.ATOMIC_MOVE);
+    FileChannel reopened = FileChannel.open(journalFile.toPath(), StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    channel.close();
+    channel = reopened;
+    scannedRecords = 0;
+  }
+
+  private static void write(FileChannel output, String text) throws IOException {
+    ByteBuffer bytes = ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8));
+    while (bytes.hasRemaining()) {
+      output.write(bytes);
+    }
+    output.force(false);
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    channel.close();
+  }
+
+  /**
+   * Closes the journal once the run is complete and removes it along with the work directory.
+   *
+   * @throws IOException if the files can not be removed.
+   */
+  public void finish() throws IOException {
+    close();
+    deleteDirectory(workDirectory);
+    Files.deleteIfExists(journalFile.toPath());
+  }
+
+  /**
+   * @return the next complete record of the journal, or null at the end. A last record cut short by a crash is left
+   * out.
+   */
+  private static String readRecord(InputStream input) throws IOException {
+    ByteArrayOutputStream record = new ByteArrayOutputStream();
+    int next;
+    while ((next = input.read()) >= 0) {
+      if ('\n' == next) {
+        return new String(record.toByteArray(), StandardCharsets.UTF_8);
+      }
+      record.write(next);
+    }
+    return null;
+  }
+
+  private static List<File> listFiles(File directory) {
+    File[] files = directory.listFiles();
+    List<File> list = new ArrayList<>();
+    if (null != files) {
+      for (File file : files) {
+        list.add(file);
+      }
+    }
+    return list;
+  }
+
+  private static void deleteDirectory(File directory) throws IOException {
+    for (File file : listFiles(directory)) {
+      Files.deleteIfExists(file.toPath());
+    }
+    Files.deleteIfExists(directory.toPath());
+  }
+
+}
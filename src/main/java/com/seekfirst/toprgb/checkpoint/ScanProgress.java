@@ -0,0 +1,158 @@
+package com.seekfirst.toprgb.checkpoint;
+
+import com.seekfirst.toprgb.output.ResultWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.Set;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * This class follows which URLs of the scan are done, in the order they were submitted. URLs finish out of order, so
+ * it keeps a window from the first URL not yet done to the last submitted and moves the start of the window forward as
+ * the URLs at its start finish. A URL is done once its row is written or it failed without a row.
+ * <p>
+ * After each write of the result writer the start of the window is recorded in the journal, along with where the rows
+ * of the URLs still in the window can begin: the output length when the first of them was submitted.
+ *
+ * @author David Botterill
+ */
+public class ScanProgress implements ResultWriter.WriteListener {
+
+  private static Logger logger = LoggerFactory.getLogger(ScanProgress.class);
+
+  private final ProgressJournal journal;
+  private long next;
+  private long submitted;
+  private long recorded;
+  private boolean[] done = new boolean[1024];
+  private long[] lengthAtSubmit = new long[1024];
+
+  /**
+   * @param journal the journal positions are recorded in.
+   * @param next the first position not done, the ones before it were done by an earlier run.
+   */
+  public ScanProgress(ProgressJournal journal, long next) {
+    this.journal = journal;
+    this.next = next;
+    this.submitted = next;
+    this.recorded = next;
+  }
+
+  /**
+   * @param sequence the position of a URL handed to the scan, one more than the last.
+   * @param outputLength the length of the output file written so far.
+   */
+  public synchronized void submitted(long sequence, long outputLength) {
+    if (sequence != submitted) {
+      throw new IllegalStateException("Expected position " + submitted + " but got " + sequence);
+    }
+    if (submitted - next == done.length) {
+      grow();
+    }
+    int slot = slot(sequence);
+    done[slot] = false;
+    lengthAtSubmit[slot] = outputLength;
+    submitted++;
+  }
+
+  /**
+   * @param sequence the position of a URL that is done.
+   */
+  public synchronized void completed(long sequence) {
+    if (sequence < next || sequence >= submitted) {
+      return;
+    }
+    done[slot(sequence)] = true;
+    while (next < submitted && done[slot(next)]) {
+      next++;
+    }
+  }
+
+  /**
+   * @return the first position that is not done.
+   */
+  public synchronized long getNext() {
+    return next;
+  }
+
+  @Override
+  public void written(long[] sequences, int count, long fileLength) {
+    long position;
+    long rescanFrom;
+    synchronized (this) {
+      for (int ii = 0; ii < count; ii++) {
+        if (sequences[ii] >= 0L) {
+          completed(sequences[ii]);
+        }
+      }
+      if (next == recorded) {
+        return;
+      }
+      recorded = next;
+      position = next;
+      rescanFrom = next < submitted ? lengthAtSubmit[slot(next)] : fileLength;
+    }
+    try {
+      journal.scanned(position, fileLength, rescanFrom);
+    } catch (IOException ex) {
+      logger.error("Error writing scan checkpoint: " + ex.getLocalizedMessage(), ex);
+    }
+  }
+
+  private int slot(long sequence) {
+    return (int) (sequence & (done.length - 1));
+  }
+
+  private void grow() {
+    boolean[] grownDone = new boolean[done.length * 2];
+    long[] grownLengths = new long[done.length * 2];
+    for (long sequence = next; sequence < submitted; sequence++) {
+      int from = slot(sequence);
+      int to = (int) (sequence & (grownDone.length - 1));
+      grownDone[to] = done[from];
+      grownLengths[to] = lengthAtSubmit[from];
+    }
+    done = grownDone;
+    lengthAtSubmit = grownLengths;
+  }
+
+  /**
+   * Reads the URLs of the rows in part of an output file, the rows a resumed scan must not write again.
+   *
+   * @param outputFile the output file.
+   * @param from the position of the first row.
+   * @param to the position just after the last row.
+   * @param trailingColumns the number of columns after the URL in every row.
+   * @return the URLs.
+   * @throws IOException if the file can not be read.
+   */
+  public static Set<String> readUrls(File outputFile, long from, long to, int trailingColumns) throws IOException {
+    Set<String> urls = new HashSet<>();
+    if (to <= from) {
+      return urls;
+    }
+    byte[] bytes = new byte[Math.toIntExact(to - from)];
+    try (RandomAccessFile file = new RandomAccessFile(outputFile, "r")) {
+      file.seek(from);
+      file.readFully(bytes);
+    }
+    for (String row : new String(bytes, StandardCharsets.UTF_8).split("\n")) {
+      /**
+       * URLs may hold commas, the columns after them never do.
+       */
+      int end = row.length();
+      for (int ii = 0; ii < trailingColumns && end > 0; ii++) {
+        end = row.lastIndexOf(',', end - 1);
+      }
+      if (end > 0) {
+        urls.add(row.substring(0, end));
+      }
+    }
+    return urls;
+  }
+
+}
@@ -0,0 +1,95 @@
+package com.seekfirst.toprgb.counter;
+
+/**
+ * A pixel color histogram keyed on the packed 24 bit RGB value of a pixel (0xRRGGBB). Implementations store the counts
+ * in primitive arrays so no objects are created while an image is being scanned.
+ * <p>
+ * Counts are held as ints so a single color can be counted exactly up to Integer.MAX_VALUE pixels.
+ *
+ * @author David Botterill
+ */
+public interface ColorHistogram {
+
+  /**
+   * Images with at least this many pixels get a dense histogram. The open addressing table doubles once it is half
+   * full and takes 8 bytes a slot, so with fewer pixels it stays within 2^23 slots, the 64MB of the dense array, even
+   * if every pixel is a different color. A noisy image past this size would grow it to 128MB, plus the old table while
+   * it is rehashed.
+   */
+  long DENSE_PIXEL_THRESHOLD = 1L << 22;
+
+  /**
+   * Callback used to walk the colors in a histogram.
+   */
+  @FunctionalInterface
+  interface ColorCountVisitor {
+
+    void visit(int rgb, long count);
+  }
+
+  /**
+   * Adds one to the count of the given color.
+   *
+   * @param rgb packed 24 bit RGB color, any alpha bits are ignored.
+   * @return the new count for the color.
+   */
+  int increment(int rgb);
+
+  /**
+   * Adds the given amount to the count of the given color.
+   *
+   * @param rgb packed 24 bit RGB color, any alpha bits are ignored.
+   * @param count the amount to add.
+   * @return the new count for the color.
+   */
+  int add(int rgb, int count);
+
+  /**
+   * @param rgb packed 24 bit RGB color, any alpha bits are ignored.
+   * @return the current count for the color, 0 if the color has not been seen.
+   */
+  int count(int rgb);
+
+  /**
+   * @param rgb packed 24 bit RGB color, any alpha bits are ignored.
+   * @return the most the count for the color can be over its true count. Always 0 for an exact histogram.
+   */
+  default int error(int rgb) {
+    return 0;
+  }
+
+  /**
+   * @return the number of distinct colors in the histogram.
+   */
+  int size();
+
+  /**
+   * Calls the visitor once for every color with a non zero count. The order of the colors is not defined.
+   *
+   * @param visitor the callback.
+   */
+  void forEach(ColorCountVisitor visitor);
+
+  /**
+   * Adds every count of the other histogram into this one.
+   *
+   * @param other the histogram to merge in, it is not changed.
+   */
+  default void merge(ColorHistogram other) {
+    other.forEach((rgb, count) -> add(rgb, (int) count));
+  }
+
+  /**
+   * Creates the histogram that best suits an image with the given number of pixels. Large images get a dense array
+   * indexed by color, smaller images get an open addressing table that only grows with the number of distinct colors.
+   *
+   * @param pixelCount the number of pixels that will be counted.
+   * @return a new empty histogram.
+   */
+  static ColorHistogram create(long pixelCount) {
+    if (pixelCount >= DENSE_PIXEL_THRESHOLD) {
+      return new DenseColorHistogram();
+    }
+    return new HashColorHistogram();
+  }
+}
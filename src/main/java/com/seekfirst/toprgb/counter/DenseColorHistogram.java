@@ -0,0 +1,56 @@
+package com.seekfirst.toprgb.counter;
+
+/**
+ * A histogram with one int counter for every possible 24 bit color (64MB). Only worth it for very large images where
+ * the number of distinct colors approaches the full color space.
+ *
+ * @author David Botterill
+ */
+public class DenseColorHistogram implements ColorHistogram {
+
+  private static final int COLORS = 1 << 24;
+  private static final int RGB_MASK = COLORS - 1;
+
+  private final int[] counts = new int[COLORS];
+  private int size;
+
+  @Override
+  public int increment(int rgb) {
+    int count = ++counts[rgb & RGB_MASK];
+    if (1 == count) {
+      size++;
+    }
+    return count;
+  }
+
+  @Override
+  public int add(int rgb, int count) {
+    int index = rgb & RGB_MASK;
+    int previous = counts[index];
+    if (0 == previous && 0 != count) {
+      size++;
+    }
+    counts[index] = previous + count;
+    return counts[index];
+  }
+
+  @Override
+  public int count(int rgb) {
+    return counts[rgb & RGB_MASK];
+  }
+
+  @Override
+  public int size() {
+    return size;
+  }
+
+  @Override
+  public void forEach(ColorCountVisitor visitor) {
+    for (int rgb = 0; rgb < COLORS; rgb++) {
+      if (0 != counts[rgb]) {
+        visitor.visit(rgb, counts[rgb]);
+      }
+    }
+  }
+
+}
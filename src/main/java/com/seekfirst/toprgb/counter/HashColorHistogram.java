@@ -0,0 +1,126 @@
+package com.seekfirst.toprgb.counter;
+
+/**
+ * An open addressing (linear probing) int to int table keyed on the 24 bit color. Keys are stored as rgb + 1 so that 0
+ * can mark an empty slot while black (0x000000) is still a valid key.
+ *
+ * @author David Botterill
+ */
+public class HashColorHistogram implements ColorHistogram {
+
+  private static final int RGB_MASK = 0xffffff;
+  private static final int DEFAULT_CAPACITY = 1 << 12;
+  private static final int MAX_CAPACITY = 1 << 30;
+
+  private int[] keys;
+  private int[] counts;
+  private int mask;
+  private int shift;
+  private int size;
+  private int resizeAt;
+
+  public HashColorHistogram() {
+    this(DEFAULT_CAPACITY);
+  }
+
+  /**
+   * @param expectedColors the number of distinct colors expected, used to size the table up front.
+   */
+  public HashColorHistogram(int expectedColors) {
+    int capacity = DEFAULT_CAPACITY;
+    while (capacity < MAX_CAPACITY && capacity * 0.5 < expectedColors) {
+      capacity <<= 1;
+    }
+    allocate(capacity);
+  }
+
+  @Override
+  public int increment(int rgb) {
+    return add(rgb, 1);
+  }
+
+  @Override
+  public int add(int rgb, int count) {
+    int key = (rgb & RGB_MASK) + 1;
+    int slot = slot(key);
+    while (true) {
+      int current = keys[slot];
+      if (current == key) {
+        counts[slot] += count;
+        return counts[slot];
+      }
+      if (0 == current) {
+        keys[slot] = key;
+        counts[slot] = count;
+        if (++size >= resizeAt) {
+          rehash();
+        }
+        return count;
+      }
+      slot = (slot + 1) & mask;
+    }
+  }
+
+  @Override
+  public int count(int rgb) {
+    int key = (rgb & RGB_MASK) + 1;
+    int slot = slot(key);
+    while (true) {
+      int current = keys[slot];
+      if (current == key) {
+        return counts[slot];
+      }
+      if (0 == current) {
+        return 0;
+      }
+      slot = (slot + 1) & mask;
+    }
+  }
+
+  @Override
+  public int size() {
+    return size;
+  }
+
+  @Override
+  public void forEach(ColorCountVisitor visitor) {
+    for (int ii = 0; ii < keys.length; ii++) {
+      if (0 != keys[ii]) {
+        visitor.visit(keys[ii] - 1, counts[ii]);
+      }
+    }
+  }
+
+  private int slot(int key) {
+    /**
+     * Fibonacci hashing spreads the neighbouring colors found in photos across the table.
+     */
+    return (key * 0x9e3779b9) >>> shift;
+  }
+
+  private void allocate(int capacity) {
+    keys = new int[capacity];
+    counts = new int[capacity];
+    mask = capacity - 1;
+    shift = 32 - Integer.numberOfTrailingZeros(capacity);
+    resizeAt = capacity / 2;
+  }
+
+  private void rehash() {
+    int[] oldKeys = keys;
+    int[] oldCounts = counts;
+    allocate(oldKeys.length << 1);
+    for (int ii = 0; ii < oldKeys.length; ii++) {
+      int key = oldKeys[ii];
+      if (0 != key) {
+        int slot = slot(key);
+        while (0 != keys[slot]) {
+          slot = (slot + 1) & mask;
+        }
+        keys[slot] = key;
+        counts[slot] = oldCounts[ii];
+      }
+    }
+  }
+
+}
@@ -0,0 +1,81 @@
+package com.seekfirst.toprgb.counter;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.Iterator;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+
+/**
+ * This class decodes an image as a series of full width strips of rows using ImageReadParam.setSourceRegion(), so only
+ * one strip is ever held in memory. The same destination image is reused for every strip.
+ * <p>
+ * Note - most readers, JPEG included, have to decode (and throw away) the rows above a region to get to it, so decode
+ * time grows with the number of strips. Only use this for images too large to decode in one piece.
+ *
+ * @author David Botterill
+ */
+public class ImageStripReader {
+
+  private final ImageReader reader;
+  private final int width;
+  private final int height;
+  private final int stripRows;
+  private final ImageReadParam param;
+  private int nextRow;
+  private int currentRows;
+
+  /**
+   * @param reader a reader with its input already set.
+   * @param stripPixels the maximum number of pixels decoded at once, at least one full row is always decoded.
+   * @throws IOException if the image header can not be read.
+   */
+  public ImageStripReader(ImageReader reader, long stripPixels) throws IOException {
+    this.reader = reader;
+    this.width = reader.getWidth(0);
+    this.height = reader.getHeight(0);
+    this.stripRows = (int) Math.max(1L, Math.min(height, stripPixels / Math.max(1, width)));
+    this.param = reader.getDefaultReadParam();
+
+    Iterator<ImageTypeSpecifier> imageTypes = reader.getImageTypes(0);
+    if (imageTypes.hasNext()) {
+      param.setDestination(imageTypes.next().createBufferedImage(width, stripRows));
+    }
+  }
+
+  public int getWidth() {
+    return width;
+  }
+
+  public int getHeight() {
+    return height;
+  }
+
+  /**
+   * Decodes the next strip. The returned image can have more rows than were decoded, only the first
+   * {@link #getStripHeight()} rows belong to the strip.
+   *
+   * @return the strip image or null when all rows have been read.
+   * @throws IOException if the strip can not be decoded.
+   */
+  public BufferedImage next() throws IOException {
+    if (nextRow >= height) {
+      return null;
+    }
+    currentRows = Math.min(stripRows, height - nextRow);
+    param.setSourceRegion(new Rectangle(0, nextRow, width, currentRows));
+    BufferedImage strip = reader.read(0, param);
+    nextRow += currentRows;
+    return strip;
+  }
+
+  /**
+   * @return the number of rows decoded by the last call to {@link #next()}.
+   */
+  public int getStripHeight() {
+    return currentRows;
+  }
+
+}
@@ -0,0 +1,182 @@
+package com.seekfirst.toprgb.counter;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.Raster;
+import java.awt.image.SinglePixelPackedSampleModel;
+
+/**
+ * This class reads the pixels of a BufferedImage straight out of the raster's backing DataBuffer in row-major order,
+ * with one specialized loop per image type. It avoids BufferedImage.getRGB(x, y) which goes through the ColorModel for
+ * every pixel.
+ * <p>
+ * The colors produced are exactly the ones BufferedImage.getRGB() would return with the alpha bits dropped. Gray and
+ * indexed images are converted through a 256 entry lookup table built from the image's own ColorModel. Image types
+ * without a kernel fall back to getRGB() one row at a time.
+ *
+ * @author David Botterill
+ */
+public class PixelScanner {
+
+  private enum Layout {
+    BYTE_BGR, INT_RGB, BYTE_LOOKUP, FALLBACK
+  }
+
+  private static final int RGB_MASK = 0xffffff;
+
+  private final BufferedImage image;
+  private final Layout layout;
+  private byte[] bytePixels;
+  private int[] intPixels;
+  private int[] lookup;
+  private int scanlineStride;
+  private int pixelStride;
+  private int baseOffset;
+
+  public PixelScanner(BufferedImage image) {
+    this.image = image;
+    this.layout = selectLayout(image);
+  }
+
+  public int getWidth() {
+    return image.getWidth();
+  }
+
+  public int getHeight() {
+    return image.getHeight();
+  }
+
+  /**
+   * Counts every pixel of the image into the histogram.
+   *
+   * @param histogram the histogram to add to.
+   */
+  public void count(ColorHistogram histogram) {
+    count(histogram, 0, 0, image.getWidth(), image.getHeight());
+  }
+
+  /**
+   * Counts the pixels of a rectangular region of the image into the histogram, one row at a time.
+   *
+   * @param histogram the histogram to add to.
+   * @param x left edge of the region.
+   * @param y top edge of the region.
+   * @param width width of the region.
+   * @param height height of the region.
+   */
+  public void count(ColorHistogram histogram, int x, int y, int width, int height) {
+    switch (layout) {
+      case BYTE_BGR:
+        for (int row = y; row < y + height; row++) {
+          int index = offset(x, row);
+          int end = index + width * 3;
+          for (; index < end; index += 3) {
+            histogram.increment((bytePixels[index + 2] & 0xff) << 16
+                | (bytePixels[index + 1] & 0xff) << 8
+                | (bytePixels[index] & 0xff));
+          }
+        }
+        break;
+      case INT_RGB:
+        for (int row = y; row < y + height; row++) {
+          int index = offset(x, row);
+          int end = index + width;
+          for (; index < end; index++) {
+            histogram.increment(intPixels[index] & RGB_MASK);
+          }
+        }
+        break;
+      case BYTE_LOOKUP:
+        for (int row = y; row < y + height; row++) {
+          int index = offset(x, row);
+          int end = index + width;
+          for (; index < end; index++) {
+            histogram.increment(lookup[bytePixels[index] & 0xff]);
+          }
+        }
+        break;
+      default:
+        int[] rgbRow = new int[width];
+        for (int row = y; row < y + height; row++) {
+          image.getRGB(x, row, width, 1, rgbRow, 0, width);
+          for (int rgb : rgbRow) {
+            histogram.increment(rgb & RGB_MASK);
+          }
+        }
+    }
+  }
+
+  private int offset(int x, int y) {
+    return baseOffset + y * scanlineStride + x * pixelStride;
+  }
+
+  private Layout selectLayout(BufferedImage image) {
+    Raster raster = image.getRaster();
+    ColorModel colorModel = image.getColorModel();
+    /**
+     * Pixel (x, y) of the image is at sample model coordinates (x - translateX, y - translateY), which matters for
+     * images created by getSubimage().
+     */
+    int translateX = raster.getSampleModelTranslateX();
+    int translateY = raster.getSampleModelTranslateY();
+
+    switch (image.getType()) {
+      case BufferedImage.TYPE_3BYTE_BGR: {
+        ComponentSampleModel sampleModel = (ComponentSampleModel) raster.getSampleModel();
+        int[] bandOffsets = sampleModel.getBandOffsets();
+        /**
+         * The kernel assumes the standard B,G,R byte order.
+         */
+        if (sampleModel.getPixelStride() != 3 || bandOffsets[0] != 2 || bandOffsets[1] != 1 || bandOffsets[2] != 0) {
+          return Layout.FALLBACK;
+        }
+        DataBufferByte dataBuffer = (DataBufferByte) raster.getDataBuffer();
+        bytePixels = dataBuffer.getData();
+        scanlineStride = sampleModel.getScanlineStride();
+        pixelStride = 3;
+        baseOffset = dataBuffer.getOffset() - translateY * scanlineStride - translateX * pixelStride;
+        return Layout.BYTE_BGR;
+      }
+      case BufferedImage.TYPE_INT_RGB:
+      case BufferedImage.TYPE_INT_ARGB: {
+        SinglePixelPackedSampleModel sampleModel = (SinglePixelPackedSampleModel) raster.getSampleModel();
+        DataBufferInt dataBuffer = (DataBufferInt) raster.getDataBuffer();
+        intPixels = dataBuffer.getData();
+        scanlineStride = sampleModel.getScanlineStride();
+        pixelStride = 1;
+        baseOffset = dataBuffer.getOffset() - translateY * scanlineStride - translateX;
+        return Layout.INT_RGB;
+      }
+      case BufferedImage.TYPE_BYTE_GRAY:
+      case BufferedImage.TYPE_BYTE_INDEXED: {
+        ComponentSampleModel sampleModel = (ComponentSampleModel) raster.getSampleModel();
+        DataBufferByte dataBuffer = (DataBufferByte) raster.getDataBuffer();
+        if (sampleModel.getPixelStride() != 1) {
+          return Layout.FALLBACK;
+        }
+        /**
+         * Gray values are stored linear and getRGB() converts them to sRGB, and indexed values go through the palette,
+         * so ask the ColorModel once for each of the 256 possible values.
+         */
+        lookup = new int[256];
+        byte[] sample = new byte[1];
+        for (int ii = 0; ii < lookup.length; ii++) {
+          sample[0] = (byte) ii;
+          lookup[ii] = colorModel.getRGB(sample) & RGB_MASK;
+        }
+        bytePixels = dataBuffer.getData();
+        scanlineStride = sampleModel.getScanlineStride();
+        pixelStride = 1;
+        baseOffset = dataBuffer.getOffset() + sampleModel.getBandOffsets()[0]
+            - translateY * scanlineStride - translateX * pixelStride;
+        return Layout.BYTE_LOOKUP;
+      }
+      default:
+        return Layout.FALLBACK;
+    }
+  }
+
+}
@@ -0,0 +1,274 @@
+package com.seekfirst.toprgb.counter;
+
+import java.util.Arrays;
+
+/**
+ * An approximate histogram that keeps a fixed number of counters using the Space-Saving algorithm (Metwally, Agrawal
+ * and El Abbadi). When a color that is not being counted arrives and all counters are in use, the counter with the
+ * lowest count is given to the new color, its count is carried over and recorded as the new color's error.
+ * <p>
+ * For every color being counted the true count is between count - error and count. Any color whose true count is
+ * greater than (pixels counted / counters) is guaranteed to be counted.
+ * <p>
+ * Summaries of separate parts of an image, such as tiles, are merged as mergeable summaries (Agarwal et al.): a color
+ * missing from one summary may have occurred there up to that summary's lowest count, so that count is added to both
+ * its count and its error, and the largest counters are kept. The bound above then holds for the merged summary.
+ * <p>
+ * The counters are kept in a min-heap, located by a small open addressing table keyed on rgb + 1. Both structures point
+ * at each other so every update is O(log counters) with no allocation.
+ *
+ * @author David Botterill
+ */
+public class SpaceSavingHistogram implements ColorHistogram {
+
+  private static final int RGB_MASK = 0xffffff;
+
+  private final int[] heapCounts;
+  private final int[] heapErrors;
+  private final int[] heapSlots;
+  private int size;
+
+  private final int[] slotKeys;
+  private final int[] slotHeapIndexes;
+  private final int mask;
+  private final int shift;
+
+  /**
+   * @param counters the number of colors that can be counted at once.
+   */
+  public SpaceSavingHistogram(int counters) {
+    if (counters < 1) {
+      throw new IllegalArgumentException("At least one counter is required!");
+    }
+    heapCounts = new int[counters];
+    heapErrors = new int[counters];
+    heapSlots = new int[counters];
+
+    int slots = Integer.highestOneBit(counters) << 2;
+    slotKeys = new int[slots];
+    slotHeapIndexes = new int[slots];
+    mask = slots - 1;
+    shift = 32 - Integer.numberOfTrailingZeros(slots);
+  }
+
+  @Override
+  public int increment(int rgb) {
+    return add(rgb, 1);
+  }
+
+  @Override
+  public int add(int rgb, int count) {
+    int key = (rgb & RGB_MASK) + 1;
+    int slot = find(key);
+    if (slot >= 0) {
+      int index = slotHeapIndexes[slot];
+      heapCounts[index] += count;
+      siftDown(index);
+      return heapCounts[slotHeapIndexes[slot]];
+    }
+
+    if (size < heapCounts.length) {
+      slot = -slot - 1;
+      int index = size++;
+      slotKeys[slot] = key;
+      heapCounts[index] = count;
+      heapErrors[index] = 0;
+      link(slot, index);
+      siftUp(index);
+      return count;
+    }
+
+    /**
+     * Every counter is in use, take over the one with the lowest count.
+     */
+    int minimum = heapCounts[0];
+    removeSlot(heapSlots[0]);
+    slot = -find(key) - 1;
+    slotKeys[slot] = key;
+    link(slot, 0);
+    heapCounts[0] = minimum + count;
+    heapErrors[0] = minimum;
+    siftDown(0);
+    return heapCounts[slotHeapIndexes[slot]];
+  }
+
+  @Override
+  public int count(int rgb) {
+    int slot = find((rgb & RGB_MASK) + 1);
+    return slot >= 0 ? heapCounts[slotHeapIndexes[slot]] : 0;
+  }
+
+  /**
+   * @param rgb packed 24 bit RGB color.
+   * @return the most the count for the color can be over its true count, 0 if the color is not being counted.
+   */
+  @Override
+  public int error(int rgb) {
+    int slot = find((rgb & RGB_MASK) + 1);
+    return slot >= 0 ? heapErrors[slotHeapIndexes[slot]] : 0;
+  }
+
+  @Override
+  public int size() {
+    return size;
+  }
+
+  @Override
+  public void forEach(ColorCountVisitor visitor) {
+    for (int index = 0; index < size; index++) {
+      visitor.visit(slotKeys[heapSlots[index]] - 1, heapCounts[index]);
+    }
+  }
+
+  /**
+   * Merges another Space-Saving summary into this one, carrying the errors of both and charging a color missing from
+   * either with that summary's lowest count, then keeps the colors with the largest counts. Other histograms are exact
+   * and are added color by color.
+   *
+   * @param other the histogram to merge in, it is not changed.
+   */
+  @Override
+  public void merge(ColorHistogram other) {
+    if (!(other instanceof SpaceSavingHistogram)) {
+      ColorHistogram.super.merge(other);
+      return;
+    }
+    SpaceSavingHistogram summary = (SpaceSavingHistogram) other;
+    long minimum = missingCount();
+    long otherMinimum = summary.missingCount();
+    int union = 0;
+    int[] keys = new int[size + summary.size];
+    long[] counts = new long[keys.length];
+    long[] errors = new long[keys.length];
+    for (int index = 0; index < size; index++) {
+      int key = slotKeys[heapSlots[index]];
+      int otherSlot = summary.find(key);
+      keys[union] = key;
+      if (otherSlot >= 0) {
+        int otherIndex = summary.slotHeapIndexes[otherSlot];
+        counts[union] = (long) heapCounts[index] + summary.heapCounts[otherIndex];
+        errors[union] = (long) heapErrors[index] + summary.heapErrors[otherIndex];
+      } else {
+        counts[union] = heapCounts[index] + otherMinimum;
+        errors[union] = heapErrors[index] + otherMinimum;
+      }
+      union++;
+    }
+    for (int index = 0; index < summary.size; index++) {
+      int key = summary.slotKeys[summary.heapSlots[index]];
+      if (find(key) < 0) {
+        keys[union] = key;
+        counts[union] = summary.heapCounts[index] + minimum;
+        errors[union] = summary.heapErrors[index] + minimum;
+        union++;
+      }
+    }
+
+    /**
+     * Rank the union by count, the count in the high bits and the position in the low bits, and keep the largest.
+     */
+    long[] ranks = new long[union];
+    for (int ii = 0; ii < union; ii++) {
+      ranks[ii] = Math.min(counts[ii], Integer.MAX_VALUE) << 32 | ii;
+    }
+    Arrays.sort(ranks);
+    Arrays.fill(slotKeys, 0);
+    size = 0;
+    for (int ii = union - 1; ii >= 0 && size < heapCounts.length; ii--) {
+      int position = (int) ranks[ii];
+      int slot = -find(keys[position]) - 1;
+      int index = size++;
+      slotKeys[slot] = keys[position];
+      heapCounts[index] = (int) Math.min(counts[position], Integer.MAX_VALUE);
+      heapErrors[index] = (int) Math.min(errors[position], Integer.MAX_VALUE);
+      link(slot, index);
+      siftUp(index);
+    }
+  }
+
+  /**
+   * @return the most a color that is not being counted can have occurred, the lowest count once every counter is used.
+   */
+  private int missingCount() {
+    return size < heapCounts.length ? 0 : heapCounts[0];
+  }
+
+  /**
+   * @return the slot holding the key, or -(slot to insert at) - 1 if the key is not in the table.
+   */
+  private int find(int key) {
+    int slot = (key * 0x9e3779b9) >>> shift;
+    while (true) {
+      int current = slotKeys[slot];
+      if (current == key) {
+        return slot;
+      }
+      if (0 == current) {
+        return -slot - 1;
+      }
+      slot = (slot + 1) & mask;
+    }
+  }
+
+  /**
+   * Removes a slot from the linear probing table by shifting later entries of the same probe run back into the hole.
+   */
+  private void removeSlot(int slot) {
+    int hole = slot;
+    int next = (hole + 1) & mask;
+    while (0 != slotKeys[next]) {
+      int ideal = (slotKeys[next] * 0x9e3779b9) >>> shift;
+      if (((next - ideal) & mask) >= ((next - hole) & mask)) {
+        slotKeys[hole] = slotKeys[next];
+        link(hole, slotHeapIndexes[next]);
+        hole = next;
+      }
+      next = (next + 1) & mask;
+    }
+    slotKeys[hole] = 0;
+  }
+
+  private void link(int slot, int index) {
+    slotHeapIndexes[slot] = index;
+    heapSlots[index] = slot;
+  }
+
+  private void siftUp(int index) {
+    while (index > 0) {
+      int parent = (index - 1) >>> 1;
+      if (heapCounts[parent] <= heapCounts[index]) {
+        break;
+      }
+      swap(index, parent);
+      index = parent;
+    }
+  }
+
+  private void siftDown(int index) {
+    int half = size >>> 1;
+    while (index < half) {
+      int child = 2 * index + 1;
+      if (child + 1 < size && heapCounts[child + 1] < heapCounts[child]) {
+        child++;
+      }
+      if (heapCounts[index] <= heapCounts[child]) {
+        break;
+      }
+      swap(index, child);
+      index = child;
+    }
+  }
+
+  private void swap(int first, int second) {
+    int count = heapCounts[first];
+    heapCounts[first] = heapCounts[second];
+    heapCounts[second] = count;
+    int error = heapErrors[first];
+    heapErrors[first] = heapErrors[second];
+    heapErrors[second] = error;
+    int firstSlot = heapSlots[first];
+    link(heapSlots[second], first);
+    link(firstSlot, second);
+  }
+
+}
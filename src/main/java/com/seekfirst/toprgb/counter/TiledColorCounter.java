@@ -0,0 +1,137 @@
+package com.seekfirst.toprgb.counter;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.Supplier;
+
+/**
+ * This class counts the colors of one very large image on a ForkJoinPool. The image is split into horizontal tiles of
+ * whole rows, so each tile is still scanned in row-major order, and every tile is counted into its own histogram. The
+ * tile histograms are merged pairwise as the forks are joined, always folding the smaller one into the larger, or each
+ * is merged into one histogram given for the whole image as soon as it is counted.
+ *
+ * @author David Botterill
+ */
+public class TiledColorCounter {
+
+  /**
+   * Roughly the number of pixels scanned by one leaf task.
+   */
+  public static final int DEFAULT_TILE_PIXELS = 1 << 20;
+
+  private final ForkJoinPool pool;
+  private final int tilePixels;
+  private final Supplier<ColorHistogram> histogramSupplier;
+
+  public TiledColorCounter(ForkJoinPool pool) {
+    this(pool, DEFAULT_TILE_PIXELS);
+  }
+
+  public TiledColorCounter(ForkJoinPool pool, int tilePixels) {
+    this(pool, tilePixels, HashColorHistogram::new);
+  }
+
+  /**
+   * @param pool the pool the tiles are counted on.
+   * @param tilePixels roughly the number of pixels in one tile.
+   * @param histogramSupplier creates the histogram each tile is counted into.
+   */
+  public TiledColorCounter(ForkJoinPool pool, int tilePixels, Supplier<ColorHistogram> histogramSupplier) {
+    if (tilePixels < 1) {
+      throw new IllegalArgumentException("Tile size must be at least 1 pixel!");
+    }
+    this.pool = pool;
+    this.tilePixels = tilePixels;
+    this.histogramSupplier = histogramSupplier;
+  }
+
+  /**
+   * Counts every pixel of the image.
+   *
+   * @param scanner the scanner for the image.
+   * @return the merged histogram.
+   */
+  public ColorHistogram count(PixelScanner scanner) {
+    return count(scanner, scanner.getHeight());
+  }
+
+  /**
+   * Counts the pixels in the first rows of the image.
+   *
+   * @param scanner the scanner for the image.
+   * @param rows the number of rows, starting at the top, to count.
+   * @return the merged histogram.
+   */
+  public ColorHistogram count(PixelScanner scanner, int rows) {
+    return count(scanner, rows, null);
+  }
+
+  /**
+   * Counts the pixels in the first rows of the image into the given histogram. Each tile is merged in as soon as it is
+   * counted, so besides it only one tile histogram per worker is alive and no tile histogram grows past a tile's worth
+   * of colors.
+   *
+   * @param scanner the scanner for the image.
+   * @param rows the number of rows, starting at the top, to count.
+   * @param target the histogram to count into, or null to merge the tiles pairwise.
+   * @return the target, or the merged histogram if there is none.
+   */
+  public ColorHistogram count(PixelScanner scanner, int rows, ColorHistogram target) {
+    int tileRows = Math.max(1, tilePixels / Math.max(1, scanner.getWidth()));
+    return pool.invoke(new TileTask(scanner, histogramSupplier, target, 0, rows, tileRows));
+  }
+
+  private static class TileTask extends RecursiveTask<ColorHistogram> {
+
+    private static final long serialVersionUID = 1L;
+
+    private final PixelScanner scanner;
+    private final Supplier<ColorHistogram> histogramSupplier;
+    private final ColorHistogram target;
+    private final int firstRow;
+    private final int lastRow;
+    private final int tileRows;
+
+    TileTask(PixelScanner scanner, Supplier<ColorHistogram> histogramSupplier, ColorHistogram target, int firstRow,
+        int lastRow, int tileRows) {
+      this.scanner = scanner;
+      this.histogramSupplier = histogramSupplier;
+      this.target = target;
+      this.firstRow = firstRow;
+      this.lastRow = lastRow;
+      this.tileRows = tileRows;
+    }
+
+    @Override
+    protected ColorHistogram compute() {
+      int rows = lastRow - firstRow;
+      if (rows <= tileRows) {
+        ColorHistogram histogram = histogramSupplier.get();
+        scanner.count(histogram, 0, firstRow, scanner.getWidth(), rows);
+        if (null == target) {
+          return histogram;
+        }
+        synchronized (target) {
+          target.merge(histogram);
+        }
+        return target;
+      }
+      int middleRow = firstRow + rows / 2;
+      TileTask top = new TileTask(scanner, histogramSupplier, target, firstRow, middleRow, tileRows);
+      TileTask bottom = new TileTask(scanner, histogramSupplier, target, middleRow, lastRow, tileRows);
+      top.fork();
+      ColorHistogram bottomHistogram = bottom.compute();
+      ColorHistogram topHistogram = top.join();
+      if (null != target) {
+        return target;
+      }
+      if (topHistogram.size() < bottomHistogram.size()) {
+        bottomHistogram.merge(topHistogram);
+        return bottomHistogram;
+      }
+      topHistogram.merge(bottomHistogram);
+      return topHistogram;
+    }
+  }
+
+}
@@ -0,0 +1,114 @@
+package com.seekfirst.toprgb.counter;
+
+/**
+ * This class selects the K most frequent colors from a finished histogram in a single pass using a bounded min-heap,
+ * so per-pixel work during the scan is only the histogram increment.
+ * <p>
+ * Each heap entry is a long with the count in the high 32 bits and the inverted color in the low 32 bits. Comparing the
+ * longs orders by count and, for equal counts, puts the lower RGB value first so results are deterministic.
+ *
+ * @author David Botterill
+ */
+public class TopColorSelector {
+
+  private static final int RGB_MASK = 0xffffff;
+
+  private TopColorSelector() {
+  }
+
+  /**
+   * Selects the top colors from the histogram.
+   *
+   * @param histogram the counted colors.
+   * @param topCount the number of colors to select (K).
+   * @return the selected entries, highest count first. Use {@link #rgb(long)} and {@link #count(long)} to unpack them.
+   */
+  public static long[] select(ColorHistogram histogram, int topCount) {
+    if (topCount < 1) {
+      throw new IllegalArgumentException("Top count must be at least 1!");
+    }
+    Heap heap = new Heap(Math.min(topCount, Math.max(1, histogram.size())));
+    histogram.forEach((rgb, count) -> heap.offer(pack(rgb, count)));
+    return heap.drainDescending();
+  }
+
+  /**
+   * Packs a color and count into a single sortable long.
+   *
+   * @param rgb the 24 bit color.
+   * @param count the count.
+   * @return the packed entry.
+   */
+  public static long pack(int rgb, long count) {
+    return count << 32 | (RGB_MASK - (rgb & RGB_MASK));
+  }
+
+  public static int rgb(long entry) {
+    return RGB_MASK - (int) (entry & RGB_MASK);
+  }
+
+  public static long count(long entry) {
+    return entry >>> 32;
+  }
+
+  /**
+   * A fixed capacity binary min-heap of packed entries. Once full, an entry only gets in by beating the current
+   * minimum.
+   */
+  private static class Heap {
+
+    private final long[] entries;
+    private int size;
+
+    Heap(int capacity) {
+      this.entries = new long[capacity];
+    }
+
+    void offer(long entry) {
+      if (size < entries.length) {
+        int index = size++;
+        while (index > 0) {
+          int parent = (index - 1) >>> 1;
+          if (entries[parent] <= entry) {
+            break;
+          }
+          entries[index] = entries[parent];
+          index = parent;
+        }
+        entries[index] = entry;
+      } else if (entry > entries[0]) {
+        siftDown(entry, size);
+      }
+    }
+
+    long[] drainDescending() {
+      long[] sorted = new long[size];
+      for (int ii = size - 1; ii >= 0; ii--) {
+        sorted[ii] = entries[0];
+        long last = entries[--size];
+        if (size > 0) {
+          siftDown(last, size);
+        }
+      }
+      return sorted;
+    }
+
+    private void siftDown(long entry, int heapSize) {
+      int index = 0;
+      int half = heapSize >>> 1;
+      while (index < half) {
+        int child = 2 * index + 1;
+        if (child + 1 < heapSize && entries[child + 1] < entries[child]) {
+          child++;
+        }
+        if (entry <= entries[child]) {
+          break;
+        }
+        entries[index] = entries[child];
+        index = child;
+      }
+      entries[index] = entry;
+    }
+  }
+
+}
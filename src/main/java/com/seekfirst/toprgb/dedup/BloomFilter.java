@@ -0,0 +1,48 @@
+package com.seekfirst.toprgb.dedup;
+
+/**
+ * A small on-heap Bloom filter over 64 bit fingerprints. It sits in front of the memory-mapped fingerprint table: a
+ * "definitely not seen" answer lets the table insert without comparing against anything it probes past.
+ * <p>
+ * Not thread safe.
+ *
+ * @author David Botterill
+ */
+class BloomFilter {
+
+  private static final int HASHES = 3;
+
+  private final long[] bits;
+  private final long mask;
+
+  /**
+   * @param bitCount the number of bits, rounded up to a power of 2.
+   */
+  BloomFilter(long bitCount) {
+    long size = Long.highestOneBit(Math.max(64L, bitCount - 1)) << 1;
+    this.bits = new long[(int) (size >>> 6)];
+    this.mask = size - 1;
+  }
+
+  /**
+   * Adds the fingerprint.
+   *
+   * @return true if the fingerprint might have been added before, false if it definitely was not.
+   */
+  boolean put(long fingerprint) {
+    long first = fingerprint;
+    long second = Long.rotateLeft(fingerprint, 32) | 1L;
+    boolean present = true;
+    for (int ii = 0; ii < HASHES; ii++) {
+      long bit = (first + ii * second) & mask;
+      int word = (int) (bit >>> 6);
+      long flag = 1L << bit;
+      if (0L == (bits[word] & flag)) {
+        present = false;
+        bits[word] |= flag;
+      }
+    }
+    return present;
+  }
+
+}
@@ -0,0 +1,147 @@
+package com.seekfirst.toprgb.dedup;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+
+/**
+ * A streaming 128 bit MurmurHash3 (x64 variant) of a body of bytes, fed in pieces of any size as they are downloaded.
+ * It reads 16 bytes per step, so hashing costs far less than the download or the decode.
+ * <p>
+ * Two different bodies share a hash with odds of about n^2 / 2^129, which is never in practice. Not thread safe.
+ *
+ * @author David Botterill
+ */
+public class ContentHasher {
+
+  private static final VarHandle LONGS = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+  private static final long C1 = 0x87c37b91114253d5L;
+  private static final long C2 = 0x4cf5ad432745937fL;
+
+  private final byte[] pending = new byte[16];
+  private int pendingLength;
+  private long h1;
+  private long h2;
+  private long length;
+  private boolean finished;
+
+  /**
+   * Adds bytes to the body.
+   *
+   * @param bytes the array holding the bytes.
+   * @param offset the first byte.
+   * @param count the number of bytes.
+   */
+  public void update(byte[] bytes, int offset, int count) {
+    if (finished) {
+      throw new IllegalStateException("Hash is already finished");
+    }
+    length += count;
+    int end = offset + count;
+    if (pendingLength > 0) {
+      int take = Math.min(16 - pendingLength, count);
+      System.arraycopy(bytes, offset, pending, pendingLength, take);
+      pendingLength += take;
+      offset += take;
+      if (pendingLength < 16) {
+        return;
+      }
+      block((long) LONGS.get(pending, 0), (long) LONGS.get(pending, 8));
+      pendingLength = 0;
+    }
+    for (; offset + 16 <= end; offset += 16) {
+      block((long) LONGS.get(bytes, offset), (long) LONGS.get(bytes, offset + 8));
+    }
+    pendingLength = end - offset;
+    System.arraycopy(bytes, offset, pending, 0, pendingLength);
+  }
+
+  private void block(long k1, long k2) {
+    h1 ^= mixK1(k1);
+    h1 = Long.rotateLeft(h1, 27) + h2;
+    h1 = h1 * 5 + 0x52dce729L;
+    h2 ^= mixK2(k2);
+    h2 = Long.rotateLeft(h2, 31) + h1;
+    h2 = h2 * 5 + 0x38495ab5L;
+  }
+
+  /**
+   * Mixes in the last partial block and the length. The hash can be read after this, and no more bytes added.
+   */
+  public void finish() {
+    if (finished) {
+      return;
+    }
+    long k1 = 0L;
+    long k2 = 0L;
+    for (int ii = pendingLength - 1; ii >= 8; ii--) {
+      k2 = k2 << 8 | (pending[ii] & 0xffL);
+    }
+    for (int ii = Math.min(pendingLength, 8) - 1; ii >= 0; ii--) {
+      k1 = k1 << 8 | (pending[ii] & 0xffL);
+    }
+    h1 ^= mixK1(k1);
+    h2 ^= mixK2(k2);
+    h1 ^= length;
+    h2 ^= length;
+    h1 += h2;
+    h2 += h1;
+    h1 = fmix(h1);
+    h2 = fmix(h2);
+    h1 += h2;
+    h2 += h1;
+    finished = true;
+  }
+
+  /**
+   * Starts a new body.
+   */
+  public void reset() {
+    pendingLength = 0;
+    h1 = 0L;
+    h2 = 0L;
+    length = 0L;
+    finished = false;
+  }
+
+  /**
+   * @return the high 64 bits of the finished hash.
+   */
+  public long getHigh() {
+    checkFinished();
+    return h1;
+  }
+
+  /**
+   * @return the low 64 bits of the finished hash.
+   */
+  public long getLow() {
+    checkFinished();
+    return h2;
+  }
+
+  private void checkFinished() {
+    if (!finished) {
+      throw new IllegalStateException("Hash is not finished");
+    }
+  }
+
+  private static long fmix(long hash) {
+    hash = (hash ^ (hash >>> 33)) * 0xff51afd7ed558ccdL;
+    hash = (hash ^ (hash >>> 33)) * 0xc4ceb9fe1a85ec53L;
+    return hash ^ (hash >>> 33);
+  }
+
+  private static long mixK1(long k1) {
+    k1 *= C1;
+    k1 = Long.rotateLeft(k1, 31);
+    return k1 * C2;
+  }
+
+  private static long mixK2(long k2) {
+    k2 *= C2;
+    k2 = Long.rotateLeft(k2, 33);
+    return k2 * C1;
+  }
+
+}
@@ -0,0 +1,146 @@
+package com.seekfirst.toprgb.dedup;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * This class remembers which URLs have been seen so duplicates can be skipped as the input is read, without sorting it
+ * first. Each URL is reduced to a 64 bit fingerprint, which is stored in an open addressing (linear probing) table in a
+ * memory-mapped temp file. The table lives in the page cache rather than the heap, so it can hold far more URLs than
+ * the heap could. A small Bloom filter in front answers most first sightings without reading the table.
+ * <p>
+ * The table doubles into a new file when it gets 70% full. Not thread safe.
+ *
+ * @author David Botterill
+ */
+public class UrlFingerprintSet implements Closeable {
+
+  private static Logger logger = LoggerFactory.getLogger(UrlFingerprintSet.class);
+
+  /**
+   * Each mapped segment holds 2^27 fingerprints (1GB), under the 2GB limit of one MappedByteBuffer.
+   */
+  private static final int SEGMENT_SHIFT = 27;
+  private static final long MIN_CAPACITY = 1L << 16;
+  private static final long MAX_BLOOM_BITS = 1L << 28; // 32MB of heap
+
+  private final BloomFilter bloomFilter;
+  private File tableFile;
+  private LongBuffer[] segments;
+  private long capacity;
+  private long mask;
+  private long size;
+  private long resizeAt;
+
+  /**
+   * @param expectedUrls roughly how many distinct URLs will be added, used to size the table and the Bloom filter.
+   * @throws IOException if the table file can not be created.
+   */
+  public UrlFingerprintSet(long expectedUrls) throws IOException {
+    this.bloomFilter = new BloomFilter(Math.min(MAX_BLOOM_BITS, Math.max(1024L, expectedUrls * 8)));
+    long tableCapacity = MIN_CAPACITY;
+    while (tableCapacity * 0.7 < expectedUrls) {
+      tableCapacity <<= 1;
+    }
+    allocate(tableCapacity);
+  }
+
+  /**
+   * Adds the URL.
+   *
+   * @param url the URL.
+   * @return true if the URL was not seen before, false if it is a duplicate.
+   * @throws IOException if the table has to grow and the new file can not be created.
+   */
+  public boolean add(String url) throws IOException {
+    long fingerprint = Fingerprints.fingerprint(url);
+    boolean maybeSeen = bloomFilter.put(fingerprint);
+    if (!insert(fingerprint, maybeSeen)) {
+      return false;
+    }
+    if (++size >= resizeAt) {
+      grow();
+    }
+    return true;
+  }
+
+  /**
+   * @return the number of distinct URLs added.
+   */
+  public long size() {
+    return size;
+  }
+
+  @Override
+  public void close() throws IOException {
+    segments = null;
+    if (null != tableFile) {
+      Files.deleteIfExists(tableFile.toPath());
+      tableFile = null;
+    }
+  }
+
+  /**
+   * @param compare false if the Bloom filter says the fingerprint is new, so the first empty slot can be taken without
+   * comparing.
+   * @return false if the fingerprint was already in the table.
+   */
+  private boolean insert(long fingerprint, boolean compare) {
+    long slot = Fingerprints.finish(fingerprint) & mask;
+    while (true) {
+      LongBuffer segment = segments[(int) (slot >>> SEGMENT_SHIFT)];
+      int index = (int) (slot & ((1L << SEGMENT_SHIFT) - 1));
+      long current = segment.get(index);
+      if (0L == current) {
+        segment.put(index, fingerprint);
+        return true;
+      }
+      if (compare && current == fingerprint) {
+        return false;
+      }
+      slot = (slot + 1) & mask;
+    }
+  }
+
+  private void allocate(long tableCapacity) throws IOException {
+    File file = File.createTempFile("toprgb_", "_fingerprints");
+    file.deleteOnExit();
+    long segmentSlots = Math.min(tableCapacity, 1L << SEGMENT_SHIFT);
+    LongBuffer[] newSegments = new LongBuffer[(int) (tableCapacity / segmentSlots)];
+    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+      for (int ii = 0; ii < newSegments.length; ii++) {
+        newSegments[ii] = channel.map(FileChannel.MapMode.READ_WRITE, ii * segmentSlots * Long.BYTES,
+            segmentSlots * Long.BYTES).asLongBuffer();
+      }
+    }
+    this.tableFile = file;
+    this.segments = newSegments;
+    this.capacity = tableCapacity;
+    this.mask = tableCapacity - 1;
+    this.resizeAt = (long) (tableCapacity * 0.7);
+  }
+
+  private void grow() throws IOException {
+    LongBuffer[] oldSegments = segments;
+    File oldFile = tableFile;
+    logger.debug("Growing URL fingerprint table to " + (capacity << 1) + " slots");
+    allocate(capacity << 1);
+    for (LongBuffer segment : oldSegments) {
+      for (int ii = 0; ii < segment.capacity(); ii++) {
+        long fingerprint = segment.get(ii);
+        if (0L != fingerprint) {
+          insert(fingerprint, false);
+        }
+      }
+    }
+    Files.deleteIfExists(oldFile.toPath());
+  }
+
+}
@@ -0,0 +1,99 @@
+package com.seekfirst.toprgb.fetch;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A thread safe pool of fixed size byte arrays shared by all download buffers. Released arrays are kept for reuse up to
+ * a maximum number, anything beyond that is left to the garbage collector.
+ * <p>
+ * The pool also bounds the memory of all download buffers together: once the maximum number of arrays is handed out
+ * {@link #tryAcquire()} refuses, and the buffer asking moves its body to disk instead.
+ *
+ * @author David Botterill
+ */
+public class BufferPool {
+
+  public static final int DEFAULT_CHUNK_SIZE = 1 << 16;
+
+  private final int chunkSize;
+  private final int maxPooledChunks;
+  private final int maxChunks;
+  private final Queue<byte[]> chunks = new ConcurrentLinkedQueue<>();
+  private final AtomicInteger pooledChunks = new AtomicInteger();
+  private final AtomicInteger chunksInUse = new AtomicInteger();
+
+  /**
+   * @param chunkSize the size of every array, must be a power of 2.
+   * @param maxPooledChunks the most arrays kept for reuse.
+   */
+  public BufferPool(int chunkSize, int maxPooledChunks) {
+    this(chunkSize, maxPooledChunks, Integer.MAX_VALUE);
+  }
+
+  /**
+   * @param chunkSize the size of every array, must be a power of 2.
+   * @param maxPooledChunks the most arrays kept for reuse.
+   * @param maxChunks the most arrays handed out at once by {@link #tryAcquire()}.
+   */
+  public BufferPool(int chunkSize, int maxPooledChunks, int maxChunks) {
+    if (chunkSize < 1 || Integer.bitCount(chunkSize) != 1) {
+      throw new IllegalArgumentException("Chunk size must be a power of 2!");
+    }
+    this.chunkSize = chunkSize;
+    this.maxPooledChunks = maxPooledChunks;
+    this.maxChunks = maxChunks;
+  }
+
+  public int getChunkSize() {
+    return chunkSize;
+  }
+
+  /**
+   * @return a pooled array or a new one if the pool is empty. The contents are undefined.
+   */
+  public byte[] acquire() {
+    chunksInUse.incrementAndGet();
+    byte[] chunk = chunks.poll();
+    if (null == chunk) {
+      return new byte[chunkSize];
+    }
+    pooledChunks.decrementAndGet();
+    return chunk;
+  }
+
+  /**
+   * Like {@link #acquire()}, unless the most arrays allowed are already handed out.
+   *
+   * @return an array, or null if the memory of the pool is used up.
+   */
+  public byte[] tryAcquire() {
+    if (chunksInUse.get() >= maxChunks) {
+      return null;
+    }
+    return acquire();
+  }
+
+  /**
+   * @return the number of arrays handed out and not yet released.
+   */
+  public int getChunksInUse() {
+    return chunksInUse.get();
+  }
+
+  /**
+   * Gives an array back to the pool.
+   *
+   * @param chunk an array from {@link #acquire()} or {@link #tryAcquire()}.
+   */
+  public void release(byte[] chunk) {
+    chunksInUse.decrementAndGet();
+    if (pooledChunks.incrementAndGet() <= maxPooledChunks) {
+      chunks.offer(chunk);
+    } else {
+      pooledChunks.decrementAndGet();
+    }
+  }
+
+}
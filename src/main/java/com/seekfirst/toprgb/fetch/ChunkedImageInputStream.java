@@ -0,0 +1,66 @@
+package com.seekfirst.toprgb.fetch;
+
+import java.io.IOException;
+import java.util.List;
+import javax.imageio.stream.ImageInputStreamImpl;
+
+/**
+ * A random access ImageInputStream over a list of equally sized byte arrays, so ImageIO can decode a downloaded body
+ * straight from the pooled chunks.
+ *
+ * @author David Botterill
+ */
+class ChunkedImageInputStream extends ImageInputStreamImpl {
+
+  private final List<byte[]> chunks;
+  private final int chunkShift;
+  private final int chunkMask;
+  private final long length;
+
+  ChunkedImageInputStream(List<byte[]> chunks, int chunkSize, long length) {
+    this.chunks = chunks;
+    this.chunkShift = Integer.numberOfTrailingZeros(chunkSize);
+    this.chunkMask = chunkSize - 1;
+    this.length = length;
+  }
+
+  @Override
+  public int read() throws IOException {
+    checkClosed();
+    bitOffset = 0;
+    if (streamPos >= length) {
+      return -1;
+    }
+    int value = chunks.get((int) (streamPos >>> chunkShift))[(int) (streamPos & chunkMask)] & 0xff;
+    streamPos++;
+    return value;
+  }
+
+  @Override
+  public int read(byte[] buffer, int offset, int len) throws IOException {
+    checkClosed();
+    bitOffset = 0;
+    if (0 == len) {
+      return 0;
+    }
+    if (streamPos >= length) {
+      return -1;
+    }
+    int total = (int) Math.min(len, length - streamPos);
+    int copied = 0;
+    while (copied < total) {
+      int chunkOffset = (int) (streamPos & chunkMask);
+      int count = Math.min(total - copied, chunkMask + 1 - chunkOffset);
+      System.arraycopy(chunks.get((int) (streamPos >>> chunkShift)), chunkOffset, buffer, offset + copied, count);
+      copied += count;
+      streamPos += count;
+    }
+    return copied;
+  }
+
+  @Override
+  public long length() {
+    return length;
+  }
+
+}
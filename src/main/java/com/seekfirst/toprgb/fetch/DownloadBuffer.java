@@ -0,0 +1,194 @@
+package com.seekfirst.toprgb.fetch;
+
+import com.seekfirst.toprgb.dedup.ContentHasher;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import javax.imageio.stream.FileImageInputStream;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * This class holds one downloaded image body in memory, in chunks taken from a shared {@link BufferPool}. Bodies larger
+ * than the spill threshold are moved to a temp file as soon as they cross it, and so is a body that needs another chunk
+ * once the memory of the pool is used up. Either way the body is handed to ImageIO as an ImageInputStream without
+ * another copy. A 128 bit hash of the body is kept up to date as bytes arrive.
+ * <p>
+ * Closing the buffer gives the chunks back to the pool and deletes any spill file.
+ *
+ * @author David Botterill
+ */
+public class DownloadBuffer implements Closeable {
+
+  private final BufferPool pool;
+  private final long spillThreshold;
+  private final List<byte[]> chunks = new ArrayList<>();
+  private long size;
+  private File spillFile;
+  private OutputStream spillStream;
+  private final ContentHasher hasher = new ContentHasher();
+
+  /**
+   * @param pool the pool chunks are taken from.
+   * @param spillThreshold bodies larger than this many bytes are written to a temp file.
+   */
+  public DownloadBuffer(BufferPool pool, long spillThreshold) {
+    this.pool = pool;
+    this.spillThreshold = spillThreshold;
+  }
+
+  /**
+   * Reads the stream to its end, appending to the buffer.
+   *
+   * @param input the stream to read, it is not closed.
+   * @throws IOException if the stream or spill file fails.
+   */
+  public void readFrom(InputStream input) throws IOException {
+    while (true) {
+      byte[] chunk = currentChunk();
+      int offset = currentOffset();
+      int read = input.read(chunk, offset, chunk.length - offset);
+      if (read < 0) {
+        return;
+      }
+      appended(chunk, offset, read);
+    }
+  }
+
+  /**
+   * Appends the remaining bytes of the given buffer.
+   *
+   * @param source the bytes to append, its position is moved to its limit.
+   * @throws IOException if the spill file fails.
+   */
+  public void write(ByteBuffer source) throws IOException {
+    while (source.hasRemaining()) {
+      byte[] chunk = currentChunk();
+      int offset = currentOffset();
+      int length = Math.min(source.remaining(), chunk.length - offset);
+      source.get(chunk, offset, length);
+      appended(chunk, offset, length);
+    }
+  }
+
+  /**
+   * @return the chunk the next bytes go into. Once spilled the first chunk is reused as the copy buffer.
+   */
+  private byte[] currentChunk() throws IOException {
+    if (null == spillStream && size == (long) chunks.size() * pool.getChunkSize()) {
+      /**
+       * The first chunk is always taken, so a body can be read even when the pool is used up.
+       */
+      byte[] chunk = chunks.isEmpty() ? pool.acquire() : pool.tryAcquire();
+      if (null == chunk) {
+        spill();
+      } else {
+        chunks.add(chunk);
+      }
+    }
+    return null != spillStream ? chunks.get(0) : chunks.get(chunks.size() - 1);
+  }
+
+  private int currentOffset() {
+    return null != spillStream ? 0 : (int) (size & (pool.getChunkSize() - 1));
+  }
+
+  private void appended(byte[] chunk, int offset, int length) throws IOException {
+    size += length;
+    hasher.update(chunk, offset, length);
+    if (null != spillStream) {
+      spillStream.write(chunk, offset, length);
+    } else if (size > spillThreshold) {
+      spill();
+    }
+  }
+
+  /**
+   * @return the number of bytes in the buffer.
+   */
+  public long size() {
+    return size;
+  }
+
+  /**
+   * @return true if the body was moved to a temp file.
+   */
+  public boolean isSpilled() {
+    return null != spillFile;
+  }
+
+  /**
+   * Finishes the hash of the body. No more bytes can be appended after this.
+   *
+   * @return the hash of the body.
+   */
+  public ContentHasher contentHash() {
+    hasher.finish();
+    return hasher;
+  }
+
+  /**
+   * Empties the buffer so a download can be started again, for example on a retry.
+   *
+   * @throws IOException if the spill file can not be removed.
+   */
+  public void reset() throws IOException {
+    close();
+    size = 0L;
+    hasher.reset();
+  }
+
+  /**
+   * @return a new stream over the body. The stream must be closed before the buffer is.
+   * @throws IOException if the spill file can not be opened.
+   */
+  public ImageInputStream newImageInputStream() throws IOException {
+    if (null != spillFile) {
+      if (null != spillStream) {
+        spillStream.close();
+        spillStream = null;
+      }
+      return new FileImageInputStream(spillFile);
+    }
+    return new ChunkedImageInputStream(chunks, pool.getChunkSize(), size);
+  }
+
+  @Override
+  public void close() throws IOException {
+    for (byte[] chunk : chunks) {
+      pool.release(chunk);
+    }
+    chunks.clear();
+    if (null != spillStream) {
+      spillStream.close();
+      spillStream = null;
+    }
+    if (null != spillFile) {
+      Files.deleteIfExists(spillFile.toPath());
+      spillFile = null;
+    }
+  }
+
+  /**
+   * Moves everything read so far into a temp file. One chunk is kept as the copy buffer for the rest of the body.
+   */
+  private void spill() throws IOException {
+    spillFile = File.createTempFile("toprgb_", "_download");
+    spillStream = Files.newOutputStream(spillFile.toPath());
+    long remaining = size;
+    for (byte[] chunk : chunks) {
+      int length = (int) Math.min(remaining, chunk.length);
+      spillStream.write(chunk, 0, length);
+      remaining -= length;
+    }
+    while (chunks.size() > 1) {
+      pool.release(chunks.remove(chunks.size() - 1));
+    }
+  }
+
+}
@@ -0,0 +1,62 @@
+package com.seekfirst.toprgb.fetch;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Creates the threads that wait on downloads. On a runtime with virtual threads (Java 21+) every fetch gets a virtual
+ * thread, so thousands of downloads in flight only cost a handful of carrier threads. Older runtimes get ordinary
+ * daemon threads.
+ * <p>
+ * The virtual thread builder is looked up reflectively so the service still builds and runs on Java 11.
+ *
+ * @author David Botterill
+ */
+public class FetchThreads {
+
+  private static Logger logger = LoggerFactory.getLogger(FetchThreads.class);
+
+  private FetchThreads() {
+  }
+
+  /**
+   * @return true if this runtime has virtual threads.
+   */
+  public static boolean isVirtual() {
+    return null != virtualFactory("probe-");
+  }
+
+  /**
+   * @param namePrefix prefix for the thread names, a sequence number is added.
+   * @return a factory for virtual threads if the runtime has them, otherwise for platform daemon threads.
+   */
+  public static ThreadFactory factory(String namePrefix) {
+    ThreadFactory factory = virtualFactory(namePrefix);
+    if (null != factory) {
+      return factory;
+    }
+    AtomicInteger sequence = new AtomicInteger();
+    return runnable -> {
+      Thread thread = new Thread(runnable, namePrefix + sequence.getAndIncrement());
+      thread.setDaemon(true);
+      return thread;
+    };
+  }
+
+  private static ThreadFactory virtualFactory(String namePrefix) {
+    try {
+      Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+      Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+      Method name = builderClass.getMethod("name", String.class, long.class);
+      builder = name.invoke(builder, namePrefix, 0L);
+      return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+    } catch (ReflectiveOperationException | RuntimeException ex) {
+      logger.trace("Virtual threads are not available: " + ex);
+      return null;
+    }
+  }
+
+}
@@ -0,0 +1,265 @@
+package com.seekfirst.toprgb.fetch;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpTimeoutException;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Predicate;
+
+/**
+ * This class downloads image bodies with one shared java.net.http.HttpClient, so connections are kept alive and reused
+ * (and multiplexed over HTTP/2 where the server supports it) across every fetch thread.
+ * <p>
+ * Redirects are followed by hand so the whole chain is handled: relative Location headers, 301/302/303/307/308, http
+ * to https and back, up to a maximum number of hops. The body is pushed into a {@link DownloadBuffer} as it arrives.
+ * The calling thread only waits, which is cheap when it is a virtual thread.
+ * <p>
+ * Given the {@link Validators} of an earlier download the request is made conditional, and a 304 Not Modified answer
+ * downloads nothing.
+ *
+ * @author David Botterill
+ */
+public class HttpFetcher {
+
+  public static final Duration DEFAULT_CONNECT_TIMEOUT = Duration.ofSeconds(10);
+  public static final Duration DEFAULT_READ_TIMEOUT = Duration.ofSeconds(30);
+  public static final int DEFAULT_MAX_REDIRECTS = 10;
+  private static final int NOT_MODIFIED = 304;
+
+  private final HttpClient client;
+  private final Duration readTimeout;
+  private final int maxRedirects;
+
+  public HttpFetcher() {
+    this(DEFAULT_CONNECT_TIMEOUT, DEFAULT_READ_TIMEOUT, DEFAULT_MAX_REDIRECTS);
+  }
+
+  /**
+   * @param connectTimeout the longest to wait for a connection.
+   * @param readTimeout the longest to wait for the response headers, and the longest the body can stall.
+   * @param maxRedirects the most redirects followed for one URL.
+   */
+  public HttpFetcher(Duration connectTimeout, Duration readTimeout, int maxRedirects) {
+    this.client = HttpClient.newBuilder()
+        .version(HttpClient.Version.HTTP_2)
+        .followRedirects(HttpClient.Redirect.NEVER)
+        .connectTimeout(connectTimeout)
+        .build();
+    this.readTimeout = readTimeout;
+    this.maxRedirects = maxRedirects;
+  }
+
+  /**
+   * Downloads the body of the URI into the buffer, following redirects.
+   *
+   * @param uri the URI to fetch.
+   * @param download the buffer the body is appended to.
+   * @return the final URI the body was read from, after any redirects.
+   * @throws IOException if the server can not be read, answers with an error or redirects too often.
+   * @throws InterruptedException if interrupted while waiting.
+   */
+  public URI fetch(URI uri, DownloadBuffer download) throws IOException, InterruptedException {
+    return fetch(uri, download, target -> false);
+  }
+
+  /**
+   * Downloads the body of the URI into the buffer, following redirects, unless a URI in the chain is already known.
+   *
+   * @param uri the URI to fetch.
+   * @param download the buffer the body is appended to.
+   * @param known tested with the URI and every redirect target before it is requested. The fetch stops at the first
+   * URI it accepts, without downloading anything.
+   * @return the URI accepted by known, or the final URI the body was read from.
+   * @throws IOException if the server can not be read, answers with an error or redirects too often.
+   * @throws InterruptedException if interrupted while waiting.
+   */
+  public URI fetch(URI uri, DownloadBuffer download, Predicate<URI> known) throws IOException, InterruptedException {
+    return fetch(uri, download, known, null);
+  }
+
+  /**
+   * Like {@link #fetch(URI, DownloadBuffer, Predicate)}, but the request to the target of the validators is made
+   * conditional on them. The validators are then set from the final response: its URI, its ETag and Last-Modified
+   * headers and whether it was 304 Not Modified.
+   *
+   * @param uri the URI to fetch.
+   * @param download the buffer the body is appended to.
+   * @param known tested with the URI and every redirect target before it is requested.
+   * @param validators the validators of the last download, or null.
+   * @return the URI accepted by known, or the final URI the body was read from.
+   * @throws IOException if the server can not be read, answers with an error or redirects too often.
+   * @throws InterruptedException if interrupted while waiting.
+   */
+  public URI fetch(URI uri, DownloadBuffer download, Predicate<URI> known, Validators validators)
+      throws IOException, InterruptedException {
+    URI current = uri;
+    for (int redirects = 0; redirects <= maxRedirects; redirects++) {
+      if (known.test(current)) {
+        return current;
+      }
+      HttpRequest.Builder builder = HttpRequest.newBuilder(current)
+          .timeout(readTimeout)
+          .GET();
+      if (null != validators && current.equals(validators.getTarget())) {
+        if (null != validators.getEtag()) {
+          builder.header("If-None-Match", validators.getEtag());
+        }
+        if (null != validators.getLastModified()) {
+          builder.header("If-Modified-Since", validators.getLastModified());
+        }
+      }
+      HttpRequest request = builder.build();
+      BufferSubscriber subscriber = new BufferSubscriber(download);
+      CompletableFuture<HttpResponse<Void>> future = client.sendAsync(request, responseInfo -> {
+        if (isRedirect(responseInfo.statusCode()) || NOT_MODIFIED == responseInfo.statusCode()
+            || responseInfo.statusCode() >= 400) {
+          return HttpResponse.BodySubscribers.discarding();
+        }
+        return subscriber;
+      });
+      HttpResponse<Void> response = await(future, subscriber);
+
+      int status = response.statusCode();
+      if (isRedirect(status)) {
+        String location = response.headers().firstValue("Location")
+            .orElseThrow(() -> new IOException("Redirect without a Location from: " + request.uri()));
+        current = current.resolve(location.trim());
+        continue;
+      }
+      if (status >= 400) {
+        throw new IOException("HTTP status " + status + " from: " + current);
+      }
+      if (null != validators) {
+        /**
+         * A 304 may leave out validators that did not change.
+         */
+        boolean notModified = NOT_MODIFIED == status;
+        validators.setNotModified(notModified);
+        validators.setTarget(current);
+        validators.setEtag(response.headers().firstValue("ETag")
+            .orElse(notModified ? validators.getEtag() : null));
+        validators.setLastModified(response.headers().firstValue("Last-Modified")
+            .orElse(notModified ? validators.getLastModified() : null));
+      }
+      return current;
+    }
+    throw new IOException("More than " + maxRedirects + " redirects from: " + uri);
+  }
+
+  private static boolean isRedirect(int status) {
+    return 301 == status || 302 == status || 303 == status || 307 == status || 308 == status;
+  }
+
+  /**
+   * Waits for the response. The wait only times out once the body has not moved for a full read timeout.
+   * <p>
+   * However the wait ends without a response the subscriber is cancelled first, which waits for a part of the body
+   * being written on an HttpClient thread. Once this returns or throws the download buffer is no longer touched, so
+   * the caller can reset it or give its chunks back to the pool.
+   */
+  private HttpResponse<Void> await(CompletableFuture<HttpResponse<Void>> future, BufferSubscriber subscriber)
+      throws IOException, InterruptedException {
+    long timeoutNanos = readTimeout.toNanos();
+    while (true) {
+      try {
+        return future.get(timeoutNanos, TimeUnit.NANOSECONDS);
+      } catch (TimeoutException ex) {
+        if (System.nanoTime() - subscriber.lastActivity >= timeoutNanos) {
+          subscriber.cancel();
+          future.cancel(true);
+          throw new HttpTimeoutException("Read timed out after " + readTimeout.toMillis() + "ms");
+        }
+      } catch (ExecutionException ex) {
+        subscriber.cancel();
+        if (ex.getCause() instanceof IOException) {
+          throw (IOException) ex.getCause();
+        }
+        throw new IOException(ex.getCause());
+      } catch (InterruptedException ex) {
+        subscriber.cancel();
+        future.cancel(true);
+        throw ex;
+      }
+    }
+  }
+
+  /**
+   * Pushes each part of the body into the download buffer as it arrives. Writes and cancelling hold the subscriber's
+   * lock, so once cancelled no part of the body is written, not even one that was already being handed over.
+   */
+  private static class BufferSubscriber implements HttpResponse.BodySubscriber<Void> {
+
+    private final DownloadBuffer download;
+    private final CompletableFuture<Void> result = new CompletableFuture<>();
+    private volatile Flow.Subscription subscription;
+    private volatile long lastActivity = System.nanoTime();
+    private boolean cancelled;
+
+    BufferSubscriber(DownloadBuffer download) {
+      this.download = download;
+    }
+
+    @Override
+    public CompletionStage<Void> getBody() {
+      return result;
+    }
+
+    @Override
+    public void onSubscribe(Flow.Subscription subscription) {
+      this.subscription = subscription;
+      subscription.request(1);
+    }
+
+    @Override
+    public synchronized void onNext(List<ByteBuffer> buffers) {
+      if (cancelled) {
+        return;
+      }
+      lastActivity = System.nanoTime();
+      try {
+        for (ByteBuffer buffer : buffers) {
+          download.write(buffer);
+        }
+        subscription.request(1);
+      } catch (IOException ex) {
+        subscription.cancel();
+        result.completeExceptionally(ex);
+      }
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+      result.completeExceptionally(throwable);
+    }
+
+    @Override
+    public void onComplete() {
+      result.complete(null);
+    }
+
+    /**
+     * Stops the body being written, waiting for a write in progress to finish.
+     */
+    void cancel() {
+      synchronized (this) {
+        cancelled = true;
+      }
+      Flow.Subscription current = subscription;
+      if (null != current) {
+        current.cancel();
+      }
+    }
+  }
+
+}
@@ -0,0 +1,68 @@
+package com.seekfirst.toprgb.fetch;
+
+import java.net.URI;
+
+/**
+ * POJO for the cache validators of one image: the ETag and Last-Modified headers of the response the body came from,
+ * and the URI that sent them. Handed to {@link HttpFetcher} to make the request to that URI conditional, and filled in
+ * from the final response.
+ *
+ * @author David Botterill
+ */
+public class Validators {
+
+  private URI target;
+  private String etag;
+  private String lastModified;
+  private boolean notModified;
+
+  public Validators() {
+  }
+
+  /**
+   * @param target the URI the validators were sent by, the request to it is made conditional.
+   * @param etag the ETag sent as If-None-Match, or null.
+   * @param lastModified the Last-Modified date sent as If-Modified-Since, or null.
+   */
+  public Validators(URI target, String etag, String lastModified) {
+    this.target = target;
+    this.etag = etag;
+    this.lastModified = lastModified;
+  }
+
+  public URI getTarget() {
+    return target;
+  }
+
+  public void setTarget(URI target) {
+    this.target = target;
+  }
+
+  public String getEtag() {
+    return etag;
+  }
+
+  public void setEtag(String etag) {
+    this.etag = etag;
+  }
+
+  public String getLastModified() {
+    return lastModified;
+  }
+
+  public void setLastModified(String lastModified) {
+    this.lastModified = lastModified;
+  }
+
+  /**
+   * @return true if the server answered 304 Not Modified, nothing was downloaded.
+   */
+  public boolean isNotModified() {
+    return notModified;
+  }
+
+  public void setNotModified(boolean notModified) {
+    this.notModified = notModified;
+  }
+
+}
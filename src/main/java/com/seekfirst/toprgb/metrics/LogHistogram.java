@@ -0,0 +1,107 @@
+package com.seekfirst.toprgb.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A histogram of non negative values in the style of HdrHistogram: buckets double in width with each power of two and
+ * every power of two is split into 32 linear sub-buckets, so any value is known to within about 3% whatever its size,
+ * from 0 to Long.MAX_VALUE, in a fixed 1888 buckets.
+ * <p>
+ * Recording is an index computation and one atomic increment, with no locks, so it is cheap enough for every image.
+ * Percentiles are read from a snapshot of the buckets that may miss values recorded at the same time.
+ *
+ * @author David Botterill
+ */
+public class LogHistogram {
+
+  private static final int SUB_BUCKET_BITS = 5;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+  private final LongAdder count = new LongAdder();
+  private final LongAdder sum = new LongAdder();
+  private final LongAccumulator max = new LongAccumulator(Math::max, 0L);
+
+  /**
+   * @param value the value to record, negative values are recorded as 0.
+   */
+  public void record(long value) {
+    value = Math.max(0L, value);
+    counts.incrementAndGet(indexOf(value));
+    count.increment();
+    sum.add(value);
+    max.accumulate(value);
+  }
+
+  /**
+   * @return the number of values recorded.
+   */
+  public long getCount() {
+    return count.sum();
+  }
+
+  /**
+   * @return the sum of the values recorded.
+   */
+  public long getSum() {
+    return sum.sum();
+  }
+
+  /**
+   * @return the largest value recorded, 0 if none.
+   */
+  public long getMax() {
+    return max.get();
+  }
+
+  /**
+   * @param percentile the percentile, from 0 to 100.
+   * @return the largest value that could be in the bucket holding the percentile, 0 if nothing is recorded.
+   */
+  public long getValueAtPercentile(double percentile) {
+    long[] snapshot = new long[BUCKETS];
+    long total = 0L;
+    for (int ii = 0; ii < BUCKETS; ii++) {
+      snapshot[ii] = counts.get(ii);
+      total += snapshot[ii];
+    }
+    if (0L == total) {
+      return 0L;
+    }
+    long rank = Math.max(1L, (long) Math.ceil(Math.min(100.0, percentile) / 100.0 * total));
+    long seen = 0L;
+    for (int ii = 0; ii < BUCKETS; ii++) {
+      seen += snapshot[ii];
+      if (seen >= rank) {
+        return Math.min(highestValueOf(ii), getMax());
+      }
+    }
+    return getMax();
+  }
+
+  /**
+   * Values below 32 have a bucket each. Above that the highest set bit picks the power of two and the next five bits
+   * the sub-bucket within it.
+   */
+  static int indexOf(long value) {
+    if (value < SUB_BUCKETS) {
+      return (int) value;
+    }
+    int exponent = 63 - Long.numberOfLeadingZeros(value);
+    int shift = exponent - SUB_BUCKET_BITS;
+    return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) - SUB_BUCKETS);
+  }
+
+  static long highestValueOf(int index) {
+    if (index < SUB_BUCKETS) {
+      return index;
+    }
+    int shift = index / SUB_BUCKETS - 1;
+    long lowest = (long) (SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+    return lowest + (1L << shift) - 1L;
+  }
+
+}
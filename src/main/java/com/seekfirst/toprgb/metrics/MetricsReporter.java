@@ -0,0 +1,236 @@
+package com.seekfirst.toprgb.metrics;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * This class publishes the metrics of a run: it registers them as an MXBean, logs a one line summary at a fixed
+ * interval and, if given a file, writes them there in the Prometheus text format at the same interval, for example for
+ * the node exporter's textfile collector. The summary rates are over the last interval. Closing it logs and writes the
+ * final figures and unregisters the MXBean.
+ *
+ * @author David Botterill
+ */
+public class MetricsReporter implements Closeable {
+
+  private static Logger logger = LoggerFactory.getLogger(MetricsReporter.class);
+
+  public static final long DEFAULT_INTERVAL_SECONDS = 60;
+  private static final String OBJECT_NAME = "com.seekfirst.toprgb:type=PipelineMetrics";
+
+  private final PipelineMetrics metrics;
+  private final File prometheusFile;
+  private final ScheduledExecutorService scheduler;
+  private final long startNanos = System.nanoTime();
+  private ObjectName objectName;
+  private long lastNanos = startNanos;
+  private long lastFetches;
+  private long lastBytes;
+  private long lastDecodes;
+  private long lastPixels;
+
+  /**
+   * @param metrics the metrics to publish.
+   * @param intervalSeconds seconds between summaries, 0 for a summary only on close.
+   * @param prometheusFile the file the metrics are written to, or null for none.
+   */
+  public MetricsReporter(PipelineMetrics metrics, long intervalSeconds, File prometheusFile) {
+    this.metrics = metrics;
+    this.prometheusFile = prometheusFile;
+    register();
+    if (intervalSeconds > 0L) {
+      this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "toprgb-metrics");
+        thread.setDaemon(true);
+        return thread;
+      });
+      this.scheduler.scheduleAtFixedRate(this::report, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    } else {
+      this.scheduler = null;
+    }
+  }
+
+  private void register() {
+    try {
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      ObjectName name = new ObjectName(OBJECT_NAME);
+      if (server.isRegistered(name)) {
+        server.unregisterMBean(name);
+      }
+      server.registerMBean(metrics, name);
+      this.objectName = name;
+    } catch (JMException ex) {
+      logger.warn("Could not register metrics MXBean: " + ex.getLocalizedMessage());
+    }
+  }
+
+  private void report() {
+    try {
+      logger.info(summary());
+      writePrometheus();
+    } catch (IOException ex) {
+      logger.error("Error writing metrics file: " + ex.getLocalizedMessage(), ex);
+    } catch (RuntimeException ex) {
+      logger.error("Exception: " + ex.getLocalizedMessage(), ex);
+    }
+  }
+
+  /**
+   * @return the one line summary, with rates since the last summary.
+   */
+  synchronized String summary() {
+    long now = System.nanoTime();
+    double seconds = Math.max(1e-9, (now - lastNanos) / 1e9);
+    long fetches = metrics.getFetchCount();
+    long bytes = metrics.getDownloadBytes();
+    long decodes = metrics.getDecodeCount();
+    long pixels = metrics.getPixels();
+    StringBuilder line = new StringBuilder(256);
+    line.append(String.format(Locale.ROOT, "fetched %d (%.1f/s %.2f MB/s) p50 %.0fms p99 %.0fms",
+        fetches, (fetches - lastFetches) / seconds, (bytes - lastBytes) / seconds / 1e6,
+        metrics.getFetchLatencyP50Millis(), metrics.getFetchLatencyP99Millis()));
+    line.append(String.format(Locale.ROOT, " | decoded %d (%.1f/s %.1f Mpx/s) p50 %.0fms p99 %.0fms colors p50 %d",
+        decodes, (decodes - lastDecodes) / seconds, (pixels - lastPixels) / seconds / 1e6,
+        metrics.getDecodeTimeP50Millis(), metrics.getDecodeTimeP99Millis(), metrics.getHistogramSizeP50()));
+    line.append(" | queues");
+    for (Map.Entry<String, Long> queue : metrics.getQueueDepths().entrySet()) {
+      line.append(' ').append(queue.getKey()).append('=').append(queue.getValue());
+    }
+    line.append(" | written ").append(metrics.getResultsWritten());
+    line.append(" | skipped");
+    for (Map.Entry<String, Long> reason : metrics.getSkipped().entrySet()) {
+      if (reason.getValue() > 0L) {
+        line.append(' ').append(reason.getKey()).append('=').append(reason.getValue());
+      }
+    }
+    if (metrics.getSortedChunks() > 0L) {
+      line.append(String.format(Locale.ROOT, " | sort %d chunks %.1f MB/s merge %d runs %.1f MB/s",
+          metrics.getSortedChunks(), metrics.getSortBytesPerSecond() / 1e6, metrics.getMergedRuns(),
+          metrics.getMergeBytesPerSecond() / 1e6));
+    }
+    lastNanos = now;
+    lastFetches = fetches;
+    lastBytes = bytes;
+    lastDecodes = decodes;
+    lastPixels = pixels;
+    return line.toString();
+  }
+
+  /**
+   * Writes the metrics file, replacing it only once it is complete so a collector never reads half of it.
+   */
+  private void writePrometheus() throws IOException {
+    if (null == prometheusFile) {
+      return;
+    }
+    File tempFile = new File(prometheusFile.getPath() + ".tmp");
+    Files.write(tempFile.toPath(), prometheusText().getBytes(StandardCharsets.UTF_8));
+    Files.move(tempFile.toPath(), prometheusFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+  }
+
+  /**
+   * @return the metrics in the Prometheus text format.
+   */
+  String prometheusText() {
+    StringBuilder text = new StringBuilder(4096);
+    summary(text, "toprgb_fetch_seconds", "Time to download an image, redirects included.",
+        metrics.getFetchHistogram(), 1e-9);
+    counter(text, "toprgb_download_bytes_total", "Bytes of image bodies downloaded.", metrics.getDownloadBytes());
+    summary(text, "toprgb_decode_seconds", "Time to decode and count an image.", metrics.getDecodeHistogram(), 1e-9);
+    counter(text, "toprgb_pixels_total", "Pixels counted.", metrics.getPixels());
+    summary(text, "toprgb_histogram_colors", "Distinct colors in the histogram of an image.",
+        metrics.getHistogramSizes(), 1.0);
+    counter(text, "toprgb_results_written_total", "Rows written to the output file.", metrics.getResultsWritten());
+    text.append("# HELP toprgb_queue_depth Items waiting in the queue in front of a stage.\n");
+    text.append("# TYPE toprgb_queue_depth gauge\n");
+    for (Map.Entry<String, Long> queue : metrics.getQueueDepths().entrySet()) {
+      text.append("toprgb_queue_depth{stage=\"").append(queue.getKey()).append("\"} ").append(queue.getValue())
+          .append('\n');
+    }
+    text.append("# HELP toprgb_skipped_total URLs not counted, or not written, by reason.\n");
+    text.append("# TYPE toprgb_skipped_total counter\n");
+    for (Map.Entry<String, Long> reason : metrics.getSkipped().entrySet()) {
+      text.append("toprgb_skipped_total{reason=\"").append(reason.getKey()).append("\"} ").append(reason.getValue())
+          .append('\n');
+    }
+    counter(text, "toprgb_sort_chunks_total", "Chunks of the input sorted.", metrics.getSortedChunks());
+    counter(text, "toprgb_sort_bytes_total", "Bytes of input sorted into chunks.", metrics.getSortedBytes());
+    counter(text, "toprgb_sort_seconds_total", "Sort thread time spent sorting chunks.", metrics.getSortNanos() / 1e9);
+    counter(text, "toprgb_merge_runs_total", "Intermediate merges of sort files.", metrics.getMergedRuns());
+    counter(text, "toprgb_merge_bytes_total", "Bytes of sort files merged.", metrics.getMergedBytes());
+    counter(text, "toprgb_merge_seconds_total", "Sort thread time spent merging.", metrics.getMergeNanos() / 1e9);
+    return text.toString();
+  }
+
+  private static void counter(StringBuilder text, String name, String help, double value) {
+    text.append("# HELP ").append(name).append(' ').append(help).append('\n');
+    text.append("# TYPE ").append(name).append(" counter\n");
+    text.append(name).append(' ').append(format(value)).append('\n');
+  }
+
+  private static void summary(StringBuilder text, String name, String help, LogHistogram histogram, double scale) {
+    text.append("# HELP ").append(name).append(' ').append(help).append('\n');
+    text.append("# TYPE ").append(name).append(" summary\n");
+    for (double quantile : new double[]{0.5, 0.9, 0.99}) {
+      text.append(name).append("{quantile=\"").append(quantile).append("\"} ")
+          .append(format(histogram.getValueAtPercentile(quantile * 100.0) * scale)).append('\n');
+    }
+    text.append(name).append("_sum ").append(format(histogram.getSum() * scale)).append('\n');
+    text.append(name).append("_count ").append(histogram.getCount()).append('\n');
+  }
+
+  private static String format(double value) {
+    return value == Math.rint(value) && Math.abs(value) < 1e15 ? Long.toString((long) value)
+        : String.format(Locale.ROOT, "%.6g", value);
+  }
+
+  /**
+   * Stops the summaries, logs and writes the final figures and unregisters the MXBean.
+   *
+   * @throws IOException if the metrics file can not be written.
+   */
+  @Override
+  public void close() throws IOException {
+    if (null != scheduler) {
+      scheduler.shutdownNow();
+    }
+    synchronized (this) {
+      /**
+       * The final rates are over the whole run.
+       */
+      lastNanos = startNanos;
+      lastFetches = 0L;
+      lastBytes = 0L;
+      lastDecodes = 0L;
+      lastPixels = 0L;
+      logger.info("Totals: " + summary());
+    }
+    try {
+      writePrometheus();
+    } finally {
+      if (null != objectName) {
+        try {
+          ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+        } catch (JMException ex) {
+          logger.warn("Could not unregister metrics MXBean: " + ex.getLocalizedMessage());
+        }
+      }
+    }
+  }
+
+}
@@ -0,0 +1,280 @@
+package com.seekfirst.toprgb.metrics;
+
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * This class holds the metrics of every stage of a run: fetch latency and bytes, decode time, pixels and histogram
+ * sizes, the depth of the queues between stages, the URLs skipped or failed by reason and the throughput of the sort.
+ * <p>
+ * Counters are LongAdders, striped across cells so threads recording at once do not contend, and distributions are
+ * {@link LogHistogram}s. Recording never locks. Shared by all threads.
+ *
+ * @author David Botterill
+ */
+public class PipelineMetrics implements PipelineMetricsMXBean {
+
+  /**
+   * Why a URL got no row of its own counting, or no row at all.
+   */
+  public enum Reason {
+    /**
+     * Already in the input, or already scanned by the run being resumed.
+     */
+    REPEAT_URL, RESUMED,
+    /**
+     * Written with colors counted before: of its redirect target, of the same bytes, or of the URL in an earlier run.
+     */
+    TARGET_CACHED, CONTENT_CACHED, URL_CACHED,
+    /**
+     * No row written.
+     */
+    FETCH_FAILED, NO_IMAGE_READER, DECODE_FAILED, WRITE_FAILED
+  }
+
+  private static final double NANOS_PER_MILLI = TimeUnit.MILLISECONDS.toNanos(1);
+
+  private final LogHistogram fetchNanos = new LogHistogram();
+  private final LongAdder downloadBytes = new LongAdder();
+  private final LogHistogram decodeNanos = new LogHistogram();
+  private final LongAdder pixels = new LongAdder();
+  private final LogHistogram histogramSizes = new LogHistogram();
+  private final Map<Reason, LongAdder> skipped = new EnumMap<>(Reason.class);
+  private final LongAdder sortedChunks = new LongAdder();
+  private final LongAdder sortedBytes = new LongAdder();
+  private final LongAdder sortNanos = new LongAdder();
+  private final LongAdder mergedRuns = new LongAdder();
+  private final LongAdder mergedBytes = new LongAdder();
+  private final LongAdder mergeNanos = new LongAdder();
+  private final Map<String, LongSupplier> queues = new LinkedHashMap<>();
+  private volatile LongSupplier resultsWritten = () -> 0L;
+
+  public PipelineMetrics() {
+    for (Reason reason : Reason.values()) {
+      skipped.put(reason, new LongAdder());
+    }
+  }
+
+  /**
+   * @param nanos the time to download an image, redirects included.
+   * @param bytes the bytes of the body, 0 if nothing was downloaded.
+   */
+  public void fetched(long nanos, long bytes) {
+    fetchNanos.record(nanos);
+    downloadBytes.add(bytes);
+  }
+
+  /**
+   * @param nanos the time to decode and count an image.
+   */
+  public void decoded(long nanos) {
+    decodeNanos.record(nanos);
+  }
+
+  /**
+   * @param count pixels counted, called for every image or strip of an image.
+   */
+  public void counted(long count) {
+    pixels.add(count);
+  }
+
+  /**
+   * @param colors the number of distinct colors in the histogram of an image.
+   */
+  public void histogramSize(long colors) {
+    histogramSizes.record(colors);
+  }
+
+  /**
+   * @param reason why a URL was skipped or failed.
+   */
+  public void skipped(Reason reason) {
+    skipped.get(reason).increment();
+  }
+
+  /**
+   * @param reason why URLs were skipped.
+   * @param count the number of URLs.
+   */
+  public void skipped(Reason reason, long count) {
+    skipped.get(reason).add(count);
+  }
+
+  /**
+   * @param bytes the bytes of input in a chunk that was sorted and written.
+   * @param nanos the time to sort and write it.
+   */
+  public void chunkSorted(long bytes, long nanos) {
+    sortedChunks.increment();
+    sortedBytes.add(bytes);
+    sortNanos.add(nanos);
+  }
+
+  /**
+   * @param bytes the bytes of the sort files merged.
+   * @param nanos the time to merge them.
+   */
+  public void runsMerged(long bytes, long nanos) {
+    mergedRuns.increment();
+    mergedBytes.add(bytes);
+    mergeNanos.add(nanos);
+  }
+
+  /**
+   * Adds a queue whose depth is reported. Add every queue before the metrics are read.
+   *
+   * @param stage the name of the stage reading the queue.
+   * @param depth the number of items in the queue.
+   */
+  public synchronized void addQueue(String stage, LongSupplier depth) {
+    queues.put(stage, depth);
+  }
+
+  /**
+   * @param resultsWritten the number of rows written so far.
+   */
+  public void setResultsWritten(LongSupplier resultsWritten) {
+    this.resultsWritten = resultsWritten;
+  }
+
+  public LogHistogram getFetchHistogram() {
+    return fetchNanos;
+  }
+
+  public LogHistogram getDecodeHistogram() {
+    return decodeNanos;
+  }
+
+  public LogHistogram getHistogramSizes() {
+    return histogramSizes;
+  }
+
+  public long getMergedRuns() {
+    return mergedRuns.sum();
+  }
+
+  public long getSortNanos() {
+    return sortNanos.sum();
+  }
+
+  public long getMergeNanos() {
+    return mergeNanos.sum();
+  }
+
+  @Override
+  public long getFetchCount() {
+    return fetchNanos.getCount();
+  }
+
+  @Override
+  public double getFetchLatencyP50Millis() {
+    return fetchNanos.getValueAtPercentile(50.0) / NANOS_PER_MILLI;
+  }
+
+  @Override
+  public double getFetchLatencyP99Millis() {
+    return fetchNanos.getValueAtPercentile(99.0) / NANOS_PER_MILLI;
+  }
+
+  @Override
+  public double getFetchLatencyMaxMillis() {
+    return fetchNanos.getMax() / NANOS_PER_MILLI;
+  }
+
+  @Override
+  public long getDownloadBytes() {
+    return downloadBytes.sum();
+  }
+
+  @Override
+  public long getDecodeCount() {
+    return decodeNanos.getCount();
+  }
+
+  @Override
+  public double getDecodeTimeP50Millis() {
+    return decodeNanos.getValueAtPercentile(50.0) / NANOS_PER_MILLI;
+  }
+
+  @Override
+  public double getDecodeTimeP99Millis() {
+    return decodeNanos.getValueAtPercentile(99.0) / NANOS_PER_MILLI;
+  }
+
+  @Override
+  public long getPixels() {
+    return pixels.sum();
+  }
+
+  @Override
+  public double getPixelsPerSecond() {
+    return perSecond(getPixels(), decodeNanos.getSum());
+  }
+
+  @Override
+  public long getHistogramSizeP50() {
+    return histogramSizes.getValueAtPercentile(50.0);
+  }
+
+  @Override
+  public long getHistogramSizeMax() {
+    return histogramSizes.getMax();
+  }
+
+  @Override
+  public long getResultsWritten() {
+    return resultsWritten.getAsLong();
+  }
+
+  @Override
+  public synchronized Map<String, Long> getQueueDepths() {
+    Map<String, Long> depths = new LinkedHashMap<>();
+    for (Map.Entry<String, LongSupplier> queue : queues.entrySet()) {
+      depths.put(queue.getKey(), queue.getValue().getAsLong());
+    }
+    return depths;
+  }
+
+  @Override
+  public Map<String, Long> getSkipped() {
+    Map<String, Long> counts = new LinkedHashMap<>();
+    for (Map.Entry<Reason, LongAdder> reason : skipped.entrySet()) {
+      counts.put(reason.getKey().name().toLowerCase(), reason.getValue().sum());
+    }
+    return counts;
+  }
+
+  @Override
+  public long getSortedChunks() {
+    return sortedChunks.sum();
+  }
+
+  @Override
+  public long getSortedBytes() {
+    return sortedBytes.sum();
+  }
+
+  @Override
+  public double getSortBytesPerSecond() {
+    return perSecond(getSortedBytes(), getSortNanos());
+  }
+
+  @Override
+  public long getMergedBytes() {
+    return mergedBytes.sum();
+  }
+
+  @Override
+  public double getMergeBytesPerSecond() {
+    return perSecond(getMergedBytes(), getMergeNanos());
+  }
+
+  private static double perSecond(long count, long nanos) {
+    return 0L == nanos ? 0.0 : count * 1e9 / nanos;
+  }
+
+}
@@ -0,0 +1,56 @@
+package com.seekfirst.toprgb.metrics;
+
+import java.util.Map;
+
+/**
+ * The metrics of a run as seen through JMX, registered as com.seekfirst.toprgb:type=PipelineMetrics. Times are in
+ * milliseconds.
+ *
+ * @author David Botterill
+ */
+public interface PipelineMetricsMXBean {
+
+  long getFetchCount();
+
+  double getFetchLatencyP50Millis();
+
+  double getFetchLatencyP99Millis();
+
+  double getFetchLatencyMaxMillis();
+
+  long getDownloadBytes();
+
+  long getDecodeCount();
+
+  double getDecodeTimeP50Millis();
+
+  double getDecodeTimeP99Millis();
+
+  long getPixels();
+
+  /**
+   * @return pixels counted per second of decode thread time.
+   */
+  double getPixelsPerSecond();
+
+  long getHistogramSizeP50();
+
+  long getHistogramSizeMax();
+
+  long getResultsWritten();
+
+  Map<String, Long> getQueueDepths();
+
+  Map<String, Long> getSkipped();
+
+  long getSortedChunks();
+
+  long getSortedBytes();
+
+  double getSortBytesPerSecond();
+
+  long getMergedBytes();
+
+  double getMergeBytesPerSecond();
+
+}
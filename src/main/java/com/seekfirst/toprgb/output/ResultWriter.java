@@ -0,0 +1,425 @@
+package com.seekfirst.toprgb.output;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * This class is the single writer of the CSV file. Any number of threads hand it results through a bounded queue, and
+ * one writer thread encodes them straight into a large reusable byte buffer that is written to the FileChannel in
+ * batches. When the disk falls behind the queue fills up and submitting blocks, which holds back the stages in front.
+ * <p>
+ * The buffer is written when it is full, or when results have waited longer than the flush interval. Whether the file
+ * is also forced to disk is set by the {@link FsyncPolicy}.
+ * <p>
+ * If writes keep failing the writer halts: more than WRITE_CIRCUIT_BREAKER consecutive failed writes stop the writer
+ * thread, {@link #isHalted()} turns true and the rest of the run is expected to stop submitting work.
+ * <p>
+ * Rows are written from the channel's position when the writer is created, so a file can be appended to.
+ *
+ * @author David Botterill
+ */
+public class ResultWriter implements Closeable {
+
+  /**
+   * Told on the writer thread after each write which rows it held.
+   */
+  public interface WriteListener {
+
+    /**
+     * @param sequences the sequences of the rows written, -1 for rows that are not tracked.
+     * @param count the number of sequences.
+     * @param fileLength the length of the file once the rows are written.
+     */
+    void written(long[] sequences, int count, long fileLength);
+  }
+
+  /**
+   * When the file is forced to the storage device.
+   */
+  public enum FsyncPolicy {
+    /**
+     * Never, leave it to the operating system.
+     */
+    NONE,
+    /**
+     * After every batch written.
+     */
+    FLUSH,
+    /**
+     * Once, when the writer is closed.
+     */
+    CLOSE
+  }
+
+  public static final int DEFAULT_BUFFER_SIZE = 1 << 20;
+  public static final long DEFAULT_FLUSH_INTERVAL_MILLIS = 1000L;
+  public static final int DEFAULT_QUEUE_CAPACITY = 1024;
+  private static final int WRITE_CIRCUIT_BREAKER = 5;
+  private static final long RETRY_PAUSE_MILLIS = 100L;
+  /**
+   * Longest the writer thread waits for a result while nothing is buffered, and so how long a close may go unnoticed.
+   */
+  private static final long IDLE_POLL_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+  private static final long SUBMIT_WAIT_MILLIS = 10L;
+  private static final byte[] HEX_DIGITS = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+
+  private static Logger logger = LoggerFactory.getLogger(ResultWriter.class);
+
+  private final FileChannel channel;
+  private final int topCount;
+  private final boolean errorColumns;
+  private final boolean countColumn;
+  private final long flushIntervalNanos;
+  private final FsyncPolicy fsyncPolicy;
+  private final BlockingQueue<TopRgbResult> queue;
+  private final LongAdder resultsSubmitted = new LongAdder();
+  private final ByteBuffer buffer;
+  private final Thread writerThread;
+  private volatile boolean closing;
+  private volatile boolean halted;
+  private int writeErrors; // circuit break for write errors.
+  private int resultsBuffered;
+  private long resultsWritten;
+  private long[] bufferedSequences = new long[1024];
+  private long fileLength;
+  private volatile WriteListener writeListener;
+
+  /**
+   * @param channel the open channel to write to, it is closed with the writer.
+   * @param topCount the number of color columns in every row.
+   * @param errorColumns true to write one error bound column per color after the colors.
+   * @param bufferSize the size of the encode buffer in bytes.
+   * @param flushIntervalMillis the longest a result waits in the buffer before it is written.
+   * @param fsyncPolicy when to force the file to disk.
+   */
+  public ResultWriter(FileChannel channel, int topCount, boolean errorColumns, int bufferSize,
+      long flushIntervalMillis, FsyncPolicy fsyncPolicy) {
+    this(channel, topCount, errorColumns, false, bufferSize, flushIntervalMillis, fsyncPolicy);
+  }
+
+  /**
+   * @param channel the open channel to write to, it is closed with the writer.
+   * @param topCount the number of color columns in every row.
+   * @param errorColumns true to write one error bound column per color after the colors.
+   * @param countColumn true to end every row with how many times the URL occurred in the input.
+   * @param bufferSize the size of the encode buffer in bytes.
+   * @param flushIntervalMillis the longest a result waits in the buffer before it is written.
+   * @param fsyncPolicy when to force the file to disk.
+   */
+  public ResultWriter(FileChannel channel, int topCount, boolean errorColumns, boolean countColumn, int bufferSize,
+      long flushIntervalMillis, FsyncPolicy fsyncPolicy) {
+    this(channel, topCount, errorColumns, countColumn, bufferSize, flushIntervalMillis, fsyncPolicy,
+        DEFAULT_QUEUE_CAPACITY);
+  }
+
+  /**
+   * @param channel the open channel to write to, it is closed with the writer.
+   * @param topCount the number of color columns in every row.
+   * @param errorColumns true to write one error bound column per color after the colors.
+   * @param countColumn true to end every row with how many times the URL occurred in the input.
+   * @param bufferSize the size of the encode buffer in bytes.
+   * @param flushIntervalMillis the longest a result waits in the buffer before it is written.
+   * @param fsyncPolicy when to force the file to disk.
+   * @param queueCapacity the most results waiting for the writer thread before submitting blocks.
+   */
+  public ResultWriter(FileChannel channel, int topCount, boolean errorColumns, boolean countColumn, int bufferSize,
+      long flushIntervalMillis, FsyncPolicy fsyncPolicy, int queueCapacity) {
+    this.channel = channel;
+    this.queue = new ArrayBlockingQueue<>(queueCapacity);
+    this.topCount = topCount;
+    this.errorColumns = errorColumns;
+    this.countColumn = countColumn;
+    this.buffer = ByteBuffer.allocate(bufferSize);
+    this.flushIntervalNanos = TimeUnit.MILLISECONDS.toNanos(flushIntervalMillis);
+    this.fsyncPolicy = fsyncPolicy;
+    try {
+      this.fileLength = channel.position();
+    } catch (IOException ex) {
+      logger.error("Error reading file position: " + ex.getLocalizedMessage(), ex);
+    }
+    this.writerThread = new Thread(this::process, "toprgb-writer");
+    this.writerThread.start();
+  }
+
+  /**
+   * Queues a result for writing, blocking while the queue is full.
+   *
+   * @param result the result to write.
+   * @return false if the writer has halted or is closed, or the thread was interrupted, and the result was dropped.
+   */
+  public boolean submit(TopRgbResult result) {
+    try {
+      /**
+       * Wait in short steps so a writer that halts or closes while the queue is full releases the waiting threads.
+       */
+      while (!halted && !closing) {
+        if (queue.offer(result, SUBMIT_WAIT_MILLIS, TimeUnit.MILLISECONDS)) {
+          resultsSubmitted.increment();
+          return true;
+        }
+      }
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+    }
+    return false;
+  }
+
+  /**
+   * @return true once the writer has given up because of write errors.
+   */
+  public boolean isHalted() {
+    return halted;
+  }
+
+  /**
+   * @param writeListener told after each write which rows it held, or null. Set it before submitting results.
+   */
+  public void setWriteListener(WriteListener writeListener) {
+    this.writeListener = writeListener;
+  }
+
+  /**
+   * @return the length of the file written so far, counting from its start.
+   */
+  public synchronized long getFileLength() {
+    return fileLength;
+  }
+
+  /**
+   * @return the number of results submitted and not yet written to the channel.
+   */
+  public long getQueueDepth() {
+    return Math.max(0L, resultsSubmitted.sum() - getResultsWritten());
+  }
+
+  /**
+   * @return the number of results written to the channel.
+   */
+  public synchronized long getResultsWritten() {
+    return resultsWritten;
+  }
+
+  /**
+   * Writes everything queued, forces the file to disk unless the policy is NONE and closes the channel.
+   *
+   * @throws IOException if the last write, force or close fails.
+   */
+  @Override
+  public void close() throws IOException {
+    closing = true;
+    try {
+      writerThread.join();
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted waiting for the writer to finish", ex);
+    }
+    try {
+      if (!halted && FsyncPolicy.NONE != fsyncPolicy) {
+        channel.force(false);
+      }
+    } finally {
+      channel.close();
+    }
+  }
+
+  private void process() {
+    long oldestPending = 0L;
+    try {
+      while (!halted) {
+        boolean finishing = closing;
+        /**
+         * Block on the queue until the buffered rows are due to be written, or for a while when nothing is buffered.
+         */
+        long waitNanos = finishing ? 0L
+            : 0 == buffer.position() ? IDLE_POLL_NANOS : oldestPending + flushIntervalNanos - System.nanoTime();
+        TopRgbResult result = waitNanos > 0L ? queue.poll(waitNanos, TimeUnit.NANOSECONDS) : queue.poll();
+        while (null != result) {
+          encode(result);
+          if (halted) {
+            return;
+          }
+          if (0L == oldestPending) {
+            oldestPending = System.nanoTime();
+          }
+          result = queue.poll();
+        }
+        if (buffer.position() > 0 && (finishing || System.nanoTime() - oldestPending >= flushIntervalNanos)) {
+          writeBuffer();
+          oldestPending = 0L;
+        }
+        if (finishing && queue.isEmpty() && 0 == buffer.position()) {
+          return;
+        }
+      }
+    } catch (InterruptedException ex) {
+      logger.error("Writer interrupted, rows still queued are not written: " + ex.getLocalizedMessage(), ex);
+    }
+  }
+
+  private void encode(TopRgbResult result) {
+    int[] colors = result.getColors();
+    long[] errors = result.getErrors();
+    String url = result.getUrl();
+    /**
+     * Worst case: 3 bytes per URL character, 8 bytes per color column, 21 per error or count column and the newline.
+     */
+    int maxLength = url.length() * 3 + topCount * 8 + (errorColumns ? topCount * 21 : 0) + (countColumn ? 21 : 0) + 1;
+    if (maxLength > buffer.remaining()) {
+      writeBuffer();
+      if (maxLength > buffer.capacity()) {
+        writeOversized(result);
+        return;
+      }
+    }
+
+    putUrl(url);
+    for (int ii = 0; ii < topCount; ii++) {
+      buffer.put((byte) ',');
+      if (ii < colors.length) {
+        putHexColor(colors[ii]);
+      }
+    }
+    if (errorColumns) {
+      for (int ii = 0; ii < topCount; ii++) {
+        buffer.put((byte) ',');
+        if (null != errors && ii < errors.length) {
+          putLong(errors[ii]);
+        }
+      }
+    }
+    if (countColumn) {
+      buffer.put((byte) ',');
+      putLong(result.getOccurrences());
+    }
+    buffer.put((byte) '\n');
+    if (resultsBuffered == bufferedSequences.length) {
+      bufferedSequences = Arrays.copyOf(bufferedSequences, resultsBuffered * 2);
+    }
+    bufferedSequences[resultsBuffered++] = result.getSequence();
+  }
+
+  private void putUrl(String url) {
+    for (int ii = 0; ii < url.length(); ii++) {
+      char character = url.charAt(ii);
+      if (character >= 0x80) {
+        /**
+         * Rare non ASCII URL, let the JDK encode it.
+         */
+        buffer.put(url.substring(ii).getBytes(StandardCharsets.UTF_8));
+        return;
+      }
+      buffer.put((byte) character);
+    }
+  }
+
+  private void putHexColor(int rgb) {
+    buffer.put((byte) '#');
+    for (int shift = 20; shift >= 0; shift -= 4) {
+      buffer.put(HEX_DIGITS[(rgb >>> shift) & 0xf]);
+    }
+  }
+
+  private void putLong(long value) {
+    buffer.put(Long.toString(value).getBytes(StandardCharsets.US_ASCII));
+  }
+
+  /**
+   * A row that is larger than the whole buffer gets a buffer of its own.
+   */
+  private void writeOversized(TopRgbResult result) {
+    StringBuilder row = new StringBuilder(result.getUrl());
+    for (int ii = 0; ii < topCount; ii++) {
+      row.append(',');
+      if (ii < result.getColors().length) {
+        row.append(String.format("#%06x", result.getColors()[ii]));
+      }
+    }
+    if (errorColumns) {
+      for (int ii = 0; ii < topCount; ii++) {
+        row.append(',');
+        if (null != result.getErrors() && ii < result.getErrors().length) {
+          row.append(result.getErrors()[ii]);
+        }
+      }
+    }
+    if (countColumn) {
+      row.append(',').append(result.getOccurrences());
+    }
+    row.append('\n');
+    byte[] bytes = row.toString().getBytes(StandardCharsets.UTF_8);
+    if (writeFully(ByteBuffer.wrap(bytes))) {
+      synchronized (this) {
+        resultsWritten++;
+        fileLength += bytes.length;
+      }
+      notifyWritten(new long[]{result.getSequence()}, 1);
+    }
+  }
+
+  private void writeBuffer() {
+    buffer.flip();
+    int length = buffer.remaining();
+    if (writeFully(buffer)) {
+      synchronized (this) {
+        resultsWritten += resultsBuffered;
+        fileLength += length;
+      }
+      notifyWritten(bufferedSequences, resultsBuffered);
+    }
+    resultsBuffered = 0;
+    buffer.clear();
+  }
+
+  private void notifyWritten(long[] sequences, int count) {
+    WriteListener listener = writeListener;
+    if (null == listener) {
+      return;
+    }
+    try {
+      listener.written(sequences, count, getFileLength());
+    } catch (RuntimeException ex) {
+      logger.error("Exception: " + ex.getLocalizedMessage(), ex);
+    }
+  }
+
+  /**
+   * Writes the bytes, retrying after a short pause on failure until the circuit breaker trips.
+   *
+   * @return false if the writer halted before all the bytes were written.
+   */
+  private boolean writeFully(ByteBuffer bytes) {
+    while (bytes.hasRemaining() && !halted) {
+      try {
+        channel.write(bytes);
+        if (!bytes.hasRemaining()) {
+          if (FsyncPolicy.FLUSH == fsyncPolicy) {
+            channel.force(false);
+          }
+          writeErrors = 0;
+        }
+      } catch (IOException ex) {
+        logger.error("Error writing to file: " + ex.getLocalizedMessage(), ex);
+        this.writeErrors++;
+        if (this.writeErrors > WRITE_CIRCUIT_BREAKER) {
+          logger.error("Halting because write errors exceeded " + WRITE_CIRCUIT_BREAKER);
+          halted = true;
+          return false;
+        }
+        LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(RETRY_PAUSE_MILLIS));
+      }
+    }
+    return !halted;
+  }
+
+}
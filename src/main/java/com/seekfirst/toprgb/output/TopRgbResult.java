@@ -0,0 +1,72 @@
+package com.seekfirst.toprgb.output;
+
+/**
+ * POJO for the result of one image: its URL, its top colors (most prevalent first), for approximate counts the error
+ * bound of each color and, when known, how many times the URL occurred in the input and its position among the URLs
+ * scanned.
+ *
+ * @author David Botterill
+ */
+public class TopRgbResult {
+
+  private final String url;
+  private final int[] colors;
+  private final long[] errors;
+  private final long occurrences;
+  private final long sequence;
+
+  /**
+   * @param url the image URL.
+   * @param colors packed 24 bit RGB colors, most prevalent first.
+   * @param errors the error bound of each color, or null if the counts are exact.
+   */
+  public TopRgbResult(String url, int[] colors, long[] errors) {
+    this(url, colors, errors, 0L);
+  }
+
+  /**
+   * @param url the image URL.
+   * @param colors packed 24 bit RGB colors, most prevalent first.
+   * @param errors the error bound of each color, or null if the counts are exact.
+   * @param occurrences how many times the URL occurred in the input, 0 if unknown.
+   */
+  public TopRgbResult(String url, int[] colors, long[] errors, long occurrences) {
+    this(url, colors, errors, occurrences, -1L);
+  }
+
+  /**
+   * @param url the image URL.
+   * @param colors packed 24 bit RGB colors, most prevalent first.
+   * @param errors the error bound of each color, or null if the counts are exact.
+   * @param occurrences how many times the URL occurred in the input, 0 if unknown.
+   * @param sequence the position of the URL among the URLs scanned, -1 if not tracked.
+   */
+  public TopRgbResult(String url, int[] colors, long[] errors, long occurrences, long sequence) {
+    this.url = url;
+    this.colors = colors;
+    this.errors = errors;
+    this.occurrences = occurrences;
+    this.sequence = sequence;
+  }
+
+  public String getUrl() {
+    return url;
+  }
+
+  public int[] getColors() {
+    return colors;
+  }
+
+  public long[] getErrors() {
+    return errors;
+  }
+
+  public long getOccurrences() {
+    return occurrences;
+  }
+
+  public long getSequence() {
+    return sequence;
+  }
+
+}
@@ -0,0 +1,111 @@
+package com.seekfirst.toprgb.sorter;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * This class splits an InputStream into lines without decoding them. Each call to next() makes the line available as a
+ * slice of an internal buffer that is only valid until the next call. Lines end with \n, a \r before the \n is dropped
+ * and a last line without a \n is still returned.
+ *
+ * @author David Botterill
+ */
+class ByteLineReader {
+
+  private static final int DEFAULT_BUFFER_SIZE = 1 << 16;
+
+  private final InputStream input;
+  private byte[] buffer;
+  private int position;
+  private int limit;
+  private boolean eof;
+  private int lineOffset;
+  private int lineLength;
+  private long discarded;
+
+  ByteLineReader(InputStream input) {
+    this(input, DEFAULT_BUFFER_SIZE);
+  }
+
+  ByteLineReader(InputStream input, int bufferSize) {
+    this.input = input;
+    this.buffer = new byte[bufferSize];
+  }
+
+  /**
+   * Moves to the next line.
+   *
+   * @return false at the end of the stream.
+   * @throws IOException if the stream can not be read.
+   */
+  boolean next() throws IOException {
+    int scanFrom = position;
+    while (true) {
+      for (int ii = scanFrom; ii < limit; ii++) {
+        if ('\n' == buffer[ii]) {
+          setLine(position, ii);
+          position = ii + 1;
+          return true;
+        }
+      }
+      if (eof) {
+        if (position < limit) {
+          setLine(position, limit);
+          position = limit;
+          return true;
+        }
+        return false;
+      }
+      /**
+       * No complete line left in the buffer. Move the partial line to the front, growing the buffer if the line fills
+       * it, and read more.
+       */
+      int partial = limit - position;
+      if (partial == buffer.length) {
+        byte[] grown = new byte[buffer.length * 2];
+        System.arraycopy(buffer, position, grown, 0, partial);
+        buffer = grown;
+      } else if (position > 0) {
+        System.arraycopy(buffer, position, buffer, 0, partial);
+      }
+      discarded += position;
+      position = 0;
+      limit = partial;
+      scanFrom = partial;
+      int read = input.read(buffer, limit, buffer.length - limit);
+      if (read < 0) {
+        eof = true;
+      } else {
+        limit += read;
+      }
+    }
+  }
+
+  /**
+   * @return the number of bytes of the stream used up to the end of the current line and its newline.
+   */
+  long getConsumed() {
+    return discarded + position;
+  }
+
+  byte[] getBuffer() {
+    return buffer;
+  }
+
+  int getOffset() {
+    return lineOffset;
+  }
+
+  int getLength() {
+    return lineLength;
+  }
+
+  private void setLine(int start, int end) {
+    if (end > start && '\r' == buffer[end - 1]) {
+      end--;
+    }
+    lineOffset = start;
+    lineLength = end - start;
+  }
+
+}
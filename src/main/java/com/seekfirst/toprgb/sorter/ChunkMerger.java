@@ -0,0 +1,177 @@
+package com.seekfirst.toprgb.sorter;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * This class merges sorted spill files into one sorted sequence of distinct lines. The file with the lowest current
+ * line is found with a binary min-heap, so each line costs O(log k) comparisons instead of a scan of all k files.
+ * Lines are compared as unsigned bytes, the same order LineArena sorts in. A line found in several files is returned
+ * once with the occurrence counts of the files added up.
+ * <p>
+ * Call next() to move to each line in turn. The line is a slice of a buffer that is only valid until the next call.
+ * Not thread safe.
+ *
+ * @author David Botterill
+ */
+class ChunkMerger implements Closeable {
+
+  private final SpillFile.Reader[] heap;
+  private final byte[] toKey;
+  private int heapSize;
+  private byte[] line = new byte[256];
+  private int lineLength;
+  private long lineCount;
+
+  /**
+   * Opens every spill file. The caller is responsible for keeping the number of files within the fan-in limit.
+   *
+   * @param spillFiles the sorted spill files.
+   * @throws IOException if a file can not be opened or read.
+   */
+  ChunkMerger(List<File> spillFiles) throws IOException {
+    this(spillFiles, null, null);
+  }
+
+  /**
+   * Opens every spill file to merge only the lines in a key range.
+   *
+   * @param spillFiles the sorted spill files.
+   * @param fromKey the lowest line to merge, or null to start at the first line.
+   * @param toKey the line to stop before, or null to merge to the end.
+   * @throws IOException if a file can not be opened or read.
+   */
+  ChunkMerger(List<File> spillFiles, byte[] fromKey, byte[] toKey) throws IOException {
+    this.heap = new SpillFile.Reader[spillFiles.size()];
+    this.toKey = toKey;
+    try {
+      for (File spillFile : spillFiles) {
+        SpillFile.Reader reader = new SpillFile.Reader(spillFile, fromKey);
+        if (reader.next()) {
+          heap[heapSize++] = reader;
+        } else {
+          reader.close();
+        }
+      }
+    } catch (IOException ex) {
+      close();
+      throw ex;
+    }
+    for (int ii = (heapSize >>> 1) - 1; ii >= 0; ii--) {
+      siftDown(ii);
+    }
+  }
+
+  /**
+   * Moves to the next lowest distinct line.
+   *
+   * @return false when every file has been read.
+   * @throws IOException if a spill file can not be read.
+   */
+  boolean next() throws IOException {
+    if (0 == heapSize) {
+      return false;
+    }
+    SpillFile.Reader top = heap[0];
+    if (null != toKey && Arrays.compareUnsigned(top.getBuffer(), top.getOffset(), top.getOffset() + top.getLength(),
+        toKey, 0, toKey.length) >= 0) {
+      return false;
+    }
+    if (line.length < top.getLength()) {
+      line = new byte[Math.max(top.getLength(), line.length * 2)];
+    }
+    System.arraycopy(top.getBuffer(), top.getOffset(), line, 0, top.getLength());
+    lineLength = top.getLength();
+    lineCount = top.getCount();
+    advance();
+    /**
+     * Every other file holding the same line now has it at the top of the heap.
+     */
+    while (heapSize > 0 && Arrays.equals(heap[0].getBuffer(), heap[0].getOffset(),
+        heap[0].getOffset() + heap[0].getLength(), line, 0, lineLength)) {
+      lineCount += heap[0].getCount();
+      advance();
+    }
+    return true;
+  }
+
+  byte[] getBuffer() {
+    return line;
+  }
+
+  int getOffset() {
+    return 0;
+  }
+
+  int getLength() {
+    return lineLength;
+  }
+
+  /**
+   * @return how many times the current line occurred in the input.
+   */
+  long getCount() {
+    return lineCount;
+  }
+
+  @Override
+  public void close() throws IOException {
+    IOException failure = null;
+    for (int ii = 0; ii < heap.length; ii++) {
+      if (null != heap[ii]) {
+        try {
+          heap[ii].close();
+        } catch (IOException ex) {
+          failure = ex;
+        }
+        heap[ii] = null;
+      }
+    }
+    heapSize = 0;
+    if (null != failure) {
+      throw failure;
+    }
+  }
+
+  /**
+   * Moves the top reader to its next line, dropping it when its file is used up.
+   */
+  private void advance() throws IOException {
+    SpillFile.Reader top = heap[0];
+    if (!top.next()) {
+      top.close();
+      heap[0] = heap[--heapSize];
+      heap[heapSize] = null;
+    }
+    if (heapSize > 0) {
+      siftDown(0);
+    }
+  }
+
+  private void siftDown(int index) {
+    SpillFile.Reader reader = heap[index];
+    int half = heapSize >>> 1;
+    while (index < half) {
+      int child = (index << 1) + 1;
+      int right = child + 1;
+      if (right < heapSize && compare(heap[right], heap[child]) < 0) {
+        child = right;
+      }
+      if (compare(reader, heap[child]) <= 0) {
+        break;
+      }
+      heap[index] = heap[child];
+      index = child;
+    }
+    heap[index] = reader;
+  }
+
+  private static int compare(SpillFile.Reader first, SpillFile.Reader second) {
+    return Arrays.compareUnsigned(first.getBuffer(), first.getOffset(), first.getOffset() + first.getLength(),
+        second.getBuffer(), second.getOffset(), second.getOffset() + second.getLength());
+  }
+
+}
@@ -1,27 +1,35 @@
 package com.seekfirst.toprgb.sorter;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
+import com.seekfirst.toprgb.metrics.PipelineMetrics;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.nio.channels.Channels;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
-import java.nio.channels.ReadableByteChannel;
 import java.nio.file.Files;
 import java.nio.file.Paths;
-import static java.nio.file.StandardOpenOption.*;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
  * This class implements an external "merge" sort to handle files that will potentially be up to 1 billion records.
+ * Repeated lines are collapsed while each chunk is sorted and again while chunks are merged, so the sorted file holds
+ * each distinct line once, optionally followed by a tab and the number of times it occurred. Chunk and intermediate
+ * merge files are written in the front coded SpillFile format.
  *
  * @author David Botterill
  */
@@ -29,7 +37,26 @@ public class ExternalSorter {
 
   private static Logger logger = LoggerFactory.getLogger(ExternalSorter.class);
 
+  /**
+   * Well under the usual limit of 1024 open files per process.
+   */
+  public static final int DEFAULT_MAX_FAN_IN = 64;
+  /**
+   * Without an explicit budget chunks may use this share of the heap, leaving the rest for the index growth, I/O
+   * buffers and whatever else is running.
+   */
+  public static final double DEFAULT_MEMORY_FRACTION = 0.5;
+
   private long chunkSize;
+  private long memoryBudget;
+  private int sortThreads = 1;
+  private int maxFanIn = DEFAULT_MAX_FAN_IN;
+  private boolean countOccurrences;
+  private boolean compressSpills;
+  private long linesRead;
+  private File workDirectory;
+  private SortCheckpoint checkpoint;
+  private PipelineMetrics metrics;
 
   public ExternalSorter(long chunkSize) {
     if (0L == chunkSize) {
@@ -38,6 +65,96 @@ public class ExternalSorter {
     this.chunkSize = chunkSize;
   }
 
+  /**
+   * @param maxFanIn the most chunk files merged, and so open, at once. At least 2.
+   */
+  public void setMaxFanIn(int maxFanIn) {
+    if (maxFanIn < 2) {
+      throw new IllegalArgumentException("Merge fan-in must be at least 2!");
+    }
+    this.maxFanIn = maxFanIn;
+  }
+
+  /**
+   * Sets the memory all live chunks may use together: the one being filled plus the ones being sorted. The chunk size
+   * is this budget split between them, capped by the chunk size given to the constructor.
+   *
+   * @param memoryBudget the budget in bytes, 0 for a share of the maximum heap.
+   */
+  public void setMemoryBudget(long memoryBudget) {
+    this.memoryBudget = memoryBudget;
+  }
+
+  /**
+   * @param sortThreads the most chunks sorted at the same time while the next one is read. At least 1.
+   */
+  public void setSortThreads(int sortThreads) {
+    if (sortThreads < 1) {
+      throw new IllegalArgumentException("Sort threads must be at least 1!");
+    }
+    this.sortThreads = sortThreads;
+  }
+
+  /**
+   * @return the memory budget for chunks, from the setting or the maximum heap.
+   */
+  public long getMemoryBudget() {
+    if (this.memoryBudget > 0L) {
+      return this.memoryBudget;
+    }
+    return (long) (Runtime.getRuntime().maxMemory() * DEFAULT_MEMORY_FRACTION);
+  }
+
+  /**
+   * @return the size of each chunk so that every live chunk fits in the memory budget.
+   */
+  public long getEffectiveChunkSize() {
+    return Math.max(1L, Math.min(this.chunkSize, getMemoryBudget() / (this.sortThreads + 1)));
+  }
+
+  /**
+   * @param countOccurrences true to follow each line of the sorted file, or sorted copy, with a tab and the number of
+   * times it occurred in the input.
+   */
+  public void setCountOccurrences(boolean countOccurrences) {
+    this.countOccurrences = countOccurrences;
+  }
+
+  /**
+   * @param compressSpills true to deflate the blocks of chunk and intermediate merge files.
+   */
+  public void setCompressSpills(boolean compressSpills) {
+    this.compressSpills = compressSpills;
+  }
+
+  /**
+   * @param workDirectory the directory chunk and intermediate merge files are written to, null for the temp directory.
+   */
+  public void setWorkDirectory(File workDirectory) {
+    this.workDirectory = workDirectory;
+  }
+
+  /**
+   * @param checkpoint told about every sort file once it is complete, or null.
+   */
+  public void setCheckpoint(SortCheckpoint checkpoint) {
+    this.checkpoint = checkpoint;
+  }
+
+  /**
+   * @param metrics told the bytes and time of every chunk sorted and every intermediate merge, or null.
+   */
+  public void setMetrics(PipelineMetrics metrics) {
+    this.metrics = metrics;
+  }
+
+  /**
+   * @return the number of lines, repeats included, read from the input by the last sort.
+   */
+  public long getLinesRead() {
+    return linesRead;
+  }
+
   /**
    * This method sorts the given largeInputFilename into a new file sortedFilename.
    *
@@ -45,70 +162,151 @@ public class ExternalSorter {
    * @param sortedFilename Name of the new file to created for the sorted file.
    */
   public void sort(String largeInputFilename, String sortedFilename) {
-    Objects.requireNonNull(largeInputFilename, "Input file name is required!");
     Objects.requireNonNull(sortedFilename, "Output sorted file name is required!");
 
-    try {
-      List<File> sortedChunkFiles = breakDownFile(largeInputFilename, this.chunkSize);
-      externalSort(sortedChunkFiles, sortedFilename);
+    try (SortedUrls sortedUrls = open(largeInputFilename, new File(sortedFilename))) {
+      while (sortedUrls.next()) {
+        /**
+         * Pulling each URL copies it to the sorted file.
+         */
+      }
     } catch (Exception ex) {
       logger.error("Exception: " + ex.getLocalizedMessage(), ex);
     }
 
   }
 
-  protected List<File> breakDownFile(String inputFile, long chunkSize) {
-    ExecutorService executor = Executors.newCachedThreadPool();
-    List<File> returnFiles = new ArrayList<>();
+  /**
+   * Sorts the given largeInputFilename into chunks and runs every merge pass except the last, which is returned to be
+   * pulled one distinct URL at a time.
+   *
+   * @param largeInputFilename Name of the large file to be sorted.
+   * @param sortedCopyFile a text file every pulled URL is also written to, or null for none.
+   * @return the sorted distinct URLs, which must be closed to delete the sort files.
+   * @throws IOException if the sort files can not be written or read.
+   */
+  public SortedUrls open(String largeInputFilename, File sortedCopyFile) throws IOException {
+    return open(largeInputFilename, sortedCopyFile, Collections.emptyList());
+  }
 
-    /**
-     * Break the large file into chunks that will be sorted internally then written to a separate file.
-     */
-    try (BufferedReader reader = Files.newBufferedReader(Paths.get(inputFile))) {
-      String urlLine = null;
-      long byteCount = 0;
-      long lineCount = 0L;
-      List<String> urlChunk = new ArrayList<>();
-      while ((urlLine = reader.readLine()) != null) {
-        lineCount++;
+  /**
+   * Like {@link #open(String, File)}, but picks up an interrupted sort: only the parts of the input not already held by
+   * one of the given chunk files are read and sorted.
+   *
+   * @param largeInputFilename Name of the large file to be sorted.
+   * @param sortedCopyFile a text file every pulled URL is also written to, or null for none.
+   * @param sortedChunks chunk files left by an earlier sort of the same input.
+   * @return the sorted distinct URLs, which must be closed to delete the sort files.
+   * @throws IOException if the sort files can not be written or read.
+   */
+  public SortedUrls open(String largeInputFilename, File sortedCopyFile, List<SortedChunk> sortedChunks)
+      throws IOException {
+    Objects.requireNonNull(largeInputFilename, "Input file name is required!");
+
+    long effectiveChunkSize = getEffectiveChunkSize();
+    logger.info("Sorting in chunks of " + effectiveChunkSize + " bytes, " + this.sortThreads + " sorted at a time "
+        + "within a memory budget of " + getMemoryBudget() + " bytes");
+    List<File> sortedChunkFiles = breakDownFile(largeInputFilename, effectiveChunkSize, sortedChunks);
+    if (null != this.checkpoint) {
+      this.checkpoint.inputSorted();
+    }
+    return openRuns(sortedChunkFiles, sortedCopyFile);
+  }
+
+  /**
+   * Runs every merge pass but the last over files that are already sorted, for example the runs left by an
+   * interrupted sort.
+   *
+   * @param runs the sorted spill files.
+   * @param sortedCopyFile a text file every pulled URL is also written to, or null for none.
+   * @return the sorted distinct URLs, which must be closed to delete the sort files.
+   * @throws IOException if the sort files can not be written or read.
+   */
+  public SortedUrls openRuns(List<File> runs, File sortedCopyFile) throws IOException {
+    return new SortedUrls(this.reduceRuns(runs), sortedCopyFile, this.countOccurrences, this.sortThreads);
+  }
+
+  protected List<File> breakDownFile(String inputFile, long chunkSize) throws IOException {
+    return breakDownFile(inputFile, chunkSize, Collections.emptyList());
+  }
+
+  /**
+   * Breaks the parts of the input not held by the already sorted chunks into new sorted chunk files.
+   *
+   * @return the already sorted chunk files followed by the new ones.
+   * @throws IOException if the input can not be read or any chunk can not be sorted, so no partial sort is merged.
+   */
+  protected List<File> breakDownFile(String inputFile, long chunkSize, List<SortedChunk> sortedChunks)
+      throws IOException {
+    List<File> returnFiles = Collections.synchronizedList(new ArrayList<>());
+    AtomicLong lineCount = new AtomicLong();
+    for (SortedChunk sortedChunk : sortedChunks) {
+      returnFiles.add(sortedChunk.getFile());
+      lineCount.addAndGet(sortedChunk.getLines());
+    }
+    try (FileChannel channel = FileChannel.open(Paths.get(inputFile), StandardOpenOption.READ)) {
+      List<long[]> gaps = uncovered(channel.size(), sortedChunks);
+      if (!sortedChunks.isEmpty()) {
+        logger.info("Reusing " + sortedChunks.size() + " sorted chunks, " + gaps.size() + " parts of the input left");
+      }
+      if (this.sortThreads > 1) {
+        this.breakDownRanges(channel, gaps, chunkSize, returnFiles, lineCount);
+      } else {
+        this.breakDownStream(channel, gaps, chunkSize, returnFiles, lineCount);
+      }
+      if (returnFiles.isEmpty()) {
         /**
-         * While we can't get an exact byte count from a string, will assume a character takes up 2 bytes and use that
-         * as an approximation.
+         * Always at least one chunk file, even for an empty input.
          */
-        byteCount += urlLine.length() * 2;
-        if (byteCount < chunkSize) {
-          /**
-           * If we're less than the byte count, add the URL line to the chunk.
-           */
-          urlChunk.add(urlLine);
-        } else {
-          this.createChunk(executor, returnFiles, urlChunk);
-          /**
-           * Create a new chunk
-           */
-          urlChunk = new ArrayList<>();
-          urlChunk.add(urlLine);
-          /**
-           * Reset byte count to the line just added.
-           */
-          byteCount = urlLine.length() * 2;
-        }
-      }
-      /**
-       * Make sure we write the last chunk.
-       */
-      if (null == urlLine && byteCount < chunkSize) {
-        this.createChunk(executor, returnFiles, urlChunk);
+        this.writeChunk(new LineArena(chunkSize), new SortedChunk(null, 0L, 0L, 0L), returnFiles);
       }
-      logger.debug("Lines read from large file: " + lineCount);
-    } catch (IOException ex) {
-      logger.error("IOException: " + ex.getLocalizedMessage(), ex);
     }
+    logger.debug("Lines read from large file: " + lineCount.get());
+    this.linesRead = lineCount.get();
+    return new ArrayList<>(returnFiles);
+  }
+
+  /**
+   * Reads the input as one stream, sorting each full chunk in the background while the next one is read.
+   */
+  private void breakDownStream(FileChannel channel, List<long[]> gaps, long chunkSize, List<File> returnFiles,
+      AtomicLong lineCount) throws IOException {
+    ExecutorService executor = Executors.newFixedThreadPool(this.sortThreads);
+    List<Future<?>> sorts = new ArrayList<>();
     /**
-     * We'll shutdown the executor so we can go into a wait state waiting for all the worker threads to finish.
+     * One permit per chunk that may be alive at once: the one being filled plus one per sort thread. Reading blocks
+     * here until a sort finishes and its chunk can be collected.
      */
+    Semaphore liveChunks = new Semaphore(this.sortThreads + 1);
+    ChunkSink sink = new ChunkSink() {
+      @Override
+      public LineArena newChunk() throws InterruptedException {
+        liveChunks.acquire();
+        return new LineArena(chunkSize);
+      }
 
+      @Override
+      public void accept(LineArena urlChunk, SortedChunk range) throws IOException {
+        sorts.add(createChunk(executor, liveChunks, returnFiles, urlChunk, range));
+      }
+
+      @Override
+      public void discard(LineArena urlChunk) {
+        liveChunks.release();
+      }
+    };
+
+    /**
+     * Break the large file into chunks that will be sorted internally then written to a separate file. Lines are kept
+     * as raw bytes so the chunk memory is counted exactly rather than guessed from the string length.
+     */
     try {
+      for (long[] gap : gaps) {
+        lineCount.addAndGet(this.readChunks(channel, gap[0], gap[1], sink));
+      }
+      /**
+       * We'll shutdown the executor so we can go into a wait state waiting for all the worker threads to finish.
+       */
       logger.info("Shutting down sorter executor, waiting for threads to finish...");
       executor.shutdown();
 
@@ -117,111 +315,332 @@ public class ExternalSorter {
         logger.info("Sorter Executor terminated gracefully.");
 
       }
+      for (Future<?> sort : sorts) {
+        sort.get();
+      }
     } catch (InterruptedException ex) {
-      logger.error("InterruptedException: " + ex.getLocalizedMessage(), ex);
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while sorting chunks");
+    } catch (ExecutionException ex) {
+      throw new IOException("Sorting a chunk failed: " + ex.getCause().getLocalizedMessage(), ex.getCause());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * Splits the input into newline aligned ranges, one per sort thread when the whole file is left to read. Each range
+   * is read through memory-mapped windows and its chunks are filled, sorted and written by its own worker, so reading
+   * and sorting both run in parallel. Each worker has one live chunk at a time, which keeps the live chunks within the
+   * memory budget.
+   */
+  private void breakDownRanges(FileChannel channel, List<long[]> gaps, long chunkSize, List<File> returnFiles,
+      AtomicLong lineCount) throws IOException {
+    ExecutorService executor = Executors.newFixedThreadPool(this.sortThreads);
+    ChunkSink sink = new ChunkSink() {
+      @Override
+      public LineArena newChunk() {
+        return new LineArena(chunkSize);
+      }
 
-      System.err.println("Executor interupted!");
+      @Override
+      public void accept(LineArena urlChunk, SortedChunk range) throws IOException {
+        writeChunk(urlChunk, range, returnFiles);
+      }
+
+      @Override
+      public void discard(LineArena urlChunk) {
+      }
+    };
+    try {
+      List<long[]> ranges = new ArrayList<>();
+      if (1 == gaps.size() && 0L == gaps.get(0)[0] && channel.size() == gaps.get(0)[1]) {
+        long[] bounds = splitAtLines(channel, this.sortThreads);
+        for (int ii = 0; ii + 1 < bounds.length; ii++) {
+          ranges.add(new long[]{bounds[ii], bounds[ii + 1]});
+        }
+      } else {
+        ranges.addAll(gaps);
+      }
+      logger.debug("Reading " + channel.size() + " bytes in " + ranges.size() + " ranges");
+      List<Future<?>> workers = new ArrayList<>();
+      for (long[] range : ranges) {
+        workers.add(executor.submit(() -> {
+          lineCount.addAndGet(this.readChunks(channel, range[0], range[1], sink));
+          return null;
+        }));
+      }
+      for (Future<?> worker : workers) {
+        worker.get();
+      }
+    } catch (ExecutionException ex) {
+      throw new IOException("Sorting a range failed: " + ex.getCause().getLocalizedMessage(), ex.getCause());
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while sorting ranges");
+    } finally {
+      executor.shutdownNow();
     }
+  }
 
-    return returnFiles;
+  /**
+   * Reads the lines of one range of the input into chunks, handing each full chunk to the sink along with the part of
+   * the input it holds.
+   *
+   * @return the number of lines read.
+   */
+  private long readChunks(FileChannel channel, long start, long end, ChunkSink sink)
+      throws IOException, InterruptedException {
+    try (InputStream input = new MappedRangeInputStream(channel, start, end)) {
+      ByteLineReader reader = new ByteLineReader(input);
+      long lines = 0L;
+      long chunkStart = start;
+      long chunkLines = 0L;
+      long lineStart = start;
+      LineArena urlChunk = sink.newChunk();
+      while (reader.next()) {
+        lines++;
+        if (!urlChunk.add(reader.getBuffer(), reader.getOffset(), reader.getLength())) {
+          sink.accept(urlChunk, new SortedChunk(null, chunkStart, lineStart, chunkLines));
+          /**
+           * Create a new chunk starting with the line that did not fit.
+           */
+          urlChunk = sink.newChunk();
+          urlChunk.add(reader.getBuffer(), reader.getOffset(), reader.getLength());
+          chunkStart = lineStart;
+          chunkLines = 0L;
+        }
+        chunkLines++;
+        lineStart = start + reader.getConsumed();
+      }
+      if (urlChunk.size() > 0) {
+        sink.accept(urlChunk, new SortedChunk(null, chunkStart, lineStart, chunkLines));
+      } else {
+        sink.discard(urlChunk);
+      }
+      return lines;
+    }
   }
 
-  private void createChunk(ExecutorService executor, List<File> returnFiles, List<String> urlChunk) throws IOException {
-    File tempChunk = File.createTempFile("toprgb_", "_tempchunk");
+  private void writeChunk(LineArena urlChunk, SortedChunk range, List<File> returnFiles) throws IOException {
+    File tempChunk = this.createSortFile("_tempchunk");
     returnFiles.add(tempChunk);
-    if (returnFiles.size() % 10 == 0) {
-      logger.debug(returnFiles.size() + " Chunks created...");
+    ExternalSorterTask sorterTask = new ExternalSorterTask(urlChunk, tempChunk, this.compressSpills);
+    long sortStart = System.nanoTime();
+    sorterTask.run();
+    this.chunkSorted(sorterTask, tempChunk, range, sortStart);
+  }
+
+  /**
+   * Tells the checkpoint about a chunk file that was written completely, and the metrics how long it took.
+   *
+   * @throws IOException if the chunk file was not written, which fails the whole sort.
+   */
+  private void chunkSorted(ExternalSorterTask sorterTask, File chunkFile, SortedChunk range, long sortStart)
+      throws IOException {
+    if (!sorterTask.isWritten()) {
+      throw null == sorterTask.getFailure() ? new IOException("Chunk " + chunkFile + " was not written")
+          : sorterTask.getFailure();
+    }
+    if (null != this.metrics) {
+      this.metrics.chunkSorted(range.getEnd() - range.getStart(), System.nanoTime() - sortStart);
+    }
+    if (null != this.checkpoint) {
+      this.checkpoint.chunkSorted(new SortedChunk(chunkFile, range.getStart(), range.getEnd(), range.getLines()));
     }
-    ExternalSorterTask sorterTask = new ExternalSorterTask(urlChunk, tempChunk);
-    executor.submit(sorterTask);
   }
 
-  protected void externalSort(List<File> sortedChunkFiles, String sortedFilename) {
+  private File createSortFile(String suffix) throws IOException {
+    return null == this.workDirectory ? File.createTempFile("toprgb_", suffix)
+        : File.createTempFile("toprgb_", suffix, this.workDirectory);
+  }
 
-    if (1 == sortedChunkFiles.size()) {
-      try {
-        /**
-         * Shortcut for the case where there is only one chunk file. We simply copy that file into the given sorted
-         * file.
-         */
-        ReadableByteChannel readChannel = Channels.newChannel(Files.newInputStream(Paths.get(sortedChunkFiles.get(0).getAbsolutePath())));
-        FileOutputStream fileOS = new FileOutputStream(new File(sortedFilename));
-        FileChannel writeChannel = fileOS.getChannel();
-        writeChannel.transferFrom(readChannel, 0, Long.MAX_VALUE);
-      } catch (IOException ex) {
-        logger.error("IOException: " + ex.getLocalizedMessage(), ex);
+  /**
+   * @return the parts of [0, size) not held by any of the chunks, in order.
+   */
+  static List<long[]> uncovered(long size, List<SortedChunk> chunks) {
+    List<SortedChunk> ordered = new ArrayList<>(chunks);
+    ordered.sort((left, right) -> Long.compare(left.getStart(), right.getStart()));
+    List<long[]> gaps = new ArrayList<>();
+    long position = 0L;
+    for (SortedChunk chunk : ordered) {
+      if (chunk.getStart() > position) {
+        gaps.add(new long[]{position, chunk.getStart()});
       }
-      return;
+      position = Math.max(position, chunk.getEnd());
     }
+    if (position < size || gaps.isEmpty() && chunks.isEmpty()) {
+      gaps.add(new long[]{position, size});
+    }
+    return gaps;
+  }
 
-    boolean allRead = false;
-
-    /**
-     * First establish FileReader instances for each file chunk;
-     */
-    List<FileReader> readers = new ArrayList<>();
-    logger.debug("Sorted filename: " + sortedFilename);
-    try (BufferedWriter writer = Files.newBufferedWriter(Paths.get(sortedFilename), WRITE)) {
-
-      for (File currentFile : sortedChunkFiles) {
-        try {
-          BufferedReader reader = Files.newBufferedReader(Paths.get(currentFile.getAbsolutePath()));
-          readers.add(new FileReader(reader, currentFile.getAbsolutePath()));
-          logger.debug("sorted Chunk filename: " + currentFile.getAbsolutePath());
-        } catch (IOException ex) {
-          logger.error("IOException: " + ex.getLocalizedMessage(), ex);
+  /**
+   * @return parts + 1 positions or fewer, each range between two of them ending just after a newline or at the end
+   * of the file. Ranges that would be empty are left out.
+   */
+  static long[] splitAtLines(FileChannel channel, int parts) throws IOException {
+    long size = channel.size();
+    List<Long> bounds = new ArrayList<>();
+    bounds.add(0L);
+    ByteBuffer probe = ByteBuffer.allocate(4096);
+    for (int ii = 1; ii < parts; ii++) {
+      long position = Math.max(bounds.get(bounds.size() - 1), size * ii / parts);
+      /**
+       * Move forward to just past the next newline, the line that straddles the split belongs to the range before.
+       */
+      long boundary = size;
+      search:
+      while (position < size) {
+        probe.clear();
+        int read = channel.read(probe, position);
+        if (read <= 0) {
+          break;
         }
-
+        for (int jj = 0; jj < read; jj++) {
+          if ('\n' == probe.get(jj)) {
+            boundary = position + jj + 1;
+            break search;
+          }
+        }
+        position += read;
+      }
+      if (boundary < size && boundary > bounds.get(bounds.size() - 1)) {
+        bounds.add(boundary);
       }
+    }
+    bounds.add(size);
+    long[] result = new long[bounds.size()];
+    for (int ii = 0; ii < result.length; ii++) {
+      result[ii] = bounds.get(ii);
+    }
+    return result;
+  }
 
-      /**
-       * Read the first line of every file.
-       */
-      for (FileReader reader : readers) {
-        reader.read();
+  /**
+   * Sorts and writes the chunk on the executor.
+   *
+   * @return the sort, which fails if the chunk could not be written.
+   */
+  private Future<?> createChunk(ExecutorService executor, Semaphore liveChunks, List<File> returnFiles,
+      LineArena urlChunk, SortedChunk range) throws IOException {
+    File tempChunk = this.createSortFile("_tempchunk");
+    returnFiles.add(tempChunk);
+    if (returnFiles.size() % 10 == 0) {
+      logger.debug(returnFiles.size() + " Chunks created...");
+    }
+    ExternalSorterTask sorterTask = new ExternalSorterTask(urlChunk, tempChunk, this.compressSpills);
+    return executor.submit(() -> {
+      try {
+        long sortStart = System.nanoTime();
+        sorterTask.run();
+        this.chunkSorted(sorterTask, tempChunk, range, sortStart);
+        return null;
+      } finally {
+        liveChunks.release();
       }
+    });
+  }
+
+  /**
+   * Takes the chunks read from the input.
+   */
+  private interface ChunkSink {
 
-      String lowestString = "";
-      while (!allRead) {
+    LineArena newChunk() throws InterruptedException;
+
+    void accept(LineArena urlChunk, SortedChunk range) throws IOException;
+
+    void discard(LineArena urlChunk);
+  }
+
+  /**
+   * Merges the sorted chunk spill files into the text file sortedFilename. When there are more chunk files than the
+   * fan-in, groups of them are first merged into intermediate files until few enough are left for the final merge.
+   * The chunk files and any intermediate files are deleted once merged.
+   *
+   * @param sortedChunkFiles the sorted chunk files.
+   * @param sortedFilename the file to write.
+   */
+  protected void externalSort(List<File> sortedChunkFiles, String sortedFilename) {
+    logger.debug("Sorted filename: " + sortedFilename);
+    try (SortedUrls sortedUrls = new SortedUrls(this.reduceRuns(sortedChunkFiles), new File(sortedFilename),
+        this.countOccurrences, this.sortThreads)) {
+      while (sortedUrls.next()) {
         /**
-         * Read through all the file chunks getting the next lowest which will be the next file chunk that is NOT at
-         * EOF.
+         * Pulling each URL copies it to the sorted file.
          */
-        for (FileReader reader : readers) {
-          if (!reader.getEOF()) {
-            lowestString = reader.getCurrentLine();
-            break;
+      }
+    } catch (IOException ex) {
+      logger.error("IOException: " + ex.getLocalizedMessage(), ex);
+    }
+  }
+
+  /**
+   * Runs intermediate merge passes until no more than maxFanIn files are left. The groups of a pass are merged on the
+   * sort threads.
+   */
+  private List<File> reduceRuns(List<File> runs) throws IOException {
+    int pass = 0;
+    while (runs.size() > this.maxFanIn) {
+      pass++;
+      logger.debug("Merge pass " + pass + " over " + runs.size() + " files with a fan-in of " + this.maxFanIn);
+      ExecutorService executor = Executors.newFixedThreadPool(this.sortThreads);
+      try {
+        List<Future<File>> mergedRuns = new ArrayList<>();
+        for (int ii = 0; ii < runs.size(); ii += this.maxFanIn) {
+          List<File> group = runs.subList(ii, Math.min(runs.size(), ii + this.maxFanIn));
+          if (1 == group.size()) {
+            mergedRuns.add(CompletableFuture.completedFuture(group.get(0)));
+            continue;
           }
+          File mergedRun = this.createSortFile("_mergechunk");
+          mergedRuns.add(executor.submit(() -> {
+            this.mergeToSpill(group, mergedRun);
+            return mergedRun;
+          }));
         }
-        /**
-         * Read through each file comparing each row.
-         */
-        for (FileReader reader : readers) {
-          if (!reader.getEOF()) {
-            allRead = false;
-            String currentLine = reader.getCurrentLine();
-            if (currentLine.compareTo(lowestString) <= 0) {
-              writer.write(lowestString);
-              writer.newLine();
-              lowestString = currentLine;
-              reader.read();
-            }
-          } else {
-            allRead = true;
-          }
-
+        List<File> nextRuns = new ArrayList<>();
+        for (Future<File> mergedRun : mergedRuns) {
+          nextRuns.add(mergedRun.get());
         }
+        runs = nextRuns;
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted during merge pass " + pass);
+      } catch (ExecutionException ex) {
+        throw new IOException("Merge pass " + pass + " failed: " + ex.getCause().getLocalizedMessage(), ex.getCause());
+      } finally {
+        executor.shutdownNow();
       }
+    }
+    return runs;
+  }
 
-      /**
-       * Close the readers.
-       */
-      for (FileReader reader : readers) {
-        reader.getReader().close();
+  private void mergeToSpill(List<File> runs, File outputFile) throws IOException {
+    long mergeStart = System.nanoTime();
+    try (ChunkMerger merger = new ChunkMerger(runs);
+        SpillFile.Writer output = new SpillFile.Writer(outputFile, this.compressSpills)) {
+      while (merger.next()) {
+        output.write(merger.getBuffer(), merger.getOffset(), merger.getLength(), merger.getCount());
       }
+    }
+    if (null != this.metrics) {
+      long bytes = 0L;
+      for (File run : runs) {
+        bytes += run.length();
+      }
+      this.metrics.runsMerged(bytes, System.nanoTime() - mergeStart);
+    }
+    if (null != this.checkpoint) {
+      this.checkpoint.runsMerged(runs, outputFile);
+    }
+    deleteRuns(runs);
+  }
 
-    } catch (IOException ex) {
-      logger.error("IOException: " + ex.getLocalizedMessage(), ex);
+  private static void deleteRuns(List<File> runs) throws IOException {
+    for (File run : runs) {
+      Files.deleteIfExists(run.toPath());
     }
   }
 
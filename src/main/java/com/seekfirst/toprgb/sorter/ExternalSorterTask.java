@@ -1,18 +1,12 @@
 package com.seekfirst.toprgb.sorter;
 
-import java.io.BufferedWriter;
 import java.io.File;
 import java.io.IOException;
-import java.nio.file.Files;
-import java.nio.file.Paths;
-import static java.nio.file.StandardOpenOption.*;
-import java.util.Collections;
-import java.util.List;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
- * This class sorts a given array and writes the array out to disk.
+ * This class sorts a given chunk of lines and writes each distinct line out to a spill file on disk.
  *
  * @author David Botterill
  */
@@ -20,29 +14,62 @@ public class ExternalSorterTask implements Runnable {
 
   private static Logger logger = LoggerFactory.getLogger(ExternalSorterTask.class);
 
-  private List<String> urlChunk;
+  private LineArena urlChunk;
   private File outputFile;
+  private boolean compress;
+  private volatile boolean written;
+  private volatile IOException failure;
 
-  public ExternalSorterTask(List<String> urlChunk, File outputFile) {
+  public ExternalSorterTask(LineArena urlChunk, File outputFile) {
+    this(urlChunk, outputFile, false);
+  }
+
+  /**
+   * @param urlChunk the lines to sort.
+   * @param outputFile the spill file to write the distinct lines and their counts to.
+   * @param compress true to deflate the spill file blocks.
+   */
+  public ExternalSorterTask(LineArena urlChunk, File outputFile, boolean compress) {
     this.urlChunk = urlChunk;
     this.outputFile = outputFile;
+    this.compress = compress;
+  }
+
+  /**
+   * @return true once the spill file is completely written and closed.
+   */
+  public boolean isWritten() {
+    return written;
+  }
+
+  /**
+   * @return why the spill file could not be written, or null if it was or the task has not run.
+   */
+  public IOException getFailure() {
+    return failure;
   }
 
   @Override
   public void run() {
 
-    try (BufferedWriter writer = Files.newBufferedWriter(Paths.get(this.outputFile.getAbsolutePath()), WRITE)) {
-      Collections.sort(this.urlChunk);
-
-      for(String urlString : this.urlChunk) {
-        writer.write(urlString);
-        writer.newLine();
-      }
+    try (SpillFile.Writer output = new SpillFile.Writer(this.outputFile, this.compress)) {
+      this.urlChunk.sort();
+      this.urlChunk.writeTo(output);
     } catch (IOException ex) {
       logger.error("IOException: " + ex.getLocalizedMessage(), ex);
+      this.failure = ex;
+      return;
     } catch (RuntimeException ex) {
-       logger.error("RuntimeException: " + ex.getLocalizedMessage(), ex);     
+      logger.error("RuntimeException: " + ex.getLocalizedMessage(), ex);
+      this.failure = new IOException("Sorting " + this.outputFile + " failed: " + ex.getLocalizedMessage(), ex);
+      return;
+    } finally {
+      /**
+       * Let the arena be collected even if something still holds this task.
+       */
+      this.urlChunk = null;
     }
+    this.written = true;
 
   }
 
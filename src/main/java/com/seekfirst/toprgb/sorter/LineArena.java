@@ -0,0 +1,229 @@
+package com.seekfirst.toprgb.sorter;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * This class holds one chunk of lines for the external sort as raw UTF-8 bytes packed into large byte array blocks,
+ * with an index of where each line starts and how long it is. There is no object per line, so a chunk holds several
+ * times more lines than a list of Strings in the same heap, and the memory used can be counted exactly: the line bytes
+ * plus 12 index bytes per line.
+ * <p>
+ * Lines are sorted by unsigned byte value, which for UTF-8 is code point order, with a multikey (three way radix)
+ * quicksort, and repeated lines are written out once.
+ * <p>
+ * Not thread safe.
+ *
+ * @author David Botterill
+ */
+public class LineArena {
+
+  /**
+   * Bytes of index per line, an 8 byte start address and a 4 byte length.
+   */
+  public static final int INDEX_BYTES_PER_LINE = Long.BYTES + Integer.BYTES;
+  private static final int BLOCK_SHIFT = 20;
+  private static final int BLOCK_SIZE = 1 << BLOCK_SHIFT; // 1MB
+  private static final int INSERTION_SORT_THRESHOLD = 12;
+  private static final int MIN_INDEX_CAPACITY = 16;
+
+  private final long capacityBytes;
+  private final List<byte[]> blocks = new ArrayList<>();
+  private byte[] currentBlock;
+  private int blockPosition;
+  /**
+   * A start address is the block number shifted left by BLOCK_SHIFT plus the offset in the block. A line longer than a
+   * block gets a block of its own at offset 0.
+   */
+  private long[] starts;
+  private int[] lengths;
+  private int size;
+  private long memoryUsed;
+
+  /**
+   * @param capacityBytes the most memory, in line bytes plus index bytes, this arena will accept. A single line is
+   * always accepted even if it is larger.
+   */
+  public LineArena(long capacityBytes) {
+    this.capacityBytes = capacityBytes;
+    int indexCapacity = (int) Math.min(MIN_INDEX_CAPACITY, maxLines());
+    this.starts = new long[Math.max(1, indexCapacity)];
+    this.lengths = new int[starts.length];
+  }
+
+  /**
+   * Copies the line into the arena.
+   *
+   * @param line the array holding the line.
+   * @param offset where the line starts.
+   * @param length the line length in bytes.
+   * @return false if the arena is not empty and the line does not fit, in which case nothing is added.
+   */
+  public boolean add(byte[] line, int offset, int length) {
+    long needed = (long) length + INDEX_BYTES_PER_LINE;
+    if (size > 0 && (memoryUsed + needed > capacityBytes || size == Integer.MAX_VALUE - 8)) {
+      return false;
+    }
+    if (size == starts.length) {
+      int grown = (int) Math.min(Integer.MAX_VALUE - 8, Math.max(size + 1L, Math.min(size + (size >> 1), maxLines())));
+      starts = Arrays.copyOf(starts, grown);
+      lengths = Arrays.copyOf(lengths, grown);
+    }
+    long start;
+    if (length > BLOCK_SIZE) {
+      byte[] block = Arrays.copyOfRange(line, offset, offset + length);
+      blocks.add(block);
+      start = (long) (blocks.size() - 1) << BLOCK_SHIFT;
+    } else {
+      if (null == currentBlock || currentBlock.length - blockPosition < length) {
+        /**
+         * Blocks are only as large as the memory left so a small chunk does not allocate a whole block.
+         */
+        long remaining = Math.max(length, capacityBytes - memoryUsed - INDEX_BYTES_PER_LINE);
+        currentBlock = new byte[(int) Math.min(BLOCK_SIZE, remaining)];
+        blocks.add(currentBlock);
+        blockPosition = 0;
+      }
+      System.arraycopy(line, offset, currentBlock, blockPosition, length);
+      start = ((long) (blocks.size() - 1) << BLOCK_SHIFT) | blockPosition;
+      blockPosition += length;
+    }
+    starts[size] = start;
+    lengths[size] = length;
+    size++;
+    memoryUsed += needed;
+    return true;
+  }
+
+  /**
+   * @return the number of lines.
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * @return the line bytes plus index bytes held.
+   */
+  public long memoryUsed() {
+    return memoryUsed;
+  }
+
+  /**
+   * Sorts the lines by unsigned byte value.
+   */
+  public void sort() {
+    sort(0, size, 0);
+  }
+
+  /**
+   * Writes each distinct line once with the number of times it occurred, in the current order. Call after sort() so
+   * duplicates are adjacent.
+   *
+   * @param output the spill file the lines are written to.
+   * @throws IOException if writing fails.
+   */
+  public void writeTo(SpillFile.Writer output) throws IOException {
+    int ii = 0;
+    while (ii < size) {
+      int next = ii + 1;
+      while (next < size && 0 == compare(ii, next, 0)) {
+        next++;
+      }
+      long start = starts[ii];
+      output.write(blocks.get((int) (start >>> BLOCK_SHIFT)), (int) (start & (BLOCK_SIZE - 1)), lengths[ii],
+          next - ii);
+      ii = next;
+    }
+  }
+
+  private long maxLines() {
+    return Math.max(1L, capacityBytes / INDEX_BYTES_PER_LINE);
+  }
+
+  /**
+   * @return the unsigned byte at the depth of the line, or -1 past its end so shorter lines sort first.
+   */
+  private int byteAt(int line, int depth) {
+    if (depth >= lengths[line]) {
+      return -1;
+    }
+    long start = starts[line];
+    return blocks.get((int) (start >>> BLOCK_SHIFT))[(int) (start & (BLOCK_SIZE - 1)) + depth] & 0xff;
+  }
+
+  /**
+   * Multikey quicksort of the lines from lo (inclusive) to hi (exclusive), all of which share their first depth bytes.
+   */
+  private void sort(int lo, int hi, int depth) {
+    while (hi - lo > INSERTION_SORT_THRESHOLD) {
+      int pivot = medianOfThree(byteAt(lo, depth), byteAt(lo + ((hi - lo) >>> 1), depth), byteAt(hi - 1, depth));
+      /**
+       * Partition into lines whose byte at this depth is less than, equal to and greater than the pivot.
+       */
+      int lt = lo;
+      int gt = hi - 1;
+      int ii = lo;
+      while (ii <= gt) {
+        int current = byteAt(ii, depth);
+        if (current < pivot) {
+          swap(lt++, ii++);
+        } else if (current > pivot) {
+          swap(ii, gt--);
+        } else {
+          ii++;
+        }
+      }
+      sort(lo, lt, depth);
+      sort(gt + 1, hi, depth);
+      if (pivot < 0) {
+        /**
+         * The equal lines all ended here so they are identical.
+         */
+        return;
+      }
+      lo = lt;
+      hi = gt + 1;
+      depth++;
+    }
+    insertionSort(lo, hi, depth);
+  }
+
+  private void insertionSort(int lo, int hi, int depth) {
+    for (int ii = lo + 1; ii < hi; ii++) {
+      for (int jj = ii; jj > lo && compare(jj, jj - 1, depth) < 0; jj--) {
+        swap(jj, jj - 1);
+      }
+    }
+  }
+
+  private int compare(int first, int second, int depth) {
+    while (true) {
+      int firstByte = byteAt(first, depth);
+      int secondByte = byteAt(second, depth);
+      if (firstByte != secondByte || firstByte < 0) {
+        return firstByte - secondByte;
+      }
+      depth++;
+    }
+  }
+
+  private static int medianOfThree(int first, int second, int third) {
+    if (first < second) {
+      return second < third ? second : Math.max(first, third);
+    }
+    return first < third ? first : Math.max(second, third);
+  }
+
+  private void swap(int first, int second) {
+    long start = starts[first];
+    starts[first] = starts[second];
+    starts[second] = start;
+    int length = lengths[first];
+    lengths[first] = lengths[second];
+    lengths[second] = length;
+  }
+
+}
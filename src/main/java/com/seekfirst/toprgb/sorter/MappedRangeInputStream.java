@@ -0,0 +1,89 @@
+package com.seekfirst.toprgb.sorter;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * This class reads a byte range of a file through memory-mapped windows. Only one window is mapped at a time and it is
+ * dropped as soon as it has been read, so a worker never holds more than one window of the file. The JDK has no public
+ * unmap, the dropped windows are unmapped when they are collected.
+ * <p>
+ * Closing the stream does not close the channel. Not thread safe, but many streams can share one channel.
+ *
+ * @author David Botterill
+ */
+class MappedRangeInputStream extends InputStream {
+
+  static final long DEFAULT_WINDOW_SIZE = 64L << 20; // 64MB
+
+  private final FileChannel channel;
+  private final long end;
+  private final long windowSize;
+  private long nextWindowStart;
+  private MappedByteBuffer window;
+
+  /**
+   * @param channel the open file.
+   * @param start the first byte to read.
+   * @param end the byte after the last one to read.
+   */
+  MappedRangeInputStream(FileChannel channel, long start, long end) {
+    this(channel, start, end, DEFAULT_WINDOW_SIZE);
+  }
+
+  MappedRangeInputStream(FileChannel channel, long start, long end, long windowSize) {
+    this.channel = channel;
+    this.end = end;
+    this.windowSize = windowSize;
+    this.nextWindowStart = start;
+  }
+
+  @Override
+  public int read() throws IOException {
+    if (!ensureWindow()) {
+      return -1;
+    }
+    return window.get() & 0xff;
+  }
+
+  @Override
+  public int read(byte[] buffer, int offset, int length) throws IOException {
+    if (0 == length) {
+      return 0;
+    }
+    if (!ensureWindow()) {
+      return -1;
+    }
+    int count = Math.min(length, window.remaining());
+    window.get(buffer, offset, count);
+    return count;
+  }
+
+  @Override
+  public void close() {
+    window = null;
+    nextWindowStart = end;
+  }
+
+  /**
+   * Maps the next window once the current one is used up.
+   *
+   * @return false at the end of the range.
+   */
+  private boolean ensureWindow() throws IOException {
+    if (null != window && window.hasRemaining()) {
+      return true;
+    }
+    window = null;
+    if (nextWindowStart >= end) {
+      return false;
+    }
+    long size = Math.min(windowSize, end - nextWindowStart);
+    window = channel.map(FileChannel.MapMode.READ_ONLY, nextWindowStart, size);
+    nextWindowStart += size;
+    return true;
+  }
+
+}
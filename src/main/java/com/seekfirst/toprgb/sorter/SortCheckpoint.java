@@ -0,0 +1,37 @@
+package com.seekfirst.toprgb.sorter;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Told about every sort file once it is completely written, so an interrupted sort can be picked up from the files it
+ * left behind. Called from the sort threads.
+ *
+ * @author David Botterill
+ */
+public interface SortCheckpoint {
+
+  /**
+   * @param chunk a chunk file that is sorted and closed.
+   * @throws IOException if the checkpoint can not be recorded.
+   */
+  void chunkSorted(SortedChunk chunk) throws IOException;
+
+  /**
+   * Called once every line of the input is in a chunk file, before any merge.
+   *
+   * @throws IOException if the checkpoint can not be recorded.
+   */
+  void inputSorted() throws IOException;
+
+  /**
+   * Called after a group of runs is merged and before the runs are deleted.
+   *
+   * @param runs the files merged.
+   * @param merged the file they were merged into.
+   * @throws IOException if the checkpoint can not be recorded.
+   */
+  void runsMerged(List<File> runs, File merged) throws IOException;
+
+}
@@ -0,0 +1,46 @@
+package com.seekfirst.toprgb.sorter;
+
+import java.io.File;
+
+/**
+ * POJO for a sorted chunk file and the byte range of the input whose lines it holds.
+ *
+ * @author David Botterill
+ */
+public final class SortedChunk {
+
+  private final File file;
+  private final long start;
+  private final long end;
+  private final long lines;
+
+  /**
+   * @param file the chunk spill file.
+   * @param start the input position of the chunk's first line.
+   * @param end the input position just after the chunk's last line.
+   * @param lines the number of lines, repeats included, read into the chunk.
+   */
+  public SortedChunk(File file, long start, long end, long lines) {
+    this.file = file;
+    this.start = start;
+    this.end = end;
+    this.lines = lines;
+  }
+
+  public File getFile() {
+    return file;
+  }
+
+  public long getStart() {
+    return start;
+  }
+
+  public long getEnd() {
+    return end;
+  }
+
+  public long getLines() {
+    return lines;
+  }
+
+}
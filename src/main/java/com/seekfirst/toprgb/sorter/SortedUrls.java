@@ -0,0 +1,296 @@
+package com.seekfirst.toprgb.sorter;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * This class is the final merge pass of an external sort, pulled one distinct URL at a time so the caller can start
+ * work on the first URL while the rest is still being merged. Each URL can optionally be copied to a text file as it
+ * is pulled. The merged spill files are deleted on close.
+ * <p>
+ * With more than one merge thread the key space is split into ranges using keys sampled from the spill file indexes.
+ * The caller's thread merges the first range as it pulls, while the other ranges are merged on background threads into
+ * blocks of lines handed over through a small bounded queue per range, read in order once the range before them is
+ * used up. Nothing is written to disk, and a range that gets a few blocks ahead waits for the caller.
+ * <p>
+ * Not thread safe.
+ *
+ * @author David Botterill
+ */
+public class SortedUrls implements Closeable {
+
+  private static Logger logger = LoggerFactory.getLogger(SortedUrls.class);
+
+  private static final int COPY_BUFFER_SIZE = 1 << 20;
+  private static final int RANGE_BLOCK_BYTES = 1 << 18;
+  private static final int RANGE_QUEUE_BLOCKS = 4;
+
+  private final List<File> runs;
+  private final boolean copyCounts;
+  private final List<BlockingQueue<LineBlock>> rangeQueues = new ArrayList<>();
+  private ExecutorService rangeExecutor;
+  private ChunkMerger merger;
+  private int nextRange;
+  private LineBlock block;
+  private int blockLine;
+  private byte[] lineBuffer;
+  private int lineOffset;
+  private int lineLength;
+  private long lineCount;
+  private OutputStream copy;
+  private long urlCount;
+  private boolean keepRuns;
+
+  /**
+   * @param runs the sorted spill files, no more than the fan-in.
+   * @param copyFile a text file to copy every URL to, or null.
+   * @param copyCounts true to follow each copied URL with a tab and its occurrence count.
+   * @throws IOException if a file can not be opened.
+   */
+  SortedUrls(List<File> runs, File copyFile, boolean copyCounts) throws IOException {
+    this(runs, copyFile, copyCounts, 1);
+  }
+
+  /**
+   * @param runs the sorted spill files, no more than the fan-in.
+   * @param copyFile a text file to copy every URL to, or null.
+   * @param copyCounts true to follow each copied URL with a tab and its occurrence count.
+   * @param mergeThreads the number of key ranges merged at the same time, counting the caller's thread.
+   * @throws IOException if a file can not be opened.
+   */
+  SortedUrls(List<File> runs, File copyFile, boolean copyCounts, int mergeThreads) throws IOException {
+    this.runs = runs;
+    this.copyCounts = copyCounts;
+    try {
+      byte[][] splitters = mergeThreads > 1 && runs.size() > 1 ? SpillFile.sampleSplitters(runs, mergeThreads)
+          : new byte[0][];
+      this.merger = new ChunkMerger(runs, null, splitters.length > 0 ? splitters[0] : null);
+      if (splitters.length > 0) {
+        logger.debug("Merging " + (splitters.length + 1) + " key ranges in parallel");
+        rangeExecutor = Executors.newFixedThreadPool(Math.min(mergeThreads - 1, splitters.length));
+        for (int ii = 0; ii < splitters.length; ii++) {
+          byte[] fromKey = splitters[ii];
+          byte[] toKey = ii + 1 < splitters.length ? splitters[ii + 1] : null;
+          BlockingQueue<LineBlock> rangeQueue = new ArrayBlockingQueue<>(RANGE_QUEUE_BLOCKS);
+          rangeQueues.add(rangeQueue);
+          rangeExecutor.execute(() -> mergeRange(runs, fromKey, toKey, rangeQueue));
+        }
+      }
+      if (null != copyFile) {
+        this.copy = new BufferedOutputStream(Files.newOutputStream(copyFile.toPath()), COPY_BUFFER_SIZE);
+      }
+    } catch (IOException ex) {
+      close();
+      throw ex;
+    }
+  }
+
+  /**
+   * Moves to the next distinct URL.
+   *
+   * @return false when every URL has been read.
+   * @throws IOException if a spill file can not be read or the copy written.
+   */
+  public boolean next() throws IOException {
+    if (!nextLine()) {
+      return false;
+    }
+    urlCount++;
+    if (null != copy) {
+      copy.write(lineBuffer, lineOffset, lineLength);
+      if (copyCounts) {
+        copy.write('\t');
+        copy.write(Long.toString(lineCount).getBytes(StandardCharsets.US_ASCII));
+      }
+      copy.write('\n');
+    }
+    return true;
+  }
+
+  /**
+   * Pulls the next line of the first range from the merger, then the lines of the other ranges from their blocks.
+   */
+  private boolean nextLine() throws IOException {
+    if (null != merger) {
+      if (merger.next()) {
+        lineBuffer = merger.getBuffer();
+        lineOffset = merger.getOffset();
+        lineLength = merger.getLength();
+        lineCount = merger.getCount();
+        return true;
+      }
+      merger.close();
+      merger = null;
+    }
+    while (null == block || blockLine == block.size) {
+      if (null != block && block.last) {
+        nextRange++;
+      }
+      if (nextRange >= rangeQueues.size()) {
+        return false;
+      }
+      block = takeBlock(nextRange);
+      blockLine = 0;
+    }
+    lineBuffer = block.bytes;
+    lineOffset = block.offsets[blockLine];
+    lineLength = block.lengths[blockLine];
+    lineCount = block.counts[blockLine];
+    blockLine++;
+    return true;
+  }
+
+  /**
+   * @return the current URL.
+   */
+  public String getUrl() {
+    return new String(lineBuffer, lineOffset, lineLength, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * @return how many times the current URL occurred in the input.
+   */
+  public long getCount() {
+    return lineCount;
+  }
+
+  /**
+   * @return the number of distinct URLs read so far.
+   */
+  public long getUrlCount() {
+    return urlCount;
+  }
+
+  /**
+   * @param keepRuns true to leave the merged spill files on close, so a checkpointed run can pull them again.
+   */
+  public void setKeepRuns(boolean keepRuns) {
+    this.keepRuns = keepRuns;
+  }
+
+  @Override
+  public void close() throws IOException {
+    try {
+      if (null != rangeExecutor) {
+        rangeExecutor.shutdownNow();
+        rangeExecutor.awaitTermination(1L, TimeUnit.MINUTES);
+      }
+      if (null != merger) {
+        merger.close();
+      }
+      if (null != copy) {
+        copy.close();
+      }
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted waiting for range merges to stop");
+    } finally {
+      List<File> sortFiles = keepRuns ? Collections.emptyList() : runs;
+      for (File sortFile : sortFiles) {
+        if (!sortFile.delete() && sortFile.exists()) {
+          logger.error("Could not delete sort file: " + sortFile.getAbsolutePath());
+        }
+      }
+    }
+  }
+
+  private LineBlock takeBlock(int range) throws IOException {
+    LineBlock taken;
+    try {
+      taken = rangeQueues.get(range).take();
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted waiting for a range merge");
+    }
+    if (null != taken.failure) {
+      throw new IOException("Range merge failed: " + taken.failure.getLocalizedMessage(), taken.failure);
+    }
+    return taken;
+  }
+
+  /**
+   * Merges one key range into blocks of lines, waiting while the range's queue is full. The last block is marked, or
+   * replaced by one carrying the failure if the merge fails. Stops quietly when interrupted by close.
+   */
+  private static void mergeRange(List<File> runs, byte[] fromKey, byte[] toKey, BlockingQueue<LineBlock> queue) {
+    try {
+      LineBlock current = new LineBlock(RANGE_BLOCK_BYTES);
+      try (ChunkMerger rangeMerger = new ChunkMerger(runs, fromKey, toKey)) {
+        while (rangeMerger.next()) {
+          if (!current.add(rangeMerger.getBuffer(), rangeMerger.getOffset(), rangeMerger.getLength(),
+              rangeMerger.getCount())) {
+            queue.put(current);
+            current = new LineBlock(Math.max(RANGE_BLOCK_BYTES, rangeMerger.getLength()));
+            current.add(rangeMerger.getBuffer(), rangeMerger.getOffset(), rangeMerger.getLength(),
+                rangeMerger.getCount());
+          }
+        }
+        current.last = true;
+      } catch (IOException ex) {
+        current = new LineBlock(0);
+        current.failure = ex;
+      }
+      queue.put(current);
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Lines of a background range packed into one byte array, with the start, length and count of each.
+   */
+  private static class LineBlock {
+
+    private final byte[] bytes;
+    private int[] offsets = new int[1024];
+    private int[] lengths = new int[1024];
+    private long[] counts = new long[1024];
+    private int size;
+    private int used;
+    private boolean last;
+    private IOException failure;
+
+    LineBlock(int capacity) {
+      this.bytes = new byte[capacity];
+    }
+
+    /**
+     * @return false if the line does not fit and the block is full.
+     */
+    boolean add(byte[] line, int offset, int length, long count) {
+      if (length > bytes.length - used) {
+        return false;
+      }
+      if (size == offsets.length) {
+        offsets = Arrays.copyOf(offsets, size * 2);
+        lengths = Arrays.copyOf(lengths, size * 2);
+        counts = Arrays.copyOf(counts, size * 2);
+      }
+      System.arraycopy(line, offset, bytes, used, length);
+      offsets[size] = used;
+      lengths[size] = length;
+      counts[size] = count;
+      size++;
+      used += length;
+      return true;
+    }
+  }
+
+}
@@ -0,0 +1,498 @@
+package com.seekfirst.toprgb.sorter;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * This class defines the format of the sorter's chunk and intermediate merge files. Sorted lines share long prefixes
+ * (https://i.redd.it/, http://i.imgur.com/ ...) so each line is front coded: the length of the prefix it shares with
+ * the line before, the rest of its bytes and its occurrence count, all lengths as unsigned varints. Lines are grouped
+ * into blocks of about 64KB that can optionally be deflated. Front coding starts over in every block so each block can
+ * be decoded on its own.
+ * <p>
+ * Block layout: a flag byte (0 stored, 1 deflated), the raw length, the stored length, then the stored bytes. After
+ * the last block comes an index block (flag 2) holding the file offset and first line of every block, and the file
+ * ends with the offset of the index block as a long. The index lets a reader start at any key without reading the
+ * blocks before it, and gives the merge sample keys to split its work into ranges.
+ *
+ * @author David Botterill
+ */
+public final class SpillFile {
+
+  static final int BLOCK_SIZE = 1 << 16;
+  private static final int STORED = 0;
+  private static final int DEFLATED = 1;
+  private static final int INDEX = 2;
+  private static final int HEADER_BYTES = 9;
+  private static final int MAX_SAMPLES_PER_FILE = 1024;
+  private static final int IO_BUFFER_SIZE = 1 << 16;
+
+  private SpillFile() {
+  }
+
+  /**
+   * Picks keys that split the lines of the files into ranges of about the same size, from the first lines of their
+   * blocks.
+   *
+   * @param files the sorted spill files.
+   * @param parts the number of ranges wanted.
+   * @return up to parts - 1 distinct keys in ascending order, range i holds the lines from key i - 1 (inclusive) to key
+   * i (exclusive).
+   * @throws IOException if an index can not be read.
+   */
+  public static byte[][] sampleSplitters(List<File> files, int parts) throws IOException {
+    List<byte[]> samples = new ArrayList<>();
+    for (File file : files) {
+      BlockIndex index = BlockIndex.read(file);
+      int step = Math.max(1, index.size() / MAX_SAMPLES_PER_FILE);
+      for (int ii = 0; ii < index.size(); ii += step) {
+        samples.add(index.firstLines[ii]);
+      }
+    }
+    samples.sort(Arrays::compareUnsigned);
+    List<byte[]> splitters = new ArrayList<>();
+    for (int ii = 1; ii < parts; ii++) {
+      byte[] splitter = samples.isEmpty() ? null : samples.get((int) ((long) samples.size() * ii / parts));
+      if (null != splitter && splitter.length > 0 && (splitters.isEmpty()
+          || Arrays.compareUnsigned(splitters.get(splitters.size() - 1), splitter) < 0)) {
+        splitters.add(splitter);
+      }
+    }
+    return splitters.toArray(new byte[splitters.size()][]);
+  }
+
+  /**
+   * Writes sorted lines to a spill file. Not thread safe.
+   */
+  public static class Writer implements Closeable {
+
+    private final DataOutputStream output;
+    private final Deflater deflater;
+    private byte[] block = new byte[BLOCK_SIZE + 1024];
+    private int blockLength;
+    private byte[] compressed;
+    private byte[] previous = new byte[256];
+    private int previousLength;
+    private long bytesWritten;
+    private byte[] index = new byte[1024];
+    private int indexLength;
+
+    /**
+     * @param file the file to write, replaced if it exists.
+     * @param compress true to deflate each block.
+     * @throws IOException if the file can not be opened.
+     */
+    public Writer(File file, boolean compress) throws IOException {
+      this.output = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file.toPath()),
+          IO_BUFFER_SIZE));
+      this.deflater = compress ? new Deflater(Deflater.BEST_SPEED) : null;
+    }
+
+    /**
+     * Appends a line. Lines must be written in sorted order for front coding to pay off, but any order reads back.
+     *
+     * @param line the array holding the line.
+     * @param offset where the line starts.
+     * @param length the line length in bytes.
+     * @param count how many times the line occurred.
+     * @throws IOException if a full block can not be written.
+     */
+    public void write(byte[] line, int offset, int length, long count) throws IOException {
+      if (0 == blockLength) {
+        addIndexEntry(line, offset, length);
+      }
+      int shared = 0;
+      int limit = Math.min(length, previousLength);
+      while (shared < limit && previous[shared] == line[offset + shared]) {
+        shared++;
+      }
+      int suffix = length - shared;
+      ensureBlockCapacity(suffix + 20);
+      putVarint(shared);
+      putVarint(suffix);
+      System.arraycopy(line, offset + shared, block, blockLength, suffix);
+      blockLength += suffix;
+      putVarint(count);
+
+      if (previous.length < length) {
+        previous = Arrays.copyOf(previous, Math.max(length, previous.length * 2));
+      }
+      System.arraycopy(line, offset + shared, previous, shared, suffix);
+      previousLength = length;
+      if (blockLength >= BLOCK_SIZE) {
+        flushBlock();
+      }
+    }
+
+    /**
+     * @return the bytes written to the file so far, headers included.
+     */
+    public long getBytesWritten() {
+      return bytesWritten;
+    }
+
+    @Override
+    public void close() throws IOException {
+      try {
+        flushBlock();
+        long indexOffset = bytesWritten;
+        output.writeByte(INDEX);
+        output.writeInt(indexLength);
+        output.writeInt(indexLength);
+        output.write(index, 0, indexLength);
+        output.writeLong(indexOffset);
+        bytesWritten += HEADER_BYTES + indexLength + Long.BYTES;
+        output.close();
+      } finally {
+        if (null != deflater) {
+          deflater.end();
+        }
+      }
+    }
+
+    private void flushBlock() throws IOException {
+      if (0 == blockLength) {
+        return;
+      }
+      int flag = STORED;
+      byte[] stored = block;
+      int storedLength = blockLength;
+      if (null != deflater) {
+        if (null == compressed || compressed.length < blockLength) {
+          compressed = new byte[blockLength];
+        }
+        deflater.reset();
+        deflater.setInput(block, 0, blockLength);
+        deflater.finish();
+        int deflatedLength = deflater.deflate(compressed, 0, compressed.length);
+        /**
+         * Keep the block stored if deflating did not make it smaller.
+         */
+        if (deflater.finished() && deflatedLength < blockLength) {
+          flag = DEFLATED;
+          stored = compressed;
+          storedLength = deflatedLength;
+        }
+      }
+      output.writeByte(flag);
+      output.writeInt(blockLength);
+      output.writeInt(storedLength);
+      output.write(stored, 0, storedLength);
+      bytesWritten += HEADER_BYTES + storedLength;
+      blockLength = 0;
+      previousLength = 0;
+    }
+
+    /**
+     * Records where the block about to start will be written and its first line.
+     */
+    private void addIndexEntry(byte[] line, int offset, int length) {
+      if (index.length - indexLength < length + 20) {
+        index = Arrays.copyOf(index, Math.max(index.length * 2, indexLength + length + 20));
+      }
+      indexLength = SpillFile.putVarint(index, indexLength, bytesWritten);
+      indexLength = SpillFile.putVarint(index, indexLength, length);
+      System.arraycopy(line, offset, index, indexLength, length);
+      indexLength += length;
+    }
+
+    private void ensureBlockCapacity(int needed) {
+      if (block.length - blockLength < needed) {
+        block = Arrays.copyOf(block, Math.max(block.length * 2, blockLength + needed));
+      }
+    }
+
+    private void putVarint(long value) {
+      blockLength = SpillFile.putVarint(block, blockLength, value);
+    }
+
+  }
+
+  /**
+   * Reads the lines of a spill file back in order. Each line is a slice of a buffer that is only valid until the next
+   * call to next(). Not thread safe.
+   */
+  public static class Reader implements Closeable {
+
+    private final DataInputStream input;
+    private final Inflater inflater = new Inflater();
+    /**
+     * Cleared at the first line not lower than it, the lines after that are all higher.
+     */
+    private byte[] fromKey;
+    private boolean ended;
+    private byte[] block = new byte[BLOCK_SIZE + 1024];
+    private int blockLength;
+    private int blockPosition;
+    private byte[] stored;
+    private byte[] line = new byte[256];
+    private int lineLength;
+    private long count;
+
+    /**
+     * @param file the spill file to read.
+     * @throws IOException if the file can not be opened.
+     */
+    public Reader(File file) throws IOException {
+      this(file, null);
+    }
+
+    /**
+     * Opens the file at the first line that is not lower than fromKey. The block to start in is found with a binary
+     * search of the index, so the blocks before it are never read.
+     *
+     * @param file the spill file to read.
+     * @param fromKey the lowest line to return, or null to read from the start.
+     * @throws IOException if the file or its index can not be read.
+     */
+    public Reader(File file, byte[] fromKey) throws IOException {
+      this.fromKey = fromKey;
+      long startOffset = 0L;
+      if (null != fromKey) {
+        BlockIndex index = BlockIndex.read(file);
+        /**
+         * Start in the last block whose first line is lower than the key, the key can only be there or later.
+         */
+        int low = 0;
+        int high = index.size() - 1;
+        int start = 0;
+        while (low <= high) {
+          int middle = (low + high) >>> 1;
+          if (Arrays.compareUnsigned(index.firstLines[middle], fromKey) < 0) {
+            start = middle;
+            low = middle + 1;
+          } else {
+            high = middle - 1;
+          }
+        }
+        startOffset = index.size() > 0 ? index.offsets[start] : index.indexOffset;
+      }
+      FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+      channel.position(startOffset);
+      this.input = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel), IO_BUFFER_SIZE));
+    }
+
+    /**
+     * Moves to the next line.
+     *
+     * @return false at the end of the file.
+     * @throws IOException if the file can not be read or is corrupt.
+     */
+    public boolean next() throws IOException {
+      while (nextLine()) {
+        if (null == fromKey) {
+          return true;
+        }
+        if (Arrays.compareUnsigned(line, 0, lineLength, fromKey, 0, fromKey.length) >= 0) {
+          fromKey = null;
+          return true;
+        }
+      }
+      return false;
+    }
+
+    private boolean nextLine() throws IOException {
+      if (blockPosition == blockLength && !readBlock()) {
+        return false;
+      }
+      int shared = (int) getVarint();
+      int suffix = (int) getVarint();
+      if (shared > lineLength || suffix > blockLength - blockPosition) {
+        throw new IOException("Corrupt spill file block");
+      }
+      if (line.length < shared + suffix) {
+        line = Arrays.copyOf(line, Math.max(shared + suffix, line.length * 2));
+      }
+      System.arraycopy(block, blockPosition, line, shared, suffix);
+      blockPosition += suffix;
+      lineLength = shared + suffix;
+      count = getVarint();
+      return true;
+    }
+
+    public byte[] getBuffer() {
+      return line;
+    }
+
+    public int getOffset() {
+      return 0;
+    }
+
+    public int getLength() {
+      return lineLength;
+    }
+
+    /**
+     * @return how many times the current line occurred.
+     */
+    public long getCount() {
+      return count;
+    }
+
+    @Override
+    public void close() throws IOException {
+      try {
+        input.close();
+      } finally {
+        inflater.end();
+      }
+    }
+
+    private boolean readBlock() throws IOException {
+      if (ended) {
+        return false;
+      }
+      int flag = input.read();
+      if (flag < 0 || INDEX == flag) {
+        ended = true;
+        return false;
+      }
+      int rawLength = input.readInt();
+      int storedLength = input.readInt();
+      if (block.length < rawLength) {
+        block = new byte[rawLength];
+      }
+      if (DEFLATED == flag) {
+        if (null == stored || stored.length < storedLength) {
+          stored = new byte[storedLength];
+        }
+        input.readFully(stored, 0, storedLength);
+        inflater.reset();
+        inflater.setInput(stored, 0, storedLength);
+        try {
+          if (inflater.inflate(block, 0, rawLength) != rawLength) {
+            throw new IOException("Corrupt deflated spill file block");
+          }
+        } catch (DataFormatException ex) {
+          throw new IOException("Corrupt deflated spill file block", ex);
+        }
+      } else if (STORED == flag) {
+        input.readFully(block, 0, rawLength);
+      } else {
+        throw new IOException("Unknown spill file block type " + flag);
+      }
+      blockLength = rawLength;
+      blockPosition = 0;
+      lineLength = 0;
+      return true;
+    }
+
+    private long getVarint() throws IOException {
+      long value = 0L;
+      for (int shift = 0; shift < 64; shift += 7) {
+        if (blockPosition >= blockLength) {
+          throw new EOFException("Truncated spill file block");
+        }
+        byte next = block[blockPosition++];
+        value |= (long) (next & 0x7f) << shift;
+        if (next >= 0) {
+          return value;
+        }
+      }
+      throw new IOException("Corrupt varint in spill file block");
+    }
+
+  }
+
+  static int putVarint(byte[] buffer, int position, long value) {
+    while ((value & ~0x7fL) != 0L) {
+      buffer[position++] = (byte) ((value & 0x7f) | 0x80);
+      value >>>= 7;
+    }
+    buffer[position++] = (byte) value;
+    return position;
+  }
+
+  /**
+   * The offsets and first lines of the blocks of one file, read from its index block.
+   */
+  private static class BlockIndex {
+
+    private final long indexOffset;
+    private final long[] offsets;
+    private final byte[][] firstLines;
+
+    private BlockIndex(long indexOffset, long[] offsets, byte[][] firstLines) {
+      this.indexOffset = indexOffset;
+      this.offsets = offsets;
+      this.firstLines = firstLines;
+    }
+
+    int size() {
+      return offsets.length;
+    }
+
+    static BlockIndex read(File file) throws IOException {
+      try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+        ByteBuffer footer = ByteBuffer.allocate(Long.BYTES);
+        readFully(channel, footer, channel.size() - Long.BYTES);
+        long indexOffset = footer.getLong(0);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+        readFully(channel, header, indexOffset);
+        if (INDEX != header.get(0)) {
+          throw new IOException("Spill file has no index: " + file.getAbsolutePath());
+        }
+        byte[] data = new byte[header.getInt(1)];
+        readFully(channel, ByteBuffer.wrap(data), indexOffset + HEADER_BYTES);
+
+        List<Long> offsets = new ArrayList<>();
+        List<byte[]> firstLines = new ArrayList<>();
+        int[] position = new int[1];
+        while (position[0] < data.length) {
+          offsets.add(getVarint(data, position));
+          int length = (int) getVarint(data, position);
+          firstLines.add(Arrays.copyOfRange(data, position[0], position[0] + length));
+          position[0] += length;
+        }
+        long[] offsetArray = new long[offsets.size()];
+        for (int ii = 0; ii < offsetArray.length; ii++) {
+          offsetArray[ii] = offsets.get(ii);
+        }
+        return new BlockIndex(indexOffset, offsetArray, firstLines.toArray(new byte[firstLines.size()][]));
+      }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+      while (buffer.hasRemaining()) {
+        int read = channel.read(buffer, position + buffer.position());
+        if (read < 0) {
+          throw new EOFException("Truncated spill file");
+        }
+      }
+    }
+
+    private static long getVarint(byte[] data, int[] position) throws IOException {
+      long value = 0L;
+      for (int shift = 0; shift < 64; shift += 7) {
+        if (position[0] >= data.length) {
+          throw new EOFException("Truncated spill file index");
+        }
+        byte next = data[position[0]++];
+        value |= (long) (next & 0x7f) << shift;
+        if (next >= 0) {
+          return value;
+        }
+      }
+      throw new IOException("Corrupt varint in spill file index");
+    }
+
+  }
+
+}
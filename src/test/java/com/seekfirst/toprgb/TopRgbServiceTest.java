@@ -1,10 +1,20 @@
 package com.seekfirst.toprgb;
 
+import com.seekfirst.toprgb.counter.ColorHistogram;
+import com.seekfirst.toprgb.counter.DenseColorHistogram;
+import com.seekfirst.toprgb.output.ResultWriter;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.File;
 import java.net.URL;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 import javax.imageio.ImageIO;
+import javax.imageio.stream.ImageInputStream;
 import static org.junit.Assert.*;
 import org.junit.Test;
 
@@ -29,7 +39,7 @@ public class TopRgbServiceTest {
     assertTrue(!topCounts.isEmpty());
     assertEquals(1, topCounts.size());
     assertEquals("#ffffff", topCounts.get(0).getHexColor());
-    assertEquals(new Long(691200), topCounts.get(0).getCount());
+    assertEquals(691200L, topCounts.get(0).getCount());
 
   }
 
@@ -87,4 +97,118 @@ public class TopRgbServiceTest {
 
   }
 
+  @Test
+  public void testFindTopRgbConfiguredTopCount() throws Exception {
+
+    TopRgbTask task = new TopRgbTask(null, null, 2);
+
+    List<CountPair> topCounts = new ArrayList<>(2);
+    URL resource = getClass().getClassLoader().getResource("test1_4_colors.jpg");
+    BufferedImage urlImage = ImageIO.read(resource);
+    task.findTopRgb(topCounts, urlImage);
+
+    assertEquals(2, topCounts.size());
+    assertEquals("#69a84f", topCounts.get(0).getHexColor());
+    assertEquals("#ffff00", topCounts.get(1).getHexColor());
+    assertTrue(topCounts.get(0).getCount() >= topCounts.get(1).getCount());
+
+  }
+
+  @Test
+  public void testFindTopRgbDecodedInStrips() throws Exception {
+
+    URL resource = getClass().getClassLoader().getResource("FApqk3D.jpg");
+
+    TopRgbTask wholeTask = new TopRgbTask(null, null, 5);
+    List<CountPair> wholeCounts = new ArrayList<>(5);
+    wholeTask.findTopRgb(wholeCounts, ImageIO.read(resource));
+
+    TopRgbTask stripTask = new TopRgbTask(null, null, 5);
+    stripTask.setStripPixels(10000);
+    List<CountPair> stripCounts = new ArrayList<>(5);
+    try (ImageInputStream imageInput = ImageIO.createImageInputStream(resource.openStream())) {
+      assertTrue(stripTask.findTopRgb(stripCounts, imageInput));
+    }
+
+    assertEquals(5, stripCounts.size());
+    assertEquals(wholeCounts, stripCounts);
+
+  }
+
+  @Test
+  public void testTiledLargeImageIsCountedIntoDenseHistogram() throws Exception {
+
+    int side = 1 << 11;
+    long pixelCount = (long) side * side;
+    assertTrue(pixelCount >= ColorHistogram.DENSE_PIXEL_THRESHOLD);
+    BufferedImage image = new BufferedImage(side, side, BufferedImage.TYPE_INT_RGB);
+    int[] pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+    for (int ii = 0; ii < pixels.length; ii++) {
+      pixels[ii] = ii & 0xffff;
+    }
+
+    TopRgbTask task = new TopRgbTask(null, null);
+    ForkJoinPool pool = new ForkJoinPool(4);
+    try {
+      task.setParallelCounting(pool, 1L);
+      ColorHistogram histogram = task.countPixels(null, image, side, pixelCount);
+      assertTrue(histogram instanceof DenseColorHistogram);
+      assertEquals(1 << 16, histogram.size());
+      assertEquals(64, histogram.count(0x00ffff));
+      /**
+       * A later strip of the same image is counted into the same histogram.
+       */
+      assertSame(histogram, task.countPixels(histogram, image, side / 2, pixelCount));
+      assertEquals(96, histogram.count(0x00ffff));
+    } finally {
+      pool.shutdown();
+    }
+
+  }
+
+  @Test
+  public void testRunWritesCsvRow() throws Exception {
+
+    URL resource = getClass().getClassLoader().getResource("test1_4_colors.jpg");
+    File output = File.createTempFile("toprgb_", "_testcsv");
+    output.deleteOnExit();
+    ResultWriter writer = createResultWriter(output);
+
+    TopRgbTask task = new TopRgbTask(resource.toString(), writer);
+    task.run();
+    writer.close();
+
+    assertEquals(resource.toString() + ",#69a84f,#ffff00,#fe0000\n", Files.readString(output.toPath()));
+
+  }
+
+  @Test
+  public void testPipelineRunsEveryTask() throws Exception {
+
+    URL resource = getClass().getClassLoader().getResource("test1_4_colors.jpg");
+    File output = File.createTempFile("toprgb_", "_testcsv");
+    output.deleteOnExit();
+    ResultWriter writer = createResultWriter(output);
+
+    ScanPipeline pipeline = new ScanPipeline(2, 2, 1);
+    for (int ii = 0; ii < 20; ii++) {
+      pipeline.submit(new TopRgbTask(resource.toString() + "?" + ii, writer));
+    }
+    pipeline.submit(new TopRgbTask("file:///does/not/exist.jpg", writer));
+    pipeline.finish();
+    writer.close();
+
+    String[] rows = Files.readString(output.toPath()).split("\n");
+    assertEquals(20, rows.length);
+    for (String row : rows) {
+      assertTrue(row.endsWith(",#69a84f,#ffff00,#fe0000"));
+    }
+
+  }
+
+  private ResultWriter createResultWriter(File output) throws Exception {
+    FileChannel channel = FileChannel.open(output.toPath(), StandardOpenOption.WRITE);
+    return new ResultWriter(channel, 3, false, ResultWriter.DEFAULT_BUFFER_SIZE, 10L, ResultWriter.FsyncPolicy.NONE);
+  }
+
 }
@@ -0,0 +1,78 @@
+package com.seekfirst.toprgb.cache;
+
+import com.seekfirst.toprgb.dedup.ContentHasher;
+import com.seekfirst.toprgb.output.TopRgbResult;
+import java.util.Random;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ *
+ * @author David Botterill
+ */
+public class ContentResultTableTest {
+
+  @Test
+  public void testColorsAreFoundByHash() {
+
+    ContentResultTable table = new ContentResultTable(1 << 16, 3, true);
+    table.put(11L, 12L, new int[]{0x0a0b0c, 0xffffff}, new long[]{0L, 5L});
+    table.put(0L, 0L, new int[]{0x000000}, new long[]{1L});
+
+    TopRgbResult result = table.get(11L, 12L);
+    assertArrayEquals(new int[]{0x0a0b0c, 0xffffff}, result.getColors());
+    assertArrayEquals(new long[]{0L, 5L}, result.getErrors());
+    assertArrayEquals(new int[]{0x000000}, table.get(0L, 0L).getColors());
+    assertNull(table.get(11L, 13L));
+    assertEquals(2L, table.getHits());
+
+  }
+
+  @Test
+  public void testTableStaysWithinItsCapacity() {
+
+    ContentResultTable table = new ContentResultTable(4096, 3, false);
+    assertTrue(table.getCapacityBytes() <= 4096);
+    Random random = new Random(21);
+    for (int ii = 0; ii < 10000; ii++) {
+      table.put(random.nextLong(), random.nextLong(), new int[]{ii, ii, ii}, null);
+    }
+    /**
+     * The last image put is always kept.
+     */
+    table.put(5L, 6L, new int[]{1, 2, 3}, null);
+    assertArrayEquals(new int[]{1, 2, 3}, table.get(5L, 6L).getColors());
+
+  }
+
+  @Test
+  public void testHashDoesNotDependOnPieceSizes() {
+
+    byte[] body = new byte[1000];
+    new Random(3).nextBytes(body);
+    ContentHasher whole = new ContentHasher();
+    whole.update(body, 0, body.length);
+    whole.finish();
+
+    ContentHasher pieces = new ContentHasher();
+    for (int offset = 0, piece = 1; offset < body.length; offset += piece, piece = piece % 23 + 1) {
+      pieces.update(body, offset, Math.min(piece, body.length - offset));
+    }
+    pieces.finish();
+    assertEquals(whole.getHigh(), pieces.getHigh());
+    assertEquals(whole.getLow(), pieces.getLow());
+
+    body[999] ^= 1;
+    ContentHasher changed = new ContentHasher();
+    changed.update(body, 0, body.length);
+    changed.finish();
+    assertNotEquals(whole.getHigh(), changed.getHigh());
+
+    ContentHasher empty = new ContentHasher();
+    empty.finish();
+    assertEquals(0L, empty.getHigh());
+    assertEquals(0L, empty.getLow());
+
+  }
+
+}
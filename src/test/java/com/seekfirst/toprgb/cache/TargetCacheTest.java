@@ -0,0 +1,62 @@
+package com.seekfirst.toprgb.cache;
+
+import com.seekfirst.toprgb.output.TopRgbResult;
+import java.io.File;
+import java.nio.file.Files;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ *
+ * @author David Botterill
+ */
+public class TargetCacheTest {
+
+  @Test
+  public void testLeastRecentlyUsedTargetIsEvicted() {
+
+    TargetCache cache = new TargetCache(160);
+    for (int ii = 0; ii < 1000; ii++) {
+      cache.put("http://host/" + ii, new int[]{ii}, null);
+      /**
+       * Keep the first target in use.
+       */
+      assertNotNull(cache.get("http://host/0"));
+    }
+    assertTrue(cache.size() <= 160);
+    assertArrayEquals(new int[]{999}, cache.get("http://host/999").getColors());
+    assertNull(cache.get("http://host/500"));
+    assertEquals(1001L, cache.getHits());
+
+  }
+
+  @Test
+  public void testTargetsAreSavedAndLoaded() throws Exception {
+
+    File cacheFile = File.createTempFile("toprgb_", "_testcache");
+    cacheFile.deleteOnExit();
+    Files.delete(cacheFile.toPath());
+
+    try (TargetCache cache = new TargetCache(100, cacheFile, 2, true)) {
+      cache.put("http://host/a.jpg", new int[]{0x0a0b0c, 0xffffff}, new long[]{0L, 4L});
+      cache.put("http://host/caf\u00e9.jpg", new int[]{0x000000}, new long[]{1L});
+    }
+
+    try (TargetCache cache = new TargetCache(100, cacheFile, 2, true)) {
+      assertEquals(2, cache.size());
+      TopRgbResult result = cache.get("http://host/a.jpg");
+      assertArrayEquals(new int[]{0x0a0b0c, 0xffffff}, result.getColors());
+      assertArrayEquals(new long[]{0L, 4L}, result.getErrors());
+      assertArrayEquals(new int[]{0x000000}, cache.get("http://host/caf\u00e9.jpg").getColors());
+    }
+
+    /**
+     * Colors counted with other settings are not reused.
+     */
+    try (TargetCache cache = new TargetCache(100, cacheFile, 3, true)) {
+      assertEquals(0, cache.size());
+    }
+
+  }
+
+}
@@ -0,0 +1,97 @@
+package com.seekfirst.toprgb.cache;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.time.Duration;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ *
+ * @author David Botterill
+ */
+public class UrlResultCacheTest {
+
+  @Test
+  public void testEntriesAreKeptAcrossRuns() throws Exception {
+
+    File cacheFile = File.createTempFile("toprgb_", "_testurlcache");
+    cacheFile.deleteOnExit();
+    Files.delete(cacheFile.toPath());
+
+    try (UrlResultCache cache = new UrlResultCache(cacheFile, 1 << 16, UrlResultCache.Eviction.LRU,
+        Duration.ofHours(1), 2, true)) {
+      cache.put("http://a", new UrlResultCache.Entry("http://b", "\"v1\"", null, true, 7L, 8L,
+          new int[]{0x123456, 0xabcdef}, new long[]{1L, 2L}));
+      cache.put("http://c", new UrlResultCache.Entry("http://c", null, "Sat, 17 Oct 2026 10:00:00 GMT", false, 0L, 0L,
+          new int[]{0x0000ff}, new long[]{0L}));
+      /**
+       * A newer record hides the older one.
+       */
+      cache.put("http://c", new UrlResultCache.Entry("http://c", null, "Sun, 18 Oct 2026 10:00:00 GMT", false, 0L, 0L,
+          new int[]{0x00ff00}, new long[]{3L}));
+    }
+
+    try (UrlResultCache cache = new UrlResultCache(cacheFile, 1 << 16, UrlResultCache.Eviction.LRU,
+        Duration.ofHours(1), 2, true)) {
+      assertEquals(2, cache.size());
+      UrlResultCache.Entry entry = cache.get("http://a");
+      assertEquals("http://b", entry.getTarget());
+      assertEquals("\"v1\"", entry.getEtag());
+      assertNull(entry.getLastModified());
+      assertTrue(entry.isSameContent(7L, 8L));
+      assertFalse(entry.isSameContent(7L, 9L));
+      assertArrayEquals(new int[]{0x123456, 0xabcdef}, entry.getColors());
+      assertArrayEquals(new long[]{1L, 2L}, entry.getErrors());
+      entry = cache.get("http://c");
+      assertEquals("http://c", entry.getTarget());
+      assertEquals("Sun, 18 Oct 2026 10:00:00 GMT", entry.getLastModified());
+      assertFalse(entry.isSameContent(0L, 0L));
+      assertArrayEquals(new int[]{0x00ff00}, entry.getColors());
+    }
+
+    /**
+     * Other settings start the file again, a time to live of zero expires everything.
+     */
+    try (UrlResultCache cache = new UrlResultCache(cacheFile, 1 << 16, UrlResultCache.Eviction.LRU,
+        Duration.ofHours(1), 3, true)) {
+      assertEquals(0, cache.size());
+      cache.put("http://a", new UrlResultCache.Entry("http://a", null, null, false, 0L, 0L, new int[]{1}, null));
+    }
+    try (UrlResultCache cache = new UrlResultCache(cacheFile, 1 << 16, UrlResultCache.Eviction.LRU,
+        Duration.ZERO, 3, true)) {
+      assertEquals(0, cache.size());
+      assertNull(cache.get("http://a"));
+    }
+  }
+
+  @Test
+  public void testFullCacheCompactsAndEvictsLeastRecentlyUsed() throws Exception {
+
+    File cacheFile = File.createTempFile("toprgb_", "_testurlcache");
+    cacheFile.deleteOnExit();
+
+    try (UrlResultCache cache = new UrlResultCache(cacheFile, 8192, UrlResultCache.Eviction.LRU,
+        Duration.ofHours(1), 3, false)) {
+      for (int ii = 0; ii < 2000; ii++) {
+        cache.put("http://host/" + ii, new UrlResultCache.Entry("http://host/" + ii, "\"" + ii + "\"", null, false,
+            0L, 0L, new int[]{ii, ii, ii}, null));
+        /**
+         * Keep the first URL in use.
+         */
+        assertNotNull(cache.get("http://host/0"));
+      }
+      assertTrue(cache.size() < 2000);
+      assertArrayEquals(new int[]{1999, 1999, 1999}, cache.get("http://host/1999").getColors());
+      assertNull(cache.get("http://host/1000"));
+    }
+    assertTrue(cacheFile.length() <= 8192);
+
+    try (UrlResultCache cache = new UrlResultCache(cacheFile, 8192, UrlResultCache.Eviction.FIFO,
+        Duration.ofHours(1), 3, false)) {
+      assertEquals("\"0\"", cache.get("http://host/0").getEtag());
+      assertEquals("\"1999\"", cache.get("http://host/1999").getEtag());
+    }
+  }
+
+}
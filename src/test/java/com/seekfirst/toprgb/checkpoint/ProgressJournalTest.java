@@ -0,0 +1,152 @@
+package com.seekfirst.toprgb.checkpoint;
+
+import com.seekfirst.toprgb.sorter.SortedChunk;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashSet;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ *
+ * @author David Botterill
+ */
+public class ProgressJournalTest {
+
+  @Test
+  public void testJournalReplaysSortAndScan() throws Exception {
+
+    File input = File.createTempFile("toprgb_", "_testinput");
+    input.deleteOnExit();
+    Files.write(input.toPath(), "http://a\nhttp://b\n".getBytes(StandardCharsets.UTF_8));
+    File journalFile = File.createTempFile("toprgb_", "_testjournal");
+    File workDirectory = new File(journalFile.getPath() + ".work");
+
+    try (ProgressJournal journal = ProgressJournal.create(journalFile, workDirectory, input)) {
+      File first = new File(workDirectory, "first");
+      File second = new File(workDirectory, "second");
+      File merged = new File(workDirectory, "merged");
+      File third = new File(workDirectory, "third");
+      for (File file : Arrays.asList(first, second, third)) {
+        assertTrue(file.createNewFile());
+      }
+      journal.chunkSorted(new SortedChunk(first, 0L, 9L, 1L));
+      journal.chunkSorted(new SortedChunk(second, 9L, 18L, 1L));
+      journal.chunkSorted(new SortedChunk(third, 18L, 18L, 0L));
+      journal.inputSorted();
+      assertTrue(merged.createNewFile());
+      journal.runsMerged(Arrays.asList(first, second), merged);
+      journal.scanned(10L, 500L, 400L);
+      journal.scanned(20L, 900L, 850L);
+    }
+    /**
+     * A record cut short by a crash.
+     */
+    Files.write(journalFile.toPath(), "scanned 30 12".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+
+    try (ProgressJournal journal = ProgressJournal.resume(journalFile, workDirectory, input, 800L)) {
+      assertTrue(journal.isInputSorted());
+      assertEquals(new HashSet<>(Arrays.asList(new File(workDirectory, "third"), new File(workDirectory, "merged"))),
+          new HashSet<>(journal.getRuns()));
+      /**
+       * The output file is shorter than the last scan record says, so the one before it is used.
+       */
+      assertEquals(10L, journal.getScanNext());
+      assertEquals(500L, journal.getOutputLength());
+      assertEquals(400L, journal.getRescanFrom());
+      journal.finish();
+    }
+    assertFalse(journalFile.exists());
+    assertFalse(workDirectory.exists());
+  }
+
+  @Test
+  public void testMissingSortFileStartsTheSortAgain() throws Exception {
+
+    File input = File.createTempFile("toprgb_", "_testinput");
+    input.deleteOnExit();
+    Files.write(input.toPath(), "http://a\n".getBytes(StandardCharsets.UTF_8));
+    File journalFile = File.createTempFile("toprgb_", "_testjournal");
+    File workDirectory = new File(journalFile.getPath() + ".work");
+
+    try (ProgressJournal journal = ProgressJournal.create(journalFile, workDirectory, input)) {
+      journal.chunkSorted(new SortedChunk(new File(workDirectory, "gone"), 0L, 9L, 1L));
+      journal.inputSorted();
+    }
+    try (ProgressJournal journal = ProgressJournal.resume(journalFile, workDirectory, input, 0L)) {
+      assertFalse(journal.isInputSorted());
+      assertTrue(journal.getSortedChunks().isEmpty());
+      assertTrue(journal.getRuns().isEmpty());
+      journal.finish();
+    }
+  }
+
+  @Test
+  public void testJournalCompactsScanRecords() throws Exception {
+
+    File input = File.createTempFile("toprgb_", "_testinput");
+    input.deleteOnExit();
+    Files.write(input.toPath(), "http://a\nhttp://b\n".getBytes(StandardCharsets.UTF_8));
+    File journalFile = File.createTempFile("toprgb_", "_testjournal");
+    File workDirectory = new File(journalFile.getPath() + ".work");
+
+    long scans = 3L * ProgressJournal.COMPACT_SCANNED_RECORDS + 5L;
+    try (ProgressJournal journal = ProgressJournal.create(journalFile, workDirectory, input)) {
+      File first = new File(workDirectory, "first");
+      File second = new File(workDirectory, "second");
+      File merged = new File(workDirectory, "merged");
+      File third = new File(workDirectory, "third");
+      for (File file : Arrays.asList(first, second, third, merged)) {
+        assertTrue(file.createNewFile());
+      }
+      journal.chunkSorted(new SortedChunk(first, 0L, 9L, 1L));
+      journal.chunkSorted(new SortedChunk(second, 9L, 18L, 1L));
+      journal.chunkSorted(new SortedChunk(third, 18L, 18L, 0L));
+      journal.inputSorted();
+      journal.runsMerged(Arrays.asList(first, second), merged);
+      for (long ii = 1L; ii <= scans; ii++) {
+        journal.scanned(ii, ii * 10L, ii * 10L - 5L);
+      }
+    }
+    /**
+     * The header, the two sort files left, the sorted record, the scan record kept by the last compaction and the ones
+     * since.
+     */
+    assertEquals(5 + 5, Files.readAllLines(journalFile.toPath()).size());
+
+    try (ProgressJournal journal = ProgressJournal.resume(journalFile, workDirectory, input, scans * 10L)) {
+      assertTrue(journal.isInputSorted());
+      assertEquals(new HashSet<>(Arrays.asList(new File(workDirectory, "third"), new File(workDirectory, "merged"))),
+          new HashSet<>(journal.getRuns()));
+      assertEquals(scans, journal.getScanNext());
+      assertEquals(scans * 10L, journal.getOutputLength());
+      assertEquals(scans * 10L - 5L, journal.getRescanFrom());
+      assertEquals(5, Files.readAllLines(journalFile.toPath()).size());
+      journal.finish();
+    }
+  }
+
+  @Test
+  public void testJournalOfAnotherInputIsRefused() throws Exception {
+
+    File input = File.createTempFile("toprgb_", "_testinput");
+    input.deleteOnExit();
+    File journalFile = File.createTempFile("toprgb_", "_testjournal");
+    File workDirectory = new File(journalFile.getPath() + ".work");
+    ProgressJournal.create(journalFile, workDirectory, input).close();
+
+    Files.write(input.toPath(), "http://changed\n".getBytes(StandardCharsets.UTF_8));
+    try {
+      ProgressJournal.resume(journalFile, workDirectory, input, 0L).close();
+      fail("A journal of another input must not be resumed");
+    } catch (java.io.IOException ex) {
+      assertTrue(ex.getMessage().contains("another input"));
+    } finally {
+      ProgressJournal.create(journalFile, workDirectory, input).finish();
+    }
+  }
+
+}
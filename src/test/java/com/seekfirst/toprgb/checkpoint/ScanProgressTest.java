@@ -0,0 +1,64 @@
+package com.seekfirst.toprgb.checkpoint;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ *
+ * @author David Botterill
+ */
+public class ScanProgressTest {
+
+  @Test
+  public void testOnlyUrlsDoneInOrderAreRecorded() throws Exception {
+
+    File input = File.createTempFile("toprgb_", "_testinput");
+    input.deleteOnExit();
+    File journalFile = File.createTempFile("toprgb_", "_testjournal");
+    File workDirectory = new File(journalFile.getPath() + ".work");
+
+    try (ProgressJournal journal = ProgressJournal.create(journalFile, workDirectory, input)) {
+      ScanProgress progress = new ScanProgress(journal, 0L);
+      /**
+       * Enough URLs in flight to grow the window.
+       */
+      for (long ii = 0; ii < 3000; ii++) {
+        progress.submitted(ii, ii < 2 ? 0L : 100L);
+      }
+      progress.written(new long[]{1L, -1L}, 2, 100L);
+      assertEquals(0L, progress.getNext());
+      progress.completed(0L);
+      progress.written(new long[]{2L}, 1, 150L);
+      assertEquals(3L, progress.getNext());
+      for (long ii = 2999; ii >= 3; ii--) {
+        progress.completed(ii);
+      }
+      assertEquals(3000L, progress.getNext());
+      progress.written(new long[0], 0, 150L);
+    }
+
+    List<String> records = Files.readAllLines(journalFile.toPath());
+    assertEquals(Arrays.asList("scanned 3 150 100", "scanned 3000 150 150"), records.subList(1, records.size()));
+    ProgressJournal.create(journalFile, workDirectory, input).finish();
+  }
+
+  @Test
+  public void testUrlsAreReadFromRows() throws Exception {
+
+    File output = File.createTempFile("toprgb_", "_testoutput");
+    output.deleteOnExit();
+    String skipped = "http://skipped,#ff0000,#00ff00,3\n";
+    String rows = "http://a/b?x=1,2,#ff0000,#00ff00,1\n" + "http://c,#ff0000,,2\n";
+    Files.write(output.toPath(), (skipped + rows).getBytes(StandardCharsets.UTF_8));
+
+    assertEquals(new HashSet<>(Arrays.asList("http://a/b?x=1,2", "http://c")),
+        ScanProgress.readUrls(output, skipped.length(), skipped.length() + rows.length(), 3));
+  }
+
+}
@@ -0,0 +1,124 @@
+package com.seekfirst.toprgb.counter;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ *
+ * @author David Botterill
+ */
+public class ColorHistogramTest {
+
+  @Test
+  public void testHashHistogramCountsBlackAndGrows() throws Exception {
+
+    ColorHistogram histogram = new HashColorHistogram();
+    Map<Integer, Integer> expected = new HashMap<>();
+    Random random = new Random(42);
+
+    histogram.increment(0xff000000);
+    expected.put(0, 1);
+    for (int ii = 0; ii < 100000; ii++) {
+      int rgb = random.nextInt(1 << 16) * 251;
+      histogram.increment(rgb);
+      expected.merge(rgb & 0xffffff, 1, Integer::sum);
+    }
+
+    assertEquals(expected.size(), histogram.size());
+    for (Map.Entry<Integer, Integer> entry : expected.entrySet()) {
+      assertEquals(entry.getValue().intValue(), histogram.count(entry.getKey()));
+    }
+    Map<Integer, Integer> visited = new HashMap<>();
+    histogram.forEach((rgb, count) -> visited.put(rgb, (int) count));
+    assertEquals(expected, visited);
+
+  }
+
+  @Test
+  public void testDenseHistogramMatchesHashHistogram() throws Exception {
+
+    ColorHistogram dense = new DenseColorHistogram();
+    ColorHistogram hash = new HashColorHistogram();
+    Random random = new Random(7);
+
+    for (int ii = 0; ii < 50000; ii++) {
+      int rgb = random.nextInt(4096);
+      assertEquals(hash.increment(rgb), dense.increment(rgb));
+    }
+    dense.add(0xffffff, 3);
+    hash.add(0xffffff, 3);
+
+    assertEquals(hash.size(), dense.size());
+    hash.forEach((rgb, count) -> assertEquals(count, dense.count(rgb)));
+
+  }
+
+  @Test
+  public void testCreateGoesDenseBeforeTheTableOutgrowsTheArray() {
+
+    assertTrue(ColorHistogram.create(ColorHistogram.DENSE_PIXEL_THRESHOLD - 1) instanceof HashColorHistogram);
+    assertTrue(ColorHistogram.create(ColorHistogram.DENSE_PIXEL_THRESHOLD) instanceof DenseColorHistogram);
+    /**
+     * A 12MP photo is counted in the dense array.
+     */
+    assertTrue(ColorHistogram.create(4000L * 3000L) instanceof DenseColorHistogram);
+
+  }
+
+  @Test
+  public void testSelectTopColorsOrdersByCountThenColor() throws Exception {
+
+    ColorHistogram histogram = new HashColorHistogram();
+    histogram.add(0x00ff00, 5);
+    histogram.add(0xff0000, 9);
+    histogram.add(0x0000ff, 5);
+    histogram.add(0x123456, 1);
+    histogram.add(0x000000, 7);
+
+    long[] top = TopColorSelector.select(histogram, 4);
+
+    assertEquals(4, top.length);
+    assertEquals(0xff0000, TopColorSelector.rgb(top[0]));
+    assertEquals(9L, TopColorSelector.count(top[0]));
+    assertEquals(0x000000, TopColorSelector.rgb(top[1]));
+    assertEquals(0x0000ff, TopColorSelector.rgb(top[2]));
+    assertEquals(0x00ff00, TopColorSelector.rgb(top[3]));
+    assertEquals(5, TopColorSelector.select(histogram, 10).length);
+
+  }
+
+  @Test
+  public void testSpaceSavingFindsHeavyHittersWithinErrorBound() throws Exception {
+
+    ColorHistogram exact = new HashColorHistogram();
+    ColorHistogram approximate = new SpaceSavingHistogram(64);
+    Random random = new Random(3);
+
+    int pixels = 200000;
+    for (int ii = 0; ii < pixels; ii++) {
+      int rgb = random.nextInt(10) < 4 ? random.nextInt(3) : random.nextInt(50000);
+      exact.increment(rgb);
+      approximate.increment(rgb);
+    }
+
+    assertEquals(64, approximate.size());
+    for (int rgb = 0; rgb < 3; rgb++) {
+      assertTrue(approximate.count(rgb) > 0);
+    }
+    approximate.forEach((rgb, count) -> {
+      int error = approximate.error(rgb);
+      assertTrue(count - error <= exact.count(rgb));
+      assertTrue(exact.count(rgb) <= count);
+      assertTrue(error <= pixels / 64);
+    });
+    long[] top = TopColorSelector.select(approximate, 3);
+    for (long entry : top) {
+      assertTrue(TopColorSelector.rgb(entry) < 3);
+    }
+
+  }
+
+}
@@ -0,0 +1,133 @@
+package com.seekfirst.toprgb.counter;
+
+import java.awt.image.BufferedImage;
+import java.net.URL;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import javax.imageio.ImageIO;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ *
+ * @author David Botterill
+ */
+public class PixelScannerTest {
+
+  private static final int[] IMAGE_TYPES = {
+    BufferedImage.TYPE_3BYTE_BGR,
+    BufferedImage.TYPE_INT_RGB,
+    BufferedImage.TYPE_INT_ARGB,
+    BufferedImage.TYPE_BYTE_GRAY,
+    BufferedImage.TYPE_BYTE_INDEXED,
+    BufferedImage.TYPE_USHORT_565_RGB
+  };
+
+  @Test
+  public void testScannerMatchesGetRgbForEveryImageType() throws Exception {
+
+    Random random = new Random(11);
+    for (int imageType : IMAGE_TYPES) {
+      BufferedImage image = new BufferedImage(37, 23, imageType);
+      for (int y = 0; y < image.getHeight(); y++) {
+        for (int x = 0; x < image.getWidth(); x++) {
+          image.setRGB(x, y, random.nextInt(8) * 0x1f3d5b);
+        }
+      }
+      assertSameCounts(image);
+      assertSameCounts(image.getSubimage(5, 3, 20, 17));
+    }
+
+  }
+
+  @Test
+  public void testScannerMatchesGetRgbForJpeg() throws Exception {
+
+    URL resource = getClass().getClassLoader().getResource("FApqk3D.jpg");
+    BufferedImage image = ImageIO.read(resource);
+
+    assertEquals(BufferedImage.TYPE_3BYTE_BGR, image.getType());
+    assertSameCounts(image);
+
+  }
+
+  @Test
+  public void testTiledCountMatchesSingleThreadCount() throws Exception {
+
+    URL resource = getClass().getClassLoader().getResource("xae65ypfqycy.jpg");
+    PixelScanner scanner = new PixelScanner(ImageIO.read(resource));
+
+    ColorHistogram expected = new HashColorHistogram();
+    scanner.count(expected);
+    ForkJoinPool pool = new ForkJoinPool(4);
+    try {
+      ColorHistogram actual = new TiledColorCounter(pool, 5000).count(scanner);
+      assertEquals(expected.size(), actual.size());
+      expected.forEach((rgb, count) -> assertEquals(count, actual.count(rgb)));
+    } finally {
+      pool.shutdown();
+    }
+
+  }
+
+  @Test
+  public void testTiledApproximateCountKeepsErrorBound() throws Exception {
+
+    /**
+     * A few heavy colors spread over the whole image, and a long tail that differs from tile to tile so every tile
+     * summary misses colors the others count.
+     */
+    BufferedImage image = new BufferedImage(400, 300, BufferedImage.TYPE_INT_RGB);
+    Random random = new Random(11);
+    for (int y = 0; y < image.getHeight(); y++) {
+      for (int x = 0; x < image.getWidth(); x++) {
+        int rgb = random.nextInt(10) < 3 ? random.nextInt(4) : 0x100 + y * 64 + random.nextInt(200);
+        image.setRGB(x, y, rgb);
+      }
+    }
+    PixelScanner scanner = new PixelScanner(image);
+    ColorHistogram exact = new HashColorHistogram();
+    scanner.count(exact);
+
+    int counters = 32;
+    long pixels = (long) image.getWidth() * image.getHeight();
+    ForkJoinPool pool = new ForkJoinPool(4);
+    try {
+      ColorHistogram approximate = new TiledColorCounter(pool, 4000, () -> new SpaceSavingHistogram(counters))
+          .count(scanner);
+      assertEquals(counters, approximate.size());
+      approximate.forEach((rgb, count) -> {
+        int error = approximate.error(rgb);
+        assertTrue("count " + count + " error " + error + " exact " + exact.count(rgb),
+            count - error <= exact.count(rgb));
+        assertTrue(exact.count(rgb) <= count);
+      });
+      exact.forEach((rgb, count) -> {
+        if (count > pixels / counters) {
+          assertTrue(approximate.count(rgb) > 0);
+        }
+      });
+      for (long entry : TopColorSelector.select(approximate, 4)) {
+        assertTrue(TopColorSelector.rgb(entry) < 4);
+      }
+    } finally {
+      pool.shutdown();
+    }
+
+  }
+
+  private void assertSameCounts(BufferedImage image) {
+    ColorHistogram expected = new HashColorHistogram();
+    for (int x = 0; x < image.getWidth(); x++) {
+      for (int y = 0; y < image.getHeight(); y++) {
+        expected.increment(image.getRGB(x, y));
+      }
+    }
+    ColorHistogram actual = new HashColorHistogram();
+    new PixelScanner(image).count(actual);
+
+    assertEquals("image type " + image.getType(), expected.size(), actual.size());
+    expected.forEach((rgb, count) -> assertEquals(count, actual.count(rgb)));
+  }
+
+}
@@ -0,0 +1,40 @@
+package com.seekfirst.toprgb.dedup;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ *
+ * @author David Botterill
+ */
+public class UrlFingerprintSetTest {
+
+  @Test
+  public void testRepeatsAreFoundAcrossGrowth() throws Exception {
+
+    /**
+     * Sized far too small so the table has to grow several times.
+     */
+    try (UrlFingerprintSet seen = new UrlFingerprintSet(10)) {
+      int distinct = 300000;
+      for (int ii = 0; ii < distinct; ii++) {
+        assertTrue(seen.add("http://host/image/" + ii + ".jpg"));
+      }
+      for (int ii = 0; ii < distinct; ii += 7) {
+        assertFalse(seen.add("http://host/image/" + ii + ".jpg"));
+      }
+      assertTrue(seen.add("http://host/image/" + distinct + ".jpg"));
+      assertEquals(distinct + 1, seen.size());
+    }
+  }
+
+  @Test
+  public void testFingerprintUsesEveryChar() {
+
+    assertNotEquals(Fingerprints.fingerprint("http://a/1"), Fingerprints.fingerprint("http://a/2"));
+    assertNotEquals(Fingerprints.fingerprint("http://a/1234"), Fingerprints.fingerprint("http://a/1235"));
+    assertNotEquals(Fingerprints.fingerprint(""), Fingerprints.fingerprint("\u0000"));
+    assertEquals(Fingerprints.fingerprint("http://a/b"), Fingerprints.fingerprint(new StringBuilder("http://a/b")));
+  }
+
+}
@@ -0,0 +1,99 @@
+package com.seekfirst.toprgb.fetch;
+
+import java.io.ByteArrayInputStream;
+import java.util.Random;
+import javax.imageio.stream.ImageInputStream;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ *
+ * @author David Botterill
+ */
+public class DownloadBufferTest {
+
+  @Test
+  public void testInMemoryBodyReadsBackWithSeeks() throws Exception {
+
+    BufferPool pool = new BufferPool(16, 4);
+    byte[] body = randomBody(100);
+
+    try (DownloadBuffer download = new DownloadBuffer(pool, 1000)) {
+      download.readFrom(new ByteArrayInputStream(body));
+      assertEquals(100, download.size());
+      assertFalse(download.isSpilled());
+      try (ImageInputStream input = download.newImageInputStream()) {
+        assertBody(body, input);
+      }
+    }
+
+  }
+
+  @Test
+  public void testLargeBodySpillsToDisk() throws Exception {
+
+    BufferPool pool = new BufferPool(16, 4);
+    byte[] body = randomBody(1000);
+
+    try (DownloadBuffer download = new DownloadBuffer(pool, 100)) {
+      download.readFrom(new ByteArrayInputStream(body));
+      assertEquals(1000, download.size());
+      assertTrue(download.isSpilled());
+      try (ImageInputStream input = download.newImageInputStream()) {
+        assertBody(body, input);
+      }
+      download.reset();
+      assertEquals(0, download.size());
+      assertFalse(download.isSpilled());
+    }
+
+  }
+
+  @Test
+  public void testBodySpillsOnceThePoolIsUsedUp() throws Exception {
+
+    BufferPool pool = new BufferPool(16, 4, 4);
+    byte[] body = randomBody(100);
+
+    try (DownloadBuffer first = new DownloadBuffer(pool, 1000);
+        DownloadBuffer second = new DownloadBuffer(pool, 1000)) {
+      first.readFrom(new ByteArrayInputStream(body, 0, 40));
+      assertFalse(first.isSpilled());
+      assertEquals(3, pool.getChunksInUse());
+      /**
+       * The second body gets the last chunk and is then spilled, long before its own threshold.
+       */
+      second.readFrom(new ByteArrayInputStream(body));
+      assertTrue(second.isSpilled());
+      assertEquals(4, pool.getChunksInUse());
+      try (ImageInputStream input = second.newImageInputStream()) {
+        assertBody(body, input);
+      }
+    }
+    assertEquals(0, pool.getChunksInUse());
+
+  }
+
+  private byte[] randomBody(int length) {
+    byte[] body = new byte[length];
+    new Random(5).nextBytes(body);
+    return body;
+  }
+
+  private void assertBody(byte[] body, ImageInputStream input) throws Exception {
+    assertEquals(body.length, input.length());
+    byte[] read = new byte[body.length];
+    input.readFully(read);
+    assertArrayEquals(body, read);
+    assertEquals(-1, input.read());
+    input.seek(37);
+    assertEquals(body[37] & 0xff, input.read());
+    byte[] middle = new byte[20];
+    input.seek(10);
+    input.readFully(middle);
+    for (int ii = 0; ii < middle.length; ii++) {
+      assertEquals(body[10 + ii], middle[ii]);
+    }
+  }
+
+}
@@ -0,0 +1,217 @@
+package com.seekfirst.toprgb.fetch;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpTimeoutException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import javax.imageio.stream.ImageInputStream;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Runs the fetcher against a local com.sun.net.httpserver stand-in.
+ *
+ * @author David Botterill
+ */
+public class HttpFetcherTest {
+
+  private HttpServer server;
+  private URI base;
+  private byte[] body;
+
+  @Before
+  public void setUp() throws Exception {
+    body = new byte[300000];
+    new Random(9).nextBytes(body);
+
+    server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    server.createContext("/image.jpg", exchange -> {
+      exchange.sendResponseHeaders(200, body.length);
+      try (OutputStream output = exchange.getResponseBody()) {
+        output.write(body);
+      }
+    });
+    server.createContext("/tagged.jpg", exchange -> {
+      exchange.getResponseHeaders().add("ETag", "\"v1\"");
+      if ("\"v1\"".equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+        exchange.sendResponseHeaders(304, -1);
+        exchange.close();
+        return;
+      }
+      exchange.sendResponseHeaders(200, body.length);
+      try (OutputStream output = exchange.getResponseBody()) {
+        output.write(body);
+      }
+    });
+    server.createContext("/first", exchange -> redirect(exchange, 302, "second"));
+    server.createContext("/second", exchange -> redirect(exchange, 301, "/image.jpg"));
+    server.createContext("/loop", exchange -> redirect(exchange, 307, "/loop"));
+    server.createContext("/missing", exchange -> {
+      exchange.sendResponseHeaders(404, -1);
+      exchange.close();
+    });
+    server.createContext("/stall", exchange -> {
+      exchange.sendResponseHeaders(200, 10);
+      try {
+        Thread.sleep(2000);
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+      }
+      exchange.close();
+    });
+    server.createContext("/trickle", exchange -> {
+      exchange.sendResponseHeaders(200, 0);
+      try (OutputStream output = exchange.getResponseBody()) {
+        for (int ii = 0; ii < 200; ii++) {
+          output.write(body, 0, 1024);
+          output.flush();
+          Thread.sleep(10);
+        }
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+      }
+    });
+    server.start();
+    base = URI.create("http://127.0.0.1:" + server.getAddress().getPort() + "/");
+  }
+
+  @After
+  public void tearDown() {
+    server.stop(0);
+  }
+
+  @Test
+  public void testFetchFollowsRedirectChain() throws Exception {
+
+    HttpFetcher fetcher = new HttpFetcher();
+    try (DownloadBuffer download = new DownloadBuffer(new BufferPool(1 << 12, 8), 1 << 20)) {
+      URI finalUri = fetcher.fetch(base.resolve("first"), download);
+
+      assertEquals(base.resolve("/image.jpg"), finalUri);
+      assertEquals(body.length, download.size());
+      try (ImageInputStream input = download.newImageInputStream()) {
+        byte[] read = new byte[body.length];
+        input.readFully(read);
+        assertArrayEquals(body, read);
+      }
+    }
+
+  }
+
+  @Test(expected = IOException.class)
+  public void testFetchStopsRedirectLoop() throws Exception {
+
+    HttpFetcher fetcher = new HttpFetcher(Duration.ofSeconds(5), Duration.ofSeconds(5), 3);
+    try (DownloadBuffer download = new DownloadBuffer(new BufferPool(1 << 12, 8), 1 << 20)) {
+      fetcher.fetch(base.resolve("loop"), download);
+    }
+
+  }
+
+  @Test(expected = IOException.class)
+  public void testFetchFailsOnErrorStatus() throws Exception {
+
+    HttpFetcher fetcher = new HttpFetcher();
+    try (DownloadBuffer download = new DownloadBuffer(new BufferPool(1 << 12, 8), 1 << 20)) {
+      fetcher.fetch(base.resolve("missing"), download);
+    }
+
+  }
+
+  @Test
+  public void testFetchStopsAtKnownRedirectTarget() throws Exception {
+
+    HttpFetcher fetcher = new HttpFetcher();
+    List<URI> tested = new ArrayList<>();
+    try (DownloadBuffer download = new DownloadBuffer(new BufferPool(1 << 12, 8), 1 << 20)) {
+      URI target = fetcher.fetch(base.resolve("first"), download, uri -> {
+        tested.add(uri);
+        return uri.getPath().equals("/second");
+      });
+      assertEquals(base.resolve("second"), target);
+      assertEquals(0L, download.size());
+    }
+    assertEquals(Arrays.asList(base.resolve("first"), base.resolve("second")), tested);
+
+  }
+
+  @Test
+  public void testFetchRevalidatesWithEtag() throws Exception {
+
+    HttpFetcher fetcher = new HttpFetcher();
+    Validators validators = new Validators();
+    try (DownloadBuffer download = new DownloadBuffer(new BufferPool(1 << 12, 8), 1 << 20)) {
+      fetcher.fetch(base.resolve("tagged.jpg"), download, uri -> false, validators);
+      assertFalse(validators.isNotModified());
+      assertEquals("\"v1\"", validators.getEtag());
+      assertEquals(base.resolve("tagged.jpg"), validators.getTarget());
+      assertEquals(body.length, download.size());
+    }
+    try (DownloadBuffer download = new DownloadBuffer(new BufferPool(1 << 12, 8), 1 << 20)) {
+      fetcher.fetch(base.resolve("tagged.jpg"), download, uri -> false, validators);
+      assertTrue(validators.isNotModified());
+      assertEquals("\"v1\"", validators.getEtag());
+      assertEquals(0L, download.size());
+    }
+
+  }
+
+  @Test(expected = HttpTimeoutException.class)
+  public void testFetchTimesOutStalledBody() throws Exception {
+
+    HttpFetcher fetcher = new HttpFetcher(Duration.ofSeconds(5), Duration.ofMillis(300), 3);
+    try (DownloadBuffer download = new DownloadBuffer(new BufferPool(1 << 12, 8), 1 << 20)) {
+      fetcher.fetch(base.resolve("stall"), download);
+    }
+
+  }
+
+  @Test
+  public void testInterruptedFetchStopsWritingTheBuffer() throws Exception {
+
+    HttpFetcher fetcher = new HttpFetcher(Duration.ofSeconds(5), Duration.ofSeconds(5), 3);
+    try (DownloadBuffer download = new DownloadBuffer(new BufferPool(1 << 12, 8), 1 << 20)) {
+      List<Throwable> failures = new ArrayList<>();
+      Thread fetching = new Thread(() -> {
+        try {
+          fetcher.fetch(base.resolve("trickle"), download);
+        } catch (IOException | InterruptedException ex) {
+          failures.add(ex);
+        }
+      });
+      fetching.start();
+      Thread.sleep(300);
+      fetching.interrupt();
+      fetching.join(5000);
+      assertFalse(fetching.isAlive());
+      assertEquals(1, failures.size());
+      assertTrue(failures.get(0) instanceof InterruptedException);
+
+      /**
+       * The body is still arriving, but none of it may reach a buffer the task is about to reset or give back.
+       */
+      long size = download.size();
+      assertTrue(size > 0L);
+      Thread.sleep(300);
+      assertEquals(size, download.size());
+    }
+
+  }
+
+  private void redirect(HttpExchange exchange, int status, String location) throws IOException {
+    exchange.getResponseHeaders().add("Location", location);
+    exchange.sendResponseHeaders(status, -1);
+    exchange.close();
+  }
+
+}
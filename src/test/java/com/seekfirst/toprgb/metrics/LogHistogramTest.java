@@ -0,0 +1,50 @@
+package com.seekfirst.toprgb.metrics;
+
+import java.util.Random;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ *
+ * @author David Botterill
+ */
+public class LogHistogramTest {
+
+  @Test
+  public void testBucketsHoldTheirValues() {
+
+    Random random = new Random(17L);
+    for (int ii = 0; ii < 100000; ii++) {
+      long value = (random.nextLong() >>> 1) >>> random.nextInt(63);
+      int index = LogHistogram.indexOf(value);
+      long highest = LogHistogram.highestValueOf(index);
+      assertTrue(value + " above bucket " + index, value <= highest);
+      if (index > 0) {
+        assertTrue(value + " below bucket " + index, value > LogHistogram.highestValueOf(index - 1));
+      }
+      assertTrue(value + " bucket too wide", highest - value <= value / 32L);
+    }
+    assertEquals(31L, LogHistogram.highestValueOf(LogHistogram.indexOf(31L)));
+    assertEquals(Long.MAX_VALUE, LogHistogram.highestValueOf(LogHistogram.indexOf(Long.MAX_VALUE)));
+  }
+
+  @Test
+  public void testPercentiles() {
+
+    LogHistogram histogram = new LogHistogram();
+    assertEquals(0L, histogram.getValueAtPercentile(50.0));
+    for (long value = 1L; value <= 10000L; value++) {
+      histogram.record(value * 1000L);
+    }
+    histogram.record(-5L);
+
+    assertEquals(10001L, histogram.getCount());
+    assertEquals(10000000L, histogram.getMax());
+    assertEquals(5000L * 10001L * 1000L, histogram.getSum());
+    assertEquals(5000000.0, histogram.getValueAtPercentile(50.0), 5000000.0 * 0.04);
+    assertEquals(9900000.0, histogram.getValueAtPercentile(99.0), 9900000.0 * 0.04);
+    assertEquals(10000000L, histogram.getValueAtPercentile(100.0));
+    assertEquals(0L, histogram.getValueAtPercentile(0.0));
+  }
+
+}
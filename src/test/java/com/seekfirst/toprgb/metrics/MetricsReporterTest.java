@@ -0,0 +1,61 @@
+package com.seekfirst.toprgb.metrics;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Map;
+import javax.management.ObjectName;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ *
+ * @author David Botterill
+ */
+public class MetricsReporterTest {
+
+  @Test
+  public void testPublishesMetrics() throws Exception {
+
+    File prometheusFile = File.createTempFile("toprgb_", "_testmetrics.prom");
+    prometheusFile.deleteOnExit();
+    PipelineMetrics metrics = new PipelineMetrics();
+    metrics.fetched(20000000L, 1000L);
+    metrics.fetched(40000000L, 3000L);
+    metrics.decoded(5000000L);
+    metrics.counted(640L * 480L);
+    metrics.histogramSize(1234L);
+    metrics.skipped(PipelineMetrics.Reason.REPEAT_URL, 3L);
+    metrics.skipped(PipelineMetrics.Reason.FETCH_FAILED);
+    metrics.addQueue("fetch", () -> 7L);
+    metrics.setResultsWritten(() -> 1L);
+
+    ObjectName name = new ObjectName("com.seekfirst.toprgb:type=PipelineMetrics");
+    MetricsReporter reporter = new MetricsReporter(metrics, 0L, prometheusFile);
+    try {
+      assertEquals(2L, ManagementFactory.getPlatformMBeanServer().getAttribute(name, "FetchCount"));
+      assertEquals(4000L, ManagementFactory.getPlatformMBeanServer().getAttribute(name, "DownloadBytes"));
+      String summary = reporter.summary();
+      assertTrue(summary, summary.startsWith("fetched 2 "));
+      assertTrue(summary, summary.contains("queues fetch=7"));
+      assertTrue(summary, summary.contains("skipped repeat_url=3 fetch_failed=1"));
+      assertFalse(summary, summary.contains("decode_failed"));
+    } finally {
+      reporter.close();
+    }
+    assertFalse(ManagementFactory.getPlatformMBeanServer().isRegistered(name));
+
+    String text = new String(Files.readAllBytes(prometheusFile.toPath()), StandardCharsets.UTF_8);
+    assertTrue(text, text.contains("# TYPE toprgb_fetch_seconds summary\n"));
+    assertTrue(text, text.contains("toprgb_fetch_seconds_count 2\n"));
+    assertTrue(text, text.contains("toprgb_download_bytes_total 4000\n"));
+    assertTrue(text, text.contains("toprgb_pixels_total 307200\n"));
+    assertTrue(text, text.contains("toprgb_queue_depth{stage=\"fetch\"} 7\n"));
+    assertTrue(text, text.contains("toprgb_skipped_total{reason=\"decode_failed\"} 0\n"));
+    assertTrue(text, text.contains("toprgb_results_written_total 1\n"));
+    Map<String, Long> skipped = metrics.getSkipped();
+    assertEquals(Long.valueOf(3L), skipped.get("repeat_url"));
+  }
+
+}
@@ -0,0 +1,166 @@
+package com.seekfirst.toprgb.output;
+
+import java.io.File;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ *
+ * @author David Botterill
+ */
+public class ResultWriterTest {
+
+  @Test
+  public void testRowsFromManyThreadsAreWrittenInBatches() throws Exception {
+
+    File output = File.createTempFile("toprgb_", "_testcsv");
+    output.deleteOnExit();
+    FileChannel channel = FileChannel.open(output.toPath(), StandardOpenOption.WRITE);
+    ResultWriter writer = new ResultWriter(channel, 3, false, 256, 50L, ResultWriter.FsyncPolicy.FLUSH);
+
+    Thread[] threads = new Thread[4];
+    for (int tt = 0; tt < threads.length; tt++) {
+      int thread = tt;
+      threads[tt] = new Thread(() -> {
+        for (int ii = 0; ii < 250; ii++) {
+          writer.submit(new TopRgbResult("http://host/" + thread + "/" + ii, new int[]{0x0a0b0c, 0xffffff}, null));
+        }
+      });
+      threads[tt].start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    writer.close();
+
+    List<String> rows = Files.readAllLines(output.toPath());
+    assertEquals(1000, rows.size());
+    assertEquals(1000, writer.getResultsWritten());
+    for (String row : rows) {
+      assertTrue(row.endsWith(",#0a0b0c,#ffffff,"));
+    }
+
+  }
+
+  @Test
+  public void testErrorColumnsAndOversizedRow() throws Exception {
+
+    File output = File.createTempFile("toprgb_", "_testcsv");
+    output.deleteOnExit();
+    FileChannel channel = FileChannel.open(output.toPath(), StandardOpenOption.WRITE);
+    ResultWriter writer = new ResultWriter(channel, 2, true, 64, 1000L, ResultWriter.FsyncPolicy.NONE);
+
+    String longUrl = "http://host/" + "x".repeat(100) + "/caf\u00e9.jpg";
+    writer.submit(new TopRgbResult("http://host/a.jpg", new int[]{0x000000}, new long[]{12L}));
+    writer.submit(new TopRgbResult(longUrl, new int[]{0x123456, 0xabcdef}, new long[]{0L, 3L}));
+    writer.close();
+
+    List<String> rows = Files.readAllLines(output.toPath());
+    assertEquals("http://host/a.jpg,#000000,,12,", rows.get(0));
+    assertEquals(longUrl + ",#123456,#abcdef,0,3", rows.get(1));
+
+  }
+
+  @Test
+  public void testCountColumnEndsEveryRow() throws Exception {
+
+    File output = File.createTempFile("toprgb_", "_testcsv");
+    output.deleteOnExit();
+    FileChannel channel = FileChannel.open(output.toPath(), StandardOpenOption.WRITE);
+    ResultWriter writer = new ResultWriter(channel, 2, false, true, 64, 1000L, ResultWriter.FsyncPolicy.NONE);
+
+    String longUrl = "http://host/" + "y".repeat(100) + ".jpg";
+    writer.submit(new TopRgbResult("http://host/a.jpg", new int[]{0x000000}, null, 7L));
+    writer.submit(new TopRgbResult(longUrl, new int[]{0x123456, 0xabcdef}, null, 1L));
+    writer.close();
+
+    List<String> rows = Files.readAllLines(output.toPath());
+    assertEquals("http://host/a.jpg,#000000,,7", rows.get(0));
+    assertEquals(longUrl + ",#123456,#abcdef,1", rows.get(1));
+
+  }
+
+  @Test
+  public void testWriterHaltsAfterRepeatedWriteErrors() throws Exception {
+
+    File output = File.createTempFile("toprgb_", "_testcsv");
+    output.deleteOnExit();
+    FileChannel channel = FileChannel.open(output.toPath(), StandardOpenOption.WRITE);
+    ResultWriter writer = new ResultWriter(channel, 3, false, 256, 0L, ResultWriter.FsyncPolicy.NONE);
+    channel.close();
+
+    writer.submit(new TopRgbResult("http://host/a.jpg", new int[]{0x000000}, null));
+    long deadline = System.currentTimeMillis() + 5000L;
+    while (!writer.isHalted() && System.currentTimeMillis() < deadline) {
+      Thread.sleep(50L);
+    }
+
+    assertTrue(writer.isHalted());
+    assertFalse(writer.submit(new TopRgbResult("http://host/b.jpg", new int[]{0x000000}, null)));
+    assertEquals(0, writer.getResultsWritten());
+
+  }
+
+  @Test
+  public void testIdleWriterWritesBufferedRowsAtTheFlushInterval() throws Exception {
+
+    File output = File.createTempFile("toprgb_", "_testcsv");
+    output.deleteOnExit();
+    FileChannel channel = FileChannel.open(output.toPath(), StandardOpenOption.WRITE);
+    ResultWriter writer = new ResultWriter(channel, 1, false, 256, 200L, ResultWriter.FsyncPolicy.NONE);
+
+    /**
+     * Nothing else arrives, so only the wait on the queue running out at the flush deadline gets the row written.
+     */
+    assertTrue(writer.submit(new TopRgbResult("http://host/a.jpg", new int[]{0x000000}, null)));
+    Thread.sleep(50L);
+    assertEquals(0L, writer.getResultsWritten());
+    long deadline = System.currentTimeMillis() + 5000L;
+    while (0L == writer.getResultsWritten() && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10L);
+    }
+    assertEquals(1L, writer.getResultsWritten());
+    writer.close();
+    assertEquals(List.of("http://host/a.jpg,#000000"), Files.readAllLines(output.toPath()));
+
+  }
+
+  @Test
+  public void testSubmitBlocksWhileTheQueueIsFull() throws Exception {
+
+    File output = File.createTempFile("toprgb_", "_testcsv");
+    output.deleteOnExit();
+    FileChannel channel = FileChannel.open(output.toPath(), StandardOpenOption.WRITE);
+    ResultWriter writer = new ResultWriter(channel, 3, false, false, 256, 0L, ResultWriter.FsyncPolicy.NONE, 2);
+    channel.close();
+
+    /**
+     * The writer thread takes the first row and then keeps retrying the failed write, so the queue stays full.
+     */
+    assertTrue(writer.submit(new TopRgbResult("http://host/a.jpg", new int[]{0x000000}, null)));
+    Thread.sleep(100L);
+    assertTrue(writer.submit(new TopRgbResult("http://host/b.jpg", new int[]{0x000000}, null)));
+    assertTrue(writer.submit(new TopRgbResult("http://host/c.jpg", new int[]{0x000000}, null)));
+    AtomicBoolean submitted = new AtomicBoolean(true);
+    Thread submitter = new Thread(() -> submitted.set(
+        writer.submit(new TopRgbResult("http://host/d.jpg", new int[]{0x000000}, null))));
+    submitter.start();
+    submitter.join(100L);
+    assertTrue(submitter.isAlive());
+
+    /**
+     * Halting releases the blocked thread without queueing its row.
+     */
+    submitter.join(5000L);
+    assertFalse(submitter.isAlive());
+    assertTrue(writer.isHalted());
+    assertFalse(submitted.get());
+
+  }
+
+}
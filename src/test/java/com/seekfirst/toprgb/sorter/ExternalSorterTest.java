@@ -2,12 +2,24 @@ package com.seekfirst.toprgb.sorter;
 
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import static java.nio.file.StandardOpenOption.WRITE;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.TreeSet;
 import org.junit.Test;
 import static org.junit.Assert.*;
 
@@ -69,27 +81,9 @@ public class ExternalSorterTest {
     assertNotNull(sorted);
     assertEquals(3, sorted.size());
 
-    List<String> sortedList1 = new ArrayList<>();
-    try (BufferedReader reader = Files.newBufferedReader(Paths.get(sorted.get(0).getAbsolutePath()))) {
-      String urlLine = null;
-      while ((urlLine = reader.readLine()) != null) {
-        sortedList1.add(urlLine);
-      }
-    }
-    List<String> sortedList2 = new ArrayList<>();
-    try (BufferedReader reader = Files.newBufferedReader(Paths.get(sorted.get(1).getAbsolutePath()))) {
-      String urlLine = null;
-      while ((urlLine = reader.readLine()) != null) {
-        sortedList2.add(urlLine);
-      }
-    }
-    List<String> sortedList3 = new ArrayList<>();
-    try (BufferedReader reader = Files.newBufferedReader(Paths.get(sorted.get(2).getAbsolutePath()))) {
-      String urlLine = null;
-      while ((urlLine = reader.readLine()) != null) {
-        sortedList3.add(urlLine);
-      }
-    }
+    List<String> sortedList1 = readSpillFile(sorted.get(0));
+    List<String> sortedList2 = readSpillFile(sorted.get(1));
+    List<String> sortedList3 = readSpillFile(sorted.get(2));
     assertEquals(2, sortedList1.size());
     assertEquals(2, sortedList2.size());
     assertEquals(1, sortedList3.size());
@@ -131,12 +125,10 @@ public class ExternalSorterTest {
       }
     }
 
-    assertEquals(5, sortedList.size());
+    assertEquals(3, sortedList.size());
     assertEquals("000012345", sortedList.get(0));
-    assertEquals("000012345", sortedList.get(1));
-    assertEquals("123456789", sortedList.get(2));
-    assertEquals("123456789", sortedList.get(3));
-    assertEquals("999999999", sortedList.get(4));
+    assertEquals("123456789", sortedList.get(1));
+    assertEquals("999999999", sortedList.get(2));
 
   }
 
@@ -175,12 +167,479 @@ public class ExternalSorterTest {
       }
     }
 
-    assertEquals(5, sortedList.size());
+    assertEquals(3, sortedList.size());
     assertEquals("000012345", sortedList.get(0));
-    assertEquals("000012345", sortedList.get(1));
-    assertEquals("123456789", sortedList.get(2));
-    assertEquals("123456789", sortedList.get(3));
-    assertEquals("999999999", sortedList.get(4));
+    assertEquals("123456789", sortedList.get(1));
+    assertEquals("999999999", sortedList.get(2));
+
+  }
+
+  @Test
+  public void testExternalSortMergesInPasses() throws Exception {
+
+    ExternalSorter sorter = new ExternalSorter(400);
+    sorter.setMaxFanIn(3);
+
+    File testUnsorted = File.createTempFile("toprgb_", "_testsort");
+    testUnsorted.deleteOnExit();
+    Random random = new Random(13);
+    List<String> expected = new ArrayList<>();
+    try (BufferedWriter writer = Files.newBufferedWriter(Paths.get(testUnsorted.getAbsolutePath()), WRITE)) {
+      for (int ii = 0; ii < 1000; ii++) {
+        String line = "http://host/" + random.nextInt(300);
+        expected.add(line);
+        writer.write(line);
+        writer.newLine();
+      }
+    }
+    List<File> unsorted = sorter.breakDownFile(testUnsorted.getAbsolutePath(), 400);
+    assertTrue(unsorted.size() > 9);
+
+    File sorted = File.createTempFile("toprgb_", "_testsort");
+    sorted.deleteOnExit();
+
+    sorter.externalSort(unsorted, sorted.getAbsolutePath());
+
+    List<String> distinct = new ArrayList<>(new TreeSet<>(expected));
+    assertEquals(distinct, Files.readAllLines(sorted.toPath()));
+    for (File chunk : unsorted) {
+      assertFalse(chunk.exists());
+    }
+  }
+
+  @Test
+  public void testOpenResumesFromSortedChunks() throws Exception {
+
+    File testUnsorted = File.createTempFile("toprgb_", "_testsort");
+    testUnsorted.deleteOnExit();
+    Random random = new Random(17);
+    Map<String, Long> expected = new TreeMap<>();
+    try (BufferedWriter writer = Files.newBufferedWriter(Paths.get(testUnsorted.getAbsolutePath()), WRITE)) {
+      for (int ii = 0; ii < 1000; ii++) {
+        String line = "http://host/" + random.nextInt(300);
+        expected.merge(line, 1L, Long::sum);
+        writer.write(line);
+        writer.newLine();
+      }
+    }
+    List<SortedChunk> chunks = new ArrayList<>();
+    ExternalSorter interrupted = new ExternalSorter(400);
+    interrupted.setCheckpoint(new SortCheckpoint() {
+      @Override
+      public void chunkSorted(SortedChunk chunk) {
+        chunks.add(chunk);
+      }
 
+      @Override
+      public void inputSorted() {
+      }
+
+      @Override
+      public void runsMerged(List<File> runs, File merged) {
+      }
+    });
+    interrupted.breakDownFile(testUnsorted.getAbsolutePath(), 400);
+    assertTrue(chunks.size() > 4);
+
+    /**
+     * Keep every other chunk, as if the rest were never finished.
+     */
+    List<SortedChunk> kept = new ArrayList<>();
+    for (int ii = 0; ii < chunks.size(); ii++) {
+      if (ii % 2 == 0) {
+        kept.add(chunks.get(ii));
+      } else {
+        assertTrue(chunks.get(ii).getFile().delete());
+      }
+    }
+
+    ExternalSorter resumed = new ExternalSorter(400);
+    resumed.setCountOccurrences(true);
+    Map<String, Long> counts = new TreeMap<>();
+    try (SortedUrls sortedUrls = resumed.open(testUnsorted.getAbsolutePath(), null, kept)) {
+      while (sortedUrls.next()) {
+        counts.put(sortedUrls.getUrl(), sortedUrls.getCount());
+      }
+    }
+    assertEquals(expected, counts);
+    assertEquals(1000L, resumed.getLinesRead());
+  }
+
+  @Test
+  public void testFailedSortIsNotCheckpointed() throws Exception {
+
+    File testUnsorted = File.createTempFile("toprgb_", "_testsort");
+    testUnsorted.deleteOnExit();
+    List<String> lines = new ArrayList<>();
+    for (int ii = 0; ii < 200; ii++) {
+      lines.add("http://host/" + ii);
+    }
+    Files.write(testUnsorted.toPath(), lines, StandardCharsets.UTF_8);
+    File missing = new File(testUnsorted.getPath() + ".missing");
+
+    for (int threads = 1; threads <= 2; threads++) {
+      List<String> recorded = new ArrayList<>();
+      ExternalSorter sorter = new ExternalSorter(400);
+      sorter.setSortThreads(threads);
+      /**
+       * No chunk file can be created in a work directory that does not exist.
+       */
+      sorter.setWorkDirectory(missing);
+      sorter.setCheckpoint(new SortCheckpoint() {
+        @Override
+        public void chunkSorted(SortedChunk chunk) {
+          recorded.add("chunk");
+        }
+
+        @Override
+        public void inputSorted() {
+          recorded.add("sorted");
+        }
+
+        @Override
+        public void runsMerged(List<File> runs, File merged) {
+          recorded.add("merged");
+        }
+      });
+      try {
+        sorter.open(testUnsorted.getAbsolutePath(), null).close();
+        fail("Sort with " + threads + " threads should have failed");
+      } catch (IOException ex) {
+        assertEquals(new ArrayList<>(), recorded);
+      }
+    }
+  }
+
+  @Test
+  public void testChunkSizeComesFromTheMemoryBudget() {
+
+    ExternalSorter sorter = new ExternalSorter(1000000L);
+    sorter.setMemoryBudget(300000L);
+    sorter.setSortThreads(2);
+    assertEquals(100000L, sorter.getEffectiveChunkSize());
+
+    sorter.setMemoryBudget(30000000L);
+    assertEquals(1000000L, sorter.getEffectiveChunkSize());
+
+    sorter.setMemoryBudget(0L);
+    assertEquals((long) (Runtime.getRuntime().maxMemory() * ExternalSorter.DEFAULT_MEMORY_FRACTION),
+        sorter.getMemoryBudget());
+  }
+
+  @Test
+  public void testExternalSortCountsOccurrences() throws Exception {
+
+    ExternalSorter sorter = new ExternalSorter(100);
+    sorter.setMaxFanIn(2);
+    sorter.setSortThreads(3);
+    sorter.setCountOccurrences(true);
+
+    File testUnsorted = File.createTempFile("toprgb_", "_testsort");
+    testUnsorted.deleteOnExit();
+    Random random = new Random(14);
+    Map<String, Long> expected = new TreeMap<>();
+    try (BufferedWriter writer = Files.newBufferedWriter(Paths.get(testUnsorted.getAbsolutePath()), WRITE)) {
+      for (int ii = 0; ii < 500; ii++) {
+        String line = "http://host/" + random.nextInt(40);
+        expected.merge(line, 1L, Long::sum);
+        writer.write(line);
+        writer.newLine();
+      }
+    }
+    File sorted = File.createTempFile("toprgb_", "_testsort");
+    sorted.deleteOnExit();
+
+    sorter.sort(testUnsorted.getAbsolutePath(), sorted.getAbsolutePath());
+
+    List<String> expectedLines = new ArrayList<>();
+    expected.forEach((line, count) -> expectedLines.add(line + "\t" + count));
+    assertEquals(expectedLines, Files.readAllLines(sorted.toPath()));
+    assertEquals(500L, sorter.getLinesRead());
   }
+
+  @Test
+  public void testOpenPullsDistinctUrlsAndCopies() throws Exception {
+
+    ExternalSorter sorter = new ExternalSorter(60);
+
+    File testUnsorted = File.createTempFile("toprgb_", "_testsort");
+    testUnsorted.deleteOnExit();
+    Files.write(testUnsorted.toPath(), Arrays.asList("http://b", "http://a", "http://c", "http://a", "http://b",
+        "http://a", "http://caf\u00e9"), StandardCharsets.UTF_8);
+    File copy = File.createTempFile("toprgb_", "_testsort");
+    copy.deleteOnExit();
+
+    List<String> urls = new ArrayList<>();
+    List<Long> counts = new ArrayList<>();
+    try (SortedUrls sortedUrls = sorter.open(testUnsorted.getAbsolutePath(), copy)) {
+      while (sortedUrls.next()) {
+        urls.add(sortedUrls.getUrl());
+        counts.add(sortedUrls.getCount());
+      }
+      assertEquals(4L, sortedUrls.getUrlCount());
+    }
+
+    assertEquals(Arrays.asList("http://a", "http://b", "http://c", "http://caf\u00e9"), urls);
+    assertEquals(Arrays.asList(3L, 2L, 1L, 1L), counts);
+    assertEquals(urls, Files.readAllLines(copy.toPath(), StandardCharsets.UTF_8));
+  }
+
+  @Test
+  public void testInputSplitsOnLinesAndReadsThroughWindows() throws Exception {
+
+    File input = File.createTempFile("toprgb_", "_testsplit");
+    input.deleteOnExit();
+    List<String> lines = new ArrayList<>();
+    for (int ii = 0; ii < 200; ii++) {
+      lines.add("http://host/" + "p".repeat(ii % 13) + ii);
+    }
+    Files.write(input.toPath(), lines, StandardCharsets.UTF_8);
+
+    try (FileChannel channel = FileChannel.open(input.toPath(), StandardOpenOption.READ)) {
+      long[] bounds = ExternalSorter.splitAtLines(channel, 4);
+      assertEquals(5, bounds.length);
+      assertEquals(0L, bounds[0]);
+      assertEquals(channel.size(), bounds[4]);
+
+      List<String> read = new ArrayList<>();
+      ByteBuffer before = ByteBuffer.allocate(1);
+      for (int ii = 0; ii + 1 < bounds.length; ii++) {
+        if (ii > 0) {
+          before.clear();
+          channel.read(before, bounds[ii] - 1);
+          assertEquals('\n', before.get(0));
+        }
+        ByteLineReader reader = new ByteLineReader(new MappedRangeInputStream(channel, bounds[ii], bounds[ii + 1], 7),
+            16);
+        while (reader.next()) {
+          read.add(new String(reader.getBuffer(), reader.getOffset(), reader.getLength(), StandardCharsets.UTF_8));
+        }
+      }
+      assertEquals(lines, read);
+
+      assertEquals(2, ExternalSorter.splitAtLines(channel, 1).length);
+    }
+  }
+
+  @Test
+  public void testParallelRangeMergeKeepsOrder() throws Exception {
+
+    ExternalSorter sorter = new ExternalSorter(1L << 20);
+    sorter.setSortThreads(4);
+    sorter.setCompressSpills(true);
+
+    File testUnsorted = File.createTempFile("toprgb_", "_testsort");
+    testUnsorted.deleteOnExit();
+    Random random = new Random(19);
+    Map<String, Long> expected = new TreeMap<>();
+    List<String> lines = new ArrayList<>();
+    for (int ii = 0; ii < 60000; ii++) {
+      String line = "https://i.redd.it/" + Integer.toString(random.nextInt(40000), 36);
+      expected.merge(line, 1L, Long::sum);
+      lines.add(line);
+    }
+    Files.write(testUnsorted.toPath(), lines, StandardCharsets.UTF_8);
+
+    List<String> urls = new ArrayList<>();
+    long total = 0L;
+    try (SortedUrls sortedUrls = sorter.open(testUnsorted.getAbsolutePath(), null)) {
+      while (sortedUrls.next()) {
+        urls.add(sortedUrls.getUrl());
+        total += sortedUrls.getCount();
+      }
+    }
+    assertEquals(new ArrayList<>(expected.keySet()), urls);
+    assertEquals(60000L, total);
+  }
+
+  @Test
+  public void testParallelRangeMergeHandsOverManyBlocks() throws Exception {
+
+    ExternalSorter sorter = new ExternalSorter(1L << 22);
+    sorter.setSortThreads(3);
+
+    /**
+     * Each background range holds several times more lines than fit in its queue of blocks.
+     */
+    File testUnsorted = File.createTempFile("toprgb_", "_testsort");
+    testUnsorted.deleteOnExit();
+    List<String> lines = new ArrayList<>();
+    for (int ii = 0; ii < 150000; ii++) {
+      lines.add(String.format("https://images.example.com/gallery/%08d/%08x.jpg", (ii * 7919) % 150000, ii));
+    }
+    Files.write(testUnsorted.toPath(), lines, StandardCharsets.UTF_8);
+    List<String> expected = new ArrayList<>(new TreeSet<>(lines));
+
+    List<String> urls = new ArrayList<>();
+    try (SortedUrls sortedUrls = sorter.open(testUnsorted.getAbsolutePath(), null)) {
+      while (sortedUrls.next()) {
+        urls.add(sortedUrls.getUrl());
+      }
+    }
+    assertEquals(expected, urls);
+
+    /**
+     * Closing before the end stops the background ranges waiting for room in their queues.
+     */
+    try (SortedUrls sortedUrls = sorter.open(testUnsorted.getAbsolutePath(), null)) {
+      assertTrue(sortedUrls.next());
+      assertEquals(expected.get(0), sortedUrls.getUrl());
+    }
+  }
+
+  @Test
+  public void testSpillFileReaderSeeksToKey() throws Exception {
+
+    File spill = File.createTempFile("toprgb_", "_testspill");
+    spill.deleteOnExit();
+    Random random = new Random(7);
+    List<String> lines = new ArrayList<>();
+    for (int ii = 0; ii < 30000; ii++) {
+      lines.add(String.format("http://host/%08d/%016x%016x", ii * 2, random.nextLong(), random.nextLong()));
+    }
+    try (SpillFile.Writer writer = new SpillFile.Writer(spill, false)) {
+      for (String line : lines) {
+        byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+        writer.write(bytes, 0, bytes.length, 1L);
+      }
+    }
+
+    for (int key : new int[]{0, 1, 12345, 20000 * 2, 59998, 59999}) {
+      byte[] fromKey = String.format("http://host/%08d", key).getBytes(StandardCharsets.UTF_8);
+      try (SpillFile.Reader reader = new SpillFile.Reader(spill, fromKey)) {
+        int expected = (key + 1) / 2;
+        if (expected < lines.size()) {
+          assertTrue(reader.next());
+          assertEquals(lines.get(expected),
+              new String(reader.getBuffer(), reader.getOffset(), reader.getLength(), StandardCharsets.UTF_8));
+        } else {
+          assertFalse(reader.next());
+        }
+      }
+    }
+
+    byte[][] splitters = SpillFile.sampleSplitters(Arrays.asList(spill), 4);
+    assertEquals(3, splitters.length);
+    assertTrue(Arrays.compareUnsigned(splitters[0], splitters[1]) < 0);
+    assertTrue(Arrays.compareUnsigned(splitters[1], splitters[2]) < 0);
+  }
+
+  @Test
+  public void testLineArenaSortsByUnsignedBytes() throws Exception {
+
+    Random random = new Random(12);
+    String[] parts = {"http://", "https://", "a", "b", "/", "\u00e9", "\u4e2d", "\ud83d\ude00", "\uffe0", "0"};
+    List<byte[]> lines = new ArrayList<>();
+    LineArena arena = new LineArena(1L << 24);
+    for (int ii = 0; ii < 5000; ii++) {
+      StringBuilder line = new StringBuilder();
+      int length = random.nextInt(8);
+      for (int jj = 0; jj < length; jj++) {
+        line.append(parts[random.nextInt(parts.length)]);
+      }
+      byte[] bytes = line.toString().getBytes(StandardCharsets.UTF_8);
+      lines.add(bytes);
+      assertTrue(arena.add(bytes, 0, bytes.length));
+    }
+    arena.sort();
+    File spill = File.createTempFile("toprgb_", "_testspill");
+    spill.deleteOnExit();
+    try (SpillFile.Writer writer = new SpillFile.Writer(spill, false)) {
+      arena.writeTo(writer);
+    }
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    try (SpillFile.Reader reader = new SpillFile.Reader(spill)) {
+      while (reader.next()) {
+        output.write(reader.getBuffer(), reader.getOffset(), reader.getLength());
+        output.write('\n');
+      }
+    }
+
+    lines.sort(Arrays::compareUnsigned);
+    ByteArrayOutputStream expected = new ByteArrayOutputStream();
+    long lineBytes = 0L;
+    for (int ii = 0; ii < lines.size(); ii++) {
+      byte[] line = lines.get(ii);
+      lineBytes += line.length;
+      if (ii > 0 && Arrays.equals(line, lines.get(ii - 1))) {
+        continue;
+      }
+      expected.write(line);
+      expected.write('\n');
+    }
+    assertArrayEquals(expected.toByteArray(), output.toByteArray());
+    assertEquals(lineBytes + lines.size() * (long) LineArena.INDEX_BYTES_PER_LINE, arena.memoryUsed());
+  }
+
+  @Test
+  public void testLineArenaRefusesLinesPastCapacity() {
+
+    LineArena arena = new LineArena(50);
+    byte[] line = "123456789".getBytes(StandardCharsets.UTF_8);
+    assertTrue(arena.add(line, 0, line.length));
+    assertTrue(arena.add(line, 0, line.length));
+    assertFalse(arena.add(line, 0, line.length));
+    assertEquals(2, arena.size());
+    assertEquals(42L, arena.memoryUsed());
+  }
+
+  @Test
+  public void testByteLineReaderSplitsAcrossBufferRefills() throws Exception {
+
+    String text = "first\r\nsecond line longer than the buffer\n\nlast";
+    ByteLineReader reader = new ByteLineReader(new ByteArrayInputStream(text.getBytes(StandardCharsets.UTF_8)), 4);
+    List<String> lines = new ArrayList<>();
+    while (reader.next()) {
+      lines.add(new String(reader.getBuffer(), reader.getOffset(), reader.getLength(), StandardCharsets.UTF_8));
+    }
+    assertEquals(Arrays.asList("first", "second line longer than the buffer", "", "last"), lines);
+  }
+
+  @Test
+  public void testSpillFileRoundTrips() throws Exception {
+
+    Random random = new Random(15);
+    List<String> lines = new ArrayList<>();
+    for (int ii = 0; ii < 20000; ii++) {
+      lines.add("https://i.redd.it/" + Integer.toString(random.nextInt(1 << 30), 36) + ".jpg");
+    }
+    lines.add("http://host/" + "z".repeat(200000));
+    lines.add("");
+    lines.sort(null);
+
+    for (boolean compress : new boolean[]{false, true}) {
+      File spill = File.createTempFile("toprgb_", "_testspill");
+      spill.deleteOnExit();
+      long rawBytes = 0L;
+      try (SpillFile.Writer writer = new SpillFile.Writer(spill, compress)) {
+        for (int ii = 0; ii < lines.size(); ii++) {
+          byte[] line = lines.get(ii).getBytes(StandardCharsets.UTF_8);
+          rawBytes += line.length + 1;
+          writer.write(line, 0, line.length, ii + 1);
+        }
+      }
+      assertTrue(spill.length() < rawBytes * 3 / 4);
+
+      try (SpillFile.Reader reader = new SpillFile.Reader(spill)) {
+        for (int ii = 0; ii < lines.size(); ii++) {
+          assertTrue(reader.next());
+          assertEquals(lines.get(ii),
+              new String(reader.getBuffer(), reader.getOffset(), reader.getLength(), StandardCharsets.UTF_8));
+          assertEquals(ii + 1, reader.getCount());
+        }
+        assertFalse(reader.next());
+      }
+    }
+  }
+
+  private static List<String> readSpillFile(File spill) throws Exception {
+    List<String> lines = new ArrayList<>();
+    try (SpillFile.Reader reader = new SpillFile.Reader(spill)) {
+      while (reader.next()) {
+        lines.add(new String(reader.getBuffer(), reader.getOffset(), reader.getLength(), StandardCharsets.UTF_8));
+      }
+    }
+    return lines;
+  }
+
 }